@@ -3,7 +3,6 @@ package com.davfx.ninio.core;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.Objects;
 
 public final class Address {
 	public static final byte[] LOCALHOST = new byte[] { 127, 0, 0, 1 };
@@ -49,7 +48,7 @@ public final class Address {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(Arrays.hashCode(ip), port);
+		return (31 * (31 + Arrays.hashCode(ip))) + port; // Same as Objects.hash(Arrays.hashCode(ip), port), without boxing
 	}
 
 	@Override
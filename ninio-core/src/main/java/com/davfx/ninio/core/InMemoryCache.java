@@ -1,23 +1,34 @@
 package com.davfx.ninio.core;
 
+import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.core.supervision.metrics.DisplayableMetricsManager;
 import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
 import com.davfx.ninio.core.supervision.tracking.RequestTracker;
 import com.davfx.ninio.core.supervision.tracking.RequestTrackerManager;
-import com.davfx.ninio.util.DateUtils;
+import com.davfx.ninio.util.CachedClock;
+import com.davfx.ninio.util.ConfigUtils;
 import com.davfx.ninio.util.MemoryCache;
+import com.davfx.ninio.util.OffHeapByteStore;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+/**
+ * Destination addresses are spread over independently locked stripes: requests to and responses from different devices do not contend.
+ */
 public final class InMemoryCache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryCache.class);
 
+    private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(InMemoryCache.class.getPackage().getName());
+    private static final int DEFAULT_STRIPES = CONFIG.getInt("cache.memory.stripes");
+
     public interface Builder<T> extends NinioBuilder<Connecter> {
         Builder<T> dataExpiration(double dataExpiration);
 
@@ -28,6 +39,23 @@ public final class InMemoryCache {
         Builder<T> name(String name);
 
         Builder<T> with(NinioBuilder<Connecter> builder);
+
+        Builder<T> stripes(int stripes);
+
+        /**
+         * Bounds the memory held by the cached responses (0 for unbounded), the least recently used ones are evicted first
+         */
+        Builder<T> maxBytes(long maxBytes);
+
+        /**
+         * For this long after dataExpiration, the expired response is still served right away while a single refresh is sent to the destination
+         */
+        Builder<T> staleWhileRevalidate(double staleWhileRevalidate);
+
+        /**
+         * Keeps the cached responses in direct memory slabs, out of the garbage collector's view (requires maxBytes, which then bounds the slabs)
+         */
+        Builder<T> offHeap(boolean offHeap);
     }
 
     public static <T> Builder<T> builder() {
@@ -38,6 +66,10 @@ public final class InMemoryCache {
             private double dataExpiration = 0d;
             private double requestExpiration = 0d;
             private Interpreter<T> interpreter = null;
+            private int stripes = DEFAULT_STRIPES;
+            private long maxBytes = 0L;
+            private double staleWhileRevalidate = 0d;
+            private boolean offHeap = false;
 
             @Override
             public Builder<T> using(Interpreter<T> interpreter) {
@@ -69,6 +101,30 @@ public final class InMemoryCache {
                 return this;
             }
 
+            @Override
+            public Builder<T> stripes(int stripes) {
+                this.stripes = stripes;
+                return this;
+            }
+
+            @Override
+            public Builder<T> maxBytes(long maxBytes) {
+                this.maxBytes = maxBytes;
+                return this;
+            }
+
+            @Override
+            public Builder<T> staleWhileRevalidate(double staleWhileRevalidate) {
+                this.staleWhileRevalidate = staleWhileRevalidate;
+                return this;
+            }
+
+            @Override
+            public Builder<T> offHeap(boolean offHeap) {
+                this.offHeap = offHeap;
+                return this;
+            }
+
             @Override
             public Connecter create(NinioProvider ninioProvider) {
                 if (builder == null) {
@@ -78,7 +134,14 @@ public final class InMemoryCache {
                     throw new NullPointerException("interpreter");
                 }
 
-                return new InnerConnecter<>(name, dataExpiration, requestExpiration, interpreter, builder.create(ninioProvider));
+                if (stripes <= 0) {
+                    throw new IllegalArgumentException("stripes");
+                }
+                if (offHeap && (maxBytes <= 0L)) {
+                    throw new IllegalArgumentException("offHeap requires maxBytes");
+                }
+
+                return new InnerConnecter<>(name, dataExpiration, requestExpiration, staleWhileRevalidate, stripes, maxBytes, offHeap, interpreter, builder.create(ninioProvider));
             }
         };
     }
@@ -88,27 +151,44 @@ public final class InMemoryCache {
         private final Interpreter<T> interpreter;
         private final double dataExpiration;
         private final double requestExpiration;
-        private final MemoryCache<Address, CacheByAddress<T>> cacheByDestinationAddress;
+        private final double staleWhileRevalidate;
+        private final boolean offHeap;
+        private final Stripe<T>[] stripes;
         private final RequestTracker cacheOutputCounter;
         private final RequestTracker cacheInputCounter;
-        private Connection connectCallback = null;
+        private volatile Connection connectCallback = null;
 
-        public InnerConnecter(String name, double dataExpiration, double requestExpiration, Interpreter<T> interpreter, Connecter wrappee) {
+        @SuppressWarnings("unchecked")
+        public InnerConnecter(String name, double dataExpiration, double requestExpiration, double staleWhileRevalidate, int stripes, long maxBytes, boolean offHeap, Interpreter<T> interpreter, Connecter wrappee) {
             this.cacheOutputCounter = RequestTrackerManager.instance().getTracker(NinioMetrics.get().inMemoryCache(name, "out"));
             this.cacheInputCounter = RequestTrackerManager.instance().getTracker(NinioMetrics.get().inMemoryCache(name, "in"));
             this.dataExpiration = dataExpiration;
             this.requestExpiration = Math.min(dataExpiration, requestExpiration);
+            this.staleWhileRevalidate = (dataExpiration > 0d) ? staleWhileRevalidate : 0d;
+            this.offHeap = offHeap;
             this.interpreter = interpreter;
             this.wrappee = wrappee;
 
-            cacheByDestinationAddress = MemoryCache.<Address, CacheByAddress<T>>builder().expireAfterAccess(dataExpiration).build();
+            this.stripes = new Stripe[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new Stripe<>(keptExpiration(), (maxBytes + stripes - 1) / stripes, offHeap);
+            }
+        }
+
+        // Expired responses are kept during the stale window
+        private double keptExpiration() {
+            return (dataExpiration > 0d) ? (dataExpiration + staleWhileRevalidate) : 0d;
+        }
+
+        private Stripe<T> stripe(Address address) {
+            int h = address.hashCode();
+            h ^= (h >>> 16);
+            return stripes[(h & Integer.MAX_VALUE) % stripes.length];
         }
 
         @Override
         public void connect(final Connection callback) {
-            synchronized (cacheByDestinationAddress) {
-                connectCallback = callback;
-            }
+            connectCallback = callback;
 
             wrappee.connect(new Connection() {
                 @Override
@@ -128,10 +208,22 @@ public final class InMemoryCache {
                         }
                     }
 
-                    String key;
-                    List<T> to;
-                    synchronized (cacheByDestinationAddress) {
-                        CacheByAddress<T> cache = cacheByDestinationAddress.get(address);
+                    // Only the response bytes are kept, not the whole read buffer (copied in the stripe's slabs if off-heap)
+                    ByteBuffer response;
+                    if (offHeap) {
+                        response = sourceBuffer.duplicate();
+                    } else {
+                        response = ByteBuffer.allocate(sourceBuffer.remaining());
+                        response.put(sourceBuffer.duplicate());
+                        response.flip();
+                    }
+
+                    double now = CachedClock.now();
+                    Stripe<T> stripe = stripe(address);
+                    Object key;
+                    Waiting<T> to;
+                    synchronized (stripe) {
+                        CacheByAddress<T> cache = stripe.cacheByDestinationAddress.get(address);
                         if (cache == null) {
                             LOGGER.trace("No cache (address = {})", address);
                             return;
@@ -151,30 +243,36 @@ public final class InMemoryCache {
                             return;
                         }
 
-                        to = new LinkedList<>();
-                        for (T k : subs.subs.keys()) {
-                            to.add(k);
-                        }
-                        subs.subs.clear();
+                        // Detached as is, new subscribers get a fresh list
+                        to = subs.waiting;
+                        subs.waiting = null;
 
-                        subs.data = sourceBuffer.duplicate();
+                        cache.requestsByKey.put(key, subs); // Expiration restarts from now
+                        stripe.store(subs, response, now);
                     }
 
-                    for (T s : to) {
-                        ByteBuffer ssb = sourceBuffer.duplicate();
-                        ByteBuffer b;
-                        if (sub.equals(s)) {
-                            b = ssb;
-                        } else {
-                            try {
-                                b = interpreter.transform(ssb, s);
-                            } catch (Exception e) {
-                                LOGGER.trace("Invalid response packet", e);
+                    if (to != null) {
+                        for (int i = 0; i < to.size; i++) {
+                            if ((requestExpiration > 0d) && ((now - to.times[i]) >= requestExpiration)) {
                                 continue;
                             }
-                        }
-                        if (b != null) {
-                            callback.received(address, b);
+                            @SuppressWarnings("unchecked")
+                            T s = (T) to.subs[i];
+                            ByteBuffer ssb = sourceBuffer.duplicate();
+                            ByteBuffer b;
+                            if (sub.equals(s)) {
+                                b = ssb;
+                            } else {
+                                try {
+                                    b = interpreter.transform(ssb, s);
+                                } catch (Exception e) {
+                                    LOGGER.trace("Invalid response packet", e);
+                                    continue;
+                                }
+                            }
+                            if (b != null) {
+                                callback.received(address, b);
+                            }
                         }
                     }
 
@@ -219,33 +317,44 @@ public final class InMemoryCache {
                 }
             }
 
-            double now = DateUtils.now();
+            double now = CachedClock.now();
 
+            Connection callback = connectCallback;
+            Stripe<T> stripe = stripe(address);
             boolean send;
-            Connection callback;
+            boolean refresh = false;
             ByteBuffer data;
-            synchronized (cacheByDestinationAddress) {
-                callback = connectCallback;
-
-                CacheByAddress<T> cache = cacheByDestinationAddress.get(address);
+            synchronized (stripe) {
+                CacheByAddress<T> cache = stripe.cacheByDestinationAddress.get(address);
                 if (cache == null) {
                     LOGGER.trace("New cache (address = {}, expiration = {})", address, dataExpiration);
-                    cache = new CacheByAddress<>(dataExpiration, requestExpiration);
-                    cacheByDestinationAddress.put(address, cache);
+                    cache = new CacheByAddress<>(stripe, keptExpiration(), requestExpiration);
+                    stripe.cacheByDestinationAddress.put(address, cache);
                 }
 
                 DataCache<T> subs = cache.requestsByKey.get(context.key);
 
                 if (subs != null) {
-                    if (subs.data == null) {
+                    if (!subs.hasData()) {
                         if (now >= (subs.creation + requestExpiration)) {
                             subs = null;
                         }
+                    } else if ((dataExpiration > 0d) && (now >= (subs.dataTimestamp + dataExpiration))) {
+                        if (now >= (subs.dataTimestamp + dataExpiration + staleWhileRevalidate)) {
+                            stripe.forget(subs);
+                            subs = null;
+                        } else if (now >= (subs.refreshTimestamp + requestExpiration)) {
+                            // Stale, served anyway, the response to this request will replace it
+                            subs.refreshTimestamp = now;
+                            cache.subToKey.put(context.sub, context.key);
+                            refresh = true;
+                            LOGGER.trace("Refreshing stale response (address = {}, key = {}, sub = {})", address, context.key, context.sub);
+                        }
                     }
                 }
 
                 if (subs == null) {
-                    subs = new DataCache<>(now, requestExpiration);
+                    subs = new DataCache<>(now, cache, context.key);
                     cache.requestsByKey.put(context.key, subs);
                     send = true;
                     LOGGER.trace("New request (address = {}, key = {}, sub = {}) - {}", address, context.key, context.sub, cache.subToKey);
@@ -256,10 +365,13 @@ public final class InMemoryCache {
                             String.format("Request cached (address = %s, key = %s, sub = %s)", addr, context.key, context.sub));
                 }
 
-                data = subs.data;
+                data = stripe.read(subs);
 
                 if (send || (data == null)) {
-                    subs.subs.put(context.sub, null);
+                    if (subs.waiting == null) {
+                        subs.waiting = new Waiting<>();
+                    }
+                    subs.waiting.add(context.sub, now);
                     cache.subToKey.put(context.sub, context.key);
                 }
             }
@@ -269,10 +381,9 @@ public final class InMemoryCache {
             } else {
                 if (callback != null) {
                     if (data != null) {
-                        ByteBuffer b = data.duplicate();
                         ByteBuffer tb;
                         try {
-                            tb = interpreter.transform(b, context.sub);
+                            tb = interpreter.transform(data, context.sub);
                         } catch (Exception e) {
                             sendCallback.failed(new IOException("Invalid packet", e));
                             return;
@@ -282,6 +393,18 @@ public final class InMemoryCache {
                         cacheInputCounter.track(Address.ipToString(address.ip), addr ->
                                 String.format("Response cached (address = %s, key = %s, sub = %s)", addr, context.key, context.sub));
                         callback.received(address, tb);
+                        if (refresh) {
+                            wrappee.send(address, sourceBuffer, new SendCallback() {
+                                @Override
+                                public void sent() {
+                                }
+
+                                @Override
+                                public void failed(IOException ioe) {
+                                    LOGGER.trace("Could not refresh (address = {}, key = {})", address, context.key, ioe);
+                                }
+                            });
+                        }
                         return;
                     }
                 }
@@ -299,10 +422,13 @@ public final class InMemoryCache {
     }
 
     public static final class Context<T> {
-        public final String key;
+        /**
+         * Identifies the request, compared with equals/hashCode: should be cheap to build and to hash (a string concatenation is not)
+         */
+        public final Object key;
         public final T sub;
 
-        public Context(String key, T sub) {
+        public Context(Object key, T sub) {
             this.key = key;
             this.sub = sub;
         }
@@ -316,24 +442,161 @@ public final class InMemoryCache {
         ByteBuffer transform(ByteBuffer packet, T sub);
     }
 
+    // Subscribers waiting for the same response, with the time they subscribed
+    private static final class Waiting<T> {
+        public Object[] subs = new Object[2];
+        public double[] times = new double[2];
+        public int size = 0;
+
+        public void add(T sub, double now) {
+            for (int i = 0; i < size; i++) {
+                if (sub.equals(subs[i])) {
+                    times[i] = now; // Same request sent again
+                    return;
+                }
+            }
+            if (size == subs.length) {
+                subs = Arrays.copyOf(subs, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+            }
+            subs[size] = sub;
+            times[size] = now;
+            size++;
+        }
+    }
+
     private static final class DataCache<T> {
         public final double creation;
-        public ByteBuffer data = null;
-        public final MemoryCache<T, Void> subs;
-
-        public DataCache(double now, double requestExpiration) {
+        public final CacheByAddress<T> owner;
+        public final Object key;
+        public ByteBuffer data = null; // On-heap
+        public long handle = OffHeapByteStore.NONE; // Off-heap
+        public int size = 0;
+        public double dataTimestamp = 0d;
+        public double refreshTimestamp = Double.NEGATIVE_INFINITY;
+        public Waiting<T> waiting = null;
+
+        public DataCache(double now, CacheByAddress<T> owner, Object key) {
             creation = now;
-            subs = MemoryCache.<T, Void>builder().expireAfterWrite(requestExpiration).build();
+            this.owner = owner;
+            this.key = key;
+        }
+
+        public boolean hasData() {
+            return (data != null) || (handle != OffHeapByteStore.NONE);
         }
     }
 
     private static final class CacheByAddress<T> {
-        public final MemoryCache<String, DataCache<T>> requestsByKey;
-        public final MemoryCache<T, String> subToKey;
+        public final MemoryCache<Object, DataCache<T>> requestsByKey;
+        public final MemoryCache<T, Object> subToKey;
+
+        public CacheByAddress(Stripe<T> stripe, double dataExpiration, double requestExpiration) {
+            // Expired responses give their bytes (and off-heap slots) back right away, not when pushed out of the stripe
+            requestsByKey = MemoryCache.<Object, DataCache<T>>builder().expireAfterWrite(dataExpiration).removed((key, d) -> stripe.forget(d)).build();
+            subToKey = MemoryCache.<T, Object>builder().expireAfterWrite(requestExpiration).build();
+        }
+    }
+
+    // Locked as a whole, only shared by the addresses hashed to it (the caches it holds are only used under this lock, their removal listeners included)
+    private static final class Stripe<T> {
+        public final MemoryCache<Address, CacheByAddress<T>> cacheByDestinationAddress;
+        private final long maxBytes;
+        private final LinkedHashMap<DataCache<T>, DataCache<T>> leastRecentlyUsedFirst; // Only if bounded
+        private final OffHeapByteStore store; // Only if off-heap
+        private long bytes = 0L;
+
+        public Stripe(double dataExpiration, long maxBytes, boolean offHeap) {
+            cacheByDestinationAddress = MemoryCache.<Address, CacheByAddress<T>>builder().expireAfterAccess(dataExpiration).removed((address, cache) -> cache.requestsByKey.clear()).build();
+            this.maxBytes = maxBytes;
+            leastRecentlyUsedFirst = (maxBytes > 0L) ? new LinkedHashMap<>(16, 0.75f, true) : null;
+            store = offHeap ? OffHeapByteStore.bounded(maxBytes) : null; // The slabs themselves are bounded, not only the stored responses
+        }
 
-        public CacheByAddress(double dataExpiration, double requestExpiration) {
-            requestsByKey = MemoryCache.<String, DataCache<T>>builder().expireAfterWrite(dataExpiration).build();
-            subToKey = MemoryCache.<T, String>builder().expireAfterWrite(requestExpiration).build();
+        public void store(DataCache<T> d, ByteBuffer data, double now) {
+            forget(d);
+            d.dataTimestamp = now;
+            if (store == null) {
+                d.data = data;
+                d.size = data.remaining();
+            } else {
+                d.handle = store.put(data);
+                // No room for a new slab: responses are evicted until a slot is freed in the right size class, or a whole slab
+                while ((d.handle == OffHeapByteStore.NONE) && (data.remaining() <= store.maxLength()) && evictLeastRecentlyUsed()) {
+                    d.handle = store.put(data);
+                }
+                if (d.handle == OffHeapByteStore.NONE) {
+                    LOGGER.trace("Response could not be cached off-heap (key = {}, size = {})", d.key, data.remaining());
+                    drop(d);
+                    return;
+                }
+                d.size = store.capacity(d.handle);
+            }
+
+            if (leastRecentlyUsedFirst == null) {
+                return;
+            }
+
+            if (d.size > maxBytes) {
+                LOGGER.trace("Response too large to be cached (key = {}, size = {})", d.key, d.size);
+                drop(d);
+                return;
+            }
+
+            bytes += d.size;
+            leastRecentlyUsedFirst.put(d, d);
+
+            while (bytes > maxBytes) {
+                evictLeastRecentlyUsed();
+            }
+        }
+
+        private boolean evictLeastRecentlyUsed() {
+            Iterator<DataCache<T>> i = leastRecentlyUsedFirst.keySet().iterator();
+            if (!i.hasNext()) {
+                return false;
+            }
+            DataCache<T> evicted = i.next();
+            i.remove();
+            bytes -= evicted.size;
+            LOGGER.trace("Evicted (key = {})", evicted.key);
+            drop(evicted);
+            return true;
+        }
+
+        // Null if there is no data, marks it as used
+        public ByteBuffer read(DataCache<T> d) {
+            if (!d.hasData()) {
+                return null;
+            }
+            if (leastRecentlyUsedFirst != null) {
+                leastRecentlyUsedFirst.get(d);
+            }
+            return (store == null) ? d.data.duplicate() : store.get(d.handle);
+        }
+
+        public void forget(DataCache<T> d) {
+            if ((leastRecentlyUsedFirst != null) && (leastRecentlyUsedFirst.remove(d) != null)) {
+                bytes -= d.size;
+            }
+            release(d);
+        }
+
+        private void release(DataCache<T> d) {
+            if (d.handle != OffHeapByteStore.NONE) {
+                store.free(d.handle);
+                d.handle = OffHeapByteStore.NONE;
+            }
+            d.data = null;
+            d.size = 0;
+        }
+
+        // The next request is sent again
+        private void drop(DataCache<T> d) {
+            release(d);
+            if (d.owner.requestsByKey.get(d.key) == d) {
+                d.owner.requestsByKey.remove(d.key);
+            }
         }
     }
 }
@@ -0,0 +1,245 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a captured IP/UDP packet, over the buffer it was read in.
+ * Headers are read in place (network order, whatever the order of the buffer) and the same instance is reused for all the packets of a reader:
+ * nothing is allocated per packet, and the view (as well as the buffer) is only valid during the Handler call.
+ * Use the allocating accessors (sourceAddress, copyPayload...) to keep anything.
+ */
+public final class IpPacket {
+
+	public interface Handler {
+		void handle(IpPacket packet);
+	}
+
+	static final int UDP = 0;
+	static final int NOT_UDP = 1;
+	static final int FRAGMENTED = 2;
+	static final int STRANGE_LENGTH = 3;
+	static final int INVALID = 4;
+
+	private static final int IPV4_HEADER_LENGTH = 20;
+	private static final int IPV6_HEADER_LENGTH = 40;
+	private static final int UDP_HEADER_LENGTH = 8;
+	private static final int UDP_PROTOCOL = 17;
+
+	private ByteBuffer buffer;
+	private double timestamp;
+	private int version;
+	private int protocol;
+	private int ipPosition;
+	private int sourcePort;
+	private int destinationPort;
+	private int payloadOffset;
+	private int payloadLength;
+
+	public IpPacket() {
+	}
+
+	private static int unsignedShort(ByteBuffer b, int position) {
+		return ((b.get(position) & 0xFF) << 8) | (b.get(position + 1) & 0xFF);
+	}
+
+	private static int networkInt(ByteBuffer b, int position) {
+		return ((b.get(position) & 0xFF) << 24) | ((b.get(position + 1) & 0xFF) << 16) | ((b.get(position + 2) & 0xFF) << 8) | (b.get(position + 3) & 0xFF);
+	}
+
+	private static long networkLong(ByteBuffer b, int position) {
+		return (((long) networkInt(b, position)) << 32) | (networkInt(b, position + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Parses the headers of the IP packet lying between position and limit (the position and limit of the buffer are not used nor moved)
+	 */
+	int parse(double timestamp, ByteBuffer buffer, int position, int limit) {
+		this.buffer = buffer;
+		this.timestamp = timestamp;
+		ipPosition = position;
+		protocol = -1;
+		sourcePort = -1;
+		destinationPort = -1;
+		payloadOffset = -1;
+		payloadLength = -1;
+
+		if (position >= limit) {
+			version = -1;
+			return INVALID;
+		}
+		int firstByte = buffer.get(position) & 0xFF;
+		version = firstByte >> 4;
+
+		int ipPayloadLength;
+		int transportPosition;
+		if (version == 4) {
+			if ((position + IPV4_HEADER_LENGTH) > limit) {
+				return INVALID;
+			}
+			int headerLength = (firstByte & 0x0F) * 4;
+			ipPayloadLength = unsignedShort(buffer, position + 2) - headerLength;
+			protocol = buffer.get(position + 9) & 0xFF;
+			if ((unsignedShort(buffer, position + 6) & 0x1FFF) != 0) {
+				return FRAGMENTED;
+			}
+			transportPosition = position + headerLength;
+		} else if (version == 6) {
+			if ((position + IPV6_HEADER_LENGTH) > limit) {
+				return INVALID;
+			}
+			ipPayloadLength = unsignedShort(buffer, position + 4);
+			protocol = buffer.get(position + 6) & 0xFF; // Next header
+			transportPosition = position + IPV6_HEADER_LENGTH;
+		} else {
+			return NOT_UDP;
+		}
+
+		if (protocol != UDP_PROTOCOL) {
+			return NOT_UDP;
+		}
+		if ((transportPosition + UDP_HEADER_LENGTH) > limit) {
+			return INVALID;
+		}
+		sourcePort = unsignedShort(buffer, transportPosition);
+		destinationPort = unsignedShort(buffer, transportPosition + 2);
+		int udpLength = unsignedShort(buffer, transportPosition + 4);
+		payloadOffset = transportPosition + UDP_HEADER_LENGTH;
+		payloadLength = ipPayloadLength - UDP_HEADER_LENGTH; // udpLength SHOULD EQUAL ipPayloadLength
+
+		if (udpLength != ipPayloadLength) {
+			return STRANGE_LENGTH;
+		}
+		if ((payloadLength < 0) || ((payloadOffset + payloadLength) > limit)) {
+			return INVALID;
+		}
+		return UDP;
+	}
+
+	/**
+	 * The buffer the packet lies in, see payloadOffset and payloadLength
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public double timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * 4 or 6
+	 */
+	public int version() {
+		return version;
+	}
+
+	public int protocol() {
+		return protocol;
+	}
+
+	/**
+	 * IPv4 only
+	 */
+	public int sourceIpv4() {
+		return networkInt(buffer, ipPosition + 12);
+	}
+
+	/**
+	 * IPv4 only
+	 */
+	public int destinationIpv4() {
+		return networkInt(buffer, ipPosition + 16);
+	}
+
+	/**
+	 * IPv6 only, first 64 bits
+	 */
+	public long sourceIpv6High() {
+		return networkLong(buffer, ipPosition + 8);
+	}
+
+	/**
+	 * IPv6 only, last 64 bits
+	 */
+	public long sourceIpv6Low() {
+		return networkLong(buffer, ipPosition + 16);
+	}
+
+	/**
+	 * IPv6 only, first 64 bits
+	 */
+	public long destinationIpv6High() {
+		return networkLong(buffer, ipPosition + 24);
+	}
+
+	/**
+	 * IPv6 only, last 64 bits
+	 */
+	public long destinationIpv6Low() {
+		return networkLong(buffer, ipPosition + 32);
+	}
+
+	public int sourcePort() {
+		return sourcePort;
+	}
+
+	public int destinationPort() {
+		return destinationPort;
+	}
+
+	/**
+	 * Absolute position of the UDP payload in the buffer
+	 */
+	public int payloadOffset() {
+		return payloadOffset;
+	}
+
+	public int payloadLength() {
+		return payloadLength;
+	}
+
+	private byte[] ip(int offset) {
+		byte[] ip = new byte[(version == 4) ? 4 : 16];
+		for (int i = 0; i < ip.length; i++) {
+			ip[i] = buffer.get(offset + i);
+		}
+		return ip;
+	}
+
+	public byte[] sourceIp() {
+		return ip(ipPosition + ((version == 4) ? 12 : 8));
+	}
+
+	public byte[] destinationIp() {
+		return ip(ipPosition + ((version == 4) ? 16 : 24));
+	}
+
+	public Address sourceAddress() {
+		return new Address(sourceIp(), sourcePort);
+	}
+
+	public Address destinationAddress() {
+		return new Address(destinationIp(), destinationPort);
+	}
+
+	/**
+	 * A view of the UDP payload (big endian), sharing the content of the buffer
+	 */
+	public ByteBuffer payload() {
+		ByteBuffer b = buffer.duplicate();
+		b.limit(payloadOffset + payloadLength);
+		b.position(payloadOffset);
+		return b;
+	}
+
+	/**
+	 * A copy of the UDP payload (big endian), that can be kept after the Handler call
+	 */
+	public ByteBuffer copyPayload() {
+		byte[] b = new byte[payloadLength];
+		for (int i = 0; i < payloadLength; i++) {
+			b[i] = buffer.get(payloadOffset + i);
+		}
+		return ByteBuffer.wrap(b);
+	}
+}
@@ -2,8 +2,6 @@ package com.davfx.ninio.core;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ConfigUtils;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
@@ -11,8 +9,10 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -27,106 +27,111 @@ final class IpPacketReadUtils {
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Address.class.getPackage().getName());
 	private static final Duration SUPERVISION_CLEAR = Duration.ofMillis((long) ConfigUtils.getDuration(CONFIG, "supervision.metrics.clear") * 1000);
 
-	private final static Set<String> strangePacketAddresses = Sets.newConcurrentHashSet();
+	private static final int MAX_STRANGE_ADDRESSES = 64;
 
-	static {
-		executor.scheduleAtFixedRate(() -> {
-			ImmutableSet<String> copy = ImmutableSet.copyOf(strangePacketAddresses);
-			if (!copy.isEmpty()) {
-				strangePacketAddresses.removeAll(copy);
-				LOGGER.warn("Strange packet length received from {}", copy);
+	/**
+	 * Distinct sources of strange packets, between two reports, recorded without allocating
+	 */
+	private static final class StrangeAddresses {
+		private final int[] versions = new int[MAX_STRANGE_ADDRESSES];
+		private final long[] highs = new long[MAX_STRANGE_ADDRESSES];
+		private final long[] lows = new long[MAX_STRANGE_ADDRESSES];
+		private int size = 0;
+		private long count = 0L;
+
+		public synchronized void add(IpPacket packet) {
+			count++;
+			int version = packet.version();
+			long high = (version == 4) ? 0L : packet.sourceIpv6High();
+			long low = (version == 4) ? packet.sourceIpv4() : packet.sourceIpv6Low();
+			for (int i = 0; i < size; i++) {
+				if ((versions[i] == version) && (highs[i] == high) && (lows[i] == low)) {
+					return;
+				}
+			}
+			if (size < MAX_STRANGE_ADDRESSES) {
+				versions[size] = version;
+				highs[size] = high;
+				lows[size] = low;
+				size++;
 			}
-		}, SUPERVISION_CLEAR.toMillis(), SUPERVISION_CLEAR.toMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public void report() {
+			List<String> addresses = new ArrayList<>();
+			long c;
+			synchronized (this) {
+				for (int i = 0; i < size; i++) {
+					ByteBuffer ip = ByteBuffer.allocate(16);
+					if (versions[i] == 4) {
+						ip.putInt((int) lows[i]);
+					} else {
+						ip.putLong(highs[i]).putLong(lows[i]);
+					}
+					addresses.add(Address.ipToString(Arrays.copyOf(ip.array(), ip.position())));
+				}
+				c = count;
+				size = 0;
+				count = 0L;
+			}
+			if (c > 0L) {
+				LOGGER.warn("Strange packet length received from {} ({} packets)", addresses, c);
+			}
+		}
+	}
+
+	private static final StrangeAddresses strangePacketAddresses = new StrangeAddresses();
+
+	static {
+		executor.scheduleAtFixedRate(strangePacketAddresses::report, SUPERVISION_CLEAR.toMillis(), SUPERVISION_CLEAR.toMillis(), TimeUnit.MILLISECONDS);
 	}
 	
 	private IpPacketReadUtils() {
 	}
 	
 	public static void read(double timestamp, byte[] bytes, int off, int length, TcpdumpReader.Handler handler) {
-		ByteBuffer b = ByteBuffer.wrap(bytes, off, length);
-		int firstByte = b.get() & 0xFF;
-		int ipVersion = firstByte >> 4;
-		int packetType;
-		byte[] sourceIp;
-		byte[] destinationIp;
-		int payloadLength;
-		if (ipVersion == 4) {
-			int headerLength = (firstByte & 0x0F) * 4;
-			@SuppressWarnings("unused")
-			int tos = b.get() & 0xFF;
-			int totalLength = b.getShort() & 0xFFFF;
-			payloadLength = totalLength - headerLength;
-			@SuppressWarnings("unused")
-			int identification = b.getShort() & 0xFFFF;
-			short indicatorAndFragmentOffset = b.getShort();
-			@SuppressWarnings("unused")
-			boolean dontFragment = ((indicatorAndFragmentOffset >> 14) & 1) != 0;
-			@SuppressWarnings("unused")
-			boolean moreFragment = ((indicatorAndFragmentOffset >> 13) & 1) != 0;
-			int offset = indicatorAndFragmentOffset & 0x1FFF;
-			@SuppressWarnings("unused")
-			int ttl = b.get() & 0xFF;
-			int protocol = (b.get() & 0xFF);
-			packetType = protocol;
-			@SuppressWarnings("unused")
-			int checksum = b.getShort() & 0xFFFF;
-			sourceIp = new byte[4];
-			b.get(sourceIp);
-			destinationIp = new byte[4];
-			b.get(destinationIp);
-			if (offset != 0) {
-				LOGGER.warn("Fragmented packet from {}", Address.ipToString(sourceIp));
-				return;
-			}
-		} else if (ipVersion == 6) {
-			// traffic class (low bits) and flow label 
-			b.get(); b.get(); b.get();
-			payloadLength = b.getShort() & 0xFFFF;
-			int nextHeader = (b.get() & 0xFF);
-			packetType = nextHeader;
-			@SuppressWarnings("unused")
-			int hopLimit = b.get() & 0xFF;
+		read(timestamp, ByteBuffer.wrap(bytes), off, off + length, new IpPacket(), handler(handler));
+	}
 
-			sourceIp = new byte[16];
-			b.get(sourceIp);
-			destinationIp = new byte[16];
-			b.get(destinationIp);
-		} else {
-			packetType = -1;
-			sourceIp = null;
-			destinationIp = null;
-			payloadLength = -1;
-		}
-		
-		if (packetType == 17) {
-			// UDP
-			int sourcePort = b.getShort() & 0xFFFF;
-			int destinationPort = b.getShort() & 0xFFFF;
-			int udpLength = b.getShort() & 0xFFFF;
-			@SuppressWarnings("unused")
-			int checksum = b.getShort() & 0xFFFF;
-			int packetPosition = b.position();
-			int packetLength = payloadLength - 8; // udpLength SHOULD EQUAL payloadLength
-			
-			Address sourceAddress = new Address(sourceIp, sourcePort);
-			Address destinationAddress = new Address(destinationIp, destinationPort);
-			
-			if (udpLength != payloadLength) {
-				strangePacketAddresses.add(Address.ipToString(sourceAddress.ip));
-				LOGGER.debug("Strange packet from {}, udp length {} should equal payload length {}", sourceAddress, udpLength, payloadLength);
-				return;
+	/**
+	 * Adapts to the allocating handler: the payload is copied, the handler may keep it (the buffer it was read in is reused)
+	 */
+	public static IpPacket.Handler handler(final TcpdumpReader.Handler handler) {
+		return new IpPacket.Handler() {
+			@Override
+			public void handle(IpPacket packet) {
+				handler.handle(packet.timestamp(), packet.sourceAddress(), packet.destinationAddress(), packet.copyPayload());
 			}
-			LOGGER.trace("Packet received: {} -> {} {}", sourceAddress, destinationAddress, new Date((long) (timestamp * 1000d)));
+		};
+	}
 
-			ByteBuffer bb;
-			try {
-				bb = ByteBuffer.wrap(bytes, packetPosition, packetLength);
-			} catch (Exception e) {
-				LOGGER.warn("Invalid packet: {} -> {} (position={}, length={}, data={})", sourceAddress, destinationAddress, packetPosition, packetLength, bytes.length, e);
-				return;
+	/**
+	 * Reads the IP packet lying between position and limit in the buffer, into the given (reused) view, and calls the handler if it is a valid UDP packet
+	 */
+	public static void read(double timestamp, ByteBuffer b, int position, int limit, IpPacket packet, IpPacket.Handler handler) {
+		switch (packet.parse(timestamp, b, position, limit)) {
+		case IpPacket.UDP:
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.trace("Packet received: {} -> {} {}", packet.sourceAddress(), packet.destinationAddress(), new Date((long) (timestamp * 1000d)));
+			}
+			handler.handle(packet);
+			break;
+		case IpPacket.FRAGMENTED:
+			if (LOGGER.isWarnEnabled()) {
+				LOGGER.warn("Fragmented packet from {}", Address.ipToString(packet.sourceIp()));
+			}
+			break;
+		case IpPacket.STRANGE_LENGTH:
+			strangePacketAddresses.add(packet);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Strange packet from {}, udp length should equal payload length", packet.sourceAddress());
 			}
-			
-			handler.handle(timestamp, sourceAddress, destinationAddress, bb);
+			break;
+		case IpPacket.INVALID:
+			LOGGER.debug("Invalid packet (position={}, limit={}, payload length={})", position, limit, packet.payloadLength());
+			break;
+		default:
+			break;
 		}
 	}
 }
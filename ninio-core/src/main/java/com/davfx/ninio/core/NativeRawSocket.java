@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import com.davfx.ninio.util.LibraryLoader;
 
@@ -14,15 +15,26 @@ public final class NativeRawSocket {
 	private native static int __libStartup();
 	private native static void __libShutdown();
 	private native static int __socket(int protocolFamily, int protocol);
+	private native static int __datagram(int protocolFamily, int protocol);
 	private native static int __bind(int socket, int family, byte[] address, int scope_id);
 	private native static int __close(int socket);
 	private native static int __recvfrom1(int socket, byte[] data, int offset, int length, int family);
 	private native static int __recvfrom2(int socket, byte[] data, int offset, int length, int family, byte[] address);
 	private native static int __sendto(int socket, byte[] data, int offset, int length, int family, byte[] address, int scope_id);
+	private native static int __batch();
+	private native static int __wakeable(int[] wakeup);
+	private native static int __await(int socket, int wakeup, int timeout);
+	private native static int __wakeup(int wakeup);
+	private native static int __recvmmsg(int socket, ByteBuffer data, int slot, int count, int family, ByteBuffer addresses, int[] lengths);
 
 	public static final int PF_INET;
 	public static final int PF_INET6;
 
+	/**
+	 * Maximum number of packets read by a single readBatch call, 0 if the native library does not support it (Windows, or older binaries)
+	 */
+	public static final int BATCH;
+
 	static {
     	LibraryLoader.load(NativeRawSocket.class.getClassLoader(), "lib/NativeRawSocket");
 		if (__libStartup() != 0) {
@@ -37,13 +49,42 @@ public final class NativeRawSocket {
 
 		PF_INET = __PF_INET();
 		PF_INET6 = __PF_INET6();
+
+		int batch;
+		try {
+			batch = __batch();
+		} catch (UnsatisfiedLinkError e) {
+			batch = 0;
+		}
+		BATCH = batch;
 	}
 
 	private final int socket;
 	private final int family;
+	private int[] wakeup = null; // [read, write] ends of the pipe waking up await
+
+	// Guards the descriptors: once closed, their numbers may be reused by any other file or socket
+	private final Object lock = new Object();
+	private boolean closed = false;
 
 	public NativeRawSocket(int protocolFamily, int protocol) throws IOException {
-		socket = __socket(protocolFamily, protocol);
+		this(protocolFamily, protocol, false);
+	}
+
+	/**
+	 * A datagram socket (SOCK_DGRAM) is only supported for ICMP on Linux, where it does not require root (see net.ipv4.ping_group_range).
+	 * The kernel then sets the echo identifier, only delivers the replies to our requests, and strips the IP header.
+	 */
+	public NativeRawSocket(int protocolFamily, int protocol, boolean datagram) throws IOException {
+		if (datagram) {
+			try {
+				socket = __datagram(protocolFamily, protocol);
+			} catch (UnsatisfiedLinkError e) {
+				throw new IOException("Datagram sockets not supported", e);
+			}
+		} else {
+			socket = __socket(protocolFamily, protocol);
+		}
 
 		if (socket < 0) {
 			throwIOException(socket);
@@ -81,14 +122,96 @@ public final class NativeRawSocket {
 	}
 
 
+	/**
+	 * Closes the socket and the wakeup pipe, once (later calls do nothing).
+	 * With non-blocking reads, only the thread calling await is to close, after its last await: wakeup can then still be called from any thread.
+	 */
 	public void close() throws IOException {
-		int result = __close(socket);
+		int result;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			if (wakeup != null) {
+				__close(wakeup[0]);
+				__close(wakeup[1]);
+			}
+
+			result = __close(socket);
+		}
 
 		if (result != 0) {
 			throwIOException(result);
 		}
 	}
 
+	/**
+	 * Switches to non-blocking reads, with await and readBatch (writes still block), requires BATCH > 0
+	 */
+	public void configureNonBlockingReads() throws IOException {
+		if (BATCH == 0) {
+			throw new IOException("Non-blocking reads not supported");
+		}
+		int[] w = new int[2];
+		int result = __wakeable(w);
+		if (result != 0) {
+			throwIOException(result);
+		}
+		synchronized (lock) {
+			wakeup = w;
+		}
+	}
+
+	/**
+	 * Waits for the socket to be readable (true) or for wakeup to be called (false), up to timeout milliseconds (-1 to wait forever)
+	 */
+	public boolean await(int timeout) throws IOException {
+		int result = __await(socket, wakeup[0], timeout);
+		if (result < 0) {
+			throwIOException(result);
+		}
+		return (result & 0x1) != 0;
+	}
+
+	/**
+	 * Makes await return, from any thread (does nothing once closed)
+	 */
+	public void wakeup() throws IOException {
+		int result;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			result = __wakeup(wakeup[1]);
+		}
+		if (result < 0) {
+			throwIOException(result);
+		}
+	}
+
+	/**
+	 * Reads the pending packets (up to lengths.length and BATCH) without blocking.
+	 * Packet i is copied at i * slot in data, its source address at i * (4 or 16) in addresses (both direct buffers, positions and limits are ignored) and its length to lengths[i].
+	 * Returns the number of packets read, 0 if none is pending.
+	 */
+	public int readBatch(ByteBuffer data, int slot, ByteBuffer addresses, int[] lengths) throws IOException {
+		int count = Math.min(lengths.length, BATCH);
+		int addressLength = (family == PF_INET) ? 4 : 16;
+		if (!data.isDirect() || !addresses.isDirect() || (slot <= 0) || (data.capacity() < (slot * count)) || (addresses.capacity() < (addressLength * count))) {
+			throw new IllegalArgumentException("Invalid buffers");
+		}
+
+		int result = __recvmmsg(socket, data, slot, count, family, addresses, lengths);
+
+		if (result < 0) {
+			throwIOException(result);
+		}
+
+		return result;
+	}
+
 	public int read(byte[] data, int offset, int length, byte[] address) throws IOException {
 		if (offset < 0 || length < 0 || length > data.length - offset)
 			throw new IllegalArgumentException("Invalid offset or length");
@@ -0,0 +1,311 @@
+package com.davfx.ninio.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+/**
+ * Reads pcap captures (as written by tcpdump -w) in place: records are parsed where they lie in a large buffer and an IpPacket.Handler gets a reused view over it, only valid during the call.
+ * Files are memory-mapped, streams (e.g. the output of tcpdump) go through a buffer allocated once.
+ * Supports the Ethernet (with VLAN tags), Linux cooked (tcpdump -i any) and raw IP link types, micro and nanosecond timestamps, in both byte orders.
+ */
+public final class PcapReader implements TcpdumpReader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PcapReader.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(PcapReader.class.getPackage().getName());
+	private static final int DEFAULT_BUFFER_SIZE = CONFIG.getBytes("tcpdump.pcap.buffer").intValue();
+	private static final long DEFAULT_MAP_SIZE = CONFIG.getBytes("tcpdump.pcap.map");
+
+	private static final int MAX_SIZE = 100 * 1024;
+
+	private static final int GLOBAL_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	private static final int MAGIC_MICROSECONDS = 0xA1B2C3D4;
+	private static final int MAGIC_NANOSECONDS = 0xA1B23C4D;
+
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_RAW = 101;
+	private static final int LINKTYPE_RAW_BSD = 12;
+	private static final int LINKTYPE_RAW_OPENBSD = 14;
+	private static final int LINKTYPE_LINUX_SLL = 113;
+	private static final int LINKTYPE_IPV4 = 228;
+	private static final int LINKTYPE_IPV6 = 229;
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86DD;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int ETHERTYPE_QINQ = 0x88A8;
+
+	private static final class Format {
+		public final ByteOrder order;
+		public final double timestampUnit;
+		public final int linkType;
+
+		public Format(ByteOrder order, double timestampUnit, int linkType) {
+			this.order = order;
+			this.timestampUnit = timestampUnit;
+			this.linkType = linkType;
+		}
+	}
+
+	/**
+	 * Replay pacing, from the capture timestamps
+	 */
+	private static final class Pace {
+		private final double speed;
+		private boolean started = false;
+		private double firstTimestamp;
+		private long firstNanos;
+
+		public Pace(double speed) {
+			this.speed = speed;
+		}
+
+		public void waitFor(double timestamp) {
+			if (speed <= 0d) {
+				return;
+			}
+			if (!started) {
+				started = true;
+				firstTimestamp = timestamp;
+				firstNanos = System.nanoTime();
+				return;
+			}
+			long t = firstNanos + (long) (((timestamp - firstTimestamp) / speed) * 1_000_000_000d);
+			while (true) {
+				long d = t - System.nanoTime();
+				if (d <= 0L) {
+					return;
+				}
+				LockSupport.parkNanos(d);
+			}
+		}
+	}
+
+	private final int bufferSize;
+	private final long mapSize;
+
+	public PcapReader() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAP_SIZE);
+	}
+
+	PcapReader(int bufferSize, long mapSize) {
+		this.bufferSize = Math.max(bufferSize, RECORD_HEADER_LENGTH + MAX_SIZE); // Room for any record
+		this.mapSize = mapSize;
+	}
+
+	@Override
+	public Iterable<String> tcpdumpOptions() {
+		return Arrays.asList("-w", "-", "-U");
+	}
+
+	private static Format format(ByteBuffer b) throws IOException {
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		int magic = b.getInt(b.position());
+		if ((magic != MAGIC_MICROSECONDS) && (magic != MAGIC_NANOSECONDS)) {
+			b.order(ByteOrder.BIG_ENDIAN);
+			magic = b.getInt(b.position());
+		}
+		double timestampUnit;
+		if (magic == MAGIC_MICROSECONDS) {
+			timestampUnit = 1_000_000d;
+		} else if (magic == MAGIC_NANOSECONDS) {
+			timestampUnit = 1_000_000_000d;
+		} else {
+			throw new IOException("Bad header: 0x" + Integer.toHexString(magic));
+		}
+		int linkType = b.getInt(b.position() + 20) & 0xFFFF; // Upper bits are FCS information
+		LOGGER.debug("Pcap header recognized (version = {}/{}, snaplen = {}, linkType = {}, {})", b.getShort(b.position() + 4), b.getShort(b.position() + 6), b.getInt(b.position() + 16), linkType, b.order());
+		b.position(b.position() + GLOBAL_HEADER_LENGTH);
+		return new Format(b.order(), timestampUnit, linkType);
+	}
+
+	/**
+	 * Handles all the complete records from the position of the buffer, which is left on the first incomplete one
+	 */
+	private static long records(ByteBuffer b, Format format, Pace pace, IpPacket packet, IpPacket.Handler handler) throws IOException {
+		long count = 0L;
+		while (b.remaining() >= RECORD_HEADER_LENGTH) {
+			int p = b.position();
+			int savedLength = b.getInt(p + 8);
+			if ((savedLength < 0) || (savedLength > MAX_SIZE)) {
+				throw new IOException("Packet too big: " + savedLength);
+			}
+			if (b.remaining() < (RECORD_HEADER_LENGTH + savedLength)) {
+				break;
+			}
+			double timestamp = (b.getInt(p) & 0xFFFFFFFFL) + ((b.getInt(p + 4) & 0xFFFFFFFFL) / format.timestampUnit);
+			int start = p + RECORD_HEADER_LENGTH;
+			int end = start + savedLength;
+			b.position(end);
+
+			int ip = ip(b, format.linkType, start, end);
+			if (ip < 0) {
+				continue;
+			}
+
+			pace.waitFor(timestamp);
+
+			IpPacketReadUtils.read(timestamp, b, ip, end, packet, handler);
+			count++;
+		}
+		return count;
+	}
+
+	// Link headers are big endian, whatever the order of the file
+	private static int networkShort(ByteBuffer b, int position) {
+		return ((b.get(position) & 0xFF) << 8) | (b.get(position + 1) & 0xFF);
+	}
+
+	// Position of the IP header in the record, -1 if not IP
+	private static int ip(ByteBuffer b, int linkType, int start, int end) {
+		int etherType;
+		int ip;
+		switch (linkType) {
+		case LINKTYPE_ETHERNET:
+			int typePosition = start + 12;
+			while (true) {
+				if ((typePosition + 2) > end) {
+					return -1;
+				}
+				etherType = networkShort(b, typePosition);
+				if ((etherType != ETHERTYPE_VLAN) && (etherType != ETHERTYPE_QINQ)) {
+					break;
+				}
+				typePosition += 4;
+			}
+			ip = typePosition + 2;
+			break;
+		case LINKTYPE_LINUX_SLL:
+			if ((start + 16) > end) {
+				return -1;
+			}
+			etherType = networkShort(b, start + 14);
+			ip = start + 16;
+			break;
+		case LINKTYPE_RAW:
+		case LINKTYPE_RAW_BSD:
+		case LINKTYPE_RAW_OPENBSD:
+		case LINKTYPE_IPV4:
+		case LINKTYPE_IPV6:
+			etherType = ETHERTYPE_IPV4; // Version checked while reading
+			ip = start;
+			break;
+		default:
+			return -1;
+		}
+		if (((etherType != ETHERTYPE_IPV4) && (etherType != ETHERTYPE_IPV6)) || (ip >= end)) {
+			return -1;
+		}
+		return ip;
+	}
+
+	@Override
+	public void read(InputStream input, Handler handler) throws IOException {
+		read(Channels.newChannel(input), 0d, IpPacketReadUtils.handler(handler));
+	}
+
+	/**
+	 * Reads a stream until its end (the channel is not closed)
+	 */
+	public long read(ReadableByteChannel channel, double speed, IpPacket.Handler handler) throws IOException {
+		LOGGER.debug("Reading pcap stream");
+		ByteBuffer b = ByteBuffer.allocate(bufferSize);
+		while (b.position() < GLOBAL_HEADER_LENGTH) {
+			if (channel.read(b) < 0) {
+				throw new EOFException("No header");
+			}
+		}
+		b.flip();
+		Format format = format(b);
+		Pace pace = new Pace(speed);
+		IpPacket packet = new IpPacket();
+
+		long count = 0L;
+		while (true) {
+			count += records(b, format, pace, packet, handler);
+			b.compact();
+			int r = channel.read(b);
+			b.flip();
+			if (r < 0) {
+				break;
+			}
+		}
+		if (b.hasRemaining()) {
+			LOGGER.debug("Truncated pcap stream ({} bytes left)", b.remaining());
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a whole file, mapped in memory, as fast as possible
+	 */
+	public long read(Path file, Handler handler) throws IOException {
+		return replay(file, 0d, IpPacketReadUtils.handler(handler));
+	}
+
+	public long read(Path file, IpPacket.Handler handler) throws IOException {
+		return replay(file, 0d, handler);
+	}
+
+	public long replay(Path file, double speed, Handler handler) throws IOException {
+		return replay(file, speed, IpPacketReadUtils.handler(handler));
+	}
+
+	/**
+	 * Reads a whole file, mapped in memory, handling the packets at the pace they were captured, sped up by the given factor (as fast as possible if 0).
+	 * Returns the number of IP packets read.
+	 */
+	public long replay(Path file, double speed, IpPacket.Handler handler) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < GLOBAL_HEADER_LENGTH) {
+				throw new EOFException("No header");
+			}
+			Format format = null;
+			Pace pace = new Pace(speed);
+			IpPacket packet = new IpPacket();
+
+			long count = 0L;
+			long offset = 0L;
+			while (offset < size) {
+				long length = Math.min(mapSize, size - offset);
+				ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				if (format == null) {
+					format = format(b);
+				} else {
+					b.order(format.order);
+				}
+				count += records(b, format, pace, packet, handler);
+				if ((offset + length) == size) {
+					if (b.hasRemaining()) {
+						LOGGER.debug("Truncated pcap file ({} bytes left)", b.remaining());
+					}
+					break;
+				}
+				if (b.position() == 0) {
+					throw new IOException("Record bigger than the mapping (" + mapSize + " bytes)");
+				}
+				offset += b.position(); // Next mapping starts on the first incomplete record
+			}
+			return count;
+		}
+	}
+}
@@ -3,7 +3,9 @@ package com.davfx.ninio.core;
 import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
 import com.davfx.ninio.core.supervision.tracking.RequestTracker;
 import com.davfx.ninio.core.supervision.tracking.RequestTrackerManager;
+import com.davfx.ninio.util.ConfigUtils;
 import com.davfx.ninio.util.SerialExecutor;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,10 +16,19 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.Executor;
 
+/**
+ * The buffer passed to Connection.received is only valid during the call: when the native library reads by batches, it is a view on a buffer
+ * that is read into again right after (copy it to keep it). The source Address may be shared between packets.
+ */
 public final class RawSocket implements Connecter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RawSocket.class);
 
+    private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.core.dependencies.Dependencies()).getConfig(RawSocket.class.getPackage().getName());
+    private static final int READ_BATCH = CONFIG.getInt("raw.read.batch");
+    private static final int READ_SIZE = CONFIG.getBytes("raw.read.size").intValue();
+    private static final int SOURCES = 256; // Cached source addresses, a power of two
+
     private static final byte[] IPV6_LOCALHOST = new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
     private static final int TERMINATE_CODE = Integer.MAX_VALUE;
     private static double CLOSE_STEP_TIME = 0.01d;
@@ -29,6 +40,11 @@ public final class RawSocket implements Connecter {
         Builder protocol(int protocol);
 
         Builder bind(Address bindAddress);
+
+        /**
+         * ICMP datagram socket instead of a raw one (Linux, no root required, see NativeRawSocket)
+         */
+        Builder datagram(boolean datagram);
     }
 
     public static Builder builder() {
@@ -37,6 +53,7 @@ public final class RawSocket implements Connecter {
             private int protocol = 0;
 
             private Address bindAddress = null;
+            private boolean datagram = false;
 
             @Override
             public Builder family(ProtocolFamily family) {
@@ -56,9 +73,15 @@ public final class RawSocket implements Connecter {
                 return this;
             }
 
+            @Override
+            public Builder datagram(boolean datagram) {
+                this.datagram = datagram;
+                return this;
+            }
+
             @Override
             public Connecter create(NinioProvider ninioProvider) {
-                return new RawSocket(family, protocol, bindAddress);
+                return new RawSocket(family, protocol, bindAddress, datagram);
             }
         };
     }
@@ -66,6 +89,7 @@ public final class RawSocket implements Connecter {
     private final ProtocolFamily family;
     private final int protocol;
     private final Address bindAddress;
+    private final boolean datagram;
 
     private final Executor loop = new SerialExecutor(RawSocket.class);
 
@@ -73,14 +97,17 @@ public final class RawSocket implements Connecter {
     private final RequestTracker inTracker;
     private NativeRawSocket socket = null;
     private boolean closed = false;
+    private boolean nonBlocking = false;
+    private volatile boolean closing = false;
 
     private boolean actuallyClosed = false;
     private final Object actuallyClosedLock = new Object();
 
-    private RawSocket(ProtocolFamily family, int protocol, Address bindAddress) {
+    private RawSocket(ProtocolFamily family, int protocol, Address bindAddress, boolean datagram) {
         this.family = family;
         this.protocol = protocol;
         this.bindAddress = bindAddress;
+        this.datagram = datagram;
         inTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().rawIn());
         outTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().rawOut());
     }
@@ -98,7 +125,7 @@ public final class RawSocket implements Connecter {
 
         final NativeRawSocket s;
         try {
-            s = new NativeRawSocket((family == StandardProtocolFamily.INET) ? NativeRawSocket.PF_INET : NativeRawSocket.PF_INET6, protocol);
+            s = new NativeRawSocket((family == StandardProtocolFamily.INET) ? NativeRawSocket.PF_INET : NativeRawSocket.PF_INET6, protocol, datagram);
         } catch (Exception ee) {
             closed = true;
             callback.failed(new IOException("Failed to be created", ee));
@@ -119,8 +146,23 @@ public final class RawSocket implements Connecter {
             }
         }
 
+        if (NativeRawSocket.BATCH > 0) {
+            try {
+                s.configureNonBlockingReads();
+                nonBlocking = true;
+            } catch (Exception e) {
+                LOGGER.warn("Could not switch to non-blocking mode, reading packets one by one", e);
+            }
+        }
+
         socket = s;
 
+        if (nonBlocking) {
+            loop.execute(() -> readBatches(s, callback));
+            return;
+        }
+
+        // Blocking reads, the socket is woken up to be closed by pinging ourselves (see close)
         loop.execute(() -> {
             callback.connected(null);
 
@@ -132,7 +174,7 @@ public final class RawSocket implements Connecter {
                     int r = s.read(recvData, 0, recvData.length, srcAddress);
 
                     final ByteBuffer b = ByteBuffer.wrap(recvData, 0, r);
-                    if (family == StandardProtocolFamily.INET) {
+                    if ((family == StandardProtocolFamily.INET) && !datagram) {
                         int headerLength = (b.get() & 0x0F) * 4;
                         b.position(headerLength);
                     }
@@ -194,6 +236,101 @@ public final class RawSocket implements Connecter {
         });
     }
 
+    /**
+     * Reads as many packets as available per native call, into buffers allocated once.
+     * The source addresses are cached by hash, nothing is allocated per packet once the sources are known.
+     */
+    private void readBatches(NativeRawSocket s, Connection callback) {
+        callback.connected(null);
+
+        int count = Math.min(READ_BATCH, NativeRawSocket.BATCH);
+        int addressLength = (family == StandardProtocolFamily.INET) ? 4 : 16;
+        ByteBuffer data = ByteBuffer.allocateDirect(count * READ_SIZE);
+        ByteBuffer addresses = ByteBuffer.allocateDirect(count * addressLength);
+        int[] lengths = new int[count];
+        ByteBuffer[] views = new ByteBuffer[count];
+        Address[] sources = new Address[SOURCES];
+        for (int i = 0; i < count; i++) {
+            data.limit((i + 1) * READ_SIZE);
+            data.position(i * READ_SIZE);
+            views[i] = data.slice();
+        }
+
+        while (!closing) {
+            int n;
+            try {
+                if (!s.await(-1)) {
+                    continue; // Woken up
+                }
+                n = s.readBatch(data, READ_SIZE, addresses, lengths);
+            } catch (Exception e) {
+                LOGGER.error("Error while reading", e);
+                break;
+            }
+
+            for (int i = 0; i < n; i++) {
+                ByteBuffer b = views[i];
+                b.limit(lengths[i]);
+                b.position(0);
+                if ((family == StandardProtocolFamily.INET) && !datagram) { // No IP header on datagram sockets
+                    int headerLength = (b.get(0) & 0x0F) * 4;
+                    if (headerLength > b.limit()) {
+                        continue;
+                    }
+                    b.position(headerLength);
+                }
+
+                Address source = source(sources, addresses, i * addressLength, addressLength);
+
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Received raw packet: {} bytes from: {}", lengths[i], source);
+                }
+                inTracker.track(source.ip, addr ->
+                        String.format("Received raw request from %s ", addr));
+                try {
+                    callback.received(source, b);
+                } catch (Exception e) {
+                    LOGGER.error("Error while handling packet", e);
+                }
+            }
+        }
+
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+        LOGGER.debug("Closed");
+        callback.closed();
+    }
+
+    private static Address source(Address[] sources, ByteBuffer addresses, int offset, int length) {
+        int h = 0;
+        for (int k = 0; k < length; k++) {
+            h = (31 * h) + addresses.get(offset + k);
+        }
+        h ^= (h >>> 16);
+        int slot = h & (SOURCES - 1);
+
+        Address a = sources[slot];
+        if (a != null) {
+            int k = 0;
+            while ((k < length) && (a.ip[k] == addresses.get(offset + k))) {
+                k++;
+            }
+            if (k == length) {
+                return a;
+            }
+        }
+
+        byte[] ip = new byte[length];
+        for (int k = 0; k < length; k++) {
+            ip[k] = addresses.get(offset + k);
+        }
+        a = new Address(ip, 0);
+        sources[slot] = a;
+        return a;
+    }
+
     @Override
     public void send(Address address, ByteBuffer buffer, final SendCallback callback) {
         if (socket == null) {
@@ -226,6 +363,12 @@ public final class RawSocket implements Connecter {
             }
             closed = true;
 
+            if ((socket != null) && nonBlocking) {
+                closing = true;
+                socket.wakeup();
+                return;
+            }
+
             if (socket != null) {
                 byte[] localhostIp;
                 if (family == StandardProtocolFamily.INET) {
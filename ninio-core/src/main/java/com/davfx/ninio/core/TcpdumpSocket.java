@@ -203,7 +203,7 @@ public final class TcpdumpSocket implements Connecter {
 
         //
 
-        final TcpdumpReader tcpdumpReader = (mode == TcpdumpMode.RAW) ? new RawTcpdumpReader(interfaceId.equals("any")) : new HexTcpdumpReader();
+        final TcpdumpReader tcpdumpReader = (mode == TcpdumpMode.RAW) ? new PcapReader() : new HexTcpdumpReader();
 
         File dir = new File(".");
 
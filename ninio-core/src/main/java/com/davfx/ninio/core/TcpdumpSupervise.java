@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -52,6 +53,13 @@ public final class TcpdumpSupervise {
 		outPackets.incrementAndGet();
 		outBytes.addAndGet(bytes);
 	}
+	private static void count(byte[] hereHost, byte[] sourceIp, byte[] destinationIp, long bytes) {
+		if (Arrays.equals(sourceIp, hereHost)) {
+			incOut(bytes);
+		} else if (Arrays.equals(destinationIp, hereHost)) {
+			incIn(bytes);
+		}
+	}
 
 	private static void execute(String name, Runnable runnable) {
 		new ClassThreadFactory(TcpdumpSocket.class, name).newThread(runnable).start();
@@ -85,6 +93,11 @@ public final class TcpdumpSupervise {
 		}
 
 		final byte[] hereHost = InetAddress.getByName(hereHostString).getAddress();
+		// Compared as is to the packets read in place, without allocating their addresses
+		final int hereVersion = (hereHost.length == 4) ? 4 : 6;
+		final int hereIpv4 = (hereVersion == 4) ? ByteBuffer.wrap(hereHost).getInt() : 0;
+		final long hereIpv6High = (hereVersion == 6) ? ByteBuffer.wrap(hereHost).getLong(0) : 0L;
+		final long hereIpv6Low = (hereVersion == 6) ? ByteBuffer.wrap(hereHost).getLong(8) : 0L;
 
 		double supervisionClear = Double.parseDouble(System.getProperty("clear", "300"));
 		double supervisionDisplay = Double.parseDouble(System.getProperty("display", "10"));
@@ -121,7 +134,7 @@ public final class TcpdumpSupervise {
 
 		//
 		
-		final TcpdumpReader tcpdumpReader = (mode == TcpdumpMode.RAW) ? new RawTcpdumpReader(interfaceId.equals("any")) : new HexTcpdumpReader();
+		final TcpdumpReader tcpdumpReader = (mode == TcpdumpMode.RAW) ? new PcapReader() : new HexTcpdumpReader();
 		
 		File dir = new File(".");
 
@@ -185,16 +198,29 @@ public final class TcpdumpSupervise {
 			public void run() {
 				try {
 					try {
-						tcpdumpReader.read(input, new TcpdumpReader.Handler() {
-							@Override
-							public void handle(double timestamp, Address sourceAddress, Address destinationAddress, ByteBuffer buffer) {
-								if (Arrays.equals(sourceAddress.ip, hereHost)) {
-									incOut(buffer.remaining());
-								} else if (Arrays.equals(destinationAddress.ip, hereHost)) {
-									incIn(buffer.remaining());
+						if (tcpdumpReader instanceof PcapReader) {
+							// Only counting, the packets are read in place
+							((PcapReader) tcpdumpReader).read(Channels.newChannel(input), 0d, new IpPacket.Handler() {
+								@Override
+								public void handle(IpPacket packet) {
+									if (packet.version() != hereVersion) {
+										return;
+									}
+									if ((hereVersion == 4) ? (packet.sourceIpv4() == hereIpv4) : ((packet.sourceIpv6Low() == hereIpv6Low) && (packet.sourceIpv6High() == hereIpv6High))) {
+										incOut(packet.payloadLength());
+									} else if ((hereVersion == 4) ? (packet.destinationIpv4() == hereIpv4) : ((packet.destinationIpv6Low() == hereIpv6Low) && (packet.destinationIpv6High() == hereIpv6High))) {
+										incIn(packet.payloadLength());
+									}
 								}
-							}
-						});
+							});
+						} else {
+							tcpdumpReader.read(input, new TcpdumpReader.Handler() {
+								@Override
+								public void handle(double timestamp, Address sourceAddress, Address destinationAddress, ByteBuffer buffer) {
+									count(hereHost, sourceAddress.ip, destinationAddress.ip, buffer.remaining());
+								}
+							});
+						}
 					} finally {
 						input.close();
 					}
@@ -10,7 +10,6 @@ import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ConfigUtils;
-import com.davfx.ninio.util.DateUtils;
 import com.davfx.ninio.util.SerialExecutor;
 import com.typesafe.config.Config;
 
@@ -22,6 +21,11 @@ public final class Timeout implements AutoCloseable {
 	private static final double PRECISION = ConfigUtils.getDuration(CONFIG, "timeout.precision");
 
 	private final Executor executor = new SerialExecutor(Timeout.class);
+
+	// Read directly (resets and checks are rare): a cached clock lagging by a tick would make a check miss a task by a whole precision period
+	private static double now() {
+		return System.nanoTime() / 1_000_000_000d;
+	}
 	
 	private static final class Task {
 		public long id = -1L;
@@ -36,7 +40,7 @@ public final class Timeout implements AutoCloseable {
 		}
 		
 		public void reset() {
-			double now = DateUtils.now();
+			double now = now();
 			time = now + timeout;
 			LOGGER.trace("[now = {}] Reset in {} -> at {} ms", (long) (now * 1000L), timeout, (long) (time * 1000d));
 		}
@@ -87,7 +91,7 @@ public final class Timeout implements AutoCloseable {
 					return;
 				}
 				
-				double now = DateUtils.now();
+				double now = now();
 
 				Iterator<Task> i = tasks.values().iterator();
 				while (i.hasNext()) {
@@ -18,6 +18,7 @@ package com.davfx.ninio.core.supervision.metrics;
 import com.davfx.ninio.core.supervision.metrics.pmt.PmtMetrics;
 import com.davfx.ninio.core.supervision.metrics.pmt.PmtMetricsImpl;
 import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Summary;
 
 /**
  *
@@ -36,6 +37,9 @@ public class NinioMetrics {
     public static final String AUTH_V2_OUT = "auth_v2_out";
     public static final String AUTH_V3_OUT = "auth_v3_out";
     public static final String DISCOVER_V3_OUT = "discover_v3_out";
+    public static final String TRAP = "trap";
+    public static final String DROPPED = "dropped";
+    public static final String POLL = "poll";
 
     private static final NinioMetrics INSTANCE = new NinioMetrics();
 
@@ -54,6 +58,10 @@ public class NinioMetrics {
     private final Counter authV2Out;
     private final Counter authV3Out;
     private final Counter discoverV3Out;
+    private final Counter trapIn;
+    private final Counter trapDropped;
+    private final Summary pollLag;
+    private final Counter pollSkipped;
 
     public NinioMetrics() {
         this.metrics = PmtMetricsImpl.get();
@@ -70,6 +78,10 @@ public class NinioMetrics {
         authV2Out = metrics.counter(AUTH_V2_OUT, "SNMP auth v2 outgoing requests");
         authV3Out = metrics.counter(AUTH_V3_OUT, "SNMP auth v3 outgoing requests");
         discoverV3Out = metrics.counter(DISCOVER_V3_OUT, "SNMP auth v3 discover outgoing requests");
+        trapIn = metrics.counter(TRAP + "_" + IN, "SNMP traps and informs in");
+        trapDropped = metrics.counter(TRAP + "_" + DROPPED, "SNMP traps and informs dropped (receiver overloaded)");
+        pollLag = metrics.summary(POLL + "_lag", "SNMP poll schedule lag (seconds)");
+        pollSkipped = metrics.counter(POLL + "_skipped", "SNMP polls skipped (deadline missed)");
     }
 
     public static NinioMetrics get() {
@@ -128,6 +140,22 @@ public class NinioMetrics {
         return discoverV3Out;
     }
 
+    public Counter trapIn() {
+        return trapIn;
+    }
+
+    public Counter trapDropped() {
+        return trapDropped;
+    }
+
+    public Summary pollLag() {
+        return pollLag;
+    }
+
+    public Counter pollSkipped() {
+        return pollSkipped;
+    }
+
     public Counter inMemoryCache(String name, String io) {
         return metrics.counter(name + "_cache_" + io, "In memory cache");
     }
@@ -1,5 +1,6 @@
 package com.davfx.ninio.core.supervision.tracking;
 
+import com.davfx.ninio.core.Address;
 import com.davfx.ninio.util.LogTag;
 import com.google.common.collect.ImmutableSet;
 import io.prometheus.metrics.core.metrics.Counter;
@@ -38,6 +39,20 @@ public final class RequestTracker {
         }
     }
 
+    /**
+     * Same without label values, the IP is only turned into a string when some addresses are followed
+     */
+    public void track(byte[] ip, Function<String, String> logAction) {
+        counter.inc();
+
+        if (!addressToFollow.isEmpty()) {
+            String address = Address.ipToString(ip);
+            if (addressToFollow.contains(address)) {
+                LOGGER.info("{} {} {}", LogTag.TRACKING, counter.getPrometheusName(), logAction.apply(address));
+            }
+        }
+    }
+
     public void setAddressToFollow(ImmutableSet<String> addressToFollow) {
         this.addressToFollow = addressToFollow;
     }
@@ -1,4 +1,9 @@
+#if defined(__linux__)
+#	define _GNU_SOURCE /* recvmmsg */
+#endif
+
 #include <string.h>
+#include <errno.h>
 
 #if defined(_WIN32)
 
@@ -16,6 +21,8 @@
 #	include <sys/socket.h>
 #	include <unistd.h>
 #	include <sys/time.h>
+#	include <fcntl.h>
+#	include <poll.h>
 
 #endif
 
@@ -125,6 +132,21 @@ Java_com_davfx_ninio_core_NativeRawSocket__1_1socket
 	return s;
 }
 
+/* ICMP datagram socket (Linux): unprivileged if the group is in net.ipv4.ping_group_range, replies demultiplexed by the kernel on the echo identifier, which it sets */
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1datagram
+(JNIEnv *env, jclass cls, jint family, jint protocol) {
+	int s;
+
+	s = socket(family, SOCK_DGRAM, protocol);
+	if (s < 0) {
+		return -errno;
+	}
+	settimeout(s, SO_SNDTIMEO, 0);
+	settimeout(s, SO_RCVTIMEO, 0);
+	return s;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_davfx_ninio_core_NativeRawSocket__1_1bind
 (JNIEnv *env, jclass cls, jint socket, jint family, jbyteArray address, jint scope_id) {
@@ -249,3 +271,177 @@ Java_com_davfx_ninio_core_NativeRawSocket__1_1sendto
 
 	return result;
 }
+
+/* Batched, non-blocking I/O (not available on Windows) */
+
+#define BATCH_MAX 64
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1batch
+(JNIEnv *env, jclass cls) {
+#if defined(_WIN32)
+	return 0;
+#else
+	return BATCH_MAX;
+#endif
+}
+
+#if !defined(_WIN32)
+
+static void setnonblocking(int fd) {
+	int flags = fcntl(fd, F_GETFL, 0);
+	if (flags >= 0) {
+		fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+	}
+}
+
+static void address_of(const struct sockaddr_storage *ss, int family, jbyte *address) {
+	if (family == PF_INET) {
+		memcpy(address, &((const struct sockaddr_in *)ss)->sin_addr, 4);
+	} else {
+		memcpy(address, &((const struct sockaddr_in6 *)ss)->sin6_addr, 16);
+	}
+}
+
+#endif
+
+/* A pipe (returned as [read, write]) to wake up __await. The socket itself stays blocking for writes, batched reads do not block (MSG_DONTWAIT) */
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1wakeable
+(JNIEnv *env, jclass cls, jintArray wakeup) {
+#if defined(_WIN32)
+	return -1;
+#else
+	int fds[2];
+	jint jfds[2];
+
+	if (pipe(fds) < 0) {
+		return -errno;
+	}
+	setnonblocking(fds[0]);
+	setnonblocking(fds[1]);
+	jfds[0] = fds[0];
+	jfds[1] = fds[1];
+	(*env)->SetIntArrayRegion(env, wakeup, 0, 2, jfds);
+	return 0;
+#endif
+}
+
+/* Returns 1 if the socket is readable, 2 if woken up (3 if both), 0 on timeout */
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1await
+(JNIEnv *env, jclass cls, jint socket, jint wakeup, jint timeout) {
+#if defined(_WIN32)
+	return -1;
+#else
+	struct pollfd fds[2];
+	int result;
+	char drain[16];
+
+	fds[0].fd = socket;
+	fds[0].events = POLLIN;
+	fds[0].revents = 0;
+	fds[1].fd = wakeup;
+	fds[1].events = POLLIN;
+	fds[1].revents = 0;
+
+	result = poll(fds, 2, timeout);
+	if (result < 0) {
+		return (errno == EINTR) ? 0 : -errno;
+	}
+	result = 0;
+	if ((fds[0].revents & (POLLIN | POLLERR | POLLHUP)) != 0) {
+		result |= 1;
+	}
+	if (fds[1].revents != 0) {
+		while (read(wakeup, drain, sizeof(drain)) > 0) {
+		}
+		result |= 2;
+	}
+	return result;
+#endif
+}
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1wakeup
+(JNIEnv *env, jclass cls, jint wakeup) {
+#if defined(_WIN32)
+	return -1;
+#else
+	char c = 0;
+	if ((write(wakeup, &c, 1) < 0) && (errno != EAGAIN)) {
+		return -errno;
+	}
+	return 0;
+#endif
+}
+
+/*
+ * Receives up to count packets, packet i going to data[i * slot] (direct buffer), its source address to addresses[i * addressLength] (direct buffer) and its length to lengths[i].
+ * Returns the number of packets received (0 if none is pending), or -errno.
+ */
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1recvmmsg
+(JNIEnv *env, jclass cls, jint socket, jobject data, jint slot, jint count, jint family, jobject addresses, jintArray lengths) {
+#if defined(_WIN32)
+	return -1;
+#else
+	jbyte *buf = (jbyte *)(*env)->GetDirectBufferAddress(env, data);
+	jbyte *addr = (jbyte *)(*env)->GetDirectBufferAddress(env, addresses);
+	int addressLength = (family == PF_INET) ? 4 : 16;
+	struct sockaddr_storage ss[BATCH_MAX];
+	jint lens[BATCH_MAX];
+	int n;
+	int i;
+#	if defined(__linux__)
+	struct mmsghdr msgs[BATCH_MAX];
+	struct iovec iovecs[BATCH_MAX];
+#	endif
+
+	if ((buf == NULL) || (addr == NULL) || (count <= 0)) {
+		return -EINVAL;
+	}
+	if (count > BATCH_MAX) {
+		count = BATCH_MAX;
+	}
+
+#	if defined(__linux__)
+	memset(msgs, 0, sizeof(struct mmsghdr) * count);
+	for (i = 0; i < count; i++) {
+		iovecs[i].iov_base = buf + (i * slot);
+		iovecs[i].iov_len = slot;
+		msgs[i].msg_hdr.msg_iov = &iovecs[i];
+		msgs[i].msg_hdr.msg_iovlen = 1;
+		msgs[i].msg_hdr.msg_name = &ss[i];
+		msgs[i].msg_hdr.msg_namelen = sizeof(struct sockaddr_storage);
+	}
+	n = recvmmsg(socket, msgs, count, MSG_DONTWAIT, NULL);
+	if (n < 0) {
+		return ((errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR)) ? 0 : -errno;
+	}
+	for (i = 0; i < n; i++) {
+		lens[i] = msgs[i].msg_len;
+	}
+#	else
+	for (n = 0; n < count; n++) {
+		socklen_t socklen = sizeof(struct sockaddr_storage);
+		ssize_t r = recvfrom(socket, buf + (n * slot), slot, MSG_DONTWAIT, (struct sockaddr *)&ss[n], &socklen);
+		if (r < 0) {
+			if ((n == 0) && (errno != EAGAIN) && (errno != EWOULDBLOCK) && (errno != EINTR)) {
+				return -errno;
+			}
+			break;
+		}
+		lens[n] = r;
+	}
+#	endif
+
+	for (i = 0; i < n; i++) {
+		address_of(&ss[i], family, addr + (i * addressLength));
+	}
+	if (n > 0) {
+		(*env)->SetIntArrayRegion(env, lengths, 0, n, lens);
+	}
+	return n;
+#endif
+}
@@ -43,6 +43,10 @@ JNIEXPORT jint JNICALL
 Java_com_davfx_ninio_core_NativeRawSocket__1_1socket
 (JNIEnv *, jclass, jint, jint);
 
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1datagram
+(JNIEnv *, jclass, jint, jint);
+
 JNIEXPORT jint JNICALL
 Java_com_davfx_ninio_core_NativeRawSocket__1_1bind
 (JNIEnv *, jclass, jint, jint, jbyteArray, jint);
@@ -63,6 +67,26 @@ JNIEXPORT jint JNICALL
 Java_com_davfx_ninio_core_NativeRawSocket__1_1sendto
 (JNIEnv *, jclass, jint, jbyteArray, jint, jint, jint, jbyteArray, jint);
 
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1batch
+(JNIEnv *, jclass);
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1wakeable
+(JNIEnv *, jclass, jintArray);
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1await
+(JNIEnv *, jclass, jint, jint, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1wakeup
+(JNIEnv *, jclass, jint);
+
+JNIEXPORT jint JNICALL
+Java_com_davfx_ninio_core_NativeRawSocket__1_1recvmmsg
+(JNIEnv *, jclass, jint, jobject, jint, jint, jint, jobject, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,169 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class InMemoryCacheTest {
+
+	// Request: [key, sub], response: [sub, value]
+	private static final class ByteInterpreter implements InMemoryCache.Interpreter<Byte> {
+		@Override
+		public InMemoryCache.Context<Byte> handleRequest(ByteBuffer packet) {
+			byte key = packet.get();
+			return new InMemoryCache.Context<>(key, packet.get());
+		}
+		@Override
+		public Byte handleResponse(ByteBuffer packet) {
+			return packet.get();
+		}
+		@Override
+		public ByteBuffer transform(ByteBuffer packet, Byte sub) {
+			packet.get();
+			return ByteBuffer.wrap(new byte[] { sub, packet.get() });
+		}
+	}
+
+	private static final class FakeConnecter implements Connecter {
+		public final List<String> sent = new ArrayList<>();
+		public Connection callback;
+
+		@Override
+		public void connect(Connection callback) {
+			this.callback = callback;
+		}
+		@Override
+		public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+			sent.add(address.port + ":" + buffer.get(buffer.position() + 1));
+			callback.sent();
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	private static final SendCallback NOP = new SendCallback() {
+		@Override
+		public void sent() {
+		}
+		@Override
+		public void failed(IOException ioe) {
+		}
+	};
+
+	private static List<String> connect(Connecter cache) {
+		final List<String> received = new ArrayList<>();
+		cache.connect(new Connection() {
+			@Override
+			public void received(Address address, ByteBuffer buffer) {
+				received.add(address.port + ":" + buffer.get() + "=" + buffer.get());
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void closed() {
+			}
+		});
+		return received;
+	}
+
+	@Test
+	public void testSharedRequests() throws Exception {
+		FakeConnecter wrappee = new FakeConnecter();
+		Connecter cache = InMemoryCache.<Byte>builder().dataExpiration(10d).requestExpiration(10d).stripes(4).using(new ByteInterpreter()).with(p -> wrappee).create(null);
+
+		List<String> received = connect(cache);
+
+		Address a = new Address(Address.LOCALHOST, 1);
+		Address b = new Address(Address.LOCALHOST, 2);
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 10 }), NOP);
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 10 }), NOP); // Sent again, delivered once
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 11 }), NOP);
+		cache.send(b, ByteBuffer.wrap(new byte[] { 1, 12 }), NOP);
+		Assertions.assertThat(wrappee.sent).containsExactly("1:10", "2:12");
+
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 10, 42 }));
+		Assertions.assertThat(received).containsExactly("1:10=42", "1:11=42");
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 13 }), NOP);
+		Assertions.assertThat(wrappee.sent).hasSize(2);
+		Assertions.assertThat(received).containsExactly("1:10=42", "1:11=42", "1:13=42");
+
+		wrappee.callback.received(b, ByteBuffer.wrap(new byte[] { 12, 7 }));
+		Assertions.assertThat(received).hasSize(4).endsWith("2:12=7");
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvictedWhenFull() throws Exception {
+		FakeConnecter wrappee = new FakeConnecter();
+		Connecter cache = InMemoryCache.<Byte>builder().name("bounded").dataExpiration(10d).requestExpiration(10d).stripes(1).maxBytes(4L).using(new ByteInterpreter()).with(p -> wrappee).create(null);
+		List<String> received = connect(cache);
+		Address a = new Address(Address.LOCALHOST, 1);
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 10 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 10, 1 }));
+		cache.send(a, ByteBuffer.wrap(new byte[] { 2, 11 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 11, 2 }));
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 12 }), NOP); // From cache, key 2 is now the least recently used
+		cache.send(a, ByteBuffer.wrap(new byte[] { 3, 13 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 13, 3 })); // Over 4 bytes, key 2 evicted
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 14 }), NOP);
+		cache.send(a, ByteBuffer.wrap(new byte[] { 2, 15 }), NOP);
+		Assertions.assertThat(wrappee.sent).containsExactly("1:10", "1:11", "1:13", "1:15");
+		Assertions.assertThat(received).containsExactly("1:10=1", "1:11=2", "1:12=1", "1:13=3", "1:14=1");
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		FakeConnecter wrappee = new FakeConnecter();
+		Connecter cache = InMemoryCache.<Byte>builder().name("stale").dataExpiration(0.2d).requestExpiration(0.2d).staleWhileRevalidate(10d).using(new ByteInterpreter()).with(p -> wrappee).create(null);
+		List<String> received = connect(cache);
+		Address a = new Address(Address.LOCALHOST, 1);
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 10 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 10, 1 }));
+		Thread.sleep(300L);
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 11 }), NOP); // Stale, served and refreshed
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 12 }), NOP); // Stale, refresh already sent
+		Assertions.assertThat(received).containsExactly("1:10=1", "1:11=1", "1:12=1");
+		Assertions.assertThat(wrappee.sent).containsExactly("1:10", "1:11");
+
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 11, 2 })); // Refresh response, not forwarded again
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 13 }), NOP);
+		Assertions.assertThat(received).containsExactly("1:10=1", "1:11=1", "1:12=1", "1:13=2");
+		Assertions.assertThat(wrappee.sent).hasSize(2);
+	}
+
+	@Test
+	public void testOffHeap() throws Exception {
+		FakeConnecter wrappee = new FakeConnecter();
+		// Each response takes the smallest slot (64 bytes)
+		Connecter cache = InMemoryCache.<Byte>builder().name("offheap").dataExpiration(10d).requestExpiration(10d).stripes(1).maxBytes(128L).offHeap(true).using(new ByteInterpreter()).with(p -> wrappee).create(null);
+		List<String> received = connect(cache);
+		Address a = new Address(Address.LOCALHOST, 1);
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 10 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 10, 1 }));
+		cache.send(a, ByteBuffer.wrap(new byte[] { 2, 11 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 11, 2 }));
+		cache.send(a, ByteBuffer.wrap(new byte[] { 3, 12 }), NOP);
+		wrappee.callback.received(a, ByteBuffer.wrap(new byte[] { 12, 3 })); // Key 1 evicted
+
+		cache.send(a, ByteBuffer.wrap(new byte[] { 2, 13 }), NOP);
+		cache.send(a, ByteBuffer.wrap(new byte[] { 3, 14 }), NOP);
+		cache.send(a, ByteBuffer.wrap(new byte[] { 1, 15 }), NOP);
+		Assertions.assertThat(wrappee.sent).containsExactly("1:10", "1:11", "1:12", "1:15");
+		Assertions.assertThat(received).containsExactly("1:10=1", "1:11=2", "1:12=3", "1:13=2", "1:14=3");
+	}
+}
@@ -0,0 +1,179 @@
+package com.davfx.ninio.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class PcapReaderTest {
+
+	private static final int RECORDS = 100;
+
+	private static byte[] udp(int i) {
+		byte[] payload = ("packet" + i).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(20 + 8 + payload.length);
+		b.put((byte) 0x45).put((byte) 0).putShort((short) b.capacity());
+		b.putShort((short) 0).putShort((short) 0);
+		b.put((byte) 64).put((byte) 17).putShort((short) 0);
+		b.put(new byte[] { 10, 0, 0, 1 }).put(new byte[] { 10, 0, 0, 2 });
+		b.putShort((short) 1000).putShort((short) (2000 + i)).putShort((short) (8 + payload.length)).putShort((short) 0);
+		b.put(payload);
+		return b.array();
+	}
+
+	// Mixes non-IP (ARP) records with the UDP ones
+	private static byte[] pcap(ByteOrder order, boolean nanoseconds, int linkType) {
+		ByteBuffer b = ByteBuffer.allocate(24 + RECORDS * 2 * (16 + 100)).order(order);
+		b.putInt(nanoseconds ? 0xA1B23C4D : 0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(linkType);
+		for (int i = 0; i < RECORDS; i++) {
+			for (boolean ip : new boolean[] { false, true }) {
+				byte[] packet = ip ? udp(i) : new byte[28];
+				ByteBuffer link = ByteBuffer.allocate(20);
+				if (linkType == 1) {
+					link.put(new byte[12]);
+					if ((i % 2) == 0) {
+						link.putShort((short) 0x8100).putShort((short) 42); // VLAN
+					}
+					link.putShort((short) (ip ? 0x0800 : 0x0806));
+				} else if (linkType == 113) {
+					link.put(new byte[14]).putShort((short) (ip ? 0x0800 : 0x0806));
+				}
+				link.flip();
+				int length = link.remaining() + packet.length;
+				b.putInt(1_000_000 + i).putInt(nanoseconds ? 500_000_000 : 500_000).putInt(length).putInt(length);
+				b.put(link).put(packet);
+			}
+		}
+		b.flip();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static final class Collector implements TcpdumpReader.Handler {
+		public final List<String> handled = new ArrayList<>();
+		public double lastTimestamp = 0d;
+
+		@Override
+		public void handle(double timestamp, Address source, Address destination, ByteBuffer buffer) {
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			handled.add(source + " " + destination + " " + new String(b, StandardCharsets.UTF_8));
+			lastTimestamp = timestamp;
+		}
+
+		public void check() {
+			Assertions.assertThat(handled).hasSize(RECORDS);
+			for (int i = 0; i < RECORDS; i++) {
+				Assertions.assertThat(handled.get(i)).isEqualTo(new Address(new byte[] { 10, 0, 0, 1 }, 1000) + " " + new Address(new byte[] { 10, 0, 0, 2 }, 2000 + i) + " packet" + i);
+			}
+			Assertions.assertThat(lastTimestamp).isCloseTo(1_000_000d + RECORDS - 1 + 0.5d, Assertions.within(0.000001d));
+		}
+	}
+
+	@Test
+	public void testStreams() throws Exception {
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			for (boolean nanoseconds : new boolean[] { false, true }) {
+				for (int linkType : new int[] { 1, 113, 101 }) {
+					Collector c = new Collector();
+					new PcapReader(0, 0L).read(new ByteArrayInputStream(pcap(order, nanoseconds, linkType)), c);
+					c.check();
+				}
+			}
+		}
+	}
+
+	// The stream buffer is compacted and refilled, the payloads given to a TcpdumpReader.Handler must survive it
+	@Test
+	public void testKeptPayloads() throws Exception {
+		final List<ByteBuffer> kept = new ArrayList<>();
+		// Nothing available in advance, as from a pipe: the stream is read by chunks
+		InputStream pipe = new FilterInputStream(new ByteArrayInputStream(pcap(ByteOrder.LITTLE_ENDIAN, false, 1))) {
+			@Override
+			public int available() {
+				return 0;
+			}
+		};
+		new PcapReader(0, 0L).read(pipe, new TcpdumpReader.Handler() {
+			@Override
+			public void handle(double timestamp, Address source, Address destination, ByteBuffer buffer) {
+				kept.add(buffer);
+			}
+		});
+		Assertions.assertThat(kept).hasSize(RECORDS);
+		for (int i = 0; i < RECORDS; i++) {
+			Assertions.assertThat(ByteBufferUtils.toString(kept.get(i))).isEqualTo("packet" + i);
+		}
+	}
+
+	@Test
+	public void testMappedFileAcrossWindows() throws Exception {
+		File file = File.createTempFile("ninio", ".pcap");
+		try {
+			Files.write(file.toPath(), pcap(ByteOrder.LITTLE_ENDIAN, false, 1));
+			for (long mapSize : new long[] { 256L, 1024L * 1024L }) {
+				Collector c = new Collector();
+				Assertions.assertThat(new PcapReader(0, mapSize).read(file.toPath(), c)).isEqualTo(RECORDS);
+				c.check();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testReplayIsPaced() throws Exception {
+		File file = File.createTempFile("ninio", ".pcap");
+		try {
+			Files.write(file.toPath(), pcap(ByteOrder.BIG_ENDIAN, true, 101)); // One packet per second
+			Collector c = new Collector();
+			long start = System.nanoTime();
+			new PcapReader().replay(file.toPath(), 500d, c);
+			double elapsed = (System.nanoTime() - start) / 1_000_000_000d;
+			c.check();
+			Assertions.assertThat(elapsed).isGreaterThanOrEqualTo((RECORDS - 1) / 500d);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFlyweightView() throws Exception {
+		File file = File.createTempFile("ninio", ".pcap");
+		try {
+			Files.write(file.toPath(), pcap(ByteOrder.LITTLE_ENDIAN, true, 113));
+			final List<IpPacket> views = new ArrayList<>();
+			final List<Integer> destinationPorts = new ArrayList<>();
+			new PcapReader().read(file.toPath(), new IpPacket.Handler() {
+				@Override
+				public void handle(IpPacket packet) {
+					if (!views.contains(packet)) {
+						views.add(packet);
+					}
+					Assertions.assertThat(packet.version()).isEqualTo(4);
+					Assertions.assertThat(packet.sourceIpv4()).isEqualTo(0x0A000001);
+					Assertions.assertThat(packet.destinationIpv4()).isEqualTo(0x0A000002);
+					Assertions.assertThat(packet.sourcePort()).isEqualTo(1000);
+					String payload = "packet" + (packet.destinationPort() - 2000);
+					Assertions.assertThat(packet.payloadLength()).isEqualTo(payload.length());
+					Assertions.assertThat(packet.buffer().get(packet.payloadOffset())).isEqualTo((byte) 'p');
+					destinationPorts.add(packet.destinationPort());
+				}
+			});
+			Assertions.assertThat(views).hasSize(1); // Reused
+			Assertions.assertThat(destinationPorts).hasSize(RECORDS).doesNotHaveDuplicates();
+		} finally {
+			file.delete();
+		}
+	}
+}
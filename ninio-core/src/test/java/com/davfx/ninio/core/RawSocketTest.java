@@ -0,0 +1,122 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class RawSocketTest {
+
+	private static final int IDENTIFIER = 0x4E49;
+	private static final int COUNT = 3;
+
+	private static ByteBuffer echoRequest(int sequence) {
+		ByteBuffer b = ByteBuffer.allocate(16);
+		b.put((byte) 8); // Echo request
+		b.put((byte) 0); // Code
+		b.putShort((short) 0); // Checksum
+		b.putShort((short) IDENTIFIER);
+		b.putShort((short) sequence);
+		b.putLong(System.nanoTime());
+		int checksum = 0;
+		for (int i = 0; i < b.limit(); i += 2) {
+			checksum += b.getShort(i) & 0xFFFF;
+		}
+		while ((checksum & 0xFFFF0000) != 0) {
+			checksum = (checksum & 0xFFFF) + (checksum >>> 16);
+		}
+		b.putShort(2, (short) ~checksum);
+		b.flip();
+		return b;
+	}
+
+	// Reads by batches and closes by waking the reading thread up, no terminate packet is involved
+	@Test
+	public void testBatchReadAndCloseWithoutTerminatePacket() throws Exception {
+		Assume.assumeTrue(NativeRawSocket.BATCH > 0);
+
+		final List<Address> sources = new ArrayList<>();
+		final List<Integer> sequences = new ArrayList<>();
+		final CountDownLatch replies = new CountDownLatch(COUNT);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final IOException[] failed = new IOException[] { null };
+
+		Connecter socket = RawSocket.builder().protocol(1).create(null);
+		socket.connect(new Connection() {
+			@Override
+			public void failed(IOException ioe) {
+				failed[0] = ioe;
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void closed() {
+				closed.countDown();
+			}
+			@Override
+			public void received(Address address, ByteBuffer buffer) {
+				int type = buffer.get() & 0xFF;
+				buffer.get(); // Code
+				buffer.getShort(); // Checksum
+				int identifier = buffer.getShort() & 0xFFFF;
+				int sequence = buffer.getShort() & 0xFFFF;
+				if ((type != 0) || (identifier != IDENTIFIER)) {
+					return;
+				}
+				synchronized (sources) {
+					sources.add(address);
+					sequences.add(sequence);
+				}
+				replies.countDown();
+			}
+		});
+		Assume.assumeTrue("Raw sockets not permitted: " + failed[0], failed[0] == null);
+
+		try {
+			for (int i = 0; i < COUNT; i++) {
+				socket.send(new Address(Address.LOCALHOST, 0), echoRequest(i), new Nop());
+			}
+			Assertions.assertThat(replies.await(5, TimeUnit.SECONDS)).isTrue();
+		} finally {
+			socket.close();
+		}
+
+		Assertions.assertThat(closed.await(1, TimeUnit.SECONDS)).isTrue();
+
+		synchronized (sources) {
+			Assertions.assertThat(sequences).containsExactlyInAnyOrder(0, 1, 2);
+			Assertions.assertThat(sources.get(0).ip).isEqualTo(Address.LOCALHOST);
+			// The source address is cached, not allocated per packet
+			Assertions.assertThat(sources.get(1)).isSameAs(sources.get(0));
+			Assertions.assertThat(sources.get(2)).isSameAs(sources.get(0));
+		}
+	}
+
+	// The read loop closes the socket on error, a later close() of the RawSocket then wakes it up again
+	@Test
+	public void testWakeupAndCloseOnceClosed() throws Exception {
+		Assume.assumeTrue(NativeRawSocket.BATCH > 0);
+
+		NativeRawSocket s;
+		try {
+			s = new NativeRawSocket(NativeRawSocket.PF_INET, 1);
+		} catch (IOException e) {
+			Assume.assumeNoException(e);
+			return;
+		}
+		s.configureNonBlockingReads();
+		s.wakeup();
+		Assertions.assertThat(s.await(1000)).isFalse();
+		s.close();
+
+		s.wakeup();
+		s.close();
+	}
+}
@@ -7,39 +7,62 @@ import com.davfx.ninio.core.NinioBuilder;
 import com.davfx.ninio.core.NinioProvider;
 import com.davfx.ninio.core.Nop;
 import com.davfx.ninio.core.RawSocket;
+import com.davfx.ninio.core.SendCallback;
 import com.davfx.ninio.core.supervision.metrics.DisplayableMetricsManager;
 import com.davfx.ninio.core.supervision.metrics.MetricsParams;
 import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
 import com.davfx.ninio.core.supervision.tracking.RequestTracker;
 import com.davfx.ninio.core.supervision.tracking.RequestTrackerManager;
 import com.davfx.ninio.string.Identifiers;
+import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.Mutable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public final class PingClient implements PingConnecter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PingClient.class);
 
-    private static final int ICMP_PROTOCOL = 1;
+    static final int ICMP_PROTOCOL = 1;
+    private static final long FIRST_ID = 65436;
     private static final long ID_LIMIT = Integer.MAX_VALUE - 1; // Last one is reserved for TERMINATE packet on RawSocket, sorry...
 
+    // Single pings never set the high bit of the identifier (see ID_LIMIT), sweeps always do
+    private static final int SWEEP_IDENTIFIER_FLAG = 0x8000;
+    private static final int MAX_SWEEPS = 256; // Running at the same time
+    private static final int DATAGRAM_ROUND_BITS = 5; // Datagram sockets: sweep slot and round in the sequence, see PingSweep.MAX_PROBES
+    private static final int PACKET_LENGTH = 16; // type, code, checksum, identifier, sequence, time (8 bytes)
+    private static final int SWEEP_PACKET_LENGTH = 20; // type, code, checksum, identifier, sequence (round), time (8 bytes), target index (4 bytes)
+
+    // Only wakes the sweeps up, their probes are sent from the client executor
+    private static final ScheduledExecutorService SWEEP_TIMER = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(PingClient.class, "sweep", true));
+
     public interface Builder extends NinioBuilder<PingConnecter> {
         @Deprecated
         Builder with(Executor executor);
 
         Builder with(RawSocket.Builder connectorFactory);
+
+        /**
+         * Uses an ICMP datagram socket (Linux, no root required): the kernel only delivers the replies to our own requests.
+         * Requires net.ipv4.ping_group_range to include the group of the process.
+         */
+        Builder datagram(boolean datagram);
     }
 
     public static Builder builder() {
         return new Builder() {
             private RawSocket.Builder connectorFactory = RawSocket.builder();
+            private boolean datagram = false;
 
             @Deprecated
             @Override
@@ -53,18 +76,31 @@ public final class PingClient implements PingConnecter {
                 return this;
             }
 
+            @Override
+            public Builder datagram(boolean datagram) {
+                this.datagram = datagram;
+                return this;
+            }
+
             @Override
             public PingConnecter create(NinioProvider ninioProvider) {
-                return new PingClient(ninioProvider.executor(), connectorFactory.protocol(ICMP_PROTOCOL).create(ninioProvider));
+                return new PingClient(ninioProvider.executor(), connectorFactory.protocol(ICMP_PROTOCOL).datagram(datagram).create(ninioProvider), datagram);
             }
         };
     }
 
     private final Executor executor;
     private final Connecter connecter;
-    private long nextId = 65436;
+    private final boolean datagram;
+    private final long firstId;
+    private final long idLimit;
+    private long nextId;
 
-    private final Map<Address, PingReceiver> receivers = new HashMap<>();
+    private final PingReceivers receivers = new PingReceivers();
+    private final AtomicReferenceArray<Sweep> sweeps = new AtomicReferenceArray<>(MAX_SWEEPS);
+    private final int shard;
+    private final int shards;
+    private final AtomicInteger nextSweepId = new AtomicInteger(0);
 
     private boolean closed = false;
 
@@ -73,72 +109,86 @@ public final class PingClient implements PingConnecter {
     private final RequestTracker inTracker;
 
     public PingClient(Executor executor, Connecter connecter) {
+        this(executor, connecter, false);
+    }
+
+    /**
+     * On a datagram socket, the kernel overwrites the echo identifier: IDs are then carried by the sequence only
+     */
+    public PingClient(Executor executor, Connecter connecter, boolean datagram) {
+        this(executor, connecter, datagram, 0, 1);
+    }
+
+    /**
+     * Only uses the IDs of its shard, so that shards do not take the replies of each other (raw sockets receive all of them)
+     */
+    PingClient(Executor executor, Connecter connecter, boolean datagram, int shard, int shards) {
         this.executor = executor;
         this.connecter = connecter;
+        this.datagram = datagram;
+        this.shard = shard;
+        this.shards = shards;
+        long span = (ID_LIMIT - FIRST_ID) / shards;
+        firstId = FIRST_ID + (shard * span);
+        idLimit = firstId + span;
+        nextId = firstId;
         clientIdentifier = Identifiers.identifier();
         inTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().pingIn());
         outTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().pingOut());
     }
 
-    private static void closeSendCallbacks(Map<Address, PingReceiver> receivers) {
-        IOException e = new IOException("Closed");
-        for (PingReceiver c : receivers.values()) {
-            c.failed(e);
-        }
-        receivers.clear();
-    }
-
     @Override
     public void connect(final PingConnection callback) {
         connecter.connect(new Connection() {
             @Override
             public void received(final Address address, final ByteBuffer buffer) {
-                executor.execute(() -> {
-                    if (closed) {
+                // Parsed in place from the reading thread, nothing is allocated unless the reply is expected
+                long now = System.nanoTime();
+                int p = buffer.position();
+                if ((buffer.remaining() < PACKET_LENGTH) || (buffer.get(p) != 0) || (buffer.get(p + 1) != 0)) { // Echo reply only
+                    return;
+                }
+                int identifier = buffer.getShort(p + 4) & 0xFFFF;
+                int sequence = buffer.getShort(p + 6) & 0xFFFF;
+                long time = buffer.getLong(p + 8);
+
+                if (datagram) {
+                    // Sweep probes are longer
+                    if (buffer.remaining() >= SWEEP_PACKET_LENGTH) {
+                        Sweep sweep = sweeps.get((sequence >>> DATAGRAM_ROUND_BITS) & (MAX_SWEEPS - 1));
+                        if (sweep != null) {
+                            sweep.received(address.ip, sequence & ((1 << DATAGRAM_ROUND_BITS) - 1), time, buffer.getInt(p + 16), now);
+                        }
                         return;
                     }
-
-                    int type;
-                    int code;
-                    long now = System.nanoTime();
-                    long time;
-                    Address id;
-                    try {
-                        type = buffer.get() & 0xFF; // type
-                        code = buffer.get() & 0xFF; // code
-                        if ((type != 0) || (code != 0)) {
-                            return;
+                    identifier = 0;
+                } else if ((identifier & SWEEP_IDENTIFIER_FLAG) != 0) {
+                    if (buffer.remaining() >= SWEEP_PACKET_LENGTH) {
+                        Sweep sweep = sweeps.get(slot(identifier & ~SWEEP_IDENTIFIER_FLAG));
+                        if ((sweep != null) && (sweep.id == (identifier & ~SWEEP_IDENTIFIER_FLAG))) {
+                            sweep.received(address.ip, sequence, time, buffer.getInt(p + 16), now);
                         }
-                        buffer.getShort(); // checksum
-                        short identifier = buffer.getShort(); // identifier
-                        short sequence = buffer.getShort(); // sequence
-                        time = buffer.getLong();
-                        id = new Address(address.ip, (int) (((identifier & 0xFFFFL) << 16) | (sequence & 0xFFFFL)));
-                    } catch (Exception e) {
-                        LOGGER.error("Invalid packet", e);
-                        return;
                     }
+                    return;
+                }
 
-                    long deltaNano = now - time;
-                    double delta = deltaNano / 1_000_000_000d;
+                int id = (identifier << 16) | sequence;
+                long deltaNano = now - time;
 
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("@{} Received ICMP packet [{}/{}] from {} (ID {}): {} ns", clientIdentifier, type, code, address, id.port, deltaNano);
-                    }
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("@{} Received ICMP packet from {} (ID {}): {} ns", clientIdentifier, address, id, deltaNano);
+                }
 
-                    PingReceiver r = receivers.remove(id);
-                    if (r == null) {
-                        return;
-                    }
+                final PingReceiver r = receivers.remove(PingReceivers.key(address.ip, id));
+                if (r == null) {
+                    return;
+                }
 
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("@{} Transmitted ICMP packet [{}/{}] from {} (ID {}): {} ns", clientIdentifier, type, code, address, id.port, deltaNano);
-                    }
+                inTracker.track(address.ip, addr ->
+                        String.format("Received ping from %s ", addr));
 
-                    inTracker.track(Address.ipToString(address.ip), addr ->
-                            String.format("Received ping from %s ", addr));
-                    r.received(delta);
-                });
+                final double delta = deltaNano / 1_000_000_000d;
+                executor.execute(() -> r.received(delta));
             }
 
             @Override
@@ -149,7 +199,8 @@ public final class PingClient implements PingConnecter {
                     }
 
                     closed = true;
-                    closeSendCallbacks(receivers);
+                    receivers.failAll(new IOException("Closed"));
+                    cancelSweeps(ioe);
                     callback.failed(ioe);
                 });
             }
@@ -173,7 +224,8 @@ public final class PingClient implements PingConnecter {
                     }
 
                     closed = true;
-                    closeSendCallbacks(receivers);
+                    receivers.failAll(new IOException("Closed"));
+                    cancelSweeps(new IOException("Closed"));
                     callback.closed();
                 });
             }
@@ -182,7 +234,7 @@ public final class PingClient implements PingConnecter {
 
     @Override
     public Cancelable ping(final byte[] ip, final PingReceiver callback) {
-        final Mutable<Address> id = new Mutable<>();
+        final Mutable<Long> key = new Mutable<>();
 
         executor.execute(() -> {
             if (closed) {
@@ -190,22 +242,23 @@ public final class PingClient implements PingConnecter {
                 return;
             }
 
-            id.value = new Address(ip, (int) (nextId & 0xFFFFFFFFL));
+            int id = datagram ? (int) ((nextId % 0xFFFFL) + 1L) : (int) (nextId & 0xFFFFFFFFL); // Datagram sockets: sequence only, never 0
             nextId++;
-            if (nextId == ID_LIMIT) {
-                nextId = 65436;
+            if (nextId == idLimit) {
+                nextId = firstId;
             }
-            receivers.put(id.value, callback);
+            key.value = PingReceivers.key(ip, id);
+            receivers.put(key.value, callback);
 
-            byte[] sendData = new byte[16];
+            byte[] sendData = new byte[PACKET_LENGTH];
 
             ByteBuffer b = ByteBuffer.wrap(sendData);
             b.put((byte) 8); // requestType (Echo)
             b.put((byte) 0); // code
             int checksumPosition = b.position();
             b.putShort((short) 0); // checksum
-            b.putShort((short) ((id.value.port >>> 16) & 0xFFFF)); // identifier
-            b.putShort((short) (id.value.port & 0xFFFF)); // sequence
+            b.putShort((short) ((id >>> 16) & 0xFFFF)); // identifier
+            b.putShort((short) (id & 0xFFFF)); // sequence
             long nt = System.nanoTime();
             b.putLong(nt);
             int endPosition = b.position();
@@ -226,20 +279,20 @@ public final class PingClient implements PingConnecter {
             b.flip();
 
             if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("@{} Sending ICMP packet to {} (ID {})", clientIdentifier, Address.ipToString(ip), id.value.port);
+                LOGGER.trace("@{} Sending ICMP packet to {} (ID {})", clientIdentifier, Address.ipToString(ip), id);
             }
             Address address = new Address(ip, 0);
-            outTracker.track(Address.ipToString(address.ip), addr ->
+            outTracker.track(address.ip, addr ->
                     String.format("Sending ping to %s ", addr));
             connecter.send(address, b, new Nop());
         });
 
         return () -> executor.execute(() -> {
-            if (id.value == null) {
+            if (key.value == null) {
                 return;
             }
 
-            PingReceiver r = receivers.remove(id.value);
+            PingReceiver r = receivers.remove(key.value);
             if (r == null) {
                 return;
             }
@@ -247,6 +300,200 @@ public final class PingClient implements PingConnecter {
         });
     }
 
+    private void cancelSweeps(IOException ioe) {
+        for (int i = 0; i < MAX_SWEEPS; i++) {
+            Sweep s = sweeps.get(i);
+            if (s != null) {
+                s.cancel(ioe);
+            }
+        }
+    }
+
+    /**
+     * The sweep IDs of the shard are shard + (shards * k), k being the slot (the shard bits of the ID would leave some slots unused)
+     */
+    private int slot(int sweepId) {
+        return (sweepId / shards) & (MAX_SWEEPS - 1);
+    }
+
+    @Override
+    public Cancelable sweep(PingSweep sweep, PingSweepReceiver callback) {
+        int id = shard + (shards * ((nextSweepId.getAndIncrement() & 0x7FFFFFFF) % (SWEEP_IDENTIFIER_FLAG / shards))); // Identifiers of the shard only
+        Sweep s = new Sweep(id, sweep, callback);
+        if (!sweeps.compareAndSet(slot(id), null, s)) {
+            callback.failed(new IOException("Too many sweeps"));
+            return () -> {};
+        }
+        executor.execute(s::step);
+        return () -> s.cancel(new IOException("Canceled"));
+    }
+
+    /**
+     * Sends the probes from a preallocated template where only the round, time, target index and checksum are patched.
+     * Each probe is a copy of the template (the connecter may write it later, as a proxied one does), the target addresses are built once.
+     * Runs by steps on the client executor: each step sends the probes due so far, then the shared timer schedules the next one.
+     */
+    private final class Sweep {
+        public final int id;
+        private final PingSweep sweep;
+        private final PingSweepReceiver callback;
+
+        // Guarded by this, indexed as the targets
+        private final int[] received;
+        private final int[] rounds; // Bit per round already replied, duplicates are ignored
+        private final long[] min;
+        private final long[] max;
+        private final long[] sum;
+
+        private volatile IOException canceled = null;
+
+        // Guarded by steps (the client executor may not be serial)
+        private final Object steps = new Object();
+        private byte[] template = null; // Built by the first step
+        private Address[] addresses;
+        private long interval;
+        private long next;
+        private int round = 0;
+        private int index = 0;
+        private boolean sent = false;
+        private long end;
+        private boolean finished = false;
+
+        public Sweep(int id, PingSweep sweep, PingSweepReceiver callback) {
+            this.id = id;
+            this.sweep = sweep;
+            this.callback = callback;
+            int n = sweep.targets.length;
+            received = new int[n];
+            rounds = new int[n];
+            min = new long[n];
+            max = new long[n];
+            sum = new long[n];
+        }
+
+        public void cancel(IOException ioe) {
+            canceled = ioe;
+            executor.execute(this::step);
+        }
+
+        private void schedule(long t) {
+            SWEEP_TIMER.schedule(() -> executor.execute(this::step), t - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        private void start() {
+            template = new byte[SWEEP_PACKET_LENGTH];
+            ByteBuffer t = ByteBuffer.wrap(template);
+            t.put(0, (byte) 8); // requestType (Echo)
+            t.put(1, (byte) 0); // code
+            if (!datagram) {
+                t.putShort(4, (short) (SWEEP_IDENTIFIER_FLAG | id)); // identifier
+            }
+            addresses = new Address[sweep.targets.length];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = new Address(PingSweep.toBytes(sweep.targets[i]), 0);
+            }
+            interval = (long) (1_000_000_000d / sweep.rate);
+            next = System.nanoTime();
+            if (addresses.length == 0) {
+                round = sweep.probes;
+            }
+        }
+
+        public void step() {
+            synchronized (steps) {
+                if (finished) {
+                    return;
+                }
+                if (template == null) {
+                    start();
+                }
+
+                SendCallback nop = new Nop();
+                long now = System.nanoTime();
+                while ((canceled == null) && (round < sweep.probes)) {
+                    if (next > now) {
+                        schedule(next);
+                        return;
+                    }
+                    next += interval; // When late, the next probes are sent right away to catch up
+
+                    ByteBuffer b = ByteBuffer.wrap(template.clone());
+                    b.putShort(6, (short) (datagram ? ((slot(id) << DATAGRAM_ROUND_BITS) | round) : round)); // sequence
+                    b.putLong(8, System.nanoTime());
+                    b.putInt(16, index);
+                    b.putShort(2, (short) checksum(b));
+
+                    connecter.send(addresses[index], b, nop);
+
+                    index++;
+                    if (index == addresses.length) {
+                        index = 0;
+                        round++;
+                    }
+                }
+
+                if (canceled == null) {
+                    if (!sent) {
+                        sent = true;
+                        end = System.nanoTime() + (long) (sweep.timeout * 1_000_000_000d);
+                    }
+                    if ((end - System.nanoTime()) > 0L) {
+                        schedule(end);
+                        return;
+                    }
+                }
+                finished = true;
+            }
+
+            sweeps.set(slot(id), null);
+
+            IOException ioe = canceled;
+            if (ioe != null) {
+                callback.failed(ioe);
+                return;
+            }
+
+            PingSweepResult result;
+            synchronized (this) {
+                result = new PingSweepResult(sweep.targets, sweep.probes, received.clone(), min.clone(), max.clone(), sum.clone());
+            }
+            LOGGER.debug("@{} Sweep finished: {}/{} hosts reachable", clientIdentifier, result.reachable(), result.size());
+            callback.finished(result);
+        }
+
+        public void received(byte[] ip, int round, long time, int index, long now) {
+            if ((index < 0) || (index >= sweep.targets.length) || (round >= sweep.probes) || (ip.length != 4) || (sweep.targets[index] != PingSweep.toInt(ip))) {
+                return;
+            }
+            long rtt = now - time;
+            synchronized (this) {
+                if ((rounds[index] & (1 << round)) != 0) {
+                    return;
+                }
+                rounds[index] |= 1 << round;
+                if ((received[index] == 0) || (rtt < min[index])) {
+                    min[index] = rtt;
+                }
+                if ((received[index] == 0) || (rtt > max[index])) {
+                    max[index] = rtt;
+                }
+                sum[index] += rtt;
+                received[index]++;
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer b) {
+        int checksum = 0;
+        for (int i = 0; i < b.limit(); i += 2) {
+            checksum += b.getShort(i) & 0xFFFF;
+        }
+        while ((checksum & 0xFFFF0000) != 0) {
+            checksum = (checksum & 0xFFFF) + (checksum >>> 16);
+        }
+        return ~checksum & 0xFFFF;
+    }
+
     @Override
     public void close() {
         connecter.close();
@@ -256,7 +503,7 @@ public final class PingClient implements PingConnecter {
                 return;
             }
 
-            closeSendCallbacks(receivers);
+            receivers.failAll(new IOException("Closed"));
         });
     }
 }
@@ -1,8 +1,18 @@
 package com.davfx.ninio.ping;
 
+import java.io.IOException;
+
 import com.davfx.ninio.core.Disconnectable;
 
 public interface PingConnecter extends Disconnectable {
 	void connect(PingConnection callback);
 	Cancelable ping(byte[] ip, PingReceiver callback);
+
+	/**
+	 * Probes all the hosts of the sweep at its rate, statistics per host are reported at the end
+	 */
+	default Cancelable sweep(PingSweep sweep, PingSweepReceiver callback) {
+		callback.failed(new IOException("Sweep not supported"));
+		return () -> {};
+	}
 }
@@ -0,0 +1,134 @@
+package com.davfx.ninio.ping;
+
+import java.io.IOException;
+
+/**
+ * In-flight pings, keyed by a primitive long (IPv4 and 32-bit ID) in an open-addressing table (linear probing, backward shift deletion).
+ * Nothing is allocated to look up a reply. Thread-safe.
+ */
+final class PingReceivers {
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final long EMPTY = 0L; // IDs never have their 32 lower bits set to 0, see key
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private PingReceiver[] values = new PingReceiver[INITIAL_CAPACITY];
+	private int size = 0;
+
+	public PingReceivers() {
+	}
+
+	/**
+	 * IPv6 addresses are folded to 32 bits, the ID alone being unique among in-flight pings
+	 */
+	public static long key(byte[] ip, int id) {
+		int a = 0;
+		for (int i = 0; i < ip.length; i++) {
+			a ^= (ip[i] & 0xFF) << (24 - ((i & 0x3) * 8));
+		}
+		return (((long) a) << 32) | (id & 0xFFFFFFFFL);
+	}
+
+	private static int index(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void put(long key, PingReceiver receiver) {
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		int mask = keys.length - 1;
+		int i = index(key, mask);
+		while (keys[i] != EMPTY) {
+			if (keys[i] == key) {
+				values[i] = receiver;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = receiver;
+		size++;
+	}
+
+	public synchronized PingReceiver remove(long key) {
+		int mask = keys.length - 1;
+		int i = index(key, mask);
+		while (true) {
+			long k = keys[i];
+			if (k == EMPTY) {
+				return null;
+			}
+			if (k == key) {
+				break;
+			}
+			i = (i + 1) & mask;
+		}
+
+		PingReceiver removed = values[i];
+		size--;
+
+		// Shifts back the following entries of the run, so that no tombstone is needed
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			long k = keys[j];
+			if (k == EMPTY) {
+				break;
+			}
+			int home = index(k, mask);
+			// Movable if its home slot is not in (hole, j], cyclically
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = k;
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = EMPTY;
+		values[hole] = null;
+		return removed;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		PingReceiver[] oldValues = values;
+		keys = new long[capacity];
+		values = new PingReceiver[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			long k = oldKeys[j];
+			if (k != EMPTY) {
+				int i = index(k, mask);
+				while (keys[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = k;
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/**
+	 * Empties the table, the receivers are called outside of the lock
+	 */
+	public void failAll(IOException ioe) {
+		PingReceiver[] failed;
+		synchronized (this) {
+			failed = values;
+			keys = new long[INITIAL_CAPACITY];
+			values = new PingReceiver[INITIAL_CAPACITY];
+			size = 0;
+		}
+		for (PingReceiver r : failed) {
+			if (r != null) {
+				r.failed(ioe);
+			}
+		}
+	}
+}
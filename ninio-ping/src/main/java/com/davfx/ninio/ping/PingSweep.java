@@ -0,0 +1,177 @@
+package com.davfx.ninio.ping;
+
+import java.util.Arrays;
+
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+/**
+ * IPv4 targets (CIDR blocks or single addresses) and pacing of a reachability sweep, see PingConnecter.sweep.
+ */
+public final class PingSweep {
+
+	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.ping.dependencies.Dependencies()).getConfig(PingSweep.class.getPackage().getName());
+	private static final double DEFAULT_RATE = CONFIG.getDouble("sweep.rate");
+	private static final int DEFAULT_PROBES = CONFIG.getInt("sweep.probes");
+	private static final double DEFAULT_TIMEOUT = ConfigUtils.getDuration(CONFIG, "sweep.timeout");
+
+	public static final int MAX_PROBES = 32;
+	public static final int MIN_PREFIX = 16; // Largest block, 65534 hosts
+
+	public static interface Builder {
+		/**
+		 * "10.0.0.0/16" or "10.0.0.1", the network and broadcast addresses of blocks larger than /31 are skipped.
+		 * Blocks larger than /16 are rejected.
+		 */
+		Builder add(String cidr);
+
+		Builder add(byte[] ip);
+
+		/**
+		 * Probes per second, all hosts included
+		 */
+		Builder rate(double rate);
+
+		/**
+		 * Probes sent to each host
+		 */
+		Builder probes(int probes);
+
+		/**
+		 * Time to wait for the replies after the last probe
+		 */
+		Builder timeout(double timeout);
+
+		PingSweep build();
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private int[] targets = new int[16];
+			private int size = 0;
+			private double rate = DEFAULT_RATE;
+			private int probes = DEFAULT_PROBES;
+			private double timeout = DEFAULT_TIMEOUT;
+
+			private void add(int ip) {
+				if (size == targets.length) {
+					targets = Arrays.copyOf(targets, size * 2);
+				}
+				targets[size] = ip;
+				size++;
+			}
+
+			@Override
+			public Builder add(String cidr) {
+				int slash = cidr.indexOf('/');
+				int prefix = (slash < 0) ? 32 : Integer.parseInt(cidr.substring(slash + 1).trim());
+				if ((prefix < 0) || (prefix > 32)) {
+					throw new IllegalArgumentException("Invalid prefix: " + cidr);
+				}
+				if (prefix < MIN_PREFIX) {
+					throw new IllegalArgumentException("Block larger than /" + MIN_PREFIX + ": " + cidr);
+				}
+				int base = parse((slash < 0) ? cidr.trim() : cidr.substring(0, slash).trim());
+				int mask = (prefix == 0) ? 0 : (0xFFFFFFFF << (32 - prefix));
+				long first = (base & mask) & 0xFFFFFFFFL;
+				long last = first + ((~mask) & 0xFFFFFFFFL);
+				if (prefix < 31) {
+					first++;
+					last--;
+				}
+				for (long ip = first; ip <= last; ip++) {
+					add((int) ip);
+				}
+				return this;
+			}
+
+			@Override
+			public Builder add(byte[] ip) {
+				if (ip.length != 4) {
+					throw new IllegalArgumentException("Only IPv4 can be swept");
+				}
+				add(toInt(ip));
+				return this;
+			}
+
+			@Override
+			public Builder rate(double rate) {
+				if (!(rate > 0d)) {
+					throw new IllegalArgumentException("Rate must be positive: " + rate);
+				}
+				this.rate = rate;
+				return this;
+			}
+
+			@Override
+			public Builder probes(int probes) {
+				if ((probes <= 0) || (probes > MAX_PROBES)) {
+					throw new IllegalArgumentException("Probes must be between 1 and " + MAX_PROBES);
+				}
+				this.probes = probes;
+				return this;
+			}
+
+			@Override
+			public Builder timeout(double timeout) {
+				if (!(timeout >= 0d)) {
+					throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+				}
+				this.timeout = timeout;
+				return this;
+			}
+
+			@Override
+			public PingSweep build() {
+				return new PingSweep(Arrays.copyOf(targets, size), rate, probes, timeout);
+			}
+		};
+	}
+
+	private static int parse(String ip) {
+		String[] s = ip.split("\\.");
+		if (s.length != 4) {
+			throw new IllegalArgumentException("Invalid IPv4: " + ip);
+		}
+		int r = 0;
+		for (String b : s) {
+			int v = Integer.parseInt(b);
+			if ((v < 0) || (v > 255)) {
+				throw new IllegalArgumentException("Invalid IPv4: " + ip);
+			}
+			r = (r << 8) | v;
+		}
+		return r;
+	}
+
+	static int toInt(byte[] ip) {
+		return ((ip[0] & 0xFF) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+	}
+
+	static byte[] toBytes(int ip) {
+		return new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+	}
+
+	final int[] targets;
+	final double rate;
+	final int probes;
+	final double timeout;
+
+	private PingSweep(int[] targets, double rate, int probes, double timeout) {
+		this.targets = targets;
+		this.rate = rate;
+		this.probes = probes;
+		this.timeout = timeout;
+	}
+
+	public int size() {
+		return targets.length;
+	}
+
+	/**
+	 * Same probes and timeout, on some of the targets
+	 */
+	PingSweep part(int[] targets, double rate) {
+		return new PingSweep(targets, rate, probes, timeout);
+	}
+}
@@ -0,0 +1,10 @@
+package com.davfx.ninio.ping;
+
+import com.davfx.ninio.core.Failing;
+
+public interface PingSweepReceiver extends Failing {
+	/**
+	 * Called once, when the replies to the last probes have been waited for
+	 */
+	void finished(PingSweepResult result);
+}
@@ -0,0 +1,96 @@
+package com.davfx.ninio.ping;
+
+/**
+ * Per host statistics of a sweep, hosts are in the order they were added to the sweep.
+ * Times in seconds, NaN if the host never replied.
+ */
+public final class PingSweepResult {
+	private final int[] targets;
+	private final int sent;
+	private final int[] received;
+	private final long[] min;
+	private final long[] max;
+	private final long[] sum;
+
+	PingSweepResult(int[] targets, int sent, int[] received, long[] min, long[] max, long[] sum) {
+		this.targets = targets;
+		this.sent = sent;
+		this.received = received;
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+	}
+
+	/**
+	 * Gathers the results of parts of a sweep, indexes[p][i] being the index in targets of the host i of parts[p]
+	 */
+	static PingSweepResult merge(int[] targets, int sent, PingSweepResult[] parts, int[][] indexes) {
+		int n = targets.length;
+		int[] received = new int[n];
+		long[] min = new long[n];
+		long[] max = new long[n];
+		long[] sum = new long[n];
+		for (int p = 0; p < parts.length; p++) {
+			PingSweepResult part = parts[p];
+			if (part == null) {
+				continue;
+			}
+			for (int i = 0; i < indexes[p].length; i++) {
+				int k = indexes[p][i];
+				received[k] = part.received[i];
+				min[k] = part.min[i];
+				max[k] = part.max[i];
+				sum[k] = part.sum[i];
+			}
+		}
+		return new PingSweepResult(targets, sent, received, min, max, sum);
+	}
+
+	public int size() {
+		return targets.length;
+	}
+
+	public byte[] ip(int host) {
+		return PingSweep.toBytes(targets[host]);
+	}
+
+	/**
+	 * Probes sent to each host
+	 */
+	public int sent() {
+		return sent;
+	}
+
+	public int received(int host) {
+		return received[host];
+	}
+
+	public double loss(int host) {
+		return 1d - (received[host] / (double) sent);
+	}
+
+	public double min(int host) {
+		return (received[host] == 0) ? Double.NaN : (min[host] / 1_000_000_000d);
+	}
+
+	public double max(int host) {
+		return (received[host] == 0) ? Double.NaN : (max[host] / 1_000_000_000d);
+	}
+
+	public double avg(int host) {
+		return (received[host] == 0) ? Double.NaN : ((sum[host] / (double) received[host]) / 1_000_000_000d);
+	}
+
+	/**
+	 * Number of hosts that replied at least once
+	 */
+	public int reachable() {
+		int n = 0;
+		for (int r : received) {
+			if (r > 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+}
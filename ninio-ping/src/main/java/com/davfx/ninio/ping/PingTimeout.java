@@ -26,6 +26,11 @@ public final class PingTimeout {
 			public Cancelable ping(byte[] ip, PingReceiver receiver) {
 				return PingTimeout.ping(t, timeout, ip, wrappee, receiver);
 			}
+
+			@Override
+			public Cancelable sweep(PingSweep sweep, PingSweepReceiver callback) {
+				return wrappee.sweep(sweep, callback); // Sweeps have their own timeout
+			}
 		};
 	}
 	
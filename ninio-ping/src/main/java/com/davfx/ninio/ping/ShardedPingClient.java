@@ -0,0 +1,231 @@
+package com.davfx.ninio.ping;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.NinioProvider;
+import com.davfx.ninio.core.RawSocket;
+import com.davfx.ninio.util.ConfigUtils;
+import com.davfx.ninio.util.SerialExecutor;
+import com.typesafe.config.Config;
+
+/**
+ * Spreads the pings over several PingClient shards, each with its own socket, thread, range of IDs and in-flight table.
+ * A host always goes to the same shard, sweeps are split between the shards and their results gathered.
+ * Raw sockets all receive all the ICMP replies (each shard drops those of the others), datagram sockets only get their own: they scale better.
+ */
+public final class ShardedPingClient implements PingConnecter {
+
+	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.ping.dependencies.Dependencies()).getConfig(ShardedPingClient.class.getPackage().getName());
+	private static final int DEFAULT_SHARDS = CONFIG.getInt("shards");
+
+	public static final int MAX_SHARDS = 256;
+
+	public interface Builder extends NinioBuilder<PingConnecter> {
+		/**
+		 * 0 for one per processor
+		 */
+		Builder shards(int shards);
+
+		Builder with(RawSocket.Builder connectorFactory);
+
+		/**
+		 * See PingClient.Builder.datagram
+		 */
+		Builder datagram(boolean datagram);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private int shards = DEFAULT_SHARDS;
+			private RawSocket.Builder connectorFactory = RawSocket.builder();
+			private boolean datagram = false;
+
+			@Override
+			public Builder shards(int shards) {
+				if ((shards < 0) || (shards > MAX_SHARDS)) {
+					throw new IllegalArgumentException("Shards must be between 0 and " + MAX_SHARDS);
+				}
+				this.shards = shards;
+				return this;
+			}
+
+			@Override
+			public Builder with(RawSocket.Builder connectorFactory) {
+				this.connectorFactory = connectorFactory;
+				return this;
+			}
+
+			@Override
+			public Builder datagram(boolean datagram) {
+				this.datagram = datagram;
+				return this;
+			}
+
+			@Override
+			public PingConnecter create(NinioProvider ninioProvider) {
+				int n = (shards == 0) ? Math.min(Runtime.getRuntime().availableProcessors(), MAX_SHARDS) : shards;
+				PingClient[] clients = new PingClient[n];
+				for (int i = 0; i < n; i++) {
+					clients[i] = new PingClient(new SerialExecutor(ShardedPingClient.class), connectorFactory.protocol(PingClient.ICMP_PROTOCOL).datagram(datagram).create(ninioProvider), datagram, i, n);
+				}
+				return new ShardedPingClient(clients);
+			}
+		};
+	}
+
+	private final PingClient[] clients;
+
+	ShardedPingClient(PingClient[] clients) {
+		this.clients = clients;
+	}
+
+	private int shard(int ip) {
+		return Integer.remainderUnsigned(ip * 0x9E3779B9, clients.length);
+	}
+
+	private int shard(byte[] ip) {
+		return shard((ip.length == 4) ? PingSweep.toInt(ip) : Arrays.hashCode(ip));
+	}
+
+	@Override
+	public void connect(final PingConnection callback) {
+		final AtomicInteger connected = new AtomicInteger(0);
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		for (PingClient c : clients) {
+			c.connect(new PingConnection() {
+				@Override
+				public void connected(Address address) {
+					if (connected.incrementAndGet() == clients.length) {
+						callback.connected(address);
+					}
+				}
+
+				@Override
+				public void failed(IOException ioe) {
+					if (ended.compareAndSet(false, true)) {
+						close();
+						callback.failed(ioe);
+					}
+				}
+
+				@Override
+				public void closed() {
+					if (ended.compareAndSet(false, true)) {
+						close();
+						callback.closed();
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public Cancelable ping(byte[] ip, PingReceiver callback) {
+		return clients[shard(ip)].ping(ip, callback);
+	}
+
+	@Override
+	public Cancelable sweep(final PingSweep sweep, final PingSweepReceiver callback) {
+		int n = clients.length;
+		int[] targets = sweep.targets;
+
+		int[] counts = new int[n];
+		int[] shards = new int[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			int s = shard(targets[i]);
+			shards[i] = s;
+			counts[s]++;
+		}
+		final int[][] indexes = new int[n][];
+		int active = 0;
+		for (int s = 0; s < n; s++) {
+			indexes[s] = new int[counts[s]];
+			if (counts[s] > 0) {
+				active++;
+			}
+			counts[s] = 0;
+		}
+		for (int i = 0; i < targets.length; i++) {
+			int s = shards[i];
+			indexes[s][counts[s]] = i;
+			counts[s]++;
+		}
+
+		final PingSweepResult[] parts = new PingSweepResult[n];
+		if (active == 0) {
+			callback.finished(PingSweepResult.merge(targets, sweep.probes, parts, indexes));
+			return () -> {};
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(active);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final Cancelable[] cancelables = new Cancelable[n];
+		final Cancelable cancelAll = () -> {
+			synchronized (cancelables) {
+				for (Cancelable c : cancelables) {
+					if (c != null) {
+						c.cancel();
+					}
+				}
+			}
+		};
+
+		for (int s = 0; s < n; s++) {
+			if (counts[s] == 0) {
+				continue;
+			}
+			if (failed.get()) {
+				break;
+			}
+
+			int[] partTargets = new int[counts[s]];
+			for (int i = 0; i < partTargets.length; i++) {
+				partTargets[i] = targets[indexes[s][i]];
+			}
+			// All the shards end together, at the overall rate
+			PingSweep part = sweep.part(partTargets, (sweep.rate * partTargets.length) / targets.length);
+
+			final int p = s;
+			Cancelable c = clients[s].sweep(part, new PingSweepReceiver() {
+				@Override
+				public void finished(PingSweepResult result) {
+					synchronized (parts) {
+						parts[p] = result;
+					}
+					if ((remaining.decrementAndGet() == 0) && !failed.get()) {
+						PingSweepResult merged;
+						synchronized (parts) {
+							merged = PingSweepResult.merge(targets, sweep.probes, parts, indexes);
+						}
+						callback.finished(merged);
+					}
+				}
+
+				@Override
+				public void failed(IOException ioe) {
+					if (failed.compareAndSet(false, true)) {
+						cancelAll.cancel();
+						callback.failed(ioe);
+					}
+				}
+			});
+			synchronized (cancelables) {
+				cancelables[s] = c;
+			}
+		}
+
+		return cancelAll;
+	}
+
+	@Override
+	public void close() {
+		for (PingClient c : clients) {
+			c.close();
+		}
+	}
+}
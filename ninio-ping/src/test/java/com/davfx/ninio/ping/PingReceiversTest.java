@@ -0,0 +1,64 @@
+package com.davfx.ninio.ping;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class PingReceiversTest {
+
+	private static final class Receiver implements PingReceiver {
+		public IOException failed = null;
+		@Override
+		public void received(double time) {
+		}
+		@Override
+		public void failed(IOException ioe) {
+			failed = ioe;
+		}
+	}
+
+	@Test
+	public void testKey() throws Exception {
+		Assertions.assertThat(PingReceivers.key(new byte[] { 10, 0, 0, (byte) 200 }, 65436)).isEqualTo(0x0A0000C8_0000FF9CL);
+		Assertions.assertThat(PingReceivers.key(new byte[] { 10, 0, 0, 1 }, 65436)).isNotEqualTo(PingReceivers.key(new byte[] { 10, 0, 0, 2 }, 65436));
+		Assertions.assertThat(PingReceivers.key(new byte[16], 65436) & 0xFFFFFFFFL).isEqualTo(65436L);
+	}
+
+	@Test
+	public void testAgainstHashMap() throws Exception {
+		PingReceivers receivers = new PingReceivers();
+		Map<Long, PingReceiver> expected = new HashMap<>();
+		Random random = new Random(42L);
+		for (int i = 0; i < 100_000; i++) {
+			// Few IPs and IDs, so that runs get long and removals shift entries
+			long key = PingReceivers.key(new byte[] { 10, 0, 0, (byte) random.nextInt(8) }, 65436 + random.nextInt(512));
+			if (random.nextBoolean()) {
+				Receiver r = new Receiver();
+				receivers.put(key, r);
+				expected.put(key, r);
+			} else {
+				Assertions.assertThat(receivers.remove(key)).isSameAs(expected.remove(key));
+			}
+			Assertions.assertThat(receivers.size()).isEqualTo(expected.size());
+		}
+		for (Map.Entry<Long, PingReceiver> e : expected.entrySet()) {
+			Assertions.assertThat(receivers.remove(e.getKey())).isSameAs(e.getValue());
+		}
+		Assertions.assertThat(receivers.size()).isZero();
+	}
+
+	@Test
+	public void testFailAll() throws Exception {
+		PingReceivers receivers = new PingReceivers();
+		Receiver r = new Receiver();
+		receivers.put(PingReceivers.key(new byte[] { 10, 0, 0, 1 }, 65436), r);
+		IOException ioe = new IOException("Closed");
+		receivers.failAll(ioe);
+		Assertions.assertThat(r.failed).isSameAs(ioe);
+		Assertions.assertThat(receivers.remove(PingReceivers.key(new byte[] { 10, 0, 0, 1 }, 65436))).isNull();
+	}
+}
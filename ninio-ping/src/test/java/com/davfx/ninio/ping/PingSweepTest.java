@@ -0,0 +1,254 @@
+package com.davfx.ninio.ping;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.util.Lock;
+
+public class PingSweepTest {
+
+	// Hosts with an even last byte reply, twice. If delayed, the buffer is read after send returns (as a proxied connecter does).
+	private static class EchoConnecter implements Connecter {
+		private final boolean datagram;
+		private final ScheduledExecutorService delayed;
+		private volatile Connection callback;
+
+		public EchoConnecter(boolean datagram, boolean delayed) {
+			this.datagram = datagram;
+			this.delayed = delayed ? Executors.newSingleThreadScheduledExecutor() : null;
+		}
+
+		@Override
+		public void connect(Connection callback) {
+			this.callback = callback;
+		}
+		@Override
+		public void send(Address address, ByteBuffer buffer, SendCallback sendCallback) {
+			if (delayed != null) {
+				delayed.schedule(() -> echo(address, buffer), 10L, TimeUnit.MILLISECONDS);
+			} else {
+				echo(address, buffer);
+			}
+			sendCallback.sent();
+		}
+		private void echo(Address address, ByteBuffer buffer) {
+			if ((address.ip[3] % 2) == 0) {
+				for (int i = 0; i < 2; i++) {
+					ByteBuffer reply = ByteBuffer.allocate(buffer.remaining());
+					reply.put(buffer.duplicate());
+					reply.flip();
+					reply.put(0, (byte) 0); // Echo reply
+					if (datagram) {
+						reply.putShort(4, (short) 0x1234); // Identifier set by the kernel
+					}
+					callback.received(new Address(address.ip, 0), reply);
+				}
+			}
+		}
+		@Override
+		public void close() {
+			if (delayed != null) {
+				delayed.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testTargets() throws Exception {
+		Assertions.assertThat(PingSweep.builder().add("10.0.0.0/24").build().size()).isEqualTo(254);
+		Assertions.assertThat(PingSweep.builder().add("10.0.0.7/31").add("10.0.0.9").add(new byte[] { 10, 0, 0, 10 }).build().size()).isEqualTo(4);
+		Assertions.assertThat(PingSweep.builder().add("10.0.0.0/16").build().size()).isEqualTo(65534);
+	}
+
+	@Test
+	public void testInvalidBuilder() throws Exception {
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().add("10.0.0.0/15")).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().add("0.0.0.0/0")).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().rate(0d)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().rate(-1d)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().rate(Double.NaN)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> PingSweep.builder().timeout(-0.1d)).isInstanceOf(IllegalArgumentException.class);
+		PingSweep.builder().timeout(0d);
+	}
+
+	// No thread of its own, the probes are sent from the client executor
+	@Test
+	public void testSweepOnClientExecutor() throws Exception {
+		final ThreadLocal<Boolean> inExecutor = new ThreadLocal<>();
+		final AtomicInteger outside = new AtomicInteger(0);
+		Executor executor = r -> {
+			inExecutor.set(true);
+			try {
+				r.run();
+			} finally {
+				inExecutor.remove();
+			}
+		};
+		try (PingClient client = connect(new PingClient(executor, new EchoConnecter(false, false) {
+			@Override
+			public void send(Address address, ByteBuffer buffer, SendCallback sendCallback) {
+				if (inExecutor.get() == null) {
+					outside.incrementAndGet();
+				}
+				super.send(address, buffer, sendCallback);
+			}
+		}, false))) {
+			final Lock<PingSweepResult, IOException> lock = new Lock<>();
+			client.sweep(PingSweep.builder().add("192.168.1.0/29").rate(200d).probes(2).timeout(0d).build(), new PingSweepReceiver() {
+				@Override
+				public void finished(PingSweepResult result) {
+					lock.set(result);
+				}
+				@Override
+				public void failed(IOException ioe) {
+					lock.fail(ioe);
+				}
+			});
+			PingSweepResult result = lock.waitFor();
+			Assertions.assertThat(result.sent()).isEqualTo(2);
+			Assertions.assertThat(result.reachable()).isEqualTo(3);
+			Assertions.assertThat(outside.get()).isZero();
+		}
+	}
+
+	private static PingClient connect(boolean datagram) {
+		return connect(datagram, false);
+	}
+
+	private static PingClient connect(boolean datagram, boolean delayed) {
+		return connect(new PingClient(Runnable::run, new EchoConnecter(datagram, delayed), datagram));
+	}
+
+	private static PingClient connect(PingClient client) {
+		client.connect(new PingConnection() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void closed() {
+			}
+		});
+		return client;
+	}
+
+	@Test
+	public void testSweep() throws Exception {
+		sweep(false);
+	}
+
+	@Test
+	public void testSweepOverDatagramSocket() throws Exception {
+		sweep(true);
+	}
+
+	@Test
+	public void testSweepThroughAsynchronousConnecter() throws Exception {
+		sweep(false, true);
+	}
+
+	// The sweep IDs of a shard are spaced by the number of shards, they must still reach all the slots
+	@Test
+	public void testConcurrentSweepsOfAShard() throws Exception {
+		int n = 200;
+		try (PingClient client = connect(new PingClient(Runnable::run, new EchoConnecter(false, false), false, 5, 64))) {
+			final CountDownLatch finished = new CountDownLatch(n);
+			final AtomicInteger reachable = new AtomicInteger(0);
+			final AtomicReference<IOException> failed = new AtomicReference<>();
+			for (int i = 0; i < n; i++) {
+				client.sweep(PingSweep.builder().add(new byte[] { (byte) 192, (byte) 168, (byte) (i / 100), (byte) (2 * (i % 100)) }).probes(1).timeout(0.5d).build(), new PingSweepReceiver() {
+					@Override
+					public void finished(PingSweepResult result) {
+						reachable.addAndGet(result.reachable());
+						finished.countDown();
+					}
+					@Override
+					public void failed(IOException ioe) {
+						failed.set(ioe);
+						finished.countDown();
+					}
+				});
+			}
+			Assertions.assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+			Assertions.assertThat(failed.get()).isNull();
+			Assertions.assertThat(reachable.get()).isEqualTo(n);
+		}
+	}
+
+	@Test
+	public void testPingOverDatagramSocket() throws Exception {
+		try (PingClient client = connect(true)) {
+			for (int i = 0; i < 3; i++) {
+				final Lock<Double, IOException> lock = new Lock<>();
+				client.ping(new byte[] { (byte) 192, (byte) 168, 1, 2 }, new PingReceiver() {
+					@Override
+					public void received(double time) {
+						lock.set(time);
+					}
+					@Override
+					public void failed(IOException ioe) {
+						lock.fail(ioe);
+					}
+				});
+				Assertions.assertThat(lock.waitFor()).isGreaterThanOrEqualTo(0d);
+			}
+		}
+	}
+
+	private static void sweep(boolean datagram) throws Exception {
+		sweep(datagram, false);
+	}
+
+	private static void sweep(boolean datagram, boolean delayed) throws Exception {
+		try (PingClient client = connect(datagram, delayed)) {
+
+			final Lock<PingSweepResult, IOException> lock = new Lock<>();
+			long start = System.nanoTime();
+			client.sweep(PingSweep.builder().add("192.168.1.0/28").rate(100d).probes(3).timeout(0.1d).build(), new PingSweepReceiver() {
+				@Override
+				public void finished(PingSweepResult result) {
+					lock.set(result);
+				}
+				@Override
+				public void failed(IOException ioe) {
+					lock.fail(ioe);
+				}
+			});
+			PingSweepResult result = lock.waitFor();
+
+			// 14 hosts x 3 probes at 100 per second
+			Assertions.assertThat((System.nanoTime() - start) / 1_000_000_000d).isGreaterThan(0.4d);
+			Assertions.assertThat(result.size()).isEqualTo(14);
+			Assertions.assertThat(result.reachable()).isEqualTo(7);
+			Assertions.assertThat(result.sent()).isEqualTo(3);
+			for (int i = 0; i < result.size(); i++) {
+				if ((result.ip(i)[3] % 2) == 0) {
+					Assertions.assertThat(result.received(i)).isEqualTo(3); // Duplicates ignored
+					Assertions.assertThat(result.loss(i)).isEqualTo(0d);
+					Assertions.assertThat(result.min(i)).isGreaterThanOrEqualTo(0d).isLessThanOrEqualTo(result.avg(i));
+					Assertions.assertThat(result.avg(i)).isLessThanOrEqualTo(result.max(i));
+				} else {
+					Assertions.assertThat(result.received(i)).isZero();
+					Assertions.assertThat(result.loss(i)).isEqualTo(1d);
+					Assertions.assertThat(result.avg(i)).isNaN();
+				}
+			}
+		}
+	}
+}
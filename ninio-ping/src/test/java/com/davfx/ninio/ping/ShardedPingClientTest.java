@@ -0,0 +1,131 @@
+package com.davfx.ninio.ping;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.util.Lock;
+
+public class ShardedPingClientTest {
+
+	// Hosts with an even last byte reply, to all the sockets (as raw sockets do)
+	private static final class Network {
+		public final List<Connection> sockets = new ArrayList<>();
+		public int sent = 0;
+
+		public Connecter socket() {
+			return new Connecter() {
+				@Override
+				public void connect(Connection callback) {
+					sockets.add(callback);
+					callback.connected(null);
+				}
+				@Override
+				public void send(Address address, ByteBuffer buffer, SendCallback sendCallback) {
+					synchronized (Network.this) {
+						sent++;
+					}
+					if ((address.ip[3] % 2) == 0) {
+						for (Connection c : sockets) {
+							ByteBuffer reply = ByteBuffer.allocate(buffer.remaining());
+							reply.put(buffer.duplicate());
+							reply.flip();
+							reply.put(0, (byte) 0); // Echo reply
+							c.received(new Address(address.ip, 0), reply);
+						}
+					}
+					sendCallback.sent();
+				}
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	private static ShardedPingClient connect(Network network, int shards) {
+		PingClient[] clients = new PingClient[shards];
+		for (int i = 0; i < shards; i++) {
+			clients[i] = new PingClient(Runnable::run, network.socket(), false, i, shards);
+		}
+		ShardedPingClient client = new ShardedPingClient(clients);
+		final Lock<Boolean, IOException> connected = new Lock<>();
+		client.connect(new PingConnection() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+				connected.set(true);
+			}
+			@Override
+			public void closed() {
+			}
+		});
+		try {
+			connected.waitFor();
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+		return client;
+	}
+
+	@Test
+	public void testPingsAreNotTakenByOtherShards() throws Exception {
+		Network network = new Network();
+		try (ShardedPingClient client = connect(network, 4)) {
+			final List<String> received = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				final int host = i;
+				client.ping(new byte[] { 10, 0, 0, (byte) host }, new PingReceiver() {
+					@Override
+					public void received(double time) {
+						synchronized (received) {
+							received.add(String.valueOf(host));
+						}
+					}
+					@Override
+					public void failed(IOException ioe) {
+					}
+				});
+			}
+			Assertions.assertThat(network.sent).isEqualTo(64);
+			Assertions.assertThat(received).hasSize(32).doesNotHaveDuplicates();
+		}
+	}
+
+	@Test
+	public void testSweepIsSplitAndGathered() throws Exception {
+		Network network = new Network();
+		try (ShardedPingClient client = connect(network, 3)) {
+			final Lock<PingSweepResult, IOException> lock = new Lock<>();
+			client.sweep(PingSweep.builder().add("192.168.1.0/27").rate(1000d).probes(2).timeout(0.1d).build(), new PingSweepReceiver() {
+				@Override
+				public void finished(PingSweepResult result) {
+					lock.set(result);
+				}
+				@Override
+				public void failed(IOException ioe) {
+					lock.fail(ioe);
+				}
+			});
+			PingSweepResult result = lock.waitFor();
+
+			Assertions.assertThat(network.sent).isEqualTo(30 * 2);
+			Assertions.assertThat(result.size()).isEqualTo(30);
+			Assertions.assertThat(result.reachable()).isEqualTo(15);
+			for (int i = 0; i < result.size(); i++) {
+				Assertions.assertThat(result.ip(i)[3]).isEqualTo((byte) (i + 1)); // Order kept
+				Assertions.assertThat(result.received(i)).isEqualTo(((result.ip(i)[3] % 2) == 0) ? 2 : 0);
+			}
+		}
+	}
+}
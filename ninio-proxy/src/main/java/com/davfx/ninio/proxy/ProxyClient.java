@@ -14,9 +14,12 @@ import com.davfx.ninio.core.supervision.metrics.DisplayableMetricsManager;
 import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
 import com.davfx.ninio.core.supervision.tracking.RequestTracker;
 import com.davfx.ninio.core.supervision.tracking.RequestTrackerManager;
+import com.davfx.ninio.proxy.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,10 +27,13 @@ import java.io.IOException;
 import java.net.ProtocolFamily;
 import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class ProxyClient implements ProxyProvider {
     private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClient.class);
@@ -75,16 +81,46 @@ public final class ProxyClient implements ProxyProvider {
         };
     }
 
+    private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(ProxyClient.class.getPackage().getName());
+    private static final int DEFAULT_LINKS = CONFIG.getInt("client.links");
+    private static final Assignment DEFAULT_ASSIGNMENT = Assignment.valueOf(CONFIG.getString("client.assignment").toUpperCase());
+    private static final long RETRY = (long) (ConfigUtils.getDuration(CONFIG, "client.retry") * 1_000_000_000d);
+
+    public static final int MAX_LINKS = 64;
+
+    /**
+     * How inner connections are spread over the links
+     */
+    public enum Assignment {
+        /**
+         * Same connect address (or header) on the same link
+         */
+        HASH,
+        /**
+         * Link with the fewest inner connections
+         */
+        LEAST_LOADED
+    }
+
     public interface Builder extends NinioBuilder<ProxyClient> {
         @Deprecated
         Builder with(Executor executor);
 
         Builder with(TcpSocket.Builder connectorFactory);
+
+        /**
+         * Parallel TCP links to the proxy server, each with its own executor
+         */
+        Builder links(int links);
+
+        Builder assignment(Assignment assignment);
     }
 
     public static Builder builder() {
         return new Builder() {
             private TcpSocket.Builder connectorFactory = TcpSocket.builder();
+            private int links = DEFAULT_LINKS;
+            private Assignment assignment = DEFAULT_ASSIGNMENT;
 
             @Deprecated
             @Override
@@ -98,42 +134,57 @@ public final class ProxyClient implements ProxyProvider {
                 return this;
             }
 
+            @Override
+            public Builder links(int links) {
+                if ((links < 1) || (links > MAX_LINKS)) {
+                    throw new IllegalArgumentException("Links must be between 1 and " + MAX_LINKS);
+                }
+                this.links = links;
+                return this;
+            }
+
+            @Override
+            public Builder assignment(Assignment assignment) {
+                this.assignment = assignment;
+                return this;
+            }
+
             @Override
             public ProxyClient create(NinioProvider ninioProvider) {
-                return new ProxyClient(ninioProvider, connectorFactory);
+                return new ProxyClient(ninioProvider, connectorFactory, links, assignment);
             }
         };
     }
 
-    private final Executor proxyExecutor;
     private final NinioProvider ninioProvider;
     private final TcpSocket.Builder proxyConnectorFactory;
-    private Connecter proxyConnector = null;
-    private int nextConnectionId = 0;
+    private final Link[] links;
+    private final Assignment assignment;
 
     private static final class InnerConnection {
         public int connectionId;
         public Connection connection = null;
+        public final ProxyWindow window = new ProxyWindow(ProxyCommons.Protocol.WINDOW); // Used once switched to v2
 
         public InnerConnection() {
         }
     }
 
-    private final Map<Integer, InnerConnection> connections = new HashMap<>();
-
-    private ProxyClient(NinioProvider ninioProvider, TcpSocket.Builder proxyConnectorFactory) {
-        proxyExecutor = ninioProvider.executor();
+    private ProxyClient(NinioProvider ninioProvider, TcpSocket.Builder proxyConnectorFactory, int links, Assignment assignment) {
         this.ninioProvider = ninioProvider;
         this.proxyConnectorFactory = proxyConnectorFactory;
+        this.links = new Link[links];
+        for (int i = 0; i < links; i++) {
+            this.links[i] = new Link();
+        }
+        this.assignment = assignment;
     }
 
     @Override
     public void close() {
-        proxyExecutor.execute(() -> {
-            if (proxyConnector != null) {
-                proxyConnector.close();
-            }
-        });
+        for (Link link : links) {
+            link.close();
+        }
     }
 
     @Override
@@ -169,6 +220,7 @@ public final class ProxyClient implements ProxyProvider {
         return new RawSocket.Builder() {
             private ProtocolFamily family = StandardProtocolFamily.INET;
             private int protocol = 0;
+            private boolean datagram = false;
 
             @Override
             public RawSocket.Builder family(ProtocolFamily family) {
@@ -187,332 +239,287 @@ public final class ProxyClient implements ProxyProvider {
                 return this;
             }
 
+            @Override
+            public RawSocket.Builder datagram(boolean datagram) {
+                this.datagram = datagram;
+                return this;
+            }
+
             @Override
             public Connecter create(NinioProvider ninioProvider) {
-                ProxyHeader header = new ProxyHeader(ProxyCommons.Types.RAW, ImmutableMap.of(
-                        "family", (family == StandardProtocolFamily.INET6) ? "6" : "4",
-                        "protocol", String.valueOf(protocol),
-                        "recipientId", recipientId));
+                ImmutableMap.Builder<String, String> parameters = ImmutableMap.<String, String>builder()
+                        .put("family", (family == StandardProtocolFamily.INET6) ? "6" : "4")
+                        .put("protocol", String.valueOf(protocol))
+                        .put("recipientId", recipientId);
+                if (datagram) {
+                    parameters.put("datagram", "true");
+                }
+                ProxyHeader header = new ProxyHeader(ProxyCommons.Types.RAW, parameters.build());
                 return createConnector(header, null);
             }
         };
     }
 
     private Connecter createConnector(ProxyHeader header, Address connectAddress) {
-        return new InnerConnector(header, connectAddress);
+        Link link = link(header, connectAddress);
+        return link.new InnerConnector(header, connectAddress);
     }
 
-    private final class InnerConnector implements Connecter {
-        private final ProxyHeader header;
-        private final Address connectAddress;
-        private final InnerConnection innerConnection;
-        private final RequestTracker inTracker;
-        private final RequestTracker outTracker;
+    private static boolean up(Link link, long now) {
+        long failedAt = link.failedAt;
+        return (failedAt == 0L) || ((now - failedAt) >= RETRY);
+    }
 
-        public InnerConnector(ProxyHeader header, final Address connectAddress) {
-            this.header = header;
-            this.connectAddress = connectAddress;
+    // Links that failed recently are avoided as long as others are up
+    private Link link(ProxyHeader header, Address connectAddress) {
+        if (links.length == 1) {
+            return links[0];
+        }
+        long now = System.nanoTime();
+        if (assignment == Assignment.LEAST_LOADED) {
+            Link best = null;
+            boolean bestUp = false;
+            for (Link link : links) {
+                boolean linkUp = up(link, now);
+                if ((best == null) || (linkUp && !bestUp) || ((linkUp == bestUp) && (link.load.get() < best.load.get()))) {
+                    best = link;
+                    bestUp = linkUp;
+                }
+            }
+            return best;
+        }
+        int h = (connectAddress == null) ? Objects.hash(header.type, header.parameters) : ((Arrays.hashCode(connectAddress.ip) * 31) + connectAddress.port);
+        int start = Integer.remainderUnsigned(h * 0x9E3779B9, links.length);
+        for (int i = 0; i < links.length; i++) {
+            Link link = links[(start + i) % links.length];
+            if (up(link, now)) {
+                return link;
+            }
+        }
+        return links[start];
+    }
 
-            innerConnection = new InnerConnection();
-            inTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().proxyClientIn());
-            outTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().proxyClientOut());
+    /**
+     * A TCP connection to the proxy server, and the inner connections multiplexed over it (confined to its executor)
+     */
+    private final class Link {
+        private final Executor proxyExecutor;
+        private Connecter proxyConnector = null;
+        private boolean v2 = false; // Once the server told us it speaks v2, reset with proxyConnector
+        private int nextConnectionId = 0;
 
-            proxyExecutor.execute(() -> {
-                innerConnection.connectionId = nextConnectionId;
-                nextConnectionId++;
+        private final SendCallback linkSendCallback = new SendCallback() {
+            @Override
+            public void failed(IOException e) {
+                LOGGER.error("error: " + e);
+                if (proxyConnector != null) {
+                    proxyConnector.close();
+                }
+            }
 
-                connections.put(innerConnection.connectionId, innerConnection);
-            });
+            @Override
+            public void sent() {
+            }
+        };
+        private final ProxyWindow.Sender linkSender = (frame, callback) -> proxyConnector.send(null, frame, callback);
+
+        private final Map<Integer, InnerConnection> connections = new HashMap<>();
+
+        public final AtomicInteger load = new AtomicInteger(0); // Inner connections
+        public volatile long failedAt = 0L; // System.nanoTime(), 0 if up
+
+        public Link() {
+            proxyExecutor = ninioProvider.executor();
         }
 
-        private void doClose() {
+        public void close() {
             proxyExecutor.execute(() -> {
                 if (proxyConnector != null) {
                     proxyConnector.close();
-                    proxyConnector = null;
-                }
-                for (InnerConnection c : connections.values()) {
-                    c.connection.failed(new IOException("Abruptly closed"));
                 }
-                connections.clear();
             });
         }
 
-        @Override
-        public void connect(final Connection callback) {
-            proxyExecutor.execute(() -> {
-                if (innerConnection.connection != null) {
-                    throw new IllegalStateException("connect() cannot be called twice");
-                }
-
-                if (proxyConnector == null) {
-                    proxyConnector = proxyConnectorFactory.create(ninioProvider);
-                    proxyConnector.connect(new Connection() {
-                        @Override
-                        public void connected(Address address) {
-                        }
-
-                        @Override
-                        public void closed() {
-                            proxyExecutor.execute(() -> {
-                                for (InnerConnection c : connections.values()) {
-                                    c.connection.failed(new IOException("Abruptly closed"));
-                                }
-                                connections.clear();
+        private void markFailed() {
+            long now = System.nanoTime();
+            failedAt = (now == 0L) ? 1L : now;
+            load.addAndGet(-connections.size());
+        }
 
-                                proxyConnector = null;
-                            });
-                        }
+        private final class InnerConnector implements Connecter {
+            private final ProxyHeader header;
+            private final Address connectAddress;
+            private final InnerConnection innerConnection;
+            private final RequestTracker inTracker;
+            private final RequestTracker outTracker;
 
-                        @Override
-                        public void failed(final IOException e) {
-                            proxyExecutor.execute(() -> {
-                                for (InnerConnection c : connections.values()) {
-                                    c.connection.failed(e);
-                                }
-                                connections.clear();
+            public InnerConnector(ProxyHeader header, final Address connectAddress) {
+                this.header = header;
+                this.connectAddress = connectAddress;
 
-                                proxyConnector = null;
-                            });
-                        }
+                innerConnection = new InnerConnection();
+                inTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().proxyClientIn());
+                outTracker = RequestTrackerManager.instance().getTracker(NinioMetrics.get().proxyClientOut());
 
-                        private ByteBuffer readByteBuffer;
+                load.incrementAndGet();
+                proxyExecutor.execute(() -> {
+                    innerConnection.connectionId = nextConnectionId;
+                    nextConnectionId++;
 
-                        private int readConnectionId = -1;
-                        private int command = -1;
+                    connections.put(innerConnection.connectionId, innerConnection);
+                });
+            }
 
-                        private int readIpLength = -1;
-                        private byte[] readIp = null;
-                        private int readPort = -1;
-                        private int readLength = -1;
+            private void doClose() {
+                proxyExecutor.execute(() -> {
+                    if (proxyConnector != null) {
+                        proxyConnector.close();
+                        proxyConnector = null;
+                    }
+                    v2 = false;
+                    markFailed();
+                    IOException ioe = new IOException("Abruptly closed");
+                    for (InnerConnection c : connections.values()) {
+                        c.window.failAll(ioe);
+                        c.connection.failed(ioe);
+                    }
+                    connections.clear();
+                });
+            }
 
-                        private int readByte(int old, ByteBuffer receivedBuffer) {
-                            if (old >= 0) {
-                                return old;
-                            }
-                            if (!receivedBuffer.hasRemaining()) {
-                                return -1;
-                            }
-                            return receivedBuffer.get() & 0xFF;
-                        }
+            @Override
+            public void connect(final Connection callback) {
+                proxyExecutor.execute(() -> {
+                    if (innerConnection.connection != null) {
+                        throw new IllegalStateException("connect() cannot be called twice");
+                    }
 
-                        private byte[] readBytes(ByteBuffer receivedBuffer, int len) {
-                            if (readByteBuffer == null) {
-                                readByteBuffer = ByteBuffer.allocate(len);
+                    if (proxyConnector == null) {
+                        proxyConnector = proxyConnectorFactory.create(ninioProvider);
+                        proxyConnector.connect(new Connection() {
+                            @Override
+                            public void connected(Address address) {
+                                failedAt = 0L;
                             }
-                            int l = len - readByteBuffer.position();
-                            if (l > receivedBuffer.remaining()) {
-                                l = receivedBuffer.remaining();
-                            }
-                            System.arraycopy(receivedBuffer.array(), receivedBuffer.arrayOffset() + receivedBuffer.position(), readByteBuffer.array(), readByteBuffer.arrayOffset() + readByteBuffer.position(), l);
-                            receivedBuffer.position(receivedBuffer.position() + l);
-                            readByteBuffer.position(readByteBuffer.position() + l);
-                            if (readByteBuffer.position() == readByteBuffer.capacity()) {
-                                byte[] b = readByteBuffer.array();
-                                readByteBuffer = null;
-                                return b;
-                            }
-                            return null;
-                        }
 
-                        private int readInt(int old, ByteBuffer receivedBuffer) {
-                            if (old >= 0) {
-                                return old;
-                            }
-                            byte[] r = readBytes(receivedBuffer, Ints.BYTES);
-                            if (r == null) {
-                                return -1;
-                            }
-                            return ByteBuffer.wrap(r).getInt();
-                        }
+                            @Override
+                            public void closed() {
+                                proxyExecutor.execute(() -> {
+                                    markFailed();
+                                    IOException ioe = new IOException("Abruptly closed");
+                                    for (InnerConnection c : connections.values()) {
+                                        c.window.failAll(ioe);
+                                        c.connection.failed(ioe);
+                                    }
+                                    connections.clear();
 
-                        private byte[] readBytes(byte[] old, ByteBuffer receivedBuffer, int len) {
-                            if (old != null) {
-                                return old;
+                                    proxyConnector = null;
+                                    v2 = false;
+                                });
                             }
-                            return readBytes(receivedBuffer, len);
-                        }
 
-                        @Override
-                        public void received(Address receivedAddress, final ByteBuffer receivedBuffer) {
-                            proxyExecutor.execute(() -> {
-                                while (true) {
-                                    command = readByte(command, receivedBuffer);
-                                    if (command < 0) {
-                                        return;
+                            @Override
+                            public void failed(final IOException e) {
+                                proxyExecutor.execute(() -> {
+                                    markFailed();
+                                    for (InnerConnection c : connections.values()) {
+                                        c.window.failAll(e);
+                                        c.connection.failed(e);
                                     }
+                                    connections.clear();
 
-                                    readConnectionId = readInt(readConnectionId, receivedBuffer);
-                                    if (readConnectionId < 0) {
-                                        return;
-                                    }
+                                    proxyConnector = null;
+                                    v2 = false;
+                                });
+                            }
 
-                                    switch (command) {
-                                        case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
-                                            readIpLength = readInt(readIpLength, receivedBuffer);
-                                            if (readIpLength < 0) {
-                                                return;
-                                            }
-                                            readIp = readBytes(readIp, receivedBuffer, readIpLength);
-                                            if (readIp == null) {
-                                                return;
-                                            }
-                                            readPort = readInt(readPort, receivedBuffer);
-                                            if (readPort < 0) {
-                                                return;
-                                            }
-                                            readLength = readInt(readLength, receivedBuffer);
-                                            if (readLength < 0) {
-                                                return;
-                                            }
-                                            // LOGGER.debug("SEND_WITH_ADDRESS {}:{} [{} bytes]", Address.ipToString(readIp), readPort, readLength);
-                                            byte[] r = readBytes(receivedBuffer, readLength);
-                                            if (r == null) {
-                                                return;
-                                            }
-                                            InnerConnection receivedInnerConnection = connections.get(readConnectionId);
-                                            if (receivedInnerConnection != null) {
-                                                inTracker.track(Address.ipToString(readIp), addr ->
-                                                        String.format("Received from %s via Proxy", addr));
-                                                receivedInnerConnection.connection.received(new Address(readIp, readPort), ByteBuffer.wrap(r));
-                                            }
-                                            readConnectionId = -1;
-                                            command = -1;
-                                            readIpLength = -1;
-                                            readIp = null;
-                                            readPort = -1;
-                                            readLength = -1;
-                                            break;
+                            private final ProxyFrames.Reader reader = new ProxyFrames.Reader(); // v1, then v2 once the server switched
+
+                            private final ProxyFrames.Handler handler = new ProxyFrames.Handler() {
+                                @Override
+                                public void data(int connectionId, Address address, ByteBuffer payload) {
+                                    // LOGGER.debug("SEND_WITH(OUT)_ADDRESS {} [{} bytes]", address, payload.remaining());
+                                    InnerConnection receivedInnerConnection = connections.get(connectionId);
+                                    if (receivedInnerConnection != null) {
+                                        int length = payload.remaining();
+                                        if (address != null) {
+                                            inTracker.track(Address.ipToString(address.ip), addr ->
+                                                    String.format("Received from %s via Proxy", addr));
                                         }
-                                        case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS: {
-                                            readLength = readInt(readLength, receivedBuffer);
-                                            if (readLength < 0) {
-                                                return;
+                                        receivedInnerConnection.connection.received(address, payload);
+                                        if (reader.isV2()) {
+                                            int credit = receivedInnerConnection.window.consumed(length);
+                                            if ((credit > 0) && (proxyConnector != null)) {
+                                                proxyConnector.send(null, ProxyFrames.window(connectionId, credit), linkSendCallback);
                                             }
-                                            // LOGGER.debug("SEND_WITHOUT_ADDRESS [{} bytes]", readLength);
-                                            byte[] r = readBytes(receivedBuffer, readLength);
-                                            if (r == null) {
-                                                return;
-                                            }
-                                            InnerConnection receivedInnerConnection = connections.get(readConnectionId);
-                                            if (receivedInnerConnection != null) {
-                                                receivedInnerConnection.connection.received(null, ByteBuffer.wrap(r));
-                                            }
-                                            readConnectionId = -1;
-                                            command = -1;
-                                            readLength = -1;
-                                            break;
-                                        }
-                                        case ProxyCommons.Commands.CLOSE: {
-                                            InnerConnection receivedInnerConnection = connections.remove(readConnectionId);
-                                            readConnectionId = -1;
-                                            command = -1;
-                                            if (receivedInnerConnection != null) {
-                                                receivedInnerConnection.connection.closed();
-                                            }
-                                            break;
                                         }
                                     }
                                 }
-                            });
-                        }
-                    });
-                }
-
-                innerConnection.connection = callback;
-
-                byte[] headerAsBytes = header.toString().getBytes(Charsets.UTF_8);
-
-                SendCallback sendCallback = new SendCallback() {
-                    @Override
-                    public void failed(IOException e) {
-                        LOGGER.error("error: " + e);
-                        doClose();
-                    }
 
-                    @Override
-                    public void sent() {
-                    }
-                };
-
-                if (connectAddress == null) {
-                    ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
-                    b.put((byte) ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS);
-                    b.putInt(innerConnection.connectionId);
-                    b.putInt(headerAsBytes.length);
-                    b.put(headerAsBytes);
-                    b.flip();
-                    proxyConnector.send(null, b, sendCallback);
-                } else {
-                    ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + connectAddress.ip.length + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
-                    b.put((byte) ProxyCommons.Commands.CONNECT_WITH_ADDRESS);
-                    b.putInt(innerConnection.connectionId);
-                    b.putInt(connectAddress.ip.length);
-                    b.put(connectAddress.ip);
-                    b.putInt(connectAddress.port);
-                    b.putInt(headerAsBytes.length);
-                    b.put(headerAsBytes);
-                    b.flip();
-                    proxyConnector.send(null, b, sendCallback);
-                }
-
-                callback.connected(null);
-            });
-        }
+                                @Override
+                                public void connect(int connectionId, Address address, ProxyHeader header) {
+                                    LOGGER.warn("Unexpected connect from the proxy server: {}", header);
+                                }
 
-        @Override
-        public void send(final Address sendAddress, final ByteBuffer sendBuffer, final SendCallback callback) {
-            proxyExecutor.execute(() -> {
-                if (innerConnection.connection == null) {
-                    throw new IllegalStateException("send() must be called after connect()");
-                }
+                                @Override
+                                public void connect(int connectionId, Address address, String header) {
+                                    LOGGER.warn("Unexpected connect from the proxy server: {}", header);
+                                }
 
-                if (proxyConnector == null) {
-                    callback.failed(new IOException("Connection lost"));
-                    return;
-                }
+                                @Override
+                                public void close(int connectionId) {
+                                    if (!reader.isV2() && (connectionId == (ProxyCommons.Negotiation.HELLO | ProxyCommons.Negotiation.V2))) {
+                                        // The server speaks v2 from now on, so do we
+                                        reader.v2();
+                                        if (proxyConnector != null) {
+                                            proxyConnector.send(null, ProxyFrames.v1Close(ProxyCommons.Negotiation.SWITCH | ProxyCommons.Negotiation.V2), linkSendCallback);
+                                            v2 = true;
+                                        }
+                                        return;
+                                    }
+                                    InnerConnection receivedInnerConnection = connections.remove(connectionId);
+                                    if (receivedInnerConnection != null) {
+                                        load.decrementAndGet();
+                                        receivedInnerConnection.window.failAll(new IOException("Closed by peer"));
+                                        receivedInnerConnection.connection.closed();
+                                    }
+                                }
 
-                if (sendAddress == null) {
-                    // LOGGER.debug("-->SEND_WITHOUT_ADDRESS [{} bytes]", sendBuffer.remaining());
-                    ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
-                    b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
-                    b.putInt(innerConnection.connectionId);
-                    b.putInt(sendBuffer.remaining());
-                    b.put(sendBuffer);
-                    b.flip();
-                    proxyConnector.send(null, b, callback);
-                } else {
-                    outTracker.track(Address.ipToString(sendAddress.ip), addr ->
-                            String.format("Sending to %s via Proxy ", addr));
-                    // LOGGER.debug("-->SEND_WITH_ADDRESS {} [{} bytes]", sendAddress, sendBuffer.remaining());
-                    ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendAddress.ip.length + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
-                    b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
-                    b.putInt(innerConnection.connectionId);
-                    b.putInt(sendAddress.ip.length); //TODO Reduce to short?
-                    b.put(sendAddress.ip);
-                    b.putInt(sendAddress.port);
-                    b.putInt(sendBuffer.remaining());
-                    b.put(sendBuffer);
-                    b.flip();
-                    proxyConnector.send(null, b, callback);
-                }
-            });
-        }
+                                @Override
+                                public void window(int connectionId, int credit) {
+                                    InnerConnection receivedInnerConnection = connections.get(connectionId);
+                                    if ((receivedInnerConnection != null) && (proxyConnector != null)) {
+                                        receivedInnerConnection.window.granted(credit, linkSender);
+                                    }
+                                }
+                            };
+
+                            @Override
+                            public void received(Address receivedAddress, final ByteBuffer receivedBuffer) {
+                                proxyExecutor.execute(() -> {
+                                    try {
+                                        reader.read(receivedBuffer, handler);
+                                    } catch (IOException e) {
+                                        LOGGER.error("Invalid frame", e);
+                                        if (proxyConnector != null) {
+                                            proxyConnector.close();
+                                        }
+                                    }
+                                });
+                            }
+                        });
 
-        @Override
-        public void close() {
-            proxyExecutor.execute(() -> {
-                connections.remove(innerConnection.connectionId);
+                        if (ProxyCommons.Protocol.VERSION >= ProxyCommons.Negotiation.V2) {
+                            proxyConnector.send(null, ProxyFrames.v1Close(ProxyCommons.Negotiation.HELLO | ProxyCommons.Negotiation.V2), linkSendCallback);
+                        }
+                    }
 
-                if (proxyConnector != null) {
-                    ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES);
-                    b.put((byte) ProxyCommons.Commands.CLOSE);
-                    b.putInt(innerConnection.connectionId);
-                    b.flip();
+                    innerConnection.connection = callback;
 
                     SendCallback sendCallback = new SendCallback() {
                         @Override
                         public void failed(IOException e) {
+                            LOGGER.error("error: " + e);
                             doClose();
                         }
 
@@ -521,11 +528,124 @@ public final class ProxyClient implements ProxyProvider {
                         }
                     };
 
-                    proxyConnector.send(null, b, sendCallback);
-                }
+                    if (v2) {
+                        proxyConnector.send(null, ProxyFrames.connect(innerConnection.connectionId, connectAddress, header), sendCallback);
+                    } else if (connectAddress == null) {
+                        byte[] headerAsBytes = header.toString().getBytes(Charsets.UTF_8);
+                        ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
+                        b.put((byte) ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS);
+                        b.putInt(innerConnection.connectionId);
+                        b.putInt(headerAsBytes.length);
+                        b.put(headerAsBytes);
+                        b.flip();
+                        proxyConnector.send(null, b, sendCallback);
+                    } else {
+                        byte[] headerAsBytes = header.toString().getBytes(Charsets.UTF_8);
+                        ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + connectAddress.ip.length + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
+                        b.put((byte) ProxyCommons.Commands.CONNECT_WITH_ADDRESS);
+                        b.putInt(innerConnection.connectionId);
+                        b.putInt(connectAddress.ip.length);
+                        b.put(connectAddress.ip);
+                        b.putInt(connectAddress.port);
+                        b.putInt(headerAsBytes.length);
+                        b.put(headerAsBytes);
+                        b.flip();
+                        proxyConnector.send(null, b, sendCallback);
+                    }
 
-                innerConnection.connection.closed();
-            });
+                    callback.connected(null);
+                });
+            }
+
+            @Override
+            public void send(final Address sendAddress, final ByteBuffer sendBuffer, final SendCallback callback) {
+                proxyExecutor.execute(() -> {
+                    if (innerConnection.connection == null) {
+                        throw new IllegalStateException("send() must be called after connect()");
+                    }
+
+                    if (proxyConnector == null) {
+                        callback.failed(new IOException("Connection lost"));
+                        return;
+                    }
+
+                    if (v2) {
+                        if (sendAddress != null) {
+                            outTracker.track(Address.ipToString(sendAddress.ip), addr ->
+                                    String.format("Sending to %s via Proxy ", addr));
+                        }
+                        ByteBuffer b = ProxyFrames.withHeadroom(sendBuffer);
+                        int length = b.remaining();
+                        ProxyFrames.data(b, innerConnection.connectionId, sendAddress);
+                        if (!innerConnection.window.send(b, length, callback, linkSender)) {
+                            // The server does not keep up, the stream is closed rather than queued without bound
+                            IOException ioe = new IOException("Window overflow");
+                            callback.failed(ioe);
+                            if (connections.remove(innerConnection.connectionId) != null) {
+                                load.decrementAndGet();
+                                innerConnection.window.failAll(ioe);
+                                proxyConnector.send(null, ProxyFrames.close(innerConnection.connectionId), linkSendCallback);
+                                innerConnection.connection.failed(ioe);
+                            }
+                        }
+                    } else if (sendAddress == null) {
+                        // LOGGER.debug("-->SEND_WITHOUT_ADDRESS [{} bytes]", sendBuffer.remaining());
+                        ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
+                        b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
+                        b.putInt(innerConnection.connectionId);
+                        b.putInt(sendBuffer.remaining());
+                        b.put(sendBuffer);
+                        b.flip();
+                        proxyConnector.send(null, b, callback);
+                    } else {
+                        outTracker.track(Address.ipToString(sendAddress.ip), addr ->
+                                String.format("Sending to %s via Proxy ", addr));
+                        // LOGGER.debug("-->SEND_WITH_ADDRESS {} [{} bytes]", sendAddress, sendBuffer.remaining());
+                        ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendAddress.ip.length + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
+                        b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
+                        b.putInt(innerConnection.connectionId);
+                        b.putInt(sendAddress.ip.length); //TODO Reduce to short?
+                        b.put(sendAddress.ip);
+                        b.putInt(sendAddress.port);
+                        b.putInt(sendBuffer.remaining());
+                        b.put(sendBuffer);
+                        b.flip();
+                        proxyConnector.send(null, b, callback);
+                    }
+                });
+            }
+
+            @Override
+            public void close() {
+                proxyExecutor.execute(() -> {
+                    if (connections.remove(innerConnection.connectionId) != null) {
+                        load.decrementAndGet();
+                    }
+
+                    if (proxyConnector != null) {
+                        SendCallback sendCallback = new SendCallback() {
+                            @Override
+                            public void failed(IOException e) {
+                                doClose();
+                            }
+
+                            @Override
+                            public void sent() {
+                            }
+                        };
+
+                        if (v2) {
+                            innerConnection.window.close(ProxyFrames.close(innerConnection.connectionId), sendCallback, linkSender);
+                        } else {
+                            proxyConnector.send(null, ProxyFrames.v1Close(innerConnection.connectionId), sendCallback);
+                        }
+                    } else {
+                        innerConnection.window.failAll(new IOException("Connection lost"));
+                    }
+
+                    innerConnection.connection.closed();
+                });
+            }
         }
     }
 }
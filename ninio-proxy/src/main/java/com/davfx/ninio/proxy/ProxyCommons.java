@@ -13,6 +13,41 @@ interface ProxyCommons {
 		int CONNECT_WITHOUT_ADDRESS = 4;
 	}
 	
+	/**
+	 * Protocol version negotiation, hidden in v1 CLOSE frames with reserved connection IDs (ignored by older peers):
+	 * the client sends CLOSE(HELLO | version), a server speaking this version answers CLOSE(HELLO | version) and writes new frames from then on,
+	 * the client then reads new frames and sends CLOSE(SWITCH | version) before writing new frames too.
+	 * Nothing waits for the negotiation: v1 frames are used until it is done.
+	 */
+	interface Negotiation {
+		int MASK = 0xFFFFFF00;
+		int HELLO = 0x7FFFFF00;
+		int SWITCH = 0x7FFFFE00;
+		int V2 = 2;
+	}
+	
+	/**
+	 * v2 frames: varint length of the rest, type byte, varint stream ID, then depending on the type (see ProxyFrames)
+	 */
+	interface FrameTypes {
+		int DATA = 0;
+		int DATA_WITH_ADDRESS = 1;
+		int CLOSE = 2;
+		int CONNECT = 3;
+		int WINDOW = 4;
+	}
+	
+	final class Protocol {
+		
+		private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(ProxyCommons.class.getPackage().getName());
+		
+		public static final int VERSION = CONFIG.getInt("protocol.version");
+		public static final int WINDOW = CONFIG.getBytes("protocol.window").intValue();
+		
+		private Protocol() {
+		}
+	}
+	
 	final class Types {
 		
 		private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(ProxyCommons.class.getPackage().getName());
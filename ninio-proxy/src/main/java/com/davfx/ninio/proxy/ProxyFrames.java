@@ -0,0 +1,419 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.davfx.ninio.core.Address;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+
+/**
+ * Proxy frames writing and reading (v1 and v2).
+ * v2 frame bodies, after the type and stream ID:
+ * DATA: payload
+ * DATA_WITH_ADDRESS: IP length byte, IP, varint port, payload
+ * CLOSE: nothing
+ * CONNECT: IP length byte (0 if no address), IP, varint port, header (see ProxyHeader)
+ * WINDOW: varint credit (bytes)
+ */
+final class ProxyFrames {
+
+	private static final int MAX_VARINT_SIZE = 5;
+	private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Biggest v1 or v2 header (before the payload)
+	 */
+	private static final int MAX_HEADER_SIZE = 1 + Ints.BYTES + Ints.BYTES + 16 + Ints.BYTES + Ints.BYTES;
+
+	private ProxyFrames() {
+	}
+
+	//
+
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static void putVarint(ByteBuffer b, int value) {
+		while ((value & ~0x7F) != 0) {
+			b.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	public static int getVarint(ByteBuffer b) throws IOException {
+		int value = 0;
+		for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+			int k;
+			try {
+				k = b.get() & 0xFF;
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated varint");
+			}
+			value |= (k & 0x7F) << (i * 7);
+			if ((k & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	// Total size (varint included) of the frame starting at position, -1 if the varint is not complete
+	private static int frameSize(ByteBuffer b, int position, int limit) throws IOException {
+		int value = 0;
+		for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+			if ((position + i) >= limit) {
+				return -1;
+			}
+			int k = b.get(position + i) & 0xFF;
+			value |= (k & 0x7F) << (i * 7);
+			if ((k & 0x80) == 0) {
+				if ((value < 0) || (value > MAX_FRAME_SIZE)) {
+					throw new IOException("Frame too big: " + (value & 0xFFFFFFFFL));
+				}
+				return i + 1 + value;
+			}
+		}
+		throw new IOException("Invalid frame length");
+	}
+
+	private static int networkInt(ByteBuffer b, int position) {
+		return ((b.get(position) & 0xFF) << 24) | ((b.get(position + 1) & 0xFF) << 16) | ((b.get(position + 2) & 0xFF) << 8) | (b.get(position + 3) & 0xFF);
+	}
+
+	private static int checkedLength(int length) throws IOException {
+		if ((length < 0) || (length > MAX_FRAME_SIZE)) {
+			throw new IOException("Frame too big: " + (length & 0xFFFFFFFFL));
+		}
+		return length;
+	}
+
+	private static int checkedIpLength(int ipLength) throws IOException {
+		if ((ipLength != 4) && (ipLength != 16)) {
+			throw new IOException("Invalid IP length: " + ipLength);
+		}
+		return ipLength;
+	}
+
+	// Total size of the v1 frame starting at position, -1 if the header is not complete
+	private static int v1FrameSize(ByteBuffer b, int position, int limit) throws IOException {
+		if ((position + 1 + Ints.BYTES) > limit) {
+			return -1;
+		}
+		int command = b.get(position) & 0xFF;
+		int p = position + 1 + Ints.BYTES;
+		switch (command) {
+		case ProxyCommons.Commands.CLOSE:
+			return p - position;
+		case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS:
+		case ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS:
+			break;
+		case ProxyCommons.Commands.SEND_WITH_ADDRESS:
+		case ProxyCommons.Commands.CONNECT_WITH_ADDRESS:
+			if ((p + Ints.BYTES) > limit) {
+				return -1;
+			}
+			p += Ints.BYTES + checkedIpLength(networkInt(b, p)) + Ints.BYTES;
+			break;
+		default:
+			throw new IOException("Unknown command: " + command);
+		}
+		if ((p + Ints.BYTES) > limit) {
+			return -1;
+		}
+		return p + Ints.BYTES + checkedLength(networkInt(b, p)) - position;
+	}
+
+	//
+
+	/**
+	 * Copies the payload after some free room, to prepend the header later on (see v1Data and data)
+	 */
+	public static ByteBuffer withHeadroom(ByteBuffer payload) {
+		ByteBuffer b = ByteBuffer.allocate(MAX_HEADER_SIZE + payload.remaining());
+		b.position(MAX_HEADER_SIZE);
+		b.put(payload);
+		b.position(MAX_HEADER_SIZE);
+		return b;
+	}
+
+	public static void v1Data(ByteBuffer b, int connectionId, Address address) {
+		int length = b.remaining();
+		int headerSize = 1 + Ints.BYTES + ((address == null) ? 0 : (Ints.BYTES + address.ip.length + Ints.BYTES)) + Ints.BYTES;
+		int start = b.position() - headerSize;
+		b.position(start);
+		if (address == null) {
+			b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
+			b.putInt(connectionId);
+		} else {
+			b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
+			b.putInt(connectionId);
+			b.putInt(address.ip.length);
+			b.put(address.ip);
+			b.putInt(address.port);
+		}
+		b.putInt(length);
+		b.position(start);
+	}
+
+	public static ByteBuffer v1Close(int connectionId) {
+		ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES);
+		b.put((byte) ProxyCommons.Commands.CLOSE);
+		b.putInt(connectionId);
+		b.flip();
+		return b;
+	}
+
+	//
+
+	public static void data(ByteBuffer b, int streamId, Address address) {
+		int bodySize = 1 + varintSize(streamId) + ((address == null) ? 0 : (1 + address.ip.length + varintSize(address.port))) + b.remaining();
+		int start = b.position() - varintSize(bodySize) - (bodySize - b.remaining());
+		b.position(start);
+		putVarint(b, bodySize);
+		if (address == null) {
+			b.put((byte) ProxyCommons.FrameTypes.DATA);
+			putVarint(b, streamId);
+		} else {
+			b.put((byte) ProxyCommons.FrameTypes.DATA_WITH_ADDRESS);
+			putVarint(b, streamId);
+			b.put((byte) address.ip.length);
+			b.put(address.ip);
+			putVarint(b, address.port);
+		}
+		b.position(start);
+	}
+
+	private static ByteBuffer frame(int type, int streamId, int size) {
+		int bodySize = 1 + varintSize(streamId) + size;
+		ByteBuffer b = ByteBuffer.allocate(varintSize(bodySize) + bodySize);
+		putVarint(b, bodySize);
+		b.put((byte) type);
+		putVarint(b, streamId);
+		return b;
+	}
+
+	public static ByteBuffer close(int streamId) {
+		ByteBuffer b = frame(ProxyCommons.FrameTypes.CLOSE, streamId, 0);
+		b.flip();
+		return b;
+	}
+
+	public static ByteBuffer window(int streamId, int credit) {
+		ByteBuffer b = frame(ProxyCommons.FrameTypes.WINDOW, streamId, varintSize(credit));
+		putVarint(b, credit);
+		b.flip();
+		return b;
+	}
+
+	public static ByteBuffer connect(int streamId, Address address, ProxyHeader header) {
+		byte[] h = header.toBytes();
+		ByteBuffer b = frame(ProxyCommons.FrameTypes.CONNECT, streamId, 1 + ((address == null) ? 0 : (address.ip.length + varintSize(address.port))) + h.length);
+		if (address == null) {
+			b.put((byte) 0);
+		} else {
+			b.put((byte) address.ip.length);
+			b.put(address.ip);
+			putVarint(b, address.port);
+		}
+		b.put(h);
+		b.flip();
+		return b;
+	}
+
+	//
+
+	public interface Handler {
+		/**
+		 * The payload shares the content of the received buffers
+		 */
+		void data(int streamId, Address address, ByteBuffer payload);
+		void connect(int streamId, Address address, ProxyHeader header);
+		/**
+		 * v1 header, as a string
+		 */
+		void connect(int streamId, Address address, String header);
+		void close(int streamId);
+		void window(int streamId, int credit);
+	}
+
+	/**
+	 * Frames are parsed where they lie in the received buffers (which must not be reused by the caller), only those spanning several buffers are copied.
+	 * Starts with v1 frames, the handler calls v2() once negotiated (it applies to the following frames, even in the same buffer).
+	 */
+	public static final class Reader {
+		private boolean v2 = false;
+		private ByteBuffer partial = null;
+
+		public Reader() {
+		}
+
+		public void v2() {
+			v2 = true;
+		}
+
+		public boolean isV2() {
+			return v2;
+		}
+
+		private int frameSize(ByteBuffer b, int position, int limit) throws IOException {
+			return v2 ? ProxyFrames.frameSize(b, position, limit) : v1FrameSize(b, position, limit);
+		}
+
+		public void read(ByteBuffer received, Handler handler) throws IOException {
+			if (partial != null) {
+				if (!fill(received)) {
+					return;
+				}
+				ByteBuffer f = partial;
+				partial = null;
+				f.flip();
+				frame(f, handler);
+			}
+
+			while (received.hasRemaining()) {
+				int p = received.position();
+				int size = frameSize(received, p, received.limit());
+				if ((size < 0) || (received.remaining() < size)) {
+					partial = ByteBuffer.allocate((size < 0) ? MAX_HEADER_SIZE : size);
+					partial.put(received);
+					return;
+				}
+				ByteBuffer f = received.duplicate(); // Big endian
+				f.limit(p + size);
+				received.position(p + size);
+				frame(f, handler);
+			}
+		}
+
+		// Returns true when the partial frame is complete
+		private boolean fill(ByteBuffer received) throws IOException {
+			int size;
+			while (true) {
+				size = frameSize(partial, 0, partial.position());
+				if (size >= 0) {
+					break;
+				}
+				if (!received.hasRemaining()) {
+					return false;
+				}
+				partial.put(received.get());
+			}
+			if (partial.capacity() < size) {
+				ByteBuffer b = ByteBuffer.allocate(size);
+				partial.flip();
+				b.put(partial);
+				partial = b;
+			}
+			int n = Math.min(size - partial.position(), received.remaining());
+			ByteBuffer d = received.duplicate();
+			d.limit(d.position() + n);
+			partial.put(d);
+			received.position(received.position() + n);
+			return partial.position() == size;
+		}
+
+		private void frame(ByteBuffer f, Handler handler) throws IOException {
+			try {
+				if (v2) {
+					v2Frame(f, handler);
+				} else {
+					v1Frame(f, handler);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated frame");
+			}
+		}
+
+		private static void v1Frame(ByteBuffer f, Handler handler) throws IOException {
+			int command = f.get() & 0xFF;
+			int connectionId = f.getInt();
+			switch (command) {
+			case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
+				Address address = v1Address(f);
+				f.getInt(); // Length, already known
+				handler.data(connectionId, address, f);
+				break;
+			}
+			case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS:
+				f.getInt();
+				handler.data(connectionId, null, f);
+				break;
+			case ProxyCommons.Commands.CLOSE:
+				handler.close(connectionId);
+				break;
+			case ProxyCommons.Commands.CONNECT_WITH_ADDRESS: {
+				Address address = v1Address(f);
+				f.getInt();
+				handler.connect(connectionId, address, v1String(f));
+				break;
+			}
+			case ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS:
+				f.getInt();
+				handler.connect(connectionId, null, v1String(f));
+				break;
+			default:
+				throw new IOException("Unknown command: " + command);
+			}
+		}
+
+		private static Address v1Address(ByteBuffer f) {
+			byte[] ip = new byte[f.getInt()];
+			f.get(ip);
+			return new Address(ip, f.getInt());
+		}
+
+		private static String v1String(ByteBuffer f) {
+			byte[] b = new byte[f.remaining()];
+			f.get(b);
+			return new String(b, Charsets.UTF_8);
+		}
+
+		private static void v2Frame(ByteBuffer f, Handler handler) throws IOException {
+			getVarint(f); // Length, already known
+			int type = f.get() & 0xFF;
+			int streamId = getVarint(f);
+			switch (type) {
+			case ProxyCommons.FrameTypes.DATA:
+				handler.data(streamId, null, f);
+				break;
+			case ProxyCommons.FrameTypes.DATA_WITH_ADDRESS: {
+				Address address = address(f);
+				handler.data(streamId, address, f);
+				break;
+			}
+			case ProxyCommons.FrameTypes.CLOSE:
+				handler.close(streamId);
+				break;
+			case ProxyCommons.FrameTypes.CONNECT: {
+				Address address = address(f);
+				handler.connect(streamId, address, ProxyHeader.of(f));
+				break;
+			}
+			case ProxyCommons.FrameTypes.WINDOW:
+				handler.window(streamId, getVarint(f));
+				break;
+			default:
+				throw new IOException("Unknown frame type: " + type);
+			}
+		}
+
+		private static Address address(ByteBuffer f) throws IOException {
+			int ipLength = f.get() & 0xFF;
+			if (ipLength == 0) {
+				return null;
+			}
+			byte[] ip = new byte[ipLength];
+			f.get(ip);
+			return new Address(ip, getVarint(f));
+		}
+	}
+}
@@ -1,13 +1,21 @@
 package com.davfx.ninio.proxy;
 
 import com.davfx.ninio.util.StringUtils;
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
 public final class ProxyHeader {
+	// Binary form (v2 protocol): well-known strings are coded by their index + 1, others follow a 0 (varint length and UTF-8 bytes)
+	private static final ImmutableList<String> KNOWN_TYPES = ImmutableList.of(ProxyCommons.Types.TCP, ProxyCommons.Types.SSL, ProxyCommons.Types.UDP, ProxyCommons.Types.TCPDUMP, ProxyCommons.Types.RAW, ProxyCommons.Types.WEBSOCKET, ProxyCommons.Types.HTTP);
+	private static final ImmutableList<String> KNOWN_KEYS = ImmutableList.of("recipientId", "family", "protocol", "datagram");
+
 	public final String type;
 	public final ImmutableMap<String, String> parameters;
 
@@ -55,4 +63,90 @@ public final class ProxyHeader {
 		}
 		return new ProxyHeader(type, p.build());
 	}
+
+	private static int knownSize(byte[] s) {
+		return (s == null) ? 1 : (1 + ProxyFrames.varintSize(s.length) + s.length);
+	}
+
+	private static byte[] unknown(List<String> known, String s) {
+		return known.contains(s) ? null : s.getBytes(Charsets.UTF_8);
+	}
+
+	private static void putKnown(ByteBuffer b, List<String> known, String s, byte[] bytes) {
+		if (bytes == null) {
+			b.put((byte) (known.indexOf(s) + 1));
+		} else {
+			b.put((byte) 0);
+			ProxyFrames.putVarint(b, bytes.length);
+			b.put(bytes);
+		}
+	}
+
+	private static String getKnown(ByteBuffer b, List<String> known) throws IOException {
+		int k = b.get() & 0xFF;
+		if (k == 0) {
+			return getString(b);
+		}
+		if (k > known.size()) {
+			throw new IOException("Unknown header code: " + k);
+		}
+		return known.get(k - 1);
+	}
+
+	private static String getString(ByteBuffer b) throws IOException {
+		int length = ProxyFrames.getVarint(b);
+		if ((length < 0) || (length > b.remaining())) {
+			throw new IOException("Invalid header string length: " + length);
+		}
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * Binary form: type, varint parameter count, then keys and values (values as varint length and UTF-8 bytes)
+	 */
+	byte[] toBytes() {
+		byte[] t = unknown(KNOWN_TYPES, type);
+		int size = knownSize(t) + ProxyFrames.varintSize(parameters.size());
+		byte[][] keys = new byte[parameters.size()][];
+		byte[][] values = new byte[parameters.size()][];
+		int i = 0;
+		for (Map.Entry<String, String> e : parameters.entrySet()) {
+			keys[i] = unknown(KNOWN_KEYS, e.getKey());
+			values[i] = e.getValue().getBytes(Charsets.UTF_8);
+			size += knownSize(keys[i]) + ProxyFrames.varintSize(values[i].length) + values[i].length;
+			i++;
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(size);
+		putKnown(b, KNOWN_TYPES, type, t);
+		ProxyFrames.putVarint(b, parameters.size());
+		i = 0;
+		for (Map.Entry<String, String> e : parameters.entrySet()) {
+			putKnown(b, KNOWN_KEYS, e.getKey(), keys[i]);
+			ProxyFrames.putVarint(b, values[i].length);
+			b.put(values[i]);
+			i++;
+		}
+		return b.array();
+	}
+
+	/**
+	 * Reads the binary form
+	 */
+	static ProxyHeader of(ByteBuffer b) throws IOException {
+		String type = getKnown(b, KNOWN_TYPES);
+		int n = ProxyFrames.getVarint(b);
+		ImmutableMap.Builder<String, String> p = ImmutableMap.builder();
+		for (int i = 0; i < n; i++) {
+			String key = getKnown(b, KNOWN_KEYS);
+			p.put(key, getString(b));
+		}
+		try {
+			return new ProxyHeader(type, p.build());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Duplicate header key", e);
+		}
+	}
 }
@@ -9,4 +9,11 @@ import com.davfx.ninio.core.NinioBuilder;
 
 public interface ProxyListening extends Closing, Failing, Connecting {
 	NinioBuilder<Connecter> create(Address address, String header);
+	
+	/**
+	 * Called with the already parsed header of v2 clients
+	 */
+	default NinioBuilder<Connecter> create(Address address, ProxyHeader header) {
+		return create(address, header.toString());
+	}
 }
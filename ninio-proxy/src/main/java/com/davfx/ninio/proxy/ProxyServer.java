@@ -1,8 +1,6 @@
 package com.davfx.ninio.proxy;
 
 import com.davfx.ninio.core.*;
-import com.google.common.base.Charsets;
-import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,19 +67,23 @@ public final class ProxyServer implements Listening {
 
                     @Override
                     public NinioBuilder<Connecter> create(Address address, String header) {
-                        ProxyHeader h = ProxyHeader.of(header);
+                        return create(address, ProxyHeader.of(header));
+                    }
 
+                    @Override
+                    public NinioBuilder<Connecter> create(Address address, ProxyHeader h) {
                         if (h.type.equals(ProxyCommons.Types.RAW)) {
                             ProtocolFamily family = "6".equals(h.parameters.get("family")) ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
                             int protocol = Integer.parseInt(h.parameters.get("protocol"));
-                            return RawSocket.builder().family(family).protocol(protocol);
+                            boolean datagram = "true".equals(h.parameters.get("datagram"));
+                            return RawSocket.builder().family(family).protocol(protocol).datagram(datagram);
                         }
 
                         if (listening == null) {
                             return null;
                         }
 
-                        return listening.create(address, header);
+                        return listening.create(address, h);
                     }
                 });
 
@@ -138,357 +140,211 @@ public final class ProxyServer implements Listening {
         this.listening = listening;
     }
 
-    private void closedRegisteredConnections(final Map<Integer, Connecter> connections) {
+    private void closedRegisteredConnections(final Map<Integer, Connecter> connections, final Map<Integer, ProxyWindow> windows) {
         proxyExecutor.execute(() -> {
             for (final Connecter c : connections.values()) {
                 c.close();
             }
             connections.clear();
+            windows.clear();
         });
     }
 
     @Override
     public Connection connecting(final Connected proxyConnector) {
         final Map<Integer, Connecter> connections = new HashMap<>();
+        final Map<Integer, ProxyWindow> windows = new HashMap<>(); // Used once switched to v2
+        final ProxyWindow.Sender linkSender = (frame, callback) -> proxyConnector.send(null, frame, callback);
 
         return new Connection() {
-            private ByteBuffer readByteBuffer;
+            private final SendCallback sendCallback = new SendCallback() {
+                @Override
+                public void failed(IOException e) {
+                    proxyConnector.close();
+                }
 
-            private int readConnectionId = -1;
-            private int command = -1;
+                @Override
+                public void sent() {
+                }
+            };
 
-            private int readIpLength = -1;
-            private byte[] readIp = null;
-            private int readPort = -1;
-            private int readLength = -1;
-            private int readHeaderLength = -1;
-            private String readHeader = null;
+            private final ProxyFrames.Reader reader = new ProxyFrames.Reader(); // v1, then v2 once the client switched
+            private boolean v2 = false; // From the proxy executor, once the client is told we speak v2
 
-            private int readByte(int old, ByteBuffer receivedBuffer) {
-                if (old >= 0) {
-                    return old;
-                }
-                if (!receivedBuffer.hasRemaining()) {
-                    return -1;
-                }
-                return receivedBuffer.get() & 0xFF;
-            }
+            // Data from the external connection, framed and sent from the proxy executor, where the version is known
+            private Connection innerConnection(final int connectionId) {
+                return new Connection() {
+                    @Override
+                    public void closed() {
+                        proxyExecutor.execute(() -> {
+                            connections.remove(connectionId);
+                            ProxyWindow window = windows.remove(connectionId);
+                            if (!v2) {
+                                proxyConnector.send(null, ProxyFrames.v1Close(connectionId), sendCallback);
+                            } else if (window == null) {
+                                proxyConnector.send(null, ProxyFrames.close(connectionId), sendCallback);
+                            } else {
+                                window.close(ProxyFrames.close(connectionId), sendCallback, linkSender);
+                            }
+                        });
+                    }
 
-            private byte[] readBytes(ByteBuffer receivedBuffer, int len) {
-                if (readByteBuffer == null) {
-                    readByteBuffer = ByteBuffer.allocate(len);
-                }
-                int l = len - readByteBuffer.position();
-                if (l > receivedBuffer.remaining()) {
-                    l = receivedBuffer.remaining();
-                }
-                System.arraycopy(receivedBuffer.array(),
-                        receivedBuffer.arrayOffset() + receivedBuffer.position(),
-                        readByteBuffer.array(),
-                        readByteBuffer.arrayOffset() + readByteBuffer.position(),
-                        l);
-                receivedBuffer.position(receivedBuffer.position() + l);
-                readByteBuffer.position(readByteBuffer.position() + l);
-                if (readByteBuffer.position() == readByteBuffer.capacity()) {
-                    byte[] b = readByteBuffer.array();
-                    readByteBuffer = null;
-                    return b;
-                }
-                return null;
-            }
+                    @Override
+                    public void failed(IOException e) {
+                        closed();
+                    }
 
-            private int readInt(int old, ByteBuffer receivedBuffer) {
-                if (old >= 0) {
-                    return old;
-                }
-                byte[] r = readBytes(receivedBuffer, Ints.BYTES);
-                if (r == null) {
-                    return -1;
-                }
-                return ByteBuffer.wrap(r).getInt();
-            }
+                    @Override
+                    public void received(final Address receivedAddress, ByteBuffer receivedBuffer) {
+                        final ByteBuffer b = ProxyFrames.withHeadroom(receivedBuffer); // The buffer may be reused after the call
+                        proxyExecutor.execute(() -> {
+                            if (!v2) {
+                                // LOGGER.debug("-->SEND_WITH(OUT)_ADDRESS {} [{} bytes]", receivedAddress, b.remaining());
+                                ProxyFrames.v1Data(b, connectionId, receivedAddress);
+                                proxyConnector.send(null, b, sendCallback);
+                                return;
+                            }
+                            int length = b.remaining();
+                            ProxyFrames.data(b, connectionId, receivedAddress);
+                            ProxyWindow window = windows.get(connectionId);
+                            if (window == null) {
+                                proxyConnector.send(null, b, sendCallback);
+                            } else if (!window.send(b, length, sendCallback, linkSender)) {
+                                LOGGER.warn("Client does not keep up, closing connection: {}", connectionId);
+                                windows.remove(connectionId);
+                                window.failAll(new IOException("Window overflow"));
+                                Connecter externalConnector = connections.remove(connectionId);
+                                if (externalConnector != null) {
+                                    externalConnector.close();
+                                }
+                                proxyConnector.send(null, ProxyFrames.close(connectionId), sendCallback);
+                            }
+                        });
+                    }
 
-            private String readString(String old, ByteBuffer receivedBuffer, int len) {
-                if (old != null) {
-                    return old;
-                }
-                byte[] r = readBytes(receivedBuffer, len);
-                if (r == null) {
-                    return null;
-                }
-                return new String(r, 0, r.length, Charsets.UTF_8);
+                    @Override
+                    public void connected(Address address) {
+                    }
+                };
             }
 
-            private byte[] readBytes(byte[] old, ByteBuffer receivedBuffer, int len) {
-                if (old != null) {
-                    return old;
+            private void open(int connectionId, Address address, NinioBuilder<Connecter> externalBuilder, Object header) {
+                if (externalBuilder == null) {
+                    LOGGER.error("Unknown header: {}", header);
+                    return;
                 }
-                return readBytes(receivedBuffer, len);
+                Connecter receivedInnerConnection = connections.get(connectionId);
+                if (receivedInnerConnection != null) {
+                    LOGGER.error("Identifier already in use: {}", connectionId);
+                    return;
+                }
+                Connecter externalConnector = externalBuilder.create(ninioProvider);
+                externalConnector.connect(innerConnection(connectionId));
+                connections.put(connectionId, externalConnector);
+                windows.put(connectionId, new ProxyWindow(ProxyCommons.Protocol.WINDOW));
             }
 
-            @Override
-            public void received(Address receivedAddress, ByteBuffer receivedBuffer) {
-                while (true) {
-                    command = readByte(command, receivedBuffer);
-                    if (command < 0) {
-                        return;
+            // Credit granted back to the client once the external connection actually sent the data
+            private SendCallback granting(final int connectionId, final int length) {
+                return new SendCallback() {
+                    @Override
+                    public void failed(IOException e) {
+                        sendCallback.failed(e);
                     }
 
-                    readConnectionId = readInt(readConnectionId, receivedBuffer);
-                    if (readConnectionId < 0) {
-                        return;
+                    @Override
+                    public void sent() {
+                        proxyExecutor.execute(() -> {
+                            ProxyWindow window = windows.get(connectionId);
+                            if (window != null) {
+                                int credit = window.consumed(length);
+                                if (credit > 0) {
+                                    proxyConnector.send(null, ProxyFrames.window(connectionId, credit), sendCallback);
+                                }
+                            }
+                        });
                     }
+                };
+            }
 
-                    final SendCallback sendCallback = new SendCallback() {
-                        @Override
-                        public void failed(IOException e) {
-                            proxyConnector.close();
-                        }
-
-                        @Override
-                        public void sent() {
-                        }
-                    };
-
-                    final int connectionId = readConnectionId;
-                    final Connection connection = new Connection() {
-                        @Override
-                        public void closed() {
-                            proxyExecutor.execute(() -> connections.remove(connectionId));
-
-                            ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES);
-                            b.put((byte) ProxyCommons.Commands.CLOSE);
-                            b.putInt(connectionId);
-                            b.flip();
-
-                            proxyConnector.send(null, b, sendCallback);
-                        }
-
-                        @Override
-                        public void failed(IOException e) {
-                            closed();
+            private final ProxyFrames.Handler handler = new ProxyFrames.Handler() {
+                @Override
+                public void data(final int connectionId, final Address address, final ByteBuffer payload) {
+                    // LOGGER.debug("SEND_WITH(OUT)_ADDRESS {} [{} bytes]", address, payload.remaining());
+                    final SendCallback callback = reader.isV2() ? granting(connectionId, payload.remaining()) : sendCallback;
+                    proxyExecutor.execute(() -> {
+                        Connecter receivedInnerConnection = connections.get(connectionId);
+                        if (receivedInnerConnection != null) {
+                            receivedInnerConnection.send(address, payload, callback);
                         }
+                    });
+                }
 
-                        @Override
-                        public void received(Address receivedAddress, ByteBuffer receivedBuffer) {
-                            if (receivedAddress == null) {
-                                // LOGGER.debug("-->SEND_WITHOUT_ADDRESS [{} bytes]", receivedBuffer.remaining());
-                                ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + receivedBuffer.remaining());
-                                b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
-                                b.putInt(connectionId);
-                                b.putInt(receivedBuffer.remaining());
-                                b.put(receivedBuffer);
-                                b.flip();
-                                proxyConnector.send(null, b, sendCallback);
-                            } else {
-                                // LOGGER.debug("-->SEND_WITH_ADDRESS {} [{} bytes]", receivedAddress, receivedBuffer.remaining());
-                                ByteBuffer b = ByteBuffer.allocate(1 +
-                                        Ints.BYTES +
-                                        Ints.BYTES +
-                                        receivedAddress.ip.length +
-                                        Ints.BYTES +
-                                        Ints.BYTES +
-                                        receivedBuffer.remaining());
-                                b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
-                                b.putInt(connectionId);
-                                b.putInt(receivedAddress.ip.length);
-                                b.put(receivedAddress.ip);
-                                b.putInt(receivedAddress.port);
-                                b.putInt(receivedBuffer.remaining());
-                                b.put(receivedBuffer);
-                                b.flip();
-                                proxyConnector.send(null, b, sendCallback);
-                            }
-                        }
+                @Override
+                public void connect(final int connectionId, final Address address, final ProxyHeader header) {
+                    proxyExecutor.execute(() -> open(connectionId, address, listening.create(address, header), header));
+                }
 
-                        @Override
-                        public void connected(Address address) {
-                        }
-                    };
+                @Override
+                public void connect(final int connectionId, final Address address, final String header) {
+                    proxyExecutor.execute(() -> open(connectionId, address, listening.create(address, header), header));
+                }
 
-                    switch (command) {
-                        case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
-                            readIpLength = readInt(readIpLength, receivedBuffer);
-                            if (readIpLength < 0) {
-                                return;
+                @Override
+                public void close(final int connectionId) {
+                    if (!reader.isV2()) {
+                        if ((connectionId & ProxyCommons.Negotiation.MASK) == ProxyCommons.Negotiation.HELLO) {
+                            if ((connectionId & ~ProxyCommons.Negotiation.MASK) >= ProxyCommons.Negotiation.V2) {
+                                proxyExecutor.execute(() -> {
+                                    proxyConnector.send(null, ProxyFrames.v1Close(ProxyCommons.Negotiation.HELLO | ProxyCommons.Negotiation.V2), sendCallback);
+                                    v2 = true;
+                                });
                             }
-                            readIp = readBytes(readIp, receivedBuffer, readIpLength);
-                            if (readIp == null) {
-                                return;
-                            }
-                            readPort = readInt(readPort, receivedBuffer);
-                            if (readPort < 0) {
-                                return;
-                            }
-                            readLength = readInt(readLength, receivedBuffer);
-                            if (readLength < 0) {
-                                return;
-                            }
-                            // LOGGER.debug("SEND_WITH_ADDRESS {}:{} [{} bytes]", Address.ipToString(readIp), readPort, readLength);
-                            byte[] r = readBytes(receivedBuffer, readLength);
-                            if (r == null) {
-                                return;
-                            }
-                            final ByteBuffer b = ByteBuffer.wrap(r);
-                            final Address a = new Address(readIp, readPort);
-                            proxyExecutor.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Connecter receivedInnerConnection = connections.get(connectionId);
-                                    if (receivedInnerConnection != null) {
-                                        receivedInnerConnection.send(a, b, sendCallback);
-                                    }
-                                }
-                            });
-                            readConnectionId = -1;
-                            command = -1;
-                            readIpLength = -1;
-                            readIp = null;
-                            readPort = -1;
-                            readLength = -1;
-                            break;
+                            return;
                         }
-                        case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS: {
-                            readLength = readInt(readLength, receivedBuffer);
-                            if (readLength < 0) {
-                                return;
-                            }
-                            // LOGGER.debug("SEND_WITHOUT_ADDRESS [{} bytes]", readLength);
-                            byte[] r = readBytes(receivedBuffer, readLength);
-                            if (r == null) {
-                                return;
-                            }
-                            final ByteBuffer b = ByteBuffer.wrap(r);
-                            proxyExecutor.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Connecter receivedInnerConnection = connections.get(connectionId);
-                                    if (receivedInnerConnection != null) {
-                                        receivedInnerConnection.send(null, b, sendCallback);
-                                    }
-                                }
-                            });
-                            readConnectionId = -1;
-                            command = -1;
-                            readLength = -1;
-                            break;
+                        if (connectionId == (ProxyCommons.Negotiation.SWITCH | ProxyCommons.Negotiation.V2)) {
+                            reader.v2();
+                            return;
                         }
-                        case ProxyCommons.Commands.CLOSE: {
-                            proxyExecutor.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Connecter receivedInnerConnection = connections.remove(connectionId);
-                                    if (receivedInnerConnection != null) {
-                                        receivedInnerConnection.close();
-                                    }
-                                }
-                            });
-                            readConnectionId = -1;
-                            command = -1;
-                            break;
+                    }
+                    proxyExecutor.execute(() -> {
+                        windows.remove(connectionId);
+                        Connecter receivedInnerConnection = connections.remove(connectionId);
+                        if (receivedInnerConnection != null) {
+                            receivedInnerConnection.close();
                         }
-                        case ProxyCommons.Commands.CONNECT_WITH_ADDRESS: {
-                            readIpLength = readInt(readIpLength, receivedBuffer);
-                            if (readIpLength < 0) {
-                                return;
-                            }
-                            readIp = readBytes(readIp, receivedBuffer, readIpLength);
-                            if (readIp == null) {
-                                return;
-                            }
-                            readPort = readInt(readPort, receivedBuffer);
-                            if (readPort < 0) {
-                                return;
-                            }
-                            readHeaderLength = readInt(readHeaderLength, receivedBuffer);
-                            if (readHeaderLength < 0) {
-                                return;
-                            }
-                            readHeader = readString(readHeader, receivedBuffer, readHeaderLength);
-                            if (readHeader == null) {
-                                return;
-                            }
+                    });
+                }
 
-                            final String header = readHeader;
-                            final Address a = new Address(readIp, readPort);
-                            proxyExecutor.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    NinioBuilder<Connecter> externalBuilder = listening.create(a, header);
-                                    if (externalBuilder == null) {
-                                        LOGGER.error("Unknown header (CONNECT_WITH_ADDRESS): {}", header);
-                                    } else {
-                                        Connecter receivedInnerConnection = connections.get(connectionId);
-                                        if (receivedInnerConnection != null) {
-                                            LOGGER.error("Identifier already in use (CONNECT_WITH_ADDRESS): {}", connectionId);
-                                        } else {
-                                            Connecter externalConnector = externalBuilder.create(ninioProvider);
-                                            externalConnector.connect(connection);
-                                            connections.put(connectionId, externalConnector);
-                                        }
-                                    }
-                                }
-                            });
-
-                            readConnectionId = -1;
-                            command = -1;
-                            readIpLength = -1;
-                            readIp = null;
-                            readPort = -1;
-                            readLength = -1;
-                            readHeaderLength = -1;
-                            readHeader = null;
-                            break;
+                @Override
+                public void window(final int connectionId, final int credit) {
+                    proxyExecutor.execute(() -> {
+                        ProxyWindow window = windows.get(connectionId);
+                        if (window != null) {
+                            window.granted(credit, linkSender);
                         }
-                        case ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS: {
-                            readHeaderLength = readInt(readHeaderLength, receivedBuffer);
-                            if (readHeaderLength < 0) {
-                                return;
-                            }
-                            readHeader = readString(readHeader, receivedBuffer, readHeaderLength);
-                            if (readHeader == null) {
-                                return;
-                            }
+                    });
+                }
+            };
 
-                            final String header = readHeader;
-                            proxyExecutor.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    NinioBuilder<Connecter> externalBuilder = listening.create(null, header);
-                                    if (externalBuilder == null) {
-                                        LOGGER.error("Unknown header (CONNECT_WITHOUT_ADDRESS): {}", header);
-                                    } else {
-                                        Connecter receivedInnerConnection = connections.get(connectionId);
-                                        if (receivedInnerConnection != null) {
-                                            LOGGER.error("Identifier already in use (CONNECT_WITH_ADDRESS): {}", connectionId);
-                                        } else {
-                                            Connecter externalConnector = externalBuilder.create(ninioProvider);
-                                            externalConnector.connect(connection);
-                                            connections.put(connectionId, externalConnector);
-                                        }
-                                    }
-                                }
-                            });
-
-                            readConnectionId = -1;
-                            command = -1;
-                            readLength = -1;
-                            readHeaderLength = -1;
-                            readHeader = null;
-                            break;
-                        }
-                    }
+            @Override
+            public void received(Address receivedAddress, ByteBuffer receivedBuffer) {
+                try {
+                    reader.read(receivedBuffer, handler);
+                } catch (IOException e) {
+                    LOGGER.error("Invalid frame", e);
+                    proxyConnector.close();
                 }
             }
 
             @Override
             public void failed(IOException e) {
-                closedRegisteredConnections(connections);
+                closedRegisteredConnections(connections, windows);
             }
 
             @Override
             public void closed() {
-                closedRegisteredConnections(connections);
+                closedRegisteredConnections(connections, windows);
             }
 
             @Override
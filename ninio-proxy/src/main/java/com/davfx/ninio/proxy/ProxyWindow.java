@@ -0,0 +1,104 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.davfx.ninio.core.SendCallback;
+
+/**
+ * Credit-based flow control of a v2 stream, in both directions.
+ * Outgoing: data frames are written while the peer granted credit, then queued until it grants more (a frame is sent as soon as some credit is left, so the credit can go below zero).
+ * At most a window is queued: the source cannot be paused, so the stream is to be closed when the peer does not keep up.
+ * Incoming: consumed bytes are granted back by halves of the window.
+ * Not thread-safe, to be used from the proxy executor.
+ */
+final class ProxyWindow {
+
+	interface Sender {
+		void send(ByteBuffer frame, SendCallback callback);
+	}
+
+	private static final class Pending {
+		public final ByteBuffer frame;
+		public final int length;
+		public final SendCallback callback;
+
+		public Pending(ByteBuffer frame, int length, SendCallback callback) {
+			this.frame = frame;
+			this.length = length;
+			this.callback = callback;
+		}
+	}
+
+	private final int size;
+	private int credit;
+	private int consumed = 0;
+	private final Deque<Pending> pending = new ArrayDeque<>();
+	private int queued = 0;
+
+	public ProxyWindow(int size) {
+		this.size = size;
+		credit = size;
+	}
+
+	/**
+	 * Returns false, without sending nor queuing the frame, if a window is already queued
+	 */
+	public boolean send(ByteBuffer frame, int length, SendCallback callback, Sender sender) {
+		if ((credit > 0) && pending.isEmpty()) {
+			credit -= length;
+			sender.send(frame, callback);
+			return true;
+		}
+		if ((queued > 0) && ((queued + length) > size)) {
+			return false;
+		}
+		pending.addLast(new Pending(frame, length, callback));
+		queued += length;
+		return true;
+	}
+
+	public void granted(int granted, Sender sender) {
+		credit += granted;
+		while ((credit > 0) && !pending.isEmpty()) {
+			Pending p = pending.removeFirst();
+			queued -= p.length;
+			credit -= p.length;
+			sender.send(p.frame, p.callback);
+		}
+	}
+
+	/**
+	 * Writes what is queued whatever the credit, then the close frame
+	 */
+	public void close(ByteBuffer closeFrame, SendCallback callback, Sender sender) {
+		while (!pending.isEmpty()) {
+			Pending p = pending.removeFirst();
+			sender.send(p.frame, p.callback);
+		}
+		queued = 0;
+		sender.send(closeFrame, callback);
+	}
+
+	public void failAll(IOException ioe) {
+		while (!pending.isEmpty()) {
+			pending.removeFirst().callback.failed(ioe);
+		}
+		queued = 0;
+	}
+
+	/**
+	 * Returns the credit to grant back to the peer, 0 if not worth a frame yet
+	 */
+	public int consumed(int length) {
+		consumed += length;
+		if (consumed < (size / 2)) {
+			return 0;
+		}
+		int c = consumed;
+		consumed = 0;
+		return c;
+	}
+}
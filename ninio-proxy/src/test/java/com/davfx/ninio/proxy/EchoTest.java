@@ -2,12 +2,17 @@ package com.davfx.ninio.proxy;
 
 import com.davfx.ninio.core.Address;
 import com.davfx.ninio.core.ByteBufferUtils;
+import com.davfx.ninio.core.Connected;
 import com.davfx.ninio.core.Connecter;
 import com.davfx.ninio.core.Connection;
 import com.davfx.ninio.core.Disconnectable;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Listening;
 import com.davfx.ninio.core.Ninio;
 import com.davfx.ninio.core.NinioBuilder;
 import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
 import com.davfx.ninio.util.Lock;
 import com.davfx.ninio.util.Wait;
 import com.google.common.base.Charsets;
@@ -16,6 +21,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.davfx.ninio.proxy.TestUtil.DEFAULT_RECIPIENT_ID;
 import static com.davfx.ninio.proxy.TestUtil.findAvailablePort;
@@ -177,5 +184,199 @@ public class EchoTest {
 			serverWaitServerClosing.waitFor();
 		}
 	}
-	
+
+	// A v1 client never says hello, the server answers with v1 frames only
+	@Test
+	public void testV1ClientWithV2Server() throws Exception {
+		final Lock<String, IOException> lock = new Lock<>();
+		try (Ninio ninio = Ninio.create()) {
+			int proxyPort = findAvailablePort();
+
+			final Wait serverWaitServerConnecting = new Wait();
+			try (Disconnectable proxyServer = ninio.create(ProxyServer.defaultUnsecureServer(new Address(Address.ANY, proxyPort), new ProxyListening() {
+				@Override
+				public void closed() {
+				}
+				@Override
+				public void connected(Address address) {
+					serverWaitServerConnecting.run();
+				}
+				@Override
+				public void failed(IOException e) {
+					lock.fail(e);
+				}
+				@Override
+				public NinioBuilder<Connecter> create(Address address, String header) {
+					return header.startsWith("_") ? new EchoNinioSocketBuilder() : null;
+				}
+			}))) {
+				serverWaitServerConnecting.waitFor();
+
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, proxyPort)))) {
+					final ProxyFrames.Reader reader = new ProxyFrames.Reader();
+					final ProxyFrames.Handler handler = new V1Handler() {
+						@Override
+						public void data(int connectionId, Address address, ByteBuffer payload) {
+							lock.set(connectionId + " " + ByteBufferUtils.toString(payload));
+						}
+						@Override
+						public void close(int connectionId) {
+							lock.fail(new IOException("Unexpected close: " + connectionId));
+						}
+					};
+					client.connect(new Connection() {
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							try {
+								reader.read(buffer, handler);
+							} catch (IOException e) {
+								lock.fail(e);
+							}
+						}
+						@Override
+						public void closed() {
+						}
+						@Override
+						public void failed(IOException e) {
+							lock.fail(e);
+						}
+					});
+
+					byte[] header = "_".getBytes(Charsets.UTF_8);
+					ByteBuffer connect = ByteBuffer.allocate(1 + 4 + 4 + 4 + 4 + 4 + header.length);
+					connect.put((byte) ProxyCommons.Commands.CONNECT_WITH_ADDRESS).putInt(7).putInt(4).put(Address.LOCALHOST).putInt(findAvailablePort()).putInt(header.length).put(header);
+					connect.flip();
+					client.send(null, connect, new Nop());
+					ByteBuffer data = ProxyFrames.withHeadroom(ByteBuffer.wrap("test".getBytes(Charsets.UTF_8)));
+					ProxyFrames.v1Data(data, 7, null);
+					client.send(null, data, new Nop());
+
+					Assertions.assertThat(lock.waitFor()).isEqualTo("7 ECHO test");
+				}
+			}
+		}
+	}
+
+	// The hello of a v2 client is a v1 close of an unknown connection, ignored by an old server: both keep on speaking v1
+	@Test
+	public void testV2ClientWithOldServer() throws Exception {
+		final Lock<ByteBuffer, IOException> lock = new Lock<>();
+		final List<String> received = new ArrayList<>();
+		try (Ninio ninio = Ninio.create()) {
+			int proxyPort = findAvailablePort();
+
+			final Wait serverWaitServerConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, proxyPort)))) {
+				server.listen(new Listening() {
+					@Override
+					public Connection connecting(final Connected connecting) {
+						final ProxyFrames.Reader reader = new ProxyFrames.Reader(); // Never switched
+						final ProxyFrames.Handler handler = new V1Handler() {
+							@Override
+							public void data(int connectionId, Address address, ByteBuffer payload) {
+								synchronized (received) {
+									received.add("data " + connectionId);
+								}
+								ByteBuffer b = ProxyFrames.withHeadroom(ByteBuffer.wrap(("ECHO " + ByteBufferUtils.toString(payload)).getBytes(Charsets.UTF_8)));
+								ProxyFrames.v1Data(b, connectionId, null);
+								connecting.send(null, b, new Nop());
+							}
+							@Override
+							public void connect(int connectionId, Address address, String header) {
+								synchronized (received) {
+									received.add("connect " + connectionId + " " + header);
+								}
+							}
+							@Override
+							public void close(int connectionId) {
+								synchronized (received) {
+									received.add("close " + connectionId);
+								}
+							}
+						};
+						return new Connection() {
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								try {
+									reader.read(buffer, handler);
+								} catch (IOException e) {
+									lock.fail(e);
+								}
+							}
+							@Override
+							public void closed() {
+							}
+							@Override
+							public void failed(IOException e) {
+							}
+						};
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void failed(IOException e) {
+						lock.fail(e);
+					}
+					@Override
+					public void connected(Address address) {
+						serverWaitServerConnecting.run();
+					}
+				});
+				serverWaitServerConnecting.waitFor();
+
+				try (ProxyProvider proxyClient = ninio.create(ProxyClient.defaultUnsecureClient(new Address(Address.LOCALHOST, proxyPort)))) {
+					try (Connecter client = ninio.create(proxyClient.factory(DEFAULT_RECIPIENT_ID).header(new ProxyHeader("_")).with(new Address(Address.LOCALHOST, findAvailablePort())))) {
+						client.connect(new Connection() {
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								lock.set(buffer);
+							}
+							@Override
+							public void closed() {
+							}
+							@Override
+							public void failed(IOException e) {
+								lock.fail(e);
+							}
+						});
+						client.send(null, ByteBuffer.wrap("test".getBytes(Charsets.UTF_8)), new Nop());
+
+						Assertions.assertThat(ByteBufferUtils.toString(lock.waitFor())).isEqualTo("ECHO test");
+					}
+				}
+			}
+		}
+		synchronized (received) {
+			Assertions.assertThat(received).startsWith("close " + (ProxyCommons.Negotiation.HELLO | ProxyCommons.Negotiation.V2));
+			Assertions.assertThat(received).contains("data 0");
+		}
+	}
+
+	private static class V1Handler implements ProxyFrames.Handler {
+		@Override
+		public void data(int connectionId, Address address, ByteBuffer payload) {
+		}
+		@Override
+		public void connect(int connectionId, Address address, ProxyHeader header) {
+		}
+		@Override
+		public void connect(int connectionId, Address address, String header) {
+		}
+		@Override
+		public void close(int connectionId) {
+		}
+		@Override
+		public void window(int connectionId, int credit) {
+		}
+	}
 }
@@ -0,0 +1,226 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+public class ProxyFramesTest {
+
+	private static class Collector implements ProxyFrames.Handler {
+		public final List<String> frames = new ArrayList<>();
+		public ProxyFrames.Reader switching = null;
+
+		@Override
+		public void data(int streamId, Address address, ByteBuffer payload) {
+			byte[] b = new byte[payload.remaining()];
+			payload.get(b);
+			frames.add("data " + streamId + " " + address + " " + new String(b, Charsets.UTF_8));
+		}
+
+		@Override
+		public void connect(int streamId, Address address, ProxyHeader header) {
+			frames.add("connect " + streamId + " " + address + " " + header.type + " " + header.parameters);
+		}
+
+		@Override
+		public void connect(int streamId, Address address, String header) {
+			frames.add("connect " + streamId + " " + address + " " + header);
+		}
+
+		@Override
+		public void close(int streamId) {
+			frames.add("close " + streamId);
+			if ((switching != null) && (streamId == (ProxyCommons.Negotiation.SWITCH | ProxyCommons.Negotiation.V2))) {
+				switching.v2();
+			}
+		}
+
+		@Override
+		public void window(int streamId, int credit) {
+			frames.add("window " + streamId + " " + credit);
+		}
+	}
+
+	private static ByteBuffer data(int streamId, Address address, String payload) {
+		ByteBuffer b = ProxyFrames.withHeadroom(ByteBuffer.wrap(payload.getBytes(Charsets.UTF_8)));
+		ProxyFrames.data(b, streamId, address);
+		return b;
+	}
+
+	@Test
+	public void testFramesSplitAnywhere() throws Exception {
+		ProxyHeader header = new ProxyHeader(ProxyCommons.Types.RAW, ImmutableMap.of("family", "4", "recipientId", "r 1", "custom", "é"));
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			big.append(i);
+		}
+		List<ByteBuffer> frames = new ArrayList<>();
+		frames.add(ProxyFrames.connect(1, new Address(new byte[] { 10, 0, 0, 1 }, 161), header));
+		frames.add(ProxyFrames.connect(300, null, new ProxyHeader("_")));
+		frames.add(data(1, null, "hello"));
+		frames.add(data(Integer.MAX_VALUE, new Address(new byte[16], 65535), big.toString()));
+		frames.add(ProxyFrames.window(1, 256 * 1024));
+		frames.add(ProxyFrames.close(300));
+
+		int total = 0;
+		for (ByteBuffer f : frames) {
+			total += f.remaining();
+		}
+		ByteBuffer all = ByteBuffer.allocate(total);
+		for (ByteBuffer f : frames) {
+			all.put(f);
+		}
+		byte[] bytes = all.array();
+
+		List<String> expected = new ArrayList<>();
+		expected.add("connect 1 " + new Address(new byte[] { 10, 0, 0, 1 }, 161) + " raw {family=4, recipientId=r 1, custom=é}");
+		expected.add("connect 300 null _ {}");
+		expected.add("data 1 null hello");
+		expected.add("data " + Integer.MAX_VALUE + " " + new Address(new byte[16], 65535) + " " + big);
+		expected.add("window 1 262144");
+		expected.add("close 300");
+
+		for (int chunk : new int[] { 1, 2, 3, 7, 100, bytes.length }) {
+			Collector c = new Collector();
+			ProxyFrames.Reader reader = new ProxyFrames.Reader();
+			reader.v2();
+			for (int i = 0; i < bytes.length; i += chunk) {
+				reader.read(ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i)).slice(), c);
+			}
+			Assertions.assertThat(c.frames).containsExactlyElementsOf(expected);
+		}
+	}
+
+	@Test
+	public void testV1ThenV2InPlace() throws Exception {
+		byte[] header = "_ recipientId r".getBytes(Charsets.UTF_8);
+		ByteBuffer all = ByteBuffer.allocate(1000);
+		all.put((byte) ProxyCommons.Commands.CONNECT_WITH_ADDRESS).putInt(7).putInt(4).put(new byte[] { 127, 0, 0, 1 }).putInt(8080).putInt(header.length).put(header);
+		ByteBuffer d = ProxyFrames.withHeadroom(ByteBuffer.wrap("v1".getBytes(Charsets.UTF_8)));
+		ProxyFrames.v1Data(d, 7, new Address(new byte[] { 127, 0, 0, 1 }, 8080));
+		all.put(d);
+		all.put(ProxyFrames.v1Close(ProxyCommons.Negotiation.SWITCH | ProxyCommons.Negotiation.V2));
+		all.put(data(7, null, "v2"));
+		all.put(ProxyFrames.close(7));
+		all.flip();
+		byte[] bytes = new byte[all.remaining()];
+		all.get(bytes);
+
+		Address a = new Address(new byte[] { 127, 0, 0, 1 }, 8080);
+		for (int chunk : new int[] { 1, 5, 13, bytes.length }) {
+			Collector c = new Collector();
+			ProxyFrames.Reader reader = new ProxyFrames.Reader();
+			c.switching = reader;
+			List<ByteBuffer> received = new ArrayList<>();
+			for (int i = 0; i < bytes.length; i += chunk) {
+				ByteBuffer b = ByteBuffer.wrap(bytes, i, Math.min(chunk, bytes.length - i));
+				received.add(b);
+				reader.read(b, c);
+			}
+			Assertions.assertThat(c.frames).containsExactly("connect 7 " + a + " _ recipientId r", "data 7 " + a + " v1", "close " + (ProxyCommons.Negotiation.SWITCH | ProxyCommons.Negotiation.V2), "data 7 null v2", "close 7");
+			for (ByteBuffer b : received) {
+				Assertions.assertThat(b.hasRemaining()).isFalse();
+			}
+		}
+	}
+
+	@Test
+	public void testPayloadIsNotCopied() throws Exception {
+		ByteBuffer b = data(1, null, "hello");
+		final List<ByteBuffer> payloads = new ArrayList<>();
+		ProxyFrames.Reader reader = new ProxyFrames.Reader();
+		reader.v2();
+		reader.read(b, new Collector() {
+			@Override
+			public void data(int streamId, Address address, ByteBuffer payload) {
+				payloads.add(payload);
+			}
+		});
+		Assertions.assertThat(payloads).hasSize(1);
+		Assertions.assertThat(payloads.get(0).array()).isSameAs(b.array());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownFrameType() throws Exception {
+		ProxyFrames.Reader reader = new ProxyFrames.Reader();
+		reader.v2();
+		reader.read(ByteBuffer.wrap(new byte[] { 2, 42, 0 }), new Collector());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownCommand() throws Exception {
+		new ProxyFrames.Reader().read(ByteBuffer.wrap(new byte[] { 42, 0, 0, 0, 0 }), new Collector());
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		final List<Integer> sent = new ArrayList<>();
+		ProxyWindow.Sender sender = (frame, callback) -> sent.add(frame.remaining());
+		SendCallback nop = new Nop();
+
+		ProxyWindow w = new ProxyWindow(100);
+		w.send(ByteBuffer.allocate(60), 60, nop, sender);
+		w.send(ByteBuffer.allocate(60), 60, nop, sender); // Credit left, goes below zero
+		w.send(ByteBuffer.allocate(10), 10, nop, sender);
+		w.send(ByteBuffer.allocate(1), 0, nop, sender); // Queued behind, even empty
+		Assertions.assertThat(sent).containsExactly(60, 60);
+
+		w.granted(20, sender); // Still at zero
+		Assertions.assertThat(sent).containsExactly(60, 60);
+		w.granted(1, sender);
+		Assertions.assertThat(sent).containsExactly(60, 60, 10);
+		w.granted(10, sender);
+		Assertions.assertThat(sent).containsExactly(60, 60, 10, 1);
+
+		Assertions.assertThat(w.consumed(49)).isEqualTo(0);
+		Assertions.assertThat(w.consumed(2)).isEqualTo(51);
+		Assertions.assertThat(w.consumed(10)).isEqualTo(0);
+	}
+
+	@Test
+	public void testWindowOverflow() throws Exception {
+		final List<Integer> sent = new ArrayList<>();
+		ProxyWindow.Sender sender = (frame, callback) -> sent.add(frame.remaining());
+		final List<IOException> failed = new ArrayList<>();
+		SendCallback callback = new SendCallback() {
+			@Override
+			public void failed(IOException e) {
+				failed.add(e);
+			}
+			@Override
+			public void sent() {
+			}
+		};
+
+		ProxyWindow w = new ProxyWindow(100);
+		Assertions.assertThat(w.send(ByteBuffer.allocate(100), 100, callback, sender)).isTrue();
+		Assertions.assertThat(w.send(ByteBuffer.allocate(150), 150, callback, sender)).isTrue(); // Queued alone, even bigger than the window
+		Assertions.assertThat(w.send(ByteBuffer.allocate(1), 1, callback, sender)).isFalse();
+		Assertions.assertThat(sent).containsExactly(100);
+
+		w.granted(100, sender);
+		Assertions.assertThat(sent).containsExactly(100, 150);
+		Assertions.assertThat(w.send(ByteBuffer.allocate(60), 60, callback, sender)).isTrue();
+		Assertions.assertThat(w.send(ByteBuffer.allocate(40), 40, callback, sender)).isTrue();
+		Assertions.assertThat(w.send(ByteBuffer.allocate(1), 1, callback, sender)).isFalse();
+
+		w.failAll(new IOException("Window overflow"));
+		Assertions.assertThat(failed).hasSize(2);
+		Assertions.assertThat(w.send(ByteBuffer.allocate(100), 100, callback, sender)).isTrue();
+	}
+
+	@Test(expected = IOException.class)
+	public void testDuplicateHeaderKey() throws Exception {
+		ProxyHeader.of(ByteBuffer.wrap(new byte[] { 1, 2, 1, 1, 'a', 1, 1, 'b' }));
+	}
+}
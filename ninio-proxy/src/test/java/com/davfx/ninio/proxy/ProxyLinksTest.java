@@ -0,0 +1,261 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.ByteBufferUtils;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Listening;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+import com.google.common.base.Charsets;
+
+import static com.davfx.ninio.proxy.TestUtil.DEFAULT_RECIPIENT_ID;
+import static com.davfx.ninio.proxy.TestUtil.findAvailablePort;
+
+public class ProxyLinksTest {
+
+	private static void test(ProxyClient.Assignment assignment, int links, int connections, int expectedLinks) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int proxyPort = findAvailablePort();
+
+			final ProxyServer proxyServer = ninio.create(ProxyServer.builder().listening(new ProxyListening() {
+				@Override
+				public void closed() {
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void failed(IOException e) {
+				}
+				@Override
+				public NinioBuilder<Connecter> create(Address address, String header) {
+					return new EchoNinioSocketBuilder();
+				}
+			}));
+
+			final AtomicInteger linksConnected = new AtomicInteger(0);
+			final Wait serverWaitServerConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, proxyPort)))) {
+				server.listen(new Listening() {
+					@Override
+					public Connection connecting(Connected connecting) {
+						linksConnected.incrementAndGet();
+						return proxyServer.connecting(connecting);
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void connected(Address address) {
+						serverWaitServerConnecting.run();
+					}
+				});
+				serverWaitServerConnecting.waitFor();
+
+				try (ProxyClient proxyClient = ninio.create(ProxyClient.builder().with(TcpSocket.builder().to(new Address(Address.LOCALHOST, proxyPort))).links(links).assignment(assignment))) {
+					List<Connecter> clients = new ArrayList<>();
+					List<Lock<ByteBuffer, IOException>> locks = new ArrayList<>();
+					for (int i = 0; i < connections; i++) {
+						final Lock<ByteBuffer, IOException> lock = new Lock<>();
+						Connecter client = ninio.create(proxyClient.factory(DEFAULT_RECIPIENT_ID).header(new ProxyHeader("_")).with(new Address(Address.LOCALHOST, 10000 + i)));
+						client.connect(new Connection() {
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								lock.set(buffer);
+							}
+							@Override
+							public void closed() {
+							}
+							@Override
+							public void failed(IOException e) {
+								lock.fail(e);
+							}
+						});
+						clients.add(client);
+						locks.add(lock);
+					}
+					for (int i = 0; i < connections; i++) {
+						clients.get(i).send(null, ByteBuffer.wrap(("test" + i).getBytes(Charsets.UTF_8)), new Nop());
+					}
+					for (int i = 0; i < connections; i++) {
+						Assertions.assertThat(ByteBufferUtils.toString(locks.get(i).waitFor())).isEqualTo("ECHO test" + i);
+						clients.get(i).close();
+					}
+				}
+			}
+			Assertions.assertThat(linksConnected.get()).isEqualTo(expectedLinks);
+		}
+	}
+
+	@Test
+	public void testLeastLoadedUsesAllLinks() throws Exception {
+		test(ProxyClient.Assignment.LEAST_LOADED, 4, 8, 4);
+	}
+
+	@Test
+	public void testHashOverLinks() throws Exception {
+		test(ProxyClient.Assignment.HASH, 3, 30, 3);
+	}
+
+	@Test
+	public void testSingleLink() throws Exception {
+		test(ProxyClient.Assignment.HASH, 1, 5, 1);
+	}
+
+	private static Connecter connect(Ninio ninio, ProxyClient proxyClient, int port, final AtomicReference<Lock<ByteBuffer, IOException>> lock) {
+		Connecter client = ninio.create(proxyClient.factory(DEFAULT_RECIPIENT_ID).header(new ProxyHeader("_")).with(new Address(Address.LOCALHOST, port)));
+		client.connect(new Connection() {
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void received(Address address, ByteBuffer buffer) {
+				lock.get().set(buffer);
+			}
+			@Override
+			public void closed() {
+				lock.get().fail(new IOException("Closed"));
+			}
+			@Override
+			public void failed(IOException e) {
+				lock.get().fail(e);
+			}
+		});
+		return client;
+	}
+
+	private static int links(List<Connected> linksConnected) {
+		synchronized (linksConnected) {
+			return linksConnected.size();
+		}
+	}
+
+	// One link is killed: its inner connections fail, the others go on, and new ones avoid it (no reconnection within the retry delay)
+	private static void failover(ProxyClient.Assignment assignment) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int proxyPort = findAvailablePort();
+
+			final ProxyServer proxyServer = ninio.create(ProxyServer.builder().listening(new ProxyListening() {
+				@Override
+				public void closed() {
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void failed(IOException e) {
+				}
+				@Override
+				public NinioBuilder<Connecter> create(Address address, String header) {
+					return new EchoNinioSocketBuilder();
+				}
+			}));
+
+			final List<Connected> linksConnected = new ArrayList<>();
+			final Wait serverWaitServerConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, proxyPort)))) {
+				server.listen(new Listening() {
+					@Override
+					public Connection connecting(Connected connecting) {
+						synchronized (linksConnected) {
+							linksConnected.add(connecting);
+						}
+						return proxyServer.connecting(connecting);
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void connected(Address address) {
+						serverWaitServerConnecting.run();
+					}
+				});
+				serverWaitServerConnecting.waitFor();
+
+				try (ProxyClient proxyClient = ninio.create(ProxyClient.builder().with(TcpSocket.builder().to(new Address(Address.LOCALHOST, proxyPort))).links(2).assignment(assignment))) {
+					// Until both links are used
+					List<Connecter> clients = new ArrayList<>();
+					List<AtomicReference<Lock<ByteBuffer, IOException>>> locks = new ArrayList<>();
+					for (int i = 0; (i < 20) && (links(linksConnected) < 2); i++) {
+						AtomicReference<Lock<ByteBuffer, IOException>> lock = new AtomicReference<>(new Lock<ByteBuffer, IOException>());
+						Connecter client = connect(ninio, proxyClient, 10000 + i, lock);
+						client.send(null, ByteBuffer.wrap(("test" + i).getBytes(Charsets.UTF_8)), new Nop());
+						Assertions.assertThat(ByteBufferUtils.toString(lock.get().waitFor())).isEqualTo("ECHO test" + i);
+						clients.add(client);
+						locks.add(lock);
+					}
+					Assertions.assertThat(links(linksConnected)).isEqualTo(2);
+
+					long killedAt = System.nanoTime();
+					synchronized (linksConnected) {
+						linksConnected.get(0).close();
+					}
+
+					// Each inner connection either fails (killed link) or still echoes
+					int failed = 0;
+					for (int i = 0; i < clients.size(); i++) {
+						locks.get(i).set(new Lock<ByteBuffer, IOException>());
+						clients.get(i).send(null, ByteBuffer.wrap(("again" + i).getBytes(Charsets.UTF_8)), new Nop());
+						try {
+							Assertions.assertThat(ByteBufferUtils.toString(locks.get(i).get().waitFor())).isEqualTo("ECHO again" + i);
+						} catch (IOException e) {
+							failed++;
+						}
+					}
+					Assertions.assertThat(failed).isGreaterThan(0).isLessThan(clients.size());
+					for (Connecter client : clients) {
+						client.close();
+					}
+
+					for (int i = 0; i < 10; i++) {
+						AtomicReference<Lock<ByteBuffer, IOException>> lock = new AtomicReference<>(new Lock<ByteBuffer, IOException>());
+						Connecter client = connect(ninio, proxyClient, 20000 + i, lock);
+						client.send(null, ByteBuffer.wrap(("new" + i).getBytes(Charsets.UTF_8)), new Nop());
+						Assertions.assertThat(ByteBufferUtils.toString(lock.get().waitFor())).isEqualTo("ECHO new" + i);
+						client.close();
+					}
+					Assertions.assertThat(System.nanoTime() - killedAt).isLessThan(TimeUnit.SECONDS.toNanos(5L));
+					Assertions.assertThat(links(linksConnected)).isEqualTo(2);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLeastLoadedFailover() throws Exception {
+		failover(ProxyClient.Assignment.LEAST_LOADED);
+	}
+
+	@Test
+	public void testHashFailover() throws Exception {
+		failover(ProxyClient.Assignment.HASH);
+	}
+}
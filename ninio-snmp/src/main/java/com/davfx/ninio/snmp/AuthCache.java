@@ -3,6 +3,8 @@ package com.davfx.ninio.snmp;
 import com.davfx.ninio.core.Address;
 import com.davfx.ninio.core.supervision.metrics.DisplayableMetricsManager;
 import com.davfx.ninio.snmp.dependencies.Dependencies;
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import com.davfx.ninio.snmp.encryption.PrivacyProtocol;
 import com.davfx.ninio.util.ConfigUtils;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -10,11 +12,13 @@ import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 public final class AuthCache {
 
@@ -25,48 +29,109 @@ public final class AuthCache {
 
     static final long AUTH_ENGINES_CACHE_DURATION = Double.valueOf(ConfigUtils.getDuration(CONFIG, "auth.cache")).longValue();
 
+    private static final String AUTH_STORE_PATH = CONFIG.getString("auth.store.path");
+    private static final double AUTH_STORE_FLUSH = ConfigUtils.getDuration(CONFIG, "auth.store.flush");
+    private static final double AUTH_STORE_EXPIRATION = ConfigUtils.getDuration(CONFIG, "auth.store.expiration");
+
     private static AuthCache INSTANCE;
 
-    final Cache<Address, Auth> auths =
-            CacheBuilder.newBuilder()
-                    .expireAfterAccess(AUTH_ENGINES_CACHE_DURATION, TimeUnit.SECONDS)
-                    .build();
-
-    final Cache<AuthRemoteEngineKey, AuthRemoteEnginePendingRequestManager> authRemoteEngines =
-            CacheBuilder.newBuilder()
-                    .expireAfterAccess(AUTH_ENGINES_CACHE_DURATION, TimeUnit.SECONDS)
-                    .build();
+    final SnmpSessions sessions = new SnmpSessions();
 
     final Cache<EncryptionEngineKey, EncryptionEngine> encryptionEngines =
             CacheBuilder.newBuilder()
                     .expireAfterAccess(AUTH_ENGINES_CACHE_DURATION, TimeUnit.SECONDS)
                     .build();
 
+    private final AuthRemoteEngineStore store;
+
     public AuthCache() {
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
+        if (AUTH_STORE_PATH.isEmpty()) {
+            store = null;
+        } else {
+            store = new AuthRemoteEngineStore(Paths.get(AUTH_STORE_PATH), AUTH_STORE_EXPIRATION);
+            store.load();
+            long flush = (long) (AUTH_STORE_FLUSH * 1000d);
+            scheduler.scheduleAtFixedRate(store::flush, flush, flush, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                store.flush();
+                store.close();
+            }));
+        }
+
+        long expirationCheck = Math.max(1L, AUTH_ENGINES_CACHE_DURATION / 10L);
+        scheduler.scheduleAtFixedRate(() -> {
+            long expiredBefore = System.currentTimeMillis() - (AUTH_ENGINES_CACHE_DURATION * 1000L);
+            int removed = sessions.removeIf(session -> session.lastAccess() < expiredBefore);
+            LOGGER.trace("{} SNMPv3 sessions expired", removed);
+        }, expirationCheck, expirationCheck, TimeUnit.SECONDS);
+
         scheduler.scheduleAtFixedRate(() -> {
-            int readyCount = 0;
-            int totalCount = 0;
+            int[] readyCount = new int[] { 0 };
+            int[] totalCount = new int[] { 0 };
 
-            for (AuthRemoteEnginePendingRequestManager authRequestManager : authRemoteEngines.asMap().values()) {
+            sessions.forEach(session -> {
+                AuthRemoteEnginePendingRequestManager authRequestManager = session.authRemoteEnginePendingRequestManager();
+                if (authRequestManager == null) {
+                    return;
+                }
                 if (authRequestManager.isReady()) {
-                    readyCount++;
+                    readyCount[0]++;
                 }
-                totalCount++;
-            }
-            LOGGER.info("{} SNMPv3 Auth Metrics : {}/{} are ready (approximated)", DisplayableMetricsManager.METRICS_TAG, readyCount, totalCount);
+                totalCount[0]++;
+            });
+            LOGGER.info("{} SNMPv3 Auth Metrics : {}/{} are ready (approximated)", DisplayableMetricsManager.METRICS_TAG, readyCount[0], totalCount[0]);
         }, 0, 5, TimeUnit.MINUTES);
 
         scheduler.scheduleAtFixedRate(() -> {
-            Set<String> nonReadyAddresses = authRemoteEngines.asMap().entrySet().stream()
-                    .filter(entry -> !entry.getValue().isReady())
-                    .map(entry -> entry.getKey().address.toString())
-                    .collect(Collectors.toSet());
+            Set<String> nonReadyAddresses = new HashSet<>();
+            sessions.forEach(session -> {
+                AuthRemoteEnginePendingRequestManager authRequestManager = session.authRemoteEnginePendingRequestManager();
+                if ((authRequestManager != null) && !authRequestManager.isReady()) {
+                    nonReadyAddresses.add(session.address.toString());
+                }
+            });
             LOGGER_IPS.info("SNMPv3 non ready Auth Metrics : {}", nonReadyAddresses);
         }, 0, 5, TimeUnit.MINUTES);
     }
 
+    EncryptionEngine encryptionEngine(Auth auth) {
+        EncryptionEngineKey encryptionEngineKey = new EncryptionEngineKey(auth.authDigestAlgorithm, auth.privEncryptionAlgorithm);
+        EncryptionEngine encryptionEngine = encryptionEngines.getIfPresent(encryptionEngineKey);
+        if (encryptionEngine == null) {
+            AuthProtocol authProtocol = Optional.ofNullable(auth.authDigestAlgorithm)
+                    .map(AuthProtocol::fromAlgorithm)
+                    .orElse(null);
+            PrivacyProtocol privacyProtocol = Optional.ofNullable(auth.privEncryptionAlgorithm)
+                    .map(PrivacyProtocol::fromAlgorithm)
+                    .orElse(null);
+
+            encryptionEngine = new EncryptionEngine(authProtocol, privacyProtocol, AUTH_ENGINES_CACHE_DURATION);
+            encryptionEngines.put(encryptionEngineKey, encryptionEngine);
+        }
+        return encryptionEngine;
+    }
+
+    /**
+     * Restores the engine previously discovered for this address, if any
+     *
+     * @return true if no discovery is necessary
+     */
+    boolean restore(Address address, AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager) {
+        if (store == null) {
+            return false;
+        }
+        return store.restore(address, authRemoteEnginePendingRequestManager.engine);
+    }
+
+    void save(Address address, AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager) {
+        if (store == null) {
+            return;
+        }
+        store.save(address, authRemoteEnginePendingRequestManager.engine);
+    }
+
     static AuthCache get() {
         if (INSTANCE == null) {
             INSTANCE = new AuthCache();
@@ -113,8 +113,31 @@ final class AuthRemoteEngine {
 		}
 	}
 
-	public byte[] hash(ByteBuffer message) {
-		return encryptionEngine.hash(authKey, message);
+	/**
+	 * Wall-clock time (ms) at which the remote engine time was 0, or 0 if unknown
+	 */
+	public long getBootTime() {
+		if (timeResetAt == 0L) {
+			return 0L;
+		}
+		return timeResetAt - (resetTime * 1000L);
+	}
+
+	/**
+	 * Restores a previously discovered state, so that requests can be sent without discovery
+	 */
+	public void restore(byte[] id, int bootCount, long bootTime) {
+		int t = (int) ((System.currentTimeMillis() - bootTime) / 1000L);
+		if (t <= 0) {
+			return;
+		}
+		setId(id);
+		setBootCount(bootCount);
+		resetTime(t);
+	}
+
+	public boolean hash(ByteBuffer message, ByteBuffer output) {
+		return encryptionEngine.hash(authKey, message, output);
 	}
 
 	public ByteBuffer encrypt(ByteBuffer decryptedBuffer) {
@@ -25,6 +25,8 @@ public final class AuthRemoteEnginePendingRequestManager {
 
     public final List<PendingRequest> pendingRequests = new LinkedList<>();
 
+    private int resets = 0; // Tells the requests encoded before the last reset apart
+
     public AuthRemoteEnginePendingRequestManager(Auth auth, EncryptionEngine encryptionEngine) {
         engine = new AuthRemoteEngine(auth, encryptionEngine);
     }
@@ -35,6 +37,21 @@ public final class AuthRemoteEnginePendingRequestManager {
 
     public void reset() {
         engine.reset();
+        resets++;
+    }
+
+    /**
+     * Puts a request encoded before the last reset (notInTimeWindow report) back in the queue, to be encoded again with the rediscovered boot count and time
+     *
+     * @return false if the request is up to date (or not sent yet)
+     */
+    public boolean requeueIfOutdated(PendingRequest r) {
+        if ((r.encoded == null) || (r.resets == resets)) {
+            return false;
+        }
+        r.encoded = null;
+        pendingRequests.add(r);
+        return true;
     }
 
     public void discoverIfNecessary(Address address, Connecter connector) {
@@ -50,11 +67,7 @@ public final class AuthRemoteEnginePendingRequestManager {
 
                 @Override
                 public void failed(IOException ioe) {
-                    IOException e = new IOException("Failed to send discover packet", ioe);
-                    for (AuthRemoteEnginePendingRequestManager.PendingRequest r : pendingRequests) {
-                        r.sendCallback.failed(e);
-                    }
-                    pendingRequests.clear();
+                    failPendingRequests(new IOException("Failed to send discover packet", ioe));
                 }
             });
         }
@@ -68,6 +81,13 @@ public final class AuthRemoteEnginePendingRequestManager {
         pendingRequests.clear();
     }
 
+    public void failPendingRequests(IOException ioe) {
+        for (AuthRemoteEnginePendingRequestManager.PendingRequest r : pendingRequests) {
+            r.sendCallback.failed(ioe);
+        }
+        pendingRequests.clear();
+    }
+
     public void sendPendingRequestsIfReady(Address address, Connecter connector) {
         if (!engine.isValid()) {
             return;
@@ -75,38 +95,43 @@ public final class AuthRemoteEnginePendingRequestManager {
 
         for (AuthRemoteEnginePendingRequestManager.PendingRequest r : pendingRequests) {
 
+            ByteBuffer b;
             switch (r.request) {
                 case GET: {
                     AUTH_TRACKER_OUT.track(Address.ipToString(address.ip), v -> String.format("Writing GET v3: %s:%s", v, r.oid));
                     Version3PacketBuilder builder = Version3PacketBuilder.get(engine, r.contextName, r.instanceId, r.oid);
-                    ByteBuffer b = builder.getBuffer();
+                    b = builder.getBuffer();
                     LOGGER.trace("Writing GET v3: {} #{}, packet size = {}", r.oid, r.instanceId, b.remaining());
-                    connector.send(address, b, r.sendCallback);
                     break;
                 }
                 case GETNEXT: {
                     AUTH_TRACKER_OUT.track(Address.ipToString(address.ip), v -> String.format("Writing GETNEXT v3: %s:%s", v, r.oid));
                     Version3PacketBuilder builder = Version3PacketBuilder.getNext(engine, r.contextName, r.instanceId, r.oid);
-                    ByteBuffer b = builder.getBuffer();
+                    b = builder.getBuffer();
                     LOGGER.trace("Writing GETNEXT v3: {} #{}, packet size = {}", r.oid, r.instanceId, b.remaining());
-                    connector.send(address, b, r.sendCallback);
                     break;
                 }
                 case GETBULK: {
                     AUTH_TRACKER_OUT.track(Address.ipToString(address.ip), v -> String.format("Writing GETBULK v3: %s:%s", v, r.oid));
                     Version3PacketBuilder builder = Version3PacketBuilder.getBulk(engine, r.contextName, r.instanceId, r.oid, SnmpClient.BULK_SIZE);
-                    ByteBuffer b = builder.getBuffer();
+                    b = builder.getBuffer();
                     LOGGER.trace("Writing GETBULK v3: {} #{}, packet size = {}", r.oid, r.instanceId, b.remaining());
-                    connector.send(address, b, r.sendCallback);
                     break;
                 }
                 case TRAP: {
                     LOGGER.error("No TRAP possible in v3: {} #{}", r.oid, r.instanceId);
+                    b = null;
                     break;
                 }
                 default:
+                    b = null;
                     break;
             }
+            if (b != null) {
+                r.encoded = b.duplicate();
+                r.resets = resets;
+                connector.send(address, b, r.sendCallback);
+            }
         }
         pendingRequests.clear();
     }
@@ -118,6 +143,9 @@ public final class AuthRemoteEnginePendingRequestManager {
         public final String contextName;
         public final SendCallback sendCallback;
 
+        private ByteBuffer encoded = null;
+        private int resets;
+
         public PendingRequest(SnmpCallType request, int instanceId, Oid oid, String contextName, /*Iterable<SnmpResult> trap, */SendCallback sendCallback) {
             this.request = request;
             this.instanceId = instanceId;
@@ -125,5 +153,12 @@ public final class AuthRemoteEnginePendingRequestManager {
             this.contextName = contextName;
             this.sendCallback = sendCallback;
         }
+
+        /**
+         * @return the packet as it was sent (to be resent as is), or null if not sent yet
+         */
+        public ByteBuffer encoded() {
+            return (encoded == null) ? null : encoded.duplicate();
+        }
     }
 }
@@ -0,0 +1,204 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log of the discovered SNMPv3 remote engines (engine ID, boot count and boot time), keyed by address.
+ * Credentials are never written, the engine ID does not depend on them.
+ * The log is compacted when loaded and when it grows too much.
+ */
+final class AuthRemoteEngineStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthRemoteEngineStore.class);
+
+    private static final int MAGIC = 0x534E4D50; // SNMP
+    private static final int VERSION = 1;
+
+    private static final int COMPACTION_MIN_RECORDS = 1_024;
+
+    private static final class Entry {
+        public final byte[] id;
+        public final int bootCount;
+        public final long bootTime; // Wall-clock time (ms) when the remote engine time was 0
+        public final long savedAt;
+
+        public Entry(byte[] id, int bootCount, long bootTime, long savedAt) {
+            this.id = id;
+            this.bootCount = bootCount;
+            this.bootTime = bootTime;
+            this.savedAt = savedAt;
+        }
+
+        // Engine time is only known to the second
+        public boolean sameAs(byte[] id, int bootCount, long bootTime) {
+            return (this.bootCount == bootCount) && (Math.abs(this.bootTime - bootTime) < 1_000L) && Arrays.equals(this.id, id);
+        }
+    }
+
+    private final Path path;
+    private final long expiration;
+
+    private final Map<Address, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Address, Entry> dirty = new ConcurrentHashMap<>();
+
+    private DataOutputStream out = null;
+    private int records = 0;
+
+    /**
+     * @param expiration entries not saved for longer than this duration (seconds) are dropped when loading
+     */
+    public AuthRemoteEngineStore(Path path, double expiration) {
+        this.path = path;
+        this.expiration = (long) (expiration * 1000d);
+    }
+
+    public synchronized void load() {
+        long now = System.currentTimeMillis();
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                    LOGGER.warn("Invalid SNMPv3 engine store, ignored: {}", path);
+                } else {
+                    while (true) {
+                        byte[] ip = new byte[in.readUnsignedByte()];
+                        in.readFully(ip);
+                        int port = in.readInt();
+                        byte[] id = new byte[in.readUnsignedShort()];
+                        in.readFully(id);
+                        int bootCount = in.readInt();
+                        long bootTime = in.readLong();
+                        long savedAt = in.readLong();
+                        if ((now - savedAt) < expiration) {
+                            entries.put(new Address(ip, port), new Entry(id, bootCount, bootTime, savedAt));
+                        }
+                    }
+                }
+            } catch (EOFException eof) {
+                // End of log, a truncated last record is ignored
+            } catch (IOException ioe) {
+                LOGGER.error("Could not load SNMPv3 engine store: {}", path, ioe);
+            }
+        }
+        LOGGER.info("{} SNMPv3 engines loaded from {}", entries.size(), path);
+
+        compact();
+    }
+
+    /**
+     * @return true if the engine has been restored, in which case it is valid and no discovery is necessary
+     */
+    public boolean restore(Address address, AuthRemoteEngine engine) {
+        Entry e = entries.get(address);
+        if (e == null) {
+            return false;
+        }
+        engine.restore(e.id, e.bootCount, e.bootTime);
+        LOGGER.trace("SNMPv3 engine restored for {}", address);
+        return engine.isValid();
+    }
+
+    /**
+     * Called on every received packet, only the changed engines are recorded (written by the next flush)
+     */
+    public void save(Address address, AuthRemoteEngine engine) {
+        if (!engine.isValid()) {
+            return;
+        }
+        byte[] id = engine.getId();
+        int bootCount = engine.getBootCount();
+        long bootTime = engine.getBootTime();
+        Entry e = entries.get(address);
+        if ((e != null) && e.sameAs(id, bootCount, bootTime)) {
+            return;
+        }
+        Entry n = new Entry(id, bootCount, bootTime, System.currentTimeMillis());
+        entries.put(address, n);
+        dirty.put(address, n);
+    }
+
+    public synchronized void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        if (records > Math.max(COMPACTION_MIN_RECORDS, 2 * entries.size())) {
+            dirty.clear();
+            compact();
+            return;
+        }
+        if (out == null) {
+            return;
+        }
+        try {
+            Iterator<Map.Entry<Address, Entry>> i = dirty.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Address, Entry> e = i.next();
+                i.remove();
+                write(out, e.getKey(), e.getValue());
+                records++;
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            LOGGER.error("Could not write SNMPv3 engine store: {}", path, ioe);
+            close();
+        }
+    }
+
+    private void compact() {
+        close();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                o.writeInt(MAGIC);
+                o.writeInt(VERSION);
+                for (Map.Entry<Address, Entry> e : entries.entrySet()) {
+                    write(o, e.getKey(), e.getValue());
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = entries.size();
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND)));
+        } catch (IOException ioe) {
+            LOGGER.error("Could not compact SNMPv3 engine store: {}", path, ioe);
+        }
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            LOGGER.trace("Could not close SNMPv3 engine store: {}", path, ioe);
+        }
+        out = null;
+    }
+
+    private static void write(DataOutputStream o, Address address, Entry e) throws IOException {
+        o.writeByte(address.ip.length);
+        o.write(address.ip);
+        o.writeInt(address.port);
+        o.writeShort(e.id.length);
+        o.write(e.id);
+        o.writeInt(e.bootCount);
+        o.writeLong(e.bootTime);
+        o.writeLong(e.savedAt);
+    }
+}
@@ -8,6 +8,7 @@ public final class BerConstants {
 	public static final int ERROR_STATUS_UNKNOWN = -4;
 	public static final int ERROR_STATUS_AUTHORIZATION_ERROR = 16;
 
+	public static final int VERSION_1 = 0;
 	public static final int VERSION_2C = 1;
 	public static final int VERSION_3 = 3;
 
@@ -46,6 +47,7 @@ public final class BerConstants {
 	public static final int GETNEXT = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x1);
 	public static final int RESPONSE = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x2);
 	public static final int SET = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x3);
+	public static final int TRAP_V1 = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x4);
 	public static final int GETBULK = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x5);
 	public static final int INFORM = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x6);
 	public static final int TRAP = (ASN_CONTEXT | ASN_CONSTRUCTOR | 0x7);
@@ -78,4 +80,5 @@ public final class BerConstants {
 	
 	public static final Oid TIMESTAMP_OID = new Oid("1.3.6.1.2.1.1.3.0");
 	public static final Oid TRAP_OID = new Oid("1.3.6.1.6.3.1.1.4.1.0");
+	public static final Oid GENERIC_TRAP_OID_PREFIX = new Oid("1.3.6.1.6.3.1.1.5"); // RFC 3584, SNMPv1 generic traps
 }
@@ -167,7 +167,8 @@ public final class BerReader {
 	}
 	
 	private static ByteBuffer doReadString(ByteBuffer buffer, int length) throws IOException {
-		ByteBuffer b = ByteBuffer.wrap(buffer.array(), buffer.position(), length);
+		ByteBuffer b = buffer.duplicate(); // Also for direct buffers (e.g. mapped captures)
+		b.limit(buffer.position() + length);
 		buffer.position(buffer.position() + length);
 		return b;
 	}
@@ -329,7 +330,9 @@ public final class BerReader {
 		while (bytes.hasRemaining()) {
 			int c = bytes.get() & 0xFF;
 			if (((c < 32) && (c != 10) && (c != 13)) || (c >= 127)) {
-				return BaseEncoding.base16().encode(bb.array(), bb.position(), bb.remaining());
+				byte[] b = new byte[bb.remaining()];
+				bb.duplicate().get(b);
+				return BaseEncoding.base16().encode(b);
 			}
 		}
 		return BerPacketUtils.string(bb);
@@ -0,0 +1,250 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import com.davfx.ninio.core.Address;
+
+/**
+ * Forwards only what changed since the previous poll of the same (device, OID).
+ * Values of the OIDs declared as counters are turned into rates (per second), handling the Counter32/Counter64 wraparound.
+ * If a counter is received again within the same millisecond, no rate can be computed: the delta itself is forwarded.
+ * The last values are kept per device in primitive arrays, indexed by OID (open addressing, nothing is boxed).
+ */
+public final class DeltaPollHandler implements PollHandler {
+
+	private static final byte KIND_UNKNOWN = 0;
+	private static final byte KIND_COUNTER32 = 1;
+	private static final byte KIND_COUNTER64 = 2;
+
+	private static final long COUNTER32_MODULO = 1L << 32;
+
+	public static interface Builder {
+		/**
+		 * The OIDs under this prefix are Counter32 values, rates are computed
+		 */
+		Builder counter32(Oid prefix);
+
+		/**
+		 * The OIDs under this prefix are Counter64 values, rates are computed
+		 */
+		Builder counter64(Oid prefix);
+
+		DeltaPollHandler build(PollHandler wrappee);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private final List<Oid> counter32 = new LinkedList<>();
+			private final List<Oid> counter64 = new LinkedList<>();
+
+			@Override
+			public Builder counter32(Oid prefix) {
+				counter32.add(prefix);
+				return this;
+			}
+
+			@Override
+			public Builder counter64(Oid prefix) {
+				counter64.add(prefix);
+				return this;
+			}
+
+			@Override
+			public DeltaPollHandler build(PollHandler wrappee) {
+				return new DeltaPollHandler(wrappee, counter32.toArray(new Oid[0]), counter64.toArray(new Oid[0]));
+			}
+		};
+	}
+
+	private static final class State {
+		private int[] index = new int[16]; // Linear probing on the OID hash, slot + 1 (0 if empty)
+		private Oid[] oids = new Oid[8];
+		private int size = 0;
+		private byte[] kinds = new byte[8];
+		private boolean[] numeric = new boolean[8];
+		private long[] values = new long[8];
+		private long[] times = new long[8]; // ms, 0 if never seen
+		private double[] rates = new double[8]; // Last rate forwarded, counters only
+		private String[] strings = new String[8]; // Only for non-numeric values
+
+		private static int hash(Oid oid) {
+			int h = oid.hashCode() * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		public int slot(Oid oid, byte kind) {
+			int mask = index.length - 1;
+			int i = hash(oid) & mask;
+			while (index[i] != 0) {
+				if (oids[index[i] - 1].equals(oid)) {
+					return index[i] - 1;
+				}
+				i = (i + 1) & mask;
+			}
+			if (size == values.length) {
+				int n = size * 2;
+				oids = Arrays.copyOf(oids, n);
+				kinds = Arrays.copyOf(kinds, n);
+				numeric = Arrays.copyOf(numeric, n);
+				values = Arrays.copyOf(values, n);
+				times = Arrays.copyOf(times, n);
+				rates = Arrays.copyOf(rates, n);
+				strings = Arrays.copyOf(strings, n);
+			}
+			int s = size;
+			size++;
+			oids[s] = oid;
+			kinds[s] = kind;
+			rates[s] = Double.NaN;
+			index[i] = s + 1;
+			if ((size * 2) > index.length) {
+				index = new int[index.length * 2];
+				mask = index.length - 1;
+				for (int k = 0; k < size; k++) {
+					int j = hash(oids[k]) & mask;
+					while (index[j] != 0) {
+						j = (j + 1) & mask;
+					}
+					index[j] = k + 1;
+				}
+			}
+			return s;
+		}
+	}
+
+	private final PollHandler wrappee;
+	private final Oid[] counter32;
+	private final Oid[] counter64;
+	private final LongSupplier clock;
+	private final Map<Address, State> states = new ConcurrentHashMap<>();
+
+	private DeltaPollHandler(PollHandler wrappee, Oid[] counter32, Oid[] counter64) {
+		this(wrappee, counter32, counter64, System::currentTimeMillis);
+	}
+
+	// Clock in ms
+	DeltaPollHandler(PollHandler wrappee, Oid[] counter32, Oid[] counter64, LongSupplier clock) {
+		this.wrappee = wrappee;
+		this.counter32 = counter32;
+		this.counter64 = counter64;
+		this.clock = clock;
+	}
+
+	/**
+	 * Drops the values kept for a device (e.g. when it is not polled anymore)
+	 */
+	public void remove(Address address) {
+		states.remove(address);
+	}
+
+	private byte kind(Oid oid) {
+		for (Oid p : counter32) {
+			if (p.isPrefixOf(oid)) {
+				return KIND_COUNTER32;
+			}
+		}
+		for (Oid p : counter64) {
+			if (p.isPrefixOf(oid)) {
+				return KIND_COUNTER64;
+			}
+		}
+		return KIND_UNKNOWN;
+	}
+
+	// Counter64 values may not fit in a signed long, they are parsed as unsigned (same 64 bits)
+	private static boolean isUnsignedNumber(String s) {
+		int n = s.length();
+		if ((n == 0) || (n > 20)) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if ((c < '0') || (c > '9')) {
+				return false;
+			}
+		}
+		return (n < 20) || (s.compareTo("18446744073709551615") <= 0);
+	}
+
+	@Override
+	public void received(Address address, SnmpResult result) {
+		State state = states.computeIfAbsent(address, k -> new State());
+		long now = clock.getAsLong();
+		boolean changed = false;
+		double rate = Double.NaN;
+		long delta = -1L; // Counters, forwarded as is when no rate can be computed
+
+		synchronized (state) {
+			int s = state.slot(result.oid, kind(result.oid));
+			byte kind = state.kinds[s];
+			boolean seen = state.times[s] != 0L;
+
+			if (!isUnsignedNumber(result.value)) {
+				changed = !seen || state.numeric[s] || !result.value.equals(state.strings[s]);
+				state.numeric[s] = false;
+				state.strings[s] = result.value;
+			} else {
+				long value = Long.parseUnsignedLong(result.value);
+				boolean wasNumber = seen && state.numeric[s];
+
+				if (kind == KIND_UNKNOWN) {
+					changed = !wasNumber || (value != state.values[s]);
+				} else if (wasNumber) {
+					long previous = state.values[s];
+					if (kind == KIND_COUNTER32) {
+						delta = Math.floorMod(value - previous, COUNTER32_MODULO); // Wrapped at 2^32
+					} else if (Long.compareUnsigned(value, previous) >= 0) {
+						delta = value - previous;
+					} else {
+						delta = -1L; // A Counter64 does not wrap in practice, the device was reset
+					}
+					if (delta >= 0L) {
+						if (now > state.times[s]) {
+							rate = (delta * 1000d) / (now - state.times[s]);
+							changed = (rate != state.rates[s]);
+							state.rates[s] = rate;
+						} else {
+							changed = (delta != 0L); // Same millisecond
+						}
+					}
+				}
+
+				state.numeric[s] = true;
+				state.values[s] = value;
+				state.strings[s] = null;
+			}
+			state.times[s] = now;
+		}
+
+		if (changed) {
+			if (!Double.isNaN(rate)) {
+				wrappee.received(address, new SnmpResult(result.oid, String.valueOf(rate)));
+			} else if (delta >= 0L) {
+				wrappee.received(address, new SnmpResult(result.oid, String.valueOf(delta)));
+			} else {
+				wrappee.received(address, result);
+			}
+		}
+	}
+
+	@Override
+	public void failed(Address address, Oid oid, IOException ioe) {
+		wrappee.failed(address, oid, ioe);
+	}
+
+	@Override
+	public void finished(Address address) {
+		wrappee.finished(address);
+	}
+
+	@Override
+	public void skipped(Address address) {
+		wrappee.skipped(address);
+	}
+}
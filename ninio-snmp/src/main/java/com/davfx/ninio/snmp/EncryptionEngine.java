@@ -20,53 +20,95 @@ import java.security.SecureRandom;
 
 /**
  * A lot is copied from snmp4j
+ *
+ * Thread-safe: digest and ciphers are held per thread, so a single engine can be shared by all devices using the same algorithms.
  */
 final class EncryptionEngine {
 	private static final Logger LOGGER = LoggerFactory.getLogger(EncryptionEngine.class);
 
 	private static final int ENCRYPTION_MARGIN = 64;
-	private final SecureRandom random = new SecureRandom();
-	private final MessageDigest messageDigest;
-	private final Cipher encryptionCipher;
-	private final Cipher decryptionCipher;
+	private static final int HMAC_BLOCK_LENGTH = 64;
+	private static final int AES_IV_LENGTH = 16;
+	private static final int DES_IV_LENGTH = 8;
+
 	private final int privKeyLength;
 	private final MemoryCache<String, byte[]> cache;
 	private final String privEncryptionAlgorithm;
 	private final AuthProtocol authDigestAlgorithm;
 	private final PrivacyProtocol privacyProtocol;
+	private final ThreadLocal<Crypto> crypto;
+
+	/**
+	 * Per-thread digest, ciphers and scratch arrays, never shared between threads
+	 */
+	private static final class Crypto {
+		public final MessageDigest messageDigest;
+		public final Cipher encryptionCipher;
+		public final Cipher decryptionCipher;
+		public final SecureRandom random = new SecureRandom();
+		public final byte[] innerPad = new byte[HMAC_BLOCK_LENGTH];
+		public final byte[] outerPad = new byte[HMAC_BLOCK_LENGTH];
+		public final byte[] digest;
+		public final byte[] aesIv = new byte[AES_IV_LENGTH];
+		public final byte[] desIv = new byte[DES_IV_LENGTH];
+
+		private byte[] lastPrivKey = null;
+		private SecretKeySpec lastKeySpec = null;
+
+		public Crypto(AuthProtocol authProtocol, PrivacyProtocol privacyProtocol) {
+			if (authProtocol == null) {
+				messageDigest = null;
+				digest = null;
+			} else {
+				try {
+					messageDigest = MessageDigest.getInstance(authProtocol.algorithm());
+				} catch (NoSuchAlgorithmException e) {
+					throw new RuntimeException(e);
+				}
+				digest = new byte[messageDigest.getDigestLength()];
+			}
+
+			if (privacyProtocol == null) {
+				encryptionCipher = null;
+				decryptionCipher = null;
+			} else {
+				LOGGER.trace("Creating encryption engine");
+				try {
+					encryptionCipher = Cipher.getInstance(privacyProtocol.encryption());
+					decryptionCipher = Cipher.getInstance(privacyProtocol.decryption());
+				} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+					throw new RuntimeException(e);
+				}
+				LOGGER.trace("Encryption engine created");
+			}
+		}
+
+		// The private key of a remote engine only changes on discovery, the spec is rebuilt only when another key is used
+		public SecretKeySpec keySpec(byte[] privKey, int privKeyLength, String privEncryptionAlgorithm) {
+			if (privKey != lastPrivKey) {
+				lastKeySpec = new SecretKeySpec(privKey, 0, privKeyLength, privEncryptionAlgorithm);
+				lastPrivKey = privKey;
+			}
+			return lastKeySpec;
+		}
+	}
 
 	public EncryptionEngine(AuthProtocol authProtocol, PrivacyProtocol privacyProtocol, double cacheDuration) {
 		this.authDigestAlgorithm = authProtocol;
 		this.privacyProtocol = privacyProtocol;
-		if (authProtocol == null) {
-			messageDigest = null;
-		} else {
-			try {
-				messageDigest = MessageDigest.getInstance(authProtocol.algorithm());
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
-			}
-		}
 
 		if (privacyProtocol == null) {
 			this.privEncryptionAlgorithm = null;
-			encryptionCipher = null;
-			decryptionCipher = null;
 			privKeyLength = 0;
 		} else {
 			this.privEncryptionAlgorithm = privacyProtocol.category();
-			LOGGER.trace("Creating encryption engine");
-			try {
-				encryptionCipher = Cipher.getInstance(privacyProtocol.encryption());
-				decryptionCipher = Cipher.getInstance(privacyProtocol.decryption());
-			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-				throw new RuntimeException(e);
-			}
-			LOGGER.trace("Encryption engine created");
 			privKeyLength = privacyProtocol.keyLength();
 		}
 
-		cache = MemoryCache.<String, byte[]> builder().expireAfterAccess(cacheDuration).build();
+		crypto = ThreadLocal.withInitial(() -> new Crypto(authProtocol, privacyProtocol));
+		crypto.get(); // Fails fast if the algorithms are not available
+
+		cache = MemoryCache.<String, byte[]> builder().expireAfterAccess(cacheDuration).segments(4).build(); // Shared by the receiving threads
 	}
 
 	public AuthProtocol authDigestAlgorithm() {
@@ -74,7 +116,7 @@ final class EncryptionEngine {
 	}
 
 	public byte[] regenerateKey(byte[] id, String password, boolean privateKey) {
-		if (messageDigest == null) {
+		if (authDigestAlgorithm == null) {
 			return null;
 		}
 
@@ -89,9 +131,12 @@ final class EncryptionEngine {
 		String k = BaseEncoding.base64().encode(id) + " " + password; // Space is a safe separator (not in the regular Base64 characters)
 		byte[] key = cache.get(k);
 		if (key == null) {
+			// Computed outside of the lock, concurrent regenerations of the same key give the same result
 			LOGGER.trace("Regenerating key");
+			MessageDigest messageDigest = crypto.get().messageDigest;
 			byte[] passwordBytes = password.getBytes(Charsets.UTF_8);
 
+			messageDigest.reset();
 			int count = 0;
 			int s = 1024 * 1024; // 1 MiB to be done
 			while (count < s) {
@@ -156,21 +201,39 @@ final class EncryptionEngine {
 	}
 
 	private byte[] hash(byte[] data, int length) {
+		MessageDigest messageDigest = crypto.get().messageDigest;
 		messageDigest.reset();
 		messageDigest.update(data, 0, length);
 		return messageDigest.digest();
 	}
 
 	public byte[] hash(byte[] authKey, ByteBuffer message) {
-		if (messageDigest == null) {
+		if (authDigestAlgorithm == null) {
 			return null;
 		}
 
+		byte[] k = new byte[authDigestAlgorithm.authCodeLength()];
+		hash(authKey, message, ByteBuffer.wrap(k));
+		return k;
+	}
+
+	/**
+	 * Writes the auth code (truncated HMAC of the message) at the current position of output, which is moved forward.
+	 * The message buffer is left untouched.
+	 *
+	 * @return false if no auth protocol is configured (nothing is written)
+	 */
+	public boolean hash(byte[] authKey, ByteBuffer message, ByteBuffer output) {
+		if (authDigestAlgorithm == null) {
+			return false;
+		}
+
+		Crypto c = crypto.get();
+		MessageDigest messageDigest = c.messageDigest;
 		ByteBuffer messageDup = message.duplicate();
 
-		byte[] newDigest;
-		byte[] k_ipad = new byte[64]; /* inner padding - key XORd with ipad */
-		byte[] k_opad = new byte[64]; /* outer padding - key XORd with opad */
+		byte[] k_ipad = c.innerPad; /* inner padding - key XORd with ipad */
+		byte[] k_opad = c.outerPad; /* outer padding - key XORd with opad */
 
 		/*
 		 * the HMAC_MD transform looks like:
@@ -186,102 +249,137 @@ final class EncryptionEngine {
 			k_ipad[i] = (byte) (authKey[i] ^ 0x36);
 			k_opad[i] = (byte) (authKey[i] ^ 0x5c);
 		}
-		for (int i = authKey.length; i < 64; ++i) {
+		for (int i = authKey.length; i < HMAC_BLOCK_LENGTH; ++i) {
 			k_ipad[i] = 0x36;
 			k_opad[i] = 0x5c;
 		}
 
-		/* perform inner MD */
-		messageDigest.reset();
-		messageDigest.update(k_ipad); /* start with inner pad */
-		messageDigest.update(messageDup); /* then text of msg */
-		newDigest = messageDigest.digest(); /* finish up 1st pass */
-		/* perform outer MD */
-		messageDigest.reset(); /* init md5 for 2nd pass */
-		messageDigest.update(k_opad); /* start with outer pad */
-		messageDigest.update(newDigest); /* then results of 1st hash */
-		newDigest = messageDigest.digest(); /* finish up 2nd pass */
+		try {
+			/* perform inner MD */
+			messageDigest.reset();
+			messageDigest.update(k_ipad); /* start with inner pad */
+			messageDigest.update(messageDup); /* then text of msg */
+			messageDigest.digest(c.digest, 0, c.digest.length); /* finish up 1st pass */
+			/* perform outer MD */
+			messageDigest.reset(); /* init md5 for 2nd pass */
+			messageDigest.update(k_opad); /* start with outer pad */
+			messageDigest.update(c.digest); /* then results of 1st hash */
+			messageDigest.digest(c.digest, 0, c.digest.length); /* finish up 2nd pass */
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
 
 		// copy the digest into the message (12 bytes only!)
-		byte[] k = new byte[authDigestAlgorithm.authCodeLength()];
-		System.arraycopy(newDigest, 0, k, 0, k.length);
-		return k;
+		output.put(c.digest, 0, authDigestAlgorithm.authCodeLength());
+		return true;
+	}
+
+	/**
+	 * Maximum number of bytes written by encrypt/decrypt for an input of the given length
+	 */
+	public int maxOutputLength(int inputLength) {
+		return inputLength + ENCRYPTION_MARGIN;
 	}
 
 	public ByteBuffer encrypt(int bootCount, int time, byte[] encryptionParameters, byte[] privKey, ByteBuffer decryptedBuffer) {
-		if (encryptionCipher == null) {
+		if (privacyProtocol == null) {
 			return null;
 		}
 
-		int salt = random.nextInt();
+		ByteBuffer b = ByteBuffer.allocate(maxOutputLength(decryptedBuffer.remaining()));
+		encrypt(bootCount, time, encryptionParameters, privKey, decryptedBuffer, b);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Encrypts into output, which must have at least maxOutputLength(decryptedBuffer.remaining()) bytes remaining.
+	 *
+	 * @return the number of bytes written, or -1 if no privacy protocol is configured
+	 */
+	public int encrypt(int bootCount, int time, byte[] encryptionParameters, byte[] privKey, ByteBuffer decryptedBuffer, ByteBuffer output) {
+		if (privacyProtocol == null) {
+			return -1;
+		}
+
+		Crypto c = crypto.get();
+		int salt = c.random.nextInt();
 		byte[] iv;
 
 		if (privEncryptionAlgorithm.equals("AES")) {
-			iv = new byte[16];
-			ByteBuffer ivb = ByteBuffer.wrap(iv);
-			ivb.putInt(bootCount);
-			ivb.putInt(time);
-			ivb.putInt(0);
-			ivb.putInt(salt);
-
-			ByteBuffer bb = ByteBuffer.wrap(encryptionParameters);
-			bb.putInt(0);
-			bb.putInt(salt);
+			iv = c.aesIv;
+			putInt(iv, 0, bootCount);
+			putInt(iv, 4, time);
+			putInt(iv, 8, 0);
+			putInt(iv, 12, salt);
+
+			putInt(encryptionParameters, 0, 0);
+			putInt(encryptionParameters, 4, salt);
 		} else {
-			ByteBuffer bb = ByteBuffer.wrap(encryptionParameters);
-			bb.putInt(bootCount);
-			bb.putInt(salt);
+			putInt(encryptionParameters, 0, bootCount);
+			putInt(encryptionParameters, 4, salt);
 
-			iv = new byte[8];
+			iv = c.desIv;
 			for (int i = 0; i < iv.length; i++) {
 				iv[i] = (byte) (privKey[iv.length + i] ^ encryptionParameters[i]);
 			}
 		}
 		try {
-			encryptionCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(privKey, 0, privKeyLength, privEncryptionAlgorithm), new IvParameterSpec(iv));
-			ByteBuffer b = ByteBuffer.allocate(decryptedBuffer.remaining() + ENCRYPTION_MARGIN);
-			encryptionCipher.doFinal(decryptedBuffer, b);
-			b.flip();
-			return b;
+			c.encryptionCipher.init(Cipher.ENCRYPT_MODE, c.keySpec(privKey, privKeyLength, privEncryptionAlgorithm), new IvParameterSpec(iv));
+			return c.encryptionCipher.doFinal(decryptedBuffer, output);
 		} catch (GeneralSecurityException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	public ByteBuffer decrypt(int bootCount, int time, byte[] encryptionParameters, byte[] privKey, ByteBuffer encryptedBuffer) {
-		if (decryptionCipher == null) {
+		if (privacyProtocol == null) {
 			return null;
 		}
 
+		ByteBuffer b = ByteBuffer.allocate(maxOutputLength(encryptedBuffer.remaining()));
+		decrypt(bootCount, time, encryptionParameters, privKey, encryptedBuffer, b);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Decrypts into output, which must have at least maxOutputLength(encryptedBuffer.remaining()) bytes remaining.
+	 *
+	 * @return the number of bytes written, or -1 if no privacy protocol is configured
+	 */
+	public int decrypt(int bootCount, int time, byte[] encryptionParameters, byte[] privKey, ByteBuffer encryptedBuffer, ByteBuffer output) {
+		if (privacyProtocol == null) {
+			return -1;
+		}
+
+		Crypto c = crypto.get();
 		byte[] iv;
 
 		if (privEncryptionAlgorithm.equals("AES")) {
-			iv = new byte[16];
-			ByteBuffer ivb = ByteBuffer.wrap(iv);
-			ivb.putInt(bootCount);
-			ivb.putInt(time);
-
-			ByteBuffer bb = ByteBuffer.wrap(encryptionParameters);
-			ivb.putInt(bb.getInt());
-			ivb.putInt(bb.getInt());
+			iv = c.aesIv;
+			putInt(iv, 0, bootCount);
+			putInt(iv, 4, time);
+			System.arraycopy(encryptionParameters, 0, iv, 8, 8);
 		} else {
-			iv = new byte[8];
+			iv = c.desIv;
 			for (int i = 0; i < 8; ++i) {
 				iv[i] = (byte) (privKey[8 + i] ^ encryptionParameters[i]);
 			}
 		}
 
 		try {
-			SecretKeySpec key = new SecretKeySpec(privKey, 0, privKeyLength, privEncryptionAlgorithm);
-			IvParameterSpec ivSpec = new IvParameterSpec(iv);
-			decryptionCipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
-			ByteBuffer b = ByteBuffer.allocate(encryptedBuffer.remaining() + ENCRYPTION_MARGIN);
-			decryptionCipher.doFinal(encryptedBuffer, b);
-			b.flip();
-			return b;
+			c.decryptionCipher.init(Cipher.DECRYPT_MODE, c.keySpec(privKey, privKeyLength, privEncryptionAlgorithm), new IvParameterSpec(iv));
+			return c.decryptionCipher.doFinal(encryptedBuffer, output);
 		} catch (GeneralSecurityException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
 }
@@ -0,0 +1,27 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+
+import com.davfx.ninio.core.Address;
+
+public interface PollHandler {
+	/**
+	 * Called from the SNMP client threads
+	 */
+	void received(Address address, SnmpResult result);
+
+	/**
+	 * A request of the poll failed, the other ones go on
+	 */
+	void failed(Address address, Oid oid, IOException ioe);
+
+	/**
+	 * All the requests of the poll are done
+	 */
+	void finished(Address address);
+
+	/**
+	 * The poll could not be started in time (or the previous one is not finished yet), it is not done at all
+	 */
+	void skipped(Address address);
+}
@@ -0,0 +1,443 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Timeout;
+import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
+import com.davfx.ninio.snmp.dependencies.Dependencies;
+import com.davfx.ninio.util.ClassThreadFactory;
+import com.davfx.ninio.util.ConfigUtils;
+import com.davfx.ninio.util.DateUtils;
+import com.typesafe.config.Config;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Summary;
+
+/**
+ * Polls devices periodically. Each registration is given a fixed offset in its interval (hash of the address and OIDs, plus some jitter),
+ * so that the polls are evenly spread instead of all starting at the beginning of the interval.
+ * The number of requests in flight is limited, globally and per device. A poll that could not be started in time
+ * (lag greater than a ratio of its interval), or whose previous occurrence is not finished yet, is skipped.
+ * The lag between the time a poll should have started and the time it really started is reported (poll_lag metric).
+ * The client is not closed by the scheduler.
+ */
+public final class PollScheduler implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PollScheduler.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(PollScheduler.class.getPackage().getName());
+	private static final double PRECISION = ConfigUtils.getDuration(CONFIG, "poll.precision");
+	private static final double DEFAULT_TIMEOUT = ConfigUtils.getDuration(CONFIG, "poll.timeout");
+	private static final double DEFAULT_JITTER = CONFIG.getDouble("poll.jitter");
+	private static final double DEFAULT_LAG = CONFIG.getDouble("poll.lag");
+	private static final int DEFAULT_IN_FLIGHT = CONFIG.getInt("poll.inFlight");
+	private static final int DEFAULT_IN_FLIGHT_PER_DEVICE = CONFIG.getInt("poll.inFlightPerDevice");
+
+	private static final Summary LAG = NinioMetrics.get().pollLag();
+	private static final Counter SKIPPED = NinioMetrics.get().pollSkipped();
+
+	public static interface Builder {
+		/**
+		 * Timeout of each request, in seconds
+		 */
+		Builder timeout(double timeout);
+
+		/**
+		 * Random part of the offset of a registration, as a ratio of its interval
+		 */
+		Builder jitter(double jitter);
+
+		/**
+		 * A poll not started after lag * interval is skipped
+		 */
+		Builder lag(double lag);
+
+		Builder inFlight(int inFlight);
+		Builder inFlightPerDevice(int inFlightPerDevice);
+
+		PollScheduler build(SnmpConnecter client);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private double timeout = DEFAULT_TIMEOUT;
+			private double jitter = DEFAULT_JITTER;
+			private double lag = DEFAULT_LAG;
+			private int inFlight = DEFAULT_IN_FLIGHT;
+			private int inFlightPerDevice = DEFAULT_IN_FLIGHT_PER_DEVICE;
+
+			@Override
+			public Builder timeout(double timeout) {
+				this.timeout = timeout;
+				return this;
+			}
+
+			@Override
+			public Builder jitter(double jitter) {
+				this.jitter = jitter;
+				return this;
+			}
+
+			@Override
+			public Builder lag(double lag) {
+				this.lag = lag;
+				return this;
+			}
+
+			@Override
+			public Builder inFlight(int inFlight) {
+				this.inFlight = inFlight;
+				return this;
+			}
+
+			@Override
+			public Builder inFlightPerDevice(int inFlightPerDevice) {
+				this.inFlightPerDevice = inFlightPerDevice;
+				return this;
+			}
+
+			@Override
+			public PollScheduler build(SnmpConnecter client) {
+				return new PollScheduler(client, timeout, jitter, lag, inFlight, inFlightPerDevice);
+			}
+		};
+	}
+
+	public static interface PollBuilder {
+		PollBuilder community(String community);
+		PollBuilder auth(AuthRemoteSpecification authRemoteSpecification);
+
+		/**
+		 * GETBULK by default
+		 */
+		PollBuilder type(SnmpCallType type);
+
+		PollBuilder add(Oid oid);
+
+		Cancelable register(PollHandler handler);
+	}
+
+	private static final class Device {
+		public final Address address;
+		public int registrations = 0;
+		public int inFlight = 0;
+		public final Deque<Cycle> waiting = new ArrayDeque<>(); // Blocked by the per-device limit
+		public Device(Address address) {
+			this.address = address;
+		}
+	}
+
+	private static final class Registration {
+		public final Device device;
+		public final String community;
+		public final AuthRemoteSpecification authRemoteSpecification;
+		public final SnmpCallType type;
+		public final Oid[] oids;
+		public final double interval;
+		public final PollHandler handler;
+
+		public double due;
+		public Cycle cycle = null;
+		public boolean canceled = false;
+
+		public Registration(Device device, String community, AuthRemoteSpecification authRemoteSpecification, SnmpCallType type, Oid[] oids, double interval, PollHandler handler) {
+			this.device = device;
+			this.community = community;
+			this.authRemoteSpecification = authRemoteSpecification;
+			this.type = type;
+			this.oids = oids;
+			this.interval = interval;
+			this.handler = handler;
+		}
+	}
+
+	private static final class Cycle {
+		public final Registration registration;
+		public final double due;
+		public int next = 0; // Index of the next OID to request
+		public int pending = 0;
+		public Cycle(Registration registration, double due) {
+			this.registration = registration;
+			this.due = due;
+		}
+	}
+
+	private final SnmpConnecter client;
+	private final double timeout;
+	private final double jitter;
+	private final double lag;
+	private final int maxInFlight;
+	private final int maxInFlightPerDevice;
+
+	private final Timeout timeoutManager = new Timeout();
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ClassThreadFactory(PollScheduler.class, true));
+
+	// Only accessed from the scheduler thread
+	private final Map<Address, Device> devices = new HashMap<>();
+	private final PriorityQueue<Registration> timeline = new PriorityQueue<>((a, b) -> Double.compare(a.due, b.due));
+	private final Deque<Cycle> ready = new ArrayDeque<>();
+	private int inFlight = 0;
+
+	private PollScheduler(SnmpConnecter client, double timeout, double jitter, double lag, int maxInFlight, int maxInFlightPerDevice) {
+		this.client = client;
+		this.timeout = timeout;
+		this.jitter = jitter;
+		this.lag = lag;
+		this.maxInFlight = maxInFlight;
+		this.maxInFlightPerDevice = maxInFlightPerDevice;
+
+		long precision = (long) (PRECISION * 1000d);
+		scheduler.scheduleAtFixedRate(this::tick, precision, precision, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		timeoutManager.close();
+	}
+
+	public PollBuilder poll(final Address address, final double interval) {
+		return new PollBuilder() {
+			private String community = null;
+			private AuthRemoteSpecification authRemoteSpecification = null;
+			private SnmpCallType type = SnmpCallType.GETBULK;
+			private final List<Oid> oids = new LinkedList<>();
+
+			@Override
+			public PollBuilder community(String community) {
+				this.community = community;
+				return this;
+			}
+
+			@Override
+			public PollBuilder auth(AuthRemoteSpecification authRemoteSpecification) {
+				this.authRemoteSpecification = authRemoteSpecification;
+				return this;
+			}
+
+			@Override
+			public PollBuilder type(SnmpCallType type) {
+				this.type = type;
+				return this;
+			}
+
+			@Override
+			public PollBuilder add(Oid oid) {
+				oids.add(oid);
+				return this;
+			}
+
+			@Override
+			public Cancelable register(final PollHandler handler) {
+				final Oid[] o = oids.toArray(new Oid[0]);
+				final double now = DateUtils.now();
+				final double offset = offset(address, o, interval);
+				final Registration[] registered = new Registration[] { null };
+				scheduler.execute(() -> {
+					Device device = devices.get(address);
+					if (device == null) {
+						device = new Device(address);
+						devices.put(address, device);
+					}
+					device.registrations++;
+
+					Registration r = new Registration(device, community, authRemoteSpecification, type, o, interval, handler);
+					double due = (Math.floor(now / interval) * interval) + offset;
+					while (due < now) {
+						due += interval;
+					}
+					r.due = due;
+					timeline.add(r);
+					registered[0] = r;
+					LOGGER.trace("Poll of {} registered, every {} s (offset: {} s)", address, interval, offset);
+				});
+
+				return new Cancelable() {
+					@Override
+					public void cancel() {
+						scheduler.execute(() -> unregister(registered[0]));
+					}
+				};
+			}
+		};
+	}
+
+	private double offset(Address address, Oid[] oids, double interval) {
+		long h = (address.hashCode() * 31L) + Arrays.hashCode(oids);
+		// Murmur3 finalizer, spreads close addresses over the whole interval
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		double offset = (h >>> 11) * 0x1.0p-53 * interval;
+		if (jitter > 0d) {
+			offset += ThreadLocalRandom.current().nextDouble() * jitter * interval;
+		}
+		return offset % interval;
+	}
+
+	private void unregister(Registration r) {
+		if ((r == null) || r.canceled) {
+			return;
+		}
+		r.canceled = true;
+		timeline.remove(r);
+		ready.removeIf(c -> c.registration == r);
+		Device d = r.device;
+		d.waiting.removeIf(c -> c.registration == r);
+		d.registrations--;
+		if ((r.cycle != null) && (r.cycle.pending == 0)) {
+			r.cycle = null;
+		}
+		clean(d);
+	}
+
+	private void clean(Device d) {
+		if ((d.registrations == 0) && (d.inFlight == 0)) {
+			devices.remove(d.address);
+		}
+	}
+
+	private void skip(Registration r) {
+		SKIPPED.inc();
+		LOGGER.debug("Poll of {} skipped", r.device.address);
+		r.handler.skipped(r.device.address);
+	}
+
+	private void tick() {
+		try {
+			double now = DateUtils.now();
+			while (true) {
+				Registration r = timeline.peek();
+				if ((r == null) || (r.due > now)) {
+					break;
+				}
+				timeline.poll();
+
+				if (r.cycle != null) {
+					skip(r);
+				} else {
+					r.cycle = new Cycle(r, r.due);
+					ready.addLast(r.cycle);
+				}
+
+				r.due += r.interval;
+				if (r.due <= now) {
+					// Far behind (e.g. the machine was suspended), the missed polls are not caught up
+					r.due += (Math.floor((now - r.due) / r.interval) + 1d) * r.interval;
+				}
+				timeline.add(r);
+			}
+			dispatch(now);
+		} catch (RuntimeException e) {
+			LOGGER.error("Poll scheduling failed", e);
+		}
+	}
+
+	private void dispatch(double now) {
+		while ((inFlight < maxInFlight) && !ready.isEmpty()) {
+			Cycle c = ready.peekFirst();
+			Registration r = c.registration;
+			Device d = r.device;
+
+			if (c.next == 0) {
+				double l = now - c.due;
+				if (l > (r.interval * lag)) {
+					ready.pollFirst();
+					r.cycle = null;
+					skip(r);
+					continue;
+				}
+			}
+
+			if (d.inFlight >= maxInFlightPerDevice) {
+				ready.pollFirst();
+				d.waiting.addLast(c);
+				continue;
+			}
+
+			if (c.next == 0) {
+				LAG.observe(Math.max(0d, now - c.due));
+			}
+			Oid oid = r.oids[c.next];
+			c.next++;
+			if (c.next == r.oids.length) {
+				ready.pollFirst();
+			}
+			c.pending++;
+			d.inFlight++;
+			inFlight++;
+			send(c, oid);
+		}
+	}
+
+	private void send(final Cycle c, final Oid oid) {
+		final Registration r = c.registration;
+		final Address address = r.device.address;
+		SnmpRequestBuilder request = SnmpTimeout.wrap(timeoutManager, timeout, client.request());
+		if (r.community != null) {
+			request.community(r.community);
+		}
+		if (r.authRemoteSpecification != null) {
+			request.auth(r.authRemoteSpecification);
+		}
+		request.build(address, oid).call(r.type, new SnmpReceiver() {
+			@Override
+			public void received(SnmpResult result) {
+				r.handler.received(address, result);
+			}
+
+			@Override
+			public void finished() {
+				scheduler.execute(() -> done(c));
+			}
+
+			@Override
+			public void failed(IOException ioe) {
+				r.handler.failed(address, oid, ioe);
+				scheduler.execute(() -> done(c));
+			}
+		});
+	}
+
+	private void done(Cycle c) {
+		Registration r = c.registration;
+		Device d = r.device;
+		c.pending--;
+		d.inFlight--;
+		inFlight--;
+
+		Cycle w = d.waiting.pollFirst();
+		if (w != null) {
+			ready.addFirst(w);
+		}
+
+		if (c.pending == 0) {
+			if (r.canceled) {
+				r.cycle = null;
+			} else if (c.next == r.oids.length) {
+				r.cycle = null;
+				r.handler.finished(d.address);
+			}
+		}
+
+		clean(d);
+		dispatch(DateUtils.now());
+	}
+}
@@ -2,7 +2,11 @@ package com.davfx.ninio.snmp;
 
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * One per client, lock-free
+ */
 public final class RequestIdProvider {
 
     private static final Random RANDOM = new SecureRandom();
@@ -11,21 +15,13 @@ public final class RequestIdProvider {
     private static final int MAX_ID = 2_043_088_696; // Let's do as snmpwalk is doing
     public static final int IGNORE_ID = MAX_ID;
 
-    private static int NEXT = MAX_ID;
-
-    private static final Object LOCK = new Object();
+    private final AtomicInteger next;
 
     public RequestIdProvider() {
+        next = new AtomicInteger(RANDOM.nextInt(MAX_ID - MIN_ID));
     }
 
     public int get() {
-        synchronized (LOCK) {
-            if (NEXT == MAX_ID) {
-                NEXT = MIN_ID + RANDOM.nextInt(MAX_ID - MIN_ID);
-            }
-            int k = NEXT;
-            NEXT++;
-            return k;
-        }
+        return MIN_ID + Math.floorMod(next.getAndIncrement(), MAX_ID - MIN_ID);
     }
 }
@@ -0,0 +1,241 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.NinioPriority;
+import com.davfx.ninio.core.NinioProvider;
+import com.davfx.ninio.core.Queue;
+import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.util.SerialExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the devices over several SnmpClient, each with its own UDP socket (or connecter) and executor, all on the queues of the Ninio that creates it.
+ * A device is always handled by the same shard (consistent hashing of its address), so its responses come back to the socket it was polled from.
+ */
+public final class ShardedSnmpClient implements SnmpConnecter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardedSnmpClient.class);
+
+	public static interface Builder extends NinioBuilder<SnmpConnecter> {
+		Builder shards(int shards);
+
+		/**
+		 * Creates the connecter of each shard (a UDP socket by default), see SnmpClient.Builder.with
+		 */
+		Builder with(NinioBuilder<Connecter> connecterFactory);
+
+		/**
+		 * Shard i is bound to bindAddress.port + i. By default, every shard is bound to an ephemeral port.
+		 * Only possible with UDP sockets (UdpSocket.Builder, the bind address of which is then set for each shard).
+		 */
+		Builder bind(Address bindAddress);
+
+		/**
+		 * See SnmpClient.Builder.retry
+		 */
+		Builder retry(int retries, double timeout, double backoff, double jitter);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private int shards = Runtime.getRuntime().availableProcessors();
+			private NinioBuilder<Connecter> connecterFactory = UdpSocket.builder();
+			private Address bindAddress = null;
+			private int retries = 0;
+			private double timeout = 0d;
+			private double backoff = 1d;
+			private double jitter = 0d;
+
+			@Override
+			public Builder shards(int shards) {
+				if (shards <= 0) {
+					throw new IllegalArgumentException("Invalid number of shards: " + shards);
+				}
+				this.shards = shards;
+				return this;
+			}
+
+			@Override
+			public Builder with(NinioBuilder<Connecter> connecterFactory) {
+				this.connecterFactory = connecterFactory;
+				return this;
+			}
+
+			@Override
+			public Builder bind(Address bindAddress) {
+				this.bindAddress = bindAddress;
+				return this;
+			}
+
+			@Override
+			public Builder retry(int retries, double timeout, double backoff, double jitter) {
+				this.retries = retries;
+				this.timeout = timeout;
+				this.backoff = backoff;
+				this.jitter = jitter;
+				return this;
+			}
+
+			@Override
+			public SnmpConnecter create(NinioProvider ninioProvider) {
+				if ((bindAddress != null) && !(connecterFactory instanceof UdpSocket.Builder)) {
+					throw new IllegalStateException("Only UDP sockets can be bound");
+				}
+				SnmpConnecter[] s = new SnmpConnecter[shards];
+				for (int i = 0; i < shards; i++) {
+					if (bindAddress != null) {
+						((UdpSocket.Builder) connecterFactory).bind(new Address(bindAddress.ip, bindAddress.port + i));
+					}
+					final Executor executor = new SerialExecutor(ShardedSnmpClient.class);
+					s[i] = SnmpClient.builder().with(connecterFactory).retry(retries, timeout, backoff, jitter).create(new NinioProvider() {
+						@Override
+						public Queue queue(NinioPriority priority) {
+							return ninioProvider.queue(priority);
+						}
+						@Override
+						public Executor executor() {
+							return executor;
+						}
+					});
+				}
+				return new ShardedSnmpClient(s);
+			}
+		};
+	}
+
+	private final SnmpConnecter[] shards;
+
+	private ShardedSnmpClient(SnmpConnecter[] shards) {
+		this.shards = shards;
+		LOGGER.debug("{} SNMP shards created", shards.length);
+	}
+
+	// Jump consistent hash (Lamping & Veach), only 1/n of the devices move when a shard is added
+	static int shard(Address address, int n) {
+		long key = address.port;
+		for (byte b : address.ip) {
+			key = (key * 31L) + (b & 0xFF);
+		}
+		key *= 0x9E3779B97F4A7C15L;
+
+		long b = -1L;
+		long j = 0L;
+		while (j < n) {
+			b = j;
+			key = (key * 2862933555777941757L) + 1L;
+			j = (long) ((b + 1L) * ((double) (1L << 31) / (double) ((key >>> 33) + 1L)));
+		}
+		return (int) b;
+	}
+
+	@Override
+	public SnmpRequestBuilder request() {
+		return new SnmpRequestBuilder() {
+			private String community = null;
+			private AuthRemoteSpecification authRemoteSpecification = null;
+			private Address address;
+			private Oid oid;
+			private List<SnmpResult> trap = null;
+
+			private SnmpRequestBuilder shardRequest = null;
+
+			@Override
+			public SnmpRequestBuilder community(String community) {
+				this.community = community;
+				return this;
+			}
+
+			@Override
+			public SnmpRequestBuilder auth(AuthRemoteSpecification authRemoteSpecification) {
+				this.authRemoteSpecification = authRemoteSpecification;
+				return this;
+			}
+
+			@Override
+			public SnmpRequestBuilder build(Address address, Oid oid) {
+				this.address = address;
+				this.oid = oid;
+				return this;
+			}
+
+			@Override
+			public SnmpRequestBuilder add(Oid oid, String value) {
+				if (trap == null) {
+					trap = new LinkedList<>();
+				}
+				trap.add(new SnmpResult(oid, value));
+				return this;
+			}
+
+			@Override
+			public void cancel() {
+				// Deprecated
+				if (shardRequest != null) {
+					shardRequest.cancel();
+				}
+			}
+
+			@Override
+			public Cancelable call(SnmpCallType type, SnmpReceiver callback) {
+				shardRequest = shards[shard(address, shards.length)].request()
+						.community(community)
+						.auth(authRemoteSpecification)
+						.build(address, oid);
+				if (trap != null) {
+					for (SnmpResult r : trap) {
+						shardRequest.add(r.oid, r.value);
+					}
+				}
+				return shardRequest.call(type, callback);
+			}
+		};
+	}
+
+	@Override
+	public void connect(final SnmpConnection callback) {
+		final AtomicInteger connected = new AtomicInteger(0);
+		final AtomicInteger closed = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		for (SnmpConnecter shard : shards) {
+			shard.connect(new SnmpConnection() {
+				@Override
+				public void connected(Address address) {
+					if ((connected.incrementAndGet() == shards.length) && (callback != null)) {
+						callback.connected(address);
+					}
+				}
+
+				@Override
+				public void failed(IOException ioe) {
+					if (failed.compareAndSet(false, true) && (callback != null)) {
+						callback.failed(ioe);
+					}
+				}
+
+				@Override
+				public void closed() {
+					if ((closed.incrementAndGet() == shards.length) && (callback != null)) {
+						callback.closed();
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void close() {
+		for (SnmpConnecter shard : shards) {
+			shard.close();
+		}
+	}
+}
@@ -11,9 +11,9 @@ import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
 import com.davfx.ninio.core.supervision.tracking.RequestTracker;
 import com.davfx.ninio.core.supervision.tracking.RequestTrackerManager;
 import com.davfx.ninio.snmp.dependencies.Dependencies;
-import com.davfx.ninio.snmp.encryption.AuthProtocol;
-import com.davfx.ninio.snmp.encryption.PrivacyProtocol;
+import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
+import com.davfx.ninio.util.IntHashMap;
 import com.google.common.collect.ImmutableList;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
@@ -22,14 +22,14 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.Executor;
-
-import static com.davfx.ninio.snmp.AuthCache.AUTH_ENGINES_CACHE_DURATION;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public final class SnmpClient implements SnmpConnecter {
 
@@ -50,11 +50,23 @@ public final class SnmpClient implements SnmpConnecter {
 		Builder with(Executor executor);
 
 		Builder with(NinioBuilder<Connecter> connecterFactory);
+
+		/**
+		 * Resends the already-encoded request (same request ID) up to retries times when no response arrives in time.
+		 * A SNMPv3 request encoded before its engine was reset (notInTimeWindow report) is encoded again once the engine is rediscovered.
+		 * The first attempt waits timeout seconds, each next one waits backoff times longer, randomly varied by +/- jitter (ratio).
+		 * A response to any attempt is accepted, duplicates are ignored. The request fails with a timeout after the last attempt.
+		 */
+		Builder retry(int retries, double timeout, double backoff, double jitter);
 	}
 
 	public static Builder builder() {
 		return new Builder() {
 			private NinioBuilder<Connecter> connecterFactory = UdpSocket.builder();
+			private int retries = 0;
+			private double timeout = 0d;
+			private double backoff = 1d;
+			private double jitter = 0d;
 
 			@Deprecated
 			@Override
@@ -68,9 +80,20 @@ public final class SnmpClient implements SnmpConnecter {
 				return this;
 			}
 
+			@Override
+			public Builder retry(int retries, double timeout, double backoff, double jitter) {
+				this.retries = retries;
+				this.timeout = timeout;
+				this.backoff = backoff;
+				this.jitter = jitter;
+				return this;
+			}
+
 			@Override
 			public SnmpConnecter create(NinioProvider ninioProvider) {
-				return new SnmpClient(ninioProvider.executor(), connecterFactory.create(ninioProvider));
+				Executor executor = ninioProvider.executor();
+				Retry retry = (timeout > 0d) ? new Retry(executor, retries, timeout, backoff, jitter) : null;
+				return new SnmpClient(executor, connecterFactory.create(ninioProvider), retry);
 			}
 		};
 	}
@@ -85,9 +108,12 @@ public final class SnmpClient implements SnmpConnecter {
 
 	private final AuthCache authCache;
 
-	private SnmpClient(Executor executor, Connecter connecter) {
+	private final Retry retry;
+
+	private SnmpClient(Executor executor, Connecter connecter, Retry retry) {
 		this.executor = executor;
 		this.connecter = connecter;
+		this.retry = retry;
 		this.authCache = AuthCache.get();
 		instanceMapper = new InstanceMapper(requestIdProvider);
 	}
@@ -158,38 +184,21 @@ public final class SnmpClient implements SnmpConnecter {
 							throw new IllegalStateException();
 						}
 
-						instance = new Instance(connecter, instanceMapper, o, contextName, a, type, c, t);
+						instance = new Instance(connecter, instanceMapper, retry, o, contextName, a, type, c, t);
 
 						AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager = null;
 						if (auth != null) {
-							Auth previousAuth = authCache.auths.getIfPresent(a);
-							if (previousAuth != null) {
-								if (!previousAuth.equals(auth)) {
-									LOGGER.debug("Auth changed ({} -> {}) for {}", previousAuth, auth, a);
-								}
-							}
-							authCache.auths.put(a, auth);
-
-							EncryptionEngineKey encryptionEngineKey = new EncryptionEngineKey(auth.authDigestAlgorithm, auth.privEncryptionAlgorithm);
-							EncryptionEngine encryptionEngine = authCache.encryptionEngines.getIfPresent(encryptionEngineKey);
-							if (encryptionEngine == null) {
-								AuthProtocol authProtocol = Optional.ofNullable(auth.authDigestAlgorithm)
-										.map(AuthProtocol::fromAlgorithm)
-										.orElse(null);
-								PrivacyProtocol privacyProtocol = Optional.ofNullable(auth.privEncryptionAlgorithm)
-										.map(PrivacyProtocol::fromAlgorithm)
-										.orElse(null);
-
-								encryptionEngine = new EncryptionEngine(authProtocol, privacyProtocol, AUTH_ENGINES_CACHE_DURATION);
-								authCache.encryptionEngines.put(encryptionEngineKey, encryptionEngine);
+							SnmpSession session = authCache.sessions.getOrCreate(a);
+							AuthRemoteEnginePendingRequestManager previous = session.authRemoteEnginePendingRequestManager();
+							if ((previous != null) && !previous.engine.auth.equals(auth)) {
+								LOGGER.debug("Auth changed ({} -> {}) for {}", previous.engine.auth, auth, a);
 							}
-
-							AuthRemoteEngineKey authRemoteEngineKey = new AuthRemoteEngineKey(a, auth);
-							authRemoteEnginePendingRequestManager = authCache.authRemoteEngines.getIfPresent(authRemoteEngineKey);
+							authRemoteEnginePendingRequestManager = session.access(auth);
 							if (authRemoteEnginePendingRequestManager == null) {
-								authRemoteEnginePendingRequestManager = new AuthRemoteEnginePendingRequestManager(auth, encryptionEngine);
-								authCache.authRemoteEngines.put(authRemoteEngineKey, authRemoteEnginePendingRequestManager);
+								authRemoteEnginePendingRequestManager = new AuthRemoteEnginePendingRequestManager(auth, authCache.encryptionEngine(auth));
+								session.authRemoteEnginePendingRequestManager(authRemoteEnginePendingRequestManager);
 
+								authCache.restore(a, authRemoteEnginePendingRequestManager);
 								authRemoteEnginePendingRequestManager.discoverIfNecessary(a, connecter);
 							}
 						}
@@ -227,17 +236,10 @@ public final class SnmpClient implements SnmpConnecter {
 						int instanceId;
 						int errorStatus;
 						int errorIndex;
-						Iterable<SnmpResult> results;
+						SnmpPacketParser parser;
 
-						Auth auth = authCache.auths.getIfPresent(address);
-
-						AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager;
-						if (auth == null) {
-							authRemoteEnginePendingRequestManager = null;
-						} else {
-							AuthRemoteEngineKey authRemoteEngineKey = new AuthRemoteEngineKey(address, auth);
-							authRemoteEnginePendingRequestManager = authCache.authRemoteEngines.getIfPresent(authRemoteEngineKey);
-						}
+						SnmpSession session = authCache.sessions.get(address);
+						AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager = (session == null) ? null : session.access();
 
 						boolean ready;
 						if (authRemoteEnginePendingRequestManager != null) {
@@ -246,11 +248,11 @@ public final class SnmpClient implements SnmpConnecter {
 							ready = true;
 						}
 						try {
-							SnmpPacketParser parser = new SnmpPacketParser(address, (authRemoteEnginePendingRequestManager == null) ? null : authRemoteEnginePendingRequestManager.engine, buffer);
+							// Only the header is parsed here, the variables are handed to the receiver straight from the buffer
+							parser = SnmpPacketParser.stream(address, (authRemoteEnginePendingRequestManager == null) ? null : authRemoteEnginePendingRequestManager.engine, buffer);
 							instanceId = parser.getRequestId();
 							errorStatus = parser.getErrorStatus();
 							errorIndex = parser.getErrorIndex();
-							results = parser.getResults();
 						} catch (Exception e) {
 							LOGGER.error("Invalid packet", e);
 							return;
@@ -263,9 +265,11 @@ public final class SnmpClient implements SnmpConnecter {
 
 							authRemoteEnginePendingRequestManager.discoverIfNecessary(address, connecter);
 							authRemoteEnginePendingRequestManager.sendPendingRequestsIfReady(address, connecter);
+
+							authCache.save(address, authRemoteEnginePendingRequestManager);
 						}
 
-						instanceMapper.handle(address, instanceId, errorStatus, errorIndex, results);
+						instanceMapper.handle(address, instanceId, errorStatus, errorIndex, parser);
 					}
 				});
 			}
@@ -317,18 +321,54 @@ public final class SnmpClient implements SnmpConnecter {
 		});
 
 		connecter.close();
+
+		if (retry != null) {
+			retry.close();
+		}
+	}
+
+	private static final class Retry {
+		public final int retries;
+		private final double timeout;
+		private final double backoff;
+		private final double jitter;
+		private final Executor executor;
+		private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ClassThreadFactory(SnmpClient.class, "retry", true));
+
+		public Retry(Executor executor, int retries, double timeout, double backoff, double jitter) {
+			this.executor = executor;
+			this.retries = retries;
+			this.timeout = timeout;
+			this.backoff = backoff;
+			this.jitter = jitter;
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+
+		// The runnable is executed on the client executor
+		public ScheduledFuture<?> schedule(int attempt, Runnable runnable) {
+			double t = timeout * Math.pow(backoff, attempt);
+			if (jitter > 0d) {
+				t *= 1d + (jitter * ((2d * ThreadLocalRandom.current().nextDouble()) - 1d));
+			}
+			return scheduler.schedule(() -> executor.execute(runnable), (long) (t * 1000d), TimeUnit.MILLISECONDS);
+		}
+
+		public void close() {
+			scheduler.shutdownNow();
+		}
 	}
 
 	private static final class InstanceMapper {
 		private final RequestIdProvider requestIdProvider;
-		private final Map<Integer, Instance> instances = new HashMap<>();
+		private final IntHashMap<Instance> instances = new IntHashMap<>();
+		private final Map<Address, Instance> instancesByAddress = new HashMap<>(); // Heads of the per-address linked lists
 
 		public InstanceMapper(RequestIdProvider requestIdProvider) {
 			this.requestIdProvider = requestIdProvider;
 		}
 
 		public void map(Instance instance) {
-			instances.remove(instance.instanceId);
+			remove(instance);
 
 			int instanceId = requestIdProvider.get();
 
@@ -338,44 +378,88 @@ public final class SnmpClient implements SnmpConnecter {
 			}
 
 			instances.put(instanceId, instance);
+			link(instance);
 
 			LOGGER.trace("New instance ID = {}", instanceId);
 			instance.instanceId = instanceId;
 		}
 
 		public void unmap(Instance instance) {
-			instances.remove(instance.instanceId);
+			remove(instance);
 			instance.instanceId = RequestIdProvider.IGNORE_ID;
 		}
 
-		public void close() {
-			for (Instance i : instances.values()) {
-				i.close();
+		private void remove(Instance instance) {
+			if (instances.get(instance.instanceId) == instance) {
+				instances.remove(instance.instanceId);
+				unlink(instance);
 			}
+		}
+
+		private void link(Instance instance) {
+			Instance head = instancesByAddress.put(instance.address, instance);
+			instance.previousByAddress = null;
+			instance.nextByAddress = head;
+			if (head != null) {
+				head.previousByAddress = instance;
+			}
+		}
+
+		private void unlink(Instance instance) {
+			if (instance.previousByAddress == null) {
+				if (instance.nextByAddress == null) {
+					instancesByAddress.remove(instance.address);
+				} else {
+					instancesByAddress.put(instance.address, instance.nextByAddress);
+				}
+			} else {
+				instance.previousByAddress.nextByAddress = instance.nextByAddress;
+			}
+			if (instance.nextByAddress != null) {
+				instance.nextByAddress.previousByAddress = instance.previousByAddress;
+			}
+			instance.previousByAddress = null;
+			instance.nextByAddress = null;
+		}
+
+		public void close() {
+			instances.forEachValue(Instance::close);
 			instances.clear();
+			instancesByAddress.clear();
 		}
 
 		public void fail(IOException ioe) {
-			for (Instance i : instances.values()) {
-				i.fail(ioe);
-			}
+			instances.forEachValue(i -> i.fail(ioe));
 			instances.clear();
+			instancesByAddress.clear();
 		}
 
-		public void handle(Address address, int instanceId, int errorStatus, int errorIndex, Iterable<SnmpResult> results) {
+		public void handle(Address address, int instanceId, int errorStatus, int errorIndex, SnmpPacketParser parser) {
 			if (instanceId == Integer.MAX_VALUE) {
 				LOGGER.trace("Calling all instances for address {} (request ID = {})", address, Integer.MAX_VALUE);
-				List<Instance> l = new LinkedList<>();
-				Iterator<Instance> iterator = instances.values().iterator();
-				while (iterator.hasNext()) {
-					Instance instance = iterator.next();
-					if(instance.address.equals(address)){
-						l.add(instance);
-						iterator.remove();
-					}
+				Instance head = instancesByAddress.remove(address);
+				// Several instances, the variables are read once
+				List<SnmpResult> results = new LinkedList<>();
+				IOException error = null;
+				try {
+					parser.visit(results::add);
+				} catch (IOException e) {
+					error = e;
 				}
-				for (Instance i : l) {
-					i.handle(errorStatus, errorIndex, results);
+				for (Instance i = head; i != null; i = i.nextByAddress) {
+					instances.remove(i.instanceId);
+				}
+				Instance i = head;
+				while (i != null) {
+					Instance next = i.nextByAddress;
+					i.previousByAddress = null;
+					i.nextByAddress = null;
+					if (error == null) {
+						i.handle(errorStatus, errorIndex, results);
+					} else {
+						i.fail(error);
+					}
+					i = next;
 				}
 				return;
 			}
@@ -384,19 +468,23 @@ public final class SnmpClient implements SnmpConnecter {
 			if (i == null) {
 				return;
 			}
-			i.handle(errorStatus, errorIndex, results);
+			unlink(i);
+			i.handle(errorStatus, errorIndex, parser);
 		}
 	}
 
 	private static final class Instance {
 		private final Connecter connector;
 		private final InstanceMapper instanceMapper;
+		private final Retry retry;
 
 		private SnmpReceiver receiver;
 
 		private final Oid requestOid;
 		private final String requestContextName;
 		public int instanceId = RequestIdProvider.IGNORE_ID;
+		private Instance previousByAddress = null;
+		private Instance nextByAddress = null;
 
 		private final Address address;
 		private final String community;
@@ -405,9 +493,27 @@ public final class SnmpClient implements SnmpConnecter {
 
 		private final Iterable<SnmpResult> trap;
 
-		public Instance(Connecter connector, InstanceMapper instanceMapper, Oid requestOid, String requestContextName, Address address, SnmpCallType snmpCallType, String community, Iterable<SnmpResult> trap) {
+		private final SendCallback sendCallback = new SendCallback() {
+			@Override
+			public void sent() {
+			}
+			@Override
+			public void failed(IOException ioe) {
+				fail(ioe);
+			}
+		};
+
+		// Kept to be resent as is by retries
+		private ByteBuffer encoded = null;
+		private AuthRemoteEnginePendingRequestManager.PendingRequest pendingRequest = null;
+		private int attempt = 0;
+		private ScheduledFuture<?> retryFuture = null;
+		private boolean resynced = false;
+
+		public Instance(Connecter connector, InstanceMapper instanceMapper, Retry retry, Oid requestOid, String requestContextName, Address address, SnmpCallType snmpCallType, String community, Iterable<SnmpResult> trap) {
 			this.connector = connector;
 			this.instanceMapper = instanceMapper;
+			this.retry = retry;
 
 			this.requestOid = requestOid;
 			this.requestContextName = requestContextName;
@@ -424,13 +530,16 @@ public final class SnmpClient implements SnmpConnecter {
 				instanceMapper.map(this);
 			}
 			write();
+			scheduleRetry();
 		}
 
 		public void close() {
+			cancelRetry();
 			receiver = null;
 		}
 
 		public void cancel() {
+			cancelRetry();
 			if (authRemoteEnginePendingRequestManager != null) {
 				authRemoteEnginePendingRequestManager.clearPendingRequests();
 			}
@@ -438,17 +547,61 @@ public final class SnmpClient implements SnmpConnecter {
 			receiver = null;
 		}
 
-		private void write() {
-			SendCallback sendCallback = new SendCallback() {
-				@Override
-				public void sent() {
-				}
-				@Override
-				public void failed(IOException ioe) {
-					fail(ioe);
-				}
-			};
+		private void scheduleRetry() {
+			if ((retry == null) || (receiver == null) || (requestOid == null)) {
+				return;
+			}
+			retryFuture = retry.schedule(attempt, this::retry);
+		}
+
+		private void cancelRetry() {
+			if (retryFuture != null) {
+				retryFuture.cancel(false);
+				retryFuture = null;
+			}
+		}
+
+		private void retry() {
+			retryFuture = null;
+			if (receiver == null) {
+				return;
+			}
+
+			attempt++;
+			if (attempt > retry.retries) {
+				instanceMapper.unmap(this);
+				fail(new IOException("Timeout"));
+				return;
+			}
+
+			if ((pendingRequest != null) && authRemoteEnginePendingRequestManager.requeueIfOutdated(pendingRequest)) {
+				// Resending the same packet would be rejected again, it is encoded again once the engine is discovered
+				LOGGER.trace("Retrying #{} ({}) with the engine discovered again", instanceId, attempt);
+				authRemoteEnginePendingRequestManager.discoverIfNecessary(address, connector);
+				authRemoteEnginePendingRequestManager.sendPendingRequestsIfReady(address, connector);
+				scheduleRetry();
+				return;
+			}
 
+			ByteBuffer b = (pendingRequest == null) ? encoded : pendingRequest.encoded();
+			if ((authRemoteEnginePendingRequestManager != null) && ((b == null) || !authRemoteEnginePendingRequestManager.isReady())) {
+				LOGGER.trace("Retrying discovery #{} ({})", instanceId, attempt);
+				authRemoteEnginePendingRequestManager.discoverIfNecessary(address, connector);
+			} else if (b != null) {
+				LOGGER.trace("Retrying #{} ({}), packet size = {}", instanceId, attempt, b.remaining());
+				connector.send(address, b.duplicate(), sendCallback);
+			}
+			scheduleRetry();
+		}
+
+		private void send(ByteBuffer b) {
+			if (retry != null) {
+				encoded = b.duplicate();
+			}
+			connector.send(address, b, sendCallback);
+		}
+
+		private void write() {
 			if (authRemoteEnginePendingRequestManager == null) {
 				AUTH_TRACKER_OUT.track(Address.ipToString(address.ip), v -> String.format("Writing %s v2: %s:%s", snmpCallType, v, requestOid));
 				switch (snmpCallType) {
@@ -456,89 +609,127 @@ public final class SnmpClient implements SnmpConnecter {
 						Version2cPacketBuilder builder = Version2cPacketBuilder.get(community, instanceId, requestOid);
 						ByteBuffer b = builder.getBuffer();
 						LOGGER.trace("Writing GET: {} #{} ({}), packet size = {}", requestOid, instanceId, community, b.remaining());
-						connector.send(address, b, sendCallback);
+						send(b);
 						break;
 					}
 					case GETNEXT: {
 						Version2cPacketBuilder builder = Version2cPacketBuilder.getNext(community, instanceId, requestOid);
 						ByteBuffer b = builder.getBuffer();
 						LOGGER.trace("Writing GETNEXT: {} #{} ({}), packet size = {}", requestOid, instanceId, community, b.remaining());
-						connector.send(address, b, sendCallback);
+						send(b);
 						break;
 					}
 					case GETBULK: {
 						Version2cPacketBuilder builder = Version2cPacketBuilder.getBulk(community, instanceId, requestOid, BULK_SIZE);
 						ByteBuffer b = builder.getBuffer();
 						LOGGER.trace("Writing GETBULK: {} #{} ({}), packet size = {}", requestOid, instanceId, community, b.remaining());
-						connector.send(address, b, sendCallback);
+						send(b);
 						break;
 					}
 					case TRAP: {
 						Version2cPacketBuilder builder = Version2cPacketBuilder.trap(community, instanceId, requestOid, trap);
 						ByteBuffer b = builder.getBuffer();
 						LOGGER.trace("Writing TRAP: {} #{} ({}), packet size = {}", requestOid, instanceId, community, b.remaining());
-						connector.send(address, b, sendCallback);
+						send(b);
 						break;
 					}
 					default:
 						break;
 				}
 			} else {
-				authRemoteEnginePendingRequestManager.registerPendingRequest(new AuthRemoteEnginePendingRequestManager.PendingRequest(snmpCallType, instanceId, requestOid, requestContextName, /*trap, */sendCallback));
+				pendingRequest = new AuthRemoteEnginePendingRequestManager.PendingRequest(snmpCallType, instanceId, requestOid, requestContextName, /*trap, */sendCallback);
+				authRemoteEnginePendingRequestManager.registerPendingRequest(pendingRequest);
 				authRemoteEnginePendingRequestManager.discoverIfNecessary(address, connector);
 				authRemoteEnginePendingRequestManager.sendPendingRequestsIfReady(address, connector);
 			}
 		}
 
 		public void fail(IOException e) {
+			cancelRetry();
 			if (receiver != null) {
 				receiver.failed(e);
 			}
 			receiver = null;
 		}
 
-		private void handle(int errorStatus, int errorIndex, Iterable<SnmpResult> results) {
+		// Returns false if the request failed
+		private boolean check(int errorStatus, int errorIndex) {
+			cancelRetry();
 			if (requestOid == null) {
-				return;
+				return false;
 			}
 
 			if (errorStatus == BerConstants.ERROR_STATUS_AUTHENTICATION_NOT_SYNCED) {
+				if ((authRemoteEnginePendingRequestManager != null) && !resynced && (receiver != null)) {
+					// The engine is being discovered again (see connect), the request waits for it in the queue, once
+					LOGGER.trace("Engine not synced, requesting again");
+					resynced = true;
+					instanceMapper.map(this);
+					write();
+					scheduleRetry();
+					return false;
+				}
 				fail(new IOException("Authentication engine not synced"));
-				return;
+				return false;
 			}
 
 			if (errorStatus == BerConstants.ERROR_STATUS_AUTHENTICATION_FAILED) {
 				fail(new IOException("Authentication failed"));
-				return;
+				return false;
 			}
 
 			if (errorStatus == BerConstants.ERROR_STATUS_TIMEOUT) {
 				fail(new IOException("Timeout"));
-				return;
+				return false;
 			}
 
 			if (errorStatus == BerConstants.ERROR_STATUS_AUTHORIZATION_ERROR) {
 				fail(new IOException("Authorization error"));
-				return;
+				return false;
 			}
 
 			if (errorStatus != 0) {
 				LOGGER.trace("Received error: {}/{}", errorStatus, errorIndex);
 			}
+			return true;
+		}
 
-			for (SnmpResult r : results) {
-				if (r.value == null) {
-					continue;
-				}
-				LOGGER.trace("Addind to results: {}", r);
-				if (receiver != null) {
-					receiver.received(r);
-				}
+		private void received(SnmpResult r) {
+			LOGGER.trace("Addind to results: {}", r);
+			if (receiver != null) {
+				receiver.received(r);
 			}
+		}
+
+		private void finish() {
 			if (receiver != null) {
 				receiver.finished();
 			}
 			receiver = null;
 		}
+
+		private void handle(int errorStatus, int errorIndex, SnmpPacketParser parser) {
+			if (!check(errorStatus, errorIndex)) {
+				return;
+			}
+			try {
+				parser.visit(this::received);
+			} catch (IOException e) {
+				LOGGER.error("Invalid packet", e);
+				fail(e);
+				return;
+			}
+			finish();
+		}
+
+		private void handle(int errorStatus, int errorIndex, Iterable<SnmpResult> results) {
+			if (!check(errorStatus, errorIndex)) {
+				return;
+			}
+			for (SnmpResult r : results) {
+				received(r);
+			}
+			finish();
+		}
 	}
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +20,43 @@ public final class SnmpInMemoryCacheInterpreter implements InMemoryCache.Interpr
 	public SnmpInMemoryCacheInterpreter() {
 	}
 	
+	// Requests are cached by (first OID, PDU type, v3 context name), hash computed once
+	private static final class RequestKey {
+		private final Oid oid;
+		private final int type;
+		private final String contextName;
+		private final int hash;
+		
+		public RequestKey(Oid oid, int type, String contextName) {
+			this.oid = oid;
+			this.type = type;
+			this.contextName = contextName;
+			hash = (31 * ((31 * oid.hashCode()) + type)) + Objects.hashCode(contextName);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof RequestKey)) {
+				return false;
+			}
+			RequestKey k = (RequestKey) o;
+			return (k.hash == hash) && (k.type == type) && k.oid.equals(oid) && Objects.equals(k.contextName, contextName);
+		}
+		
+		@Override
+		public String toString() {
+			return (contextName == null) ? (oid + "/" + type) : (oid + "/" + type + "/" + contextName);
+		}
+	}
+	
 	@Override
 	public InMemoryCache.Context<Integer> handleRequest(ByteBuffer packet) {
 		try {
@@ -43,9 +81,7 @@ public final class SnmpInMemoryCacheInterpreter implements InMemoryCache.Interpr
 									Oid oid = ber.readOid();
 									ber.readValue();
 									
-									String key = oid + "/" + type;
-									
-									return new InMemoryCache.Context<Integer>(key, requestId);
+									return new InMemoryCache.Context<Integer>(new RequestKey(oid, type, null), requestId);
 								}
 								// ber.endReadSequence();
 							}
@@ -108,10 +144,7 @@ public final class SnmpInMemoryCacheInterpreter implements InMemoryCache.Interpr
 									Oid oid = pdu.readOid();
 									pdu.readValue();
 									
-									String key = oid + "/" + type + "/" + contextName;
-									// LOGGER.info("key={}", key);
-
-									return new InMemoryCache.Context<Integer>(key, requestId);
+									return new InMemoryCache.Context<Integer>(new RequestKey(oid, type, contextName), requestId);
 								}
 								// pdu.endReadSequence();
 							}
@@ -17,12 +17,34 @@ public final class SnmpPacketParser {
 	private static final Oid AUTH_ERROR_UNKNOWN_ENGINE_ID_OID = new Oid("1.3.6.1.6.3.15.1.1.4.0");
 	private static final Oid AUTH_ERROR_NOT_IN_TIME_WINDOW_OID = new Oid("1.3.6.1.6.3.15.1.1.2.0");
 	
+	public static interface Visitor {
+		void visit(SnmpResult result);
+	}
+
 	private final int requestId;
 	private final int errorStatus;
 	private final int errorIndex;
 	private final List<SnmpResult> results = new LinkedList<SnmpResult>();
 
+	// Positioned on the variables, until they are visited
+	private BerReader ber = null;
+	private BerReader pdu = null;
+
+	/**
+	 * Parses the whole packet, the results are available with getResults
+	 */
 	public SnmpPacketParser(Address address, AuthRemoteEngine authEngine, ByteBuffer buffer) throws IOException {
+		this(address, authEngine, buffer, true);
+	}
+
+	/**
+	 * Only validates and parses the header of the packet. The variables are then read straight from the buffer by visit (getResults is empty).
+	 */
+	public static SnmpPacketParser stream(Address address, AuthRemoteEngine authEngine, ByteBuffer buffer) throws IOException {
+		return new SnmpPacketParser(address, authEngine, buffer, false);
+	}
+
+	private SnmpPacketParser(Address address, AuthRemoteEngine authEngine, ByteBuffer buffer, boolean full) throws IOException {
 		BerReader ber = new BerReader(buffer);
 		ber.beginReadSequence();
 		{
@@ -40,26 +62,10 @@ public final class SnmpPacketParser {
 					requestId = ber.readInteger();
 					errorStatus = ber.readInteger();
 					errorIndex = ber.readInteger();
-
-					ber.beginReadSequence();
-					{
-						while (ber.hasRemainingInSequence()) {
-							ber.beginReadSequence();
-							{
-								Oid oid = ber.readOid();
-								String value = ber.readValue();
-								if (value == null) {
-									LOGGER.trace("Opaque value: {}", oid);
-								} else {
-									results.add(new SnmpResult(oid, value));
-								}
-							}
-							ber.endReadSequence();
-						}
-					}
-					ber.endReadSequence();
 				}
-				ber.endReadSequence();
+
+				this.ber = ber;
+				pdu = ber;
 
 			} else if (version == BerConstants.VERSION_3) {
 				
@@ -164,6 +170,7 @@ public final class SnmpPacketParser {
 						}
 					}
 					pdu.endReadSequence();
+					pdu.endReadSequence();
 				} else {
 					if (s != BerConstants.RESPONSE) {
 						throw new IOException("Not a response packet");
@@ -173,26 +180,11 @@ public final class SnmpPacketParser {
 					errorStatus = pdu.readInteger();
 					errorIndex = pdu.readInteger();
 					LOGGER.trace("RESPONSE error = {}/{}", errorStatus, errorIndex);
-	
-					pdu.beginReadSequence();
-					{
-						while (pdu.hasRemainingInSequence()) {
-							pdu.beginReadSequence();
-							{
-								Oid oid = pdu.readOid();
-								String value = pdu.readValue();
-								LOGGER.trace("<- {} = {}", oid, value);
-								if (value != null) {
-									results.add(new SnmpResult(oid, value));
-								}
-							}
-							pdu.endReadSequence();
-						}
-					}
-					pdu.endReadSequence();
+
+					this.ber = ber;
+					this.pdu = pdu;
 				}
-				pdu.endReadSequence();
-	
+
 				this.requestId = requestId;
 				this.errorStatus = errorStatus;
 				this.errorIndex = errorIndex;
@@ -203,6 +195,42 @@ public final class SnmpPacketParser {
 			
 		}
 		
+		if (pdu == null) {
+			ber.endReadSequence();
+		} else if (full) {
+			visit(results::add);
+		}
+	}
+
+	/**
+	 * Reads the variables of a response, each one is handed to the visitor as soon as it is decoded. Can only be called once.
+	 */
+	public void visit(Visitor visitor) throws IOException {
+		if (pdu == null) {
+			return;
+		}
+		BerReader p = pdu;
+		pdu = null;
+
+		p.beginReadSequence();
+		{
+			while (p.hasRemainingInSequence()) {
+				p.beginReadSequence();
+				{
+					Oid oid = p.readOid();
+					String value = p.readValue();
+					LOGGER.trace("<- {} = {}", oid, value);
+					if (value == null) {
+						LOGGER.trace("Opaque value: {}", oid);
+					} else {
+						visitor.visit(new SnmpResult(oid, value));
+					}
+				}
+				p.endReadSequence();
+			}
+		}
+		p.endReadSequence();
+		p.endReadSequence(); // PDU
 		ber.endReadSequence();
 	}
 
@@ -0,0 +1,88 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+
+import java.io.IOException;
+
+/**
+ * Everything known about a SNMPv3 device: for each auth used with it, the remote engine state, encryption engine and pending requests,
+ * all reachable from the AuthRemoteEnginePendingRequestManager.
+ * The managers are kept most recently used first, the first one is the current auth (the one incoming packets are decoded with).
+ */
+final class SnmpSession {
+
+    /**
+     * Devices are rarely queried with more than a couple of auths, the least recently used manager is dropped beyond this
+     */
+    static final int MAX_AUTHS = 4;
+
+    private static final AuthRemoteEnginePendingRequestManager[] EMPTY = new AuthRemoteEnginePendingRequestManager[0];
+
+    public final Address address;
+
+    // Copy on write, only replaced when the auth changes
+    private volatile AuthRemoteEnginePendingRequestManager[] authRemoteEnginePendingRequestManagers = EMPTY;
+    private volatile long lastAccess;
+
+    public SnmpSession(Address address) {
+        this.address = address;
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the manager of the current auth, or null if none yet
+     */
+    public AuthRemoteEnginePendingRequestManager access() {
+        lastAccess = System.currentTimeMillis();
+        AuthRemoteEnginePendingRequestManager[] m = authRemoteEnginePendingRequestManagers;
+        return (m.length == 0) ? null : m[0];
+    }
+
+    /**
+     * Makes the manager of this auth the current one
+     *
+     * @return the manager of this auth, or null if none yet
+     */
+    public synchronized AuthRemoteEnginePendingRequestManager access(Auth auth) {
+        lastAccess = System.currentTimeMillis();
+        AuthRemoteEnginePendingRequestManager[] m = authRemoteEnginePendingRequestManagers;
+        for (int i = 0; i < m.length; i++) {
+            if (m[i].engine.auth.equals(auth)) {
+                if (i > 0) {
+                    AuthRemoteEnginePendingRequestManager[] n = m.clone();
+                    System.arraycopy(m, 0, n, 1, i);
+                    n[0] = m[i];
+                    authRemoteEnginePendingRequestManagers = n;
+                }
+                return m[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the manager of a new auth as the current one. Beyond MAX_AUTHS, the pending requests of the dropped manager are failed.
+     */
+    public synchronized void authRemoteEnginePendingRequestManager(AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager) {
+        AuthRemoteEnginePendingRequestManager[] m = authRemoteEnginePendingRequestManagers;
+        AuthRemoteEnginePendingRequestManager[] n = new AuthRemoteEnginePendingRequestManager[Math.min(m.length + 1, MAX_AUTHS)];
+        n[0] = authRemoteEnginePendingRequestManager;
+        System.arraycopy(m, 0, n, 1, n.length - 1);
+        authRemoteEnginePendingRequestManagers = n;
+        if (m.length == n.length) {
+            m[m.length - 1].failPendingRequests(new IOException("Too many auths used with " + address));
+        }
+    }
+
+    /**
+     * Does not count as an access
+     */
+    public AuthRemoteEnginePendingRequestManager authRemoteEnginePendingRequestManager() {
+        AuthRemoteEnginePendingRequestManager[] m = authRemoteEnginePendingRequestManagers;
+        return (m.length == 0) ? null : m[0];
+    }
+
+    public long lastAccess() {
+        return lastAccess;
+    }
+}
@@ -0,0 +1,143 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Open-addressing (linear probing) map of the sessions by address.
+ * Lookups are lock-free and do not allocate. Insertions and removals are serialized,
+ * removed slots are marked with a tombstone so that a concurrent lookup never misses an entry,
+ * and the table is rebuilt then published when it gets too crowded.
+ */
+final class SnmpSessions {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final SnmpSession TOMBSTONE = new SnmpSession(null);
+
+    private volatile AtomicReferenceArray<SnmpSession> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    private int size = 0;
+    private int tombstones = 0;
+
+    public SnmpSessions() {
+    }
+
+    private static int hash(Address address) {
+        int h = address.port;
+        for (byte b : address.ip) {
+            h = (31 * h) + b;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public SnmpSession get(Address address) {
+        AtomicReferenceArray<SnmpSession> t = table;
+        int mask = t.length() - 1;
+        int i = hash(address) & mask;
+        while (true) {
+            SnmpSession s = t.get(i);
+            if (s == null) {
+                return null;
+            }
+            if ((s != TOMBSTONE) && s.address.equals(address)) {
+                return s;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public SnmpSession getOrCreate(Address address) {
+        SnmpSession s = get(address);
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            s = get(address);
+            if (s != null) {
+                return s;
+            }
+            s = new SnmpSession(address);
+            AtomicReferenceArray<SnmpSession> t = table;
+            int mask = t.length() - 1;
+            int i = hash(address) & mask;
+            while (true) {
+                SnmpSession e = t.get(i);
+                if (e == null) {
+                    t.set(i, s);
+                    break;
+                }
+                if (e == TOMBSTONE) {
+                    t.set(i, s);
+                    tombstones--;
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            size++;
+            if (((size + tombstones) * 2) > t.length()) {
+                rebuild();
+            }
+            return s;
+        }
+    }
+
+    public synchronized int removeIf(Predicate<SnmpSession> filter) {
+        AtomicReferenceArray<SnmpSession> t = table;
+        int removed = 0;
+        for (int i = 0; i < t.length(); i++) {
+            SnmpSession s = t.get(i);
+            if ((s != null) && (s != TOMBSTONE) && filter.test(s)) {
+                t.set(i, TOMBSTONE);
+                removed++;
+            }
+        }
+        size -= removed;
+        tombstones += removed;
+        if ((tombstones * 4) > t.length()) {
+            rebuild();
+        }
+        return removed;
+    }
+
+    public void forEach(Consumer<SnmpSession> consumer) {
+        AtomicReferenceArray<SnmpSession> t = table;
+        for (int i = 0; i < t.length(); i++) {
+            SnmpSession s = t.get(i);
+            if ((s != null) && (s != TOMBSTONE)) {
+                consumer.accept(s);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Called with the lock held
+    private void rebuild() {
+        AtomicReferenceArray<SnmpSession> t = table;
+        int capacity = MIN_CAPACITY;
+        while (capacity < (size * 4)) {
+            capacity *= 2;
+        }
+        AtomicReferenceArray<SnmpSession> n = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < t.length(); j++) {
+            SnmpSession s = t.get(j);
+            if ((s == null) || (s == TOMBSTONE)) {
+                continue;
+            }
+            int i = hash(s.address) & mask;
+            while (n.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            n.set(i, s);
+        }
+        tombstones = 0;
+        table = n;
+    }
+}
@@ -0,0 +1,32 @@
+package com.davfx.ninio.snmp;
+
+import java.util.List;
+
+import com.davfx.ninio.core.Address;
+
+public final class SnmpTrap {
+	public final Address address;
+	public final int version; // BerConstants.VERSION_1, VERSION_2C or VERSION_3
+	public final boolean inform;
+	public final String community; // null in SNMPv3
+	public final String login; // null but in SNMPv3
+	public final Oid trapOid; // SNMPv1 traps are translated as described in RFC 3584
+	public final long upTime; // Hundredths of a second
+	public final List<SnmpResult> results; // Without sysUpTime.0 and snmpTrapOID.0
+
+	public SnmpTrap(Address address, int version, boolean inform, String community, String login, Oid trapOid, long upTime, List<SnmpResult> results) {
+		this.address = address;
+		this.version = version;
+		this.inform = inform;
+		this.community = community;
+		this.login = login;
+		this.trapOid = trapOid;
+		this.upTime = upTime;
+		this.results = results;
+	}
+
+	@Override
+	public String toString() {
+		return (inform ? "INFORM" : "TRAP") + "(" + address + ", v" + version + ", " + trapOid + ", " + upTime + ")" + results;
+	}
+}
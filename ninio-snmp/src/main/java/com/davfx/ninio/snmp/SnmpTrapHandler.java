@@ -0,0 +1,18 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.davfx.ninio.core.Address;
+
+public interface SnmpTrapHandler {
+	/**
+	 * Called from the worker threads, possibly concurrently. The notifications of a given device are always handed by the same worker, in order.
+	 * The list can be kept.
+	 */
+	void received(List<SnmpTrap> traps);
+
+	void connected(Address address);
+	void closed();
+	void failed(IOException ioe);
+}
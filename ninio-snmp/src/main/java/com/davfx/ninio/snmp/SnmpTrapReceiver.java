@@ -0,0 +1,503 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Disconnectable;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.NinioProvider;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.supervision.metrics.NinioMetrics;
+import com.davfx.ninio.snmp.dependencies.Dependencies;
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import com.davfx.ninio.snmp.encryption.PrivacyProtocol;
+import com.davfx.ninio.util.ClassThreadFactory;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+import io.prometheus.metrics.core.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Receives SNMP v1/v2c/v3 traps and informs. Informs are acknowledged in v1/v2c only (a v3 inform needs the receiver to be an authoritative engine).
+ * Packets are dispatched to the workers by sender address (the notifications of a device are kept in order), decoded, and handed to the handler by batches.
+ * A worker queue is bounded, packets received while it is full are dropped (and counted): a trap storm does not make the memory grow.
+ * Authenticated v3 notifications are checked against the time window of their engine (RFC 3414, 150 seconds): the boot count and time
+ * of the last authenticated notification are kept, and older ones are dropped as replays. The first notification of an engine is trusted.
+ */
+public final class SnmpTrapReceiver implements Disconnectable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SnmpTrapReceiver.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(SnmpTrapReceiver.class.getPackage().getName());
+	private static final int DEFAULT_WORKERS = CONFIG.getInt("trap.workers");
+	private static final int DEFAULT_QUEUE = CONFIG.getInt("trap.queue");
+	private static final int DEFAULT_BATCH = CONFIG.getInt("trap.batch");
+
+	private static final int GENERIC_TRAP_ENTERPRISE_SPECIFIC = 6;
+
+	private static final int TIME_WINDOW = 150; // Seconds
+
+	private static final Counter TRAP_IN = NinioMetrics.get().trapIn();
+	private static final Counter TRAP_DROPPED = NinioMetrics.get().trapDropped();
+
+	public static interface Builder extends NinioBuilder<Disconnectable> {
+		Builder with(UdpSocket.Builder connectorFactory);
+
+		Builder handle(SnmpTrapHandler handler);
+
+		/**
+		 * Adds a SNMPv3 user. Authenticated notifications from unknown users, or failing authentication, are dropped.
+		 */
+		Builder auth(AuthRemoteSpecification authRemoteSpecification);
+
+		Builder workers(int workers);
+
+		/**
+		 * Maximum number of packets waiting to be decoded, per worker
+		 */
+		Builder queue(int queue);
+
+		/**
+		 * Maximum number of notifications handed to the handler at once
+		 */
+		Builder batch(int batch);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private UdpSocket.Builder connectorFactory = UdpSocket.builder();
+			private SnmpTrapHandler handler = null;
+			private final List<AuthRemoteSpecification> users = new LinkedList<>();
+			private int workers = DEFAULT_WORKERS;
+			private int queue = DEFAULT_QUEUE;
+			private int batch = DEFAULT_BATCH;
+
+			@Override
+			public Builder with(UdpSocket.Builder connectorFactory) {
+				this.connectorFactory = connectorFactory;
+				return this;
+			}
+
+			@Override
+			public Builder handle(SnmpTrapHandler handler) {
+				this.handler = handler;
+				return this;
+			}
+
+			@Override
+			public Builder auth(AuthRemoteSpecification authRemoteSpecification) {
+				users.add(authRemoteSpecification);
+				return this;
+			}
+
+			@Override
+			public Builder workers(int workers) {
+				if (workers <= 0) {
+					throw new IllegalArgumentException("Invalid number of workers: " + workers);
+				}
+				this.workers = workers;
+				return this;
+			}
+
+			@Override
+			public Builder queue(int queue) {
+				this.queue = queue;
+				return this;
+			}
+
+			@Override
+			public Builder batch(int batch) {
+				this.batch = batch;
+				return this;
+			}
+
+			@Override
+			public Disconnectable create(NinioProvider ninioProvider) {
+				if (handler == null) {
+					throw new NullPointerException("handler");
+				}
+				return new SnmpTrapReceiver(connectorFactory.create(ninioProvider), handler, users, workers, queue, batch);
+			}
+		};
+	}
+
+	private static final class Received {
+		public final Address address;
+		public final byte[] packet;
+		public Received(Address address, byte[] packet) {
+			this.address = address;
+			this.packet = packet;
+		}
+	}
+
+	private static final Received END = new Received(null, null);
+
+	// Latest boot count and time received from an engine, the time being then estimated with the local clock
+	private static final class EngineTime {
+		private int bootCount;
+		private int time;
+		private long at;
+
+		public EngineTime(int bootCount, int time) {
+			set(bootCount, time);
+		}
+
+		private void set(int bootCount, int time) {
+			this.bootCount = bootCount;
+			this.time = time;
+			at = System.nanoTime();
+		}
+
+		private int estimatedTime() {
+			return time + ((int) ((System.nanoTime() - at) / 1_000_000_000L));
+		}
+
+		public boolean outside(int bootCount, int time) {
+			if ((bootCount == Integer.MAX_VALUE) || (bootCount < this.bootCount)) {
+				return true;
+			}
+			return (bootCount == this.bootCount) && (time < (estimatedTime() - TIME_WINDOW));
+		}
+
+		public void update(int bootCount, int time) {
+			if ((bootCount > this.bootCount) || ((bootCount == this.bootCount) && (time > estimatedTime()))) {
+				set(bootCount, time);
+			}
+		}
+	}
+
+	private final Connecter connecter;
+	private final SnmpTrapHandler handler;
+	private final int batch;
+	private final Map<String, Auth> users = new HashMap<>();
+	private final Map<String, EncryptionEngine> encryptionEngines = new HashMap<>();
+	private final Worker[] workers;
+
+	private SnmpTrapReceiver(Connecter connecter, SnmpTrapHandler handler, List<AuthRemoteSpecification> users, int workers, int queue, int batch) {
+		this.connecter = connecter;
+		this.handler = handler;
+		this.batch = batch;
+
+		for (AuthRemoteSpecification u : users) {
+			Auth auth = new Auth(u.login, u.authPassword, u.authDigestAlgorithm, u.privPassword, u.privEncryptionAlgorithm);
+			this.users.put(u.login, auth);
+			// EncryptionEngine is thread-safe, AuthRemoteEngine is not (one per worker)
+			encryptionEngines.put(u.login, new EncryptionEngine(
+					Optional.ofNullable(auth.authDigestAlgorithm).map(AuthProtocol::fromAlgorithm).orElse(null),
+					Optional.ofNullable(auth.privEncryptionAlgorithm).map(PrivacyProtocol::fromAlgorithm).orElse(null),
+					AuthCache.AUTH_ENGINES_CACHE_DURATION));
+		}
+
+		ClassThreadFactory threadFactory = new ClassThreadFactory(SnmpTrapReceiver.class, "worker", true);
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			Worker w = new Worker(queue);
+			this.workers[i] = w;
+			w.thread = threadFactory.newThread(w);
+			w.thread.start();
+		}
+
+		connecter.connect(new Connection() {
+			@Override
+			public void connected(Address address) {
+				handler.connected(address);
+			}
+
+			@Override
+			public void closed() {
+				handler.closed();
+			}
+
+			@Override
+			public void failed(IOException ioe) {
+				handler.failed(ioe);
+			}
+
+			@Override
+			public void received(Address address, ByteBuffer buffer) {
+				TRAP_IN.inc();
+				// Only the packet bytes are kept, not the whole read buffer
+				byte[] packet = new byte[buffer.remaining()];
+				buffer.get(packet);
+				Worker w = SnmpTrapReceiver.this.workers[(address.hashCode() & Integer.MAX_VALUE) % SnmpTrapReceiver.this.workers.length];
+				if (!w.queue.offer(new Received(address, packet))) {
+					TRAP_DROPPED.inc();
+					LOGGER.trace("Notification dropped, receiver overloaded: {}", address);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		connecter.close();
+		for (Worker w : workers) {
+			if (!w.queue.offer(END)) {
+				w.thread.interrupt();
+			}
+		}
+	}
+
+	private final class Worker implements Runnable {
+		public final ArrayBlockingQueue<Received> queue;
+		public Thread thread;
+		private final List<Received> drained = new ArrayList<>();
+		private final Map<String, AuthRemoteEngine> engines = new HashMap<>();
+		private final Map<ByteBuffer, EngineTime> engineTimes = new HashMap<>(); // By engine ID, only authenticated notifications are recorded
+
+		public Worker(int capacity) {
+			queue = new ArrayBlockingQueue<>(capacity);
+			for (Map.Entry<String, Auth> e : users.entrySet()) {
+				engines.put(e.getKey(), new AuthRemoteEngine(e.getValue(), encryptionEngines.get(e.getKey())));
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Received first;
+				try {
+					first = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				drained.clear();
+				drained.add(first);
+				queue.drainTo(drained, batch - 1);
+
+				boolean end = false;
+				List<SnmpTrap> traps = new ArrayList<>(drained.size());
+				for (Received r : drained) {
+					if (r == END) {
+						end = true;
+						continue;
+					}
+					try {
+						SnmpTrap trap = decode(r.address, r.packet);
+						if (trap != null) {
+							traps.add(trap);
+						}
+					} catch (IOException | RuntimeException e) {
+						LOGGER.debug("Invalid notification from {}", r.address, e);
+					}
+				}
+
+				if (!traps.isEmpty()) {
+					try {
+						handler.received(traps);
+					} catch (RuntimeException e) {
+						LOGGER.error("Trap handler failed", e);
+					}
+				}
+
+				if (end) {
+					return;
+				}
+			}
+		}
+
+		private SnmpTrap decode(Address address, byte[] packet) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(packet);
+			BerReader ber = new BerReader(buffer);
+			ber.beginReadSequence();
+			int version = ber.readInteger();
+
+			if ((version == BerConstants.VERSION_1) || (version == BerConstants.VERSION_2C)) {
+				String community = BerPacketUtils.string(ber.readBytes());
+				int pduPosition = buffer.position();
+				int type = ber.beginReadSequence();
+
+				if (type == BerConstants.TRAP_V1) {
+					Oid enterprise = ber.readOid();
+					ber.readValue(); // Agent address, the packet source address is used instead
+					int genericTrap = ber.readInteger();
+					int specificTrap = ber.readInteger();
+					long upTime = Long.parseLong(ber.readValue());
+					Oid trapOid = (genericTrap == GENERIC_TRAP_ENTERPRISE_SPECIFIC) ?
+							enterprise.append(new Oid(new long[] { 0L, specificTrap })) :
+							BerConstants.GENERIC_TRAP_OID_PREFIX.append(new Oid(new long[] { genericTrap + 1L }));
+					List<SnmpResult> results = new ArrayList<>();
+					readVariables(ber, results, null);
+					ber.endReadSequence();
+					ber.endReadSequence();
+					return new SnmpTrap(address, version, false, community, null, trapOid, upTime, results);
+				}
+
+				SnmpTrap trap = readNotification(ber, type, address, version, community, null);
+				ber.endReadSequence();
+
+				if (trap.inform) {
+					// The response is the inform itself with the RESPONSE type, same request ID and variables (errors are zero in an inform)
+					packet[pduPosition] = (byte) BerConstants.RESPONSE;
+					connecter.send(address, ByteBuffer.wrap(packet), new Nop());
+				}
+				return trap;
+			}
+
+			if (version == BerConstants.VERSION_3) {
+				byte securityFlags;
+				ber.beginReadSequence();
+				{
+					ber.readInteger(); // Packet number
+					ber.readInteger(); // Max packet size
+					securityFlags = ber.readBytes().get();
+					int securityModel = ber.readInteger();
+					if (securityModel != BerConstants.VERSION_3_USM_SECURITY_MODEL) {
+						throw new IOException("Invalid security model: " + securityModel + " should be " + BerConstants.VERSION_3_USM_SECURITY_MODEL);
+					}
+				}
+				ber.endReadSequence();
+
+				ByteBuffer engineId;
+				int bootCount;
+				int time;
+				String login;
+				ByteBuffer authParameters;
+				ByteBuffer privParameters;
+				BerReader secBer = new BerReader(ber.readBytes());
+				secBer.beginReadSequence();
+				{
+					engineId = secBer.readBytes();
+					bootCount = secBer.readInteger();
+					time = secBer.readInteger();
+					login = BerPacketUtils.string(secBer.readBytes());
+					authParameters = secBer.readBytes();
+					privParameters = secBer.readBytes();
+				}
+				secBer.endReadSequence();
+
+				BerReader pdu = ber;
+				if ((securityFlags & BerConstants.VERSION_3_AUTH_FLAG) != 0) {
+					AuthRemoteEngine engine = engines.get(login);
+					if (engine == null) {
+						LOGGER.debug("Unknown user {} from {}", login, address);
+						return null;
+					}
+
+					// The sender of a trap is the authoritative engine, keys are localized with its ID
+					byte[] id = new byte[engineId.remaining()];
+					engineId.get(id);
+					ByteBuffer engineTimeKey = ByteBuffer.wrap(id);
+					EngineTime engineTime = engineTimes.get(engineTimeKey);
+					if ((engineTime != null) && engineTime.outside(bootCount, time)) {
+						LOGGER.debug("Notification outside the time window (boot count = {}, time = {}) for user {} from {}", bootCount, time, login, address);
+						return null;
+					}
+
+					if (!Arrays.equals(id, engine.getId())) {
+						engine.setId(id);
+					}
+					engine.setBootCount(bootCount);
+					engine.resetTime(time);
+
+					if (!authenticate(engine, packet, authParameters)) {
+						LOGGER.debug("Authentication failed for user {} from {}", login, address);
+						return null;
+					}
+
+					if (engineTime == null) {
+						engineTimes.put(engineTimeKey, new EngineTime(bootCount, time));
+					} else {
+						engineTime.update(bootCount, time);
+					}
+
+					if ((securityFlags & BerConstants.VERSION_3_PRIV_FLAG) != 0) {
+						byte[] p = new byte[privParameters.remaining()];
+						privParameters.get(p);
+						engine.setEncryptionParameters(p);
+						ByteBuffer decrypted = engine.decrypt(ber.readBytes());
+						if (decrypted == null) {
+							LOGGER.debug("Could not decrypt, no privacy configured for user {} from {}", login, address);
+							return null;
+						}
+						pdu = new BerReader(decrypted);
+					}
+				}
+
+				pdu.beginReadSequence();
+				pdu.readBytes(); // Context engine ID
+				pdu.readBytes(); // Context name
+				SnmpTrap trap = readNotification(pdu, pdu.beginReadSequence(), address, version, null, login);
+				pdu.endReadSequence();
+				ber.endReadSequence();
+				if (trap.inform) {
+					LOGGER.trace("SNMPv3 inform from {} not acknowledged", address);
+				}
+				return trap;
+			}
+
+			throw new IOException("Invalid version: " + version);
+		}
+
+		private boolean authenticate(AuthRemoteEngine engine, byte[] packet, ByteBuffer authParameters) {
+			AuthProtocol authProtocol = engine.encryptionEngine.authDigestAlgorithm();
+			if ((authProtocol == null) || (authParameters.remaining() != authProtocol.authCodeLength())) {
+				return false;
+			}
+			byte[] expected = new byte[authParameters.remaining()];
+			authParameters.duplicate().get(expected);
+
+			// The code is computed with the auth parameters zeroed
+			Arrays.fill(packet, authParameters.position(), authParameters.limit(), (byte) 0);
+			byte[] computed = new byte[expected.length];
+			engine.hash(ByteBuffer.wrap(packet), ByteBuffer.wrap(computed));
+			System.arraycopy(expected, 0, packet, authParameters.position(), expected.length);
+
+			return MessageDigest.isEqual(expected, computed);
+		}
+	}
+
+	private static SnmpTrap readNotification(BerReader ber, int type, Address address, int version, String community, String login) throws IOException {
+		if ((type != BerConstants.TRAP) && (type != BerConstants.INFORM)) {
+			throw new IOException("Not a notification: " + type);
+		}
+		ber.readInteger(); // Request ID
+		ber.readInteger(); // Error status
+		ber.readInteger(); // Error index
+
+		List<SnmpResult> results = new ArrayList<>();
+		long[] upTime = new long[] { 0L };
+		Oid trapOid = readVariables(ber, results, upTime);
+		ber.endReadSequence();
+		return new SnmpTrap(address, version, type == BerConstants.INFORM, community, login, trapOid, upTime[0], results);
+	}
+
+	// Returns the value of snmpTrapOID.0, if any (and if upTime is not null)
+	private static Oid readVariables(BerReader ber, List<SnmpResult> results, long[] upTime) throws IOException {
+		Oid trapOid = null;
+		ber.beginReadSequence();
+		while (ber.hasRemainingInSequence()) {
+			ber.beginReadSequence();
+			{
+				Oid oid = ber.readOid();
+				if ((upTime != null) && oid.equals(BerConstants.TRAP_OID)) {
+					trapOid = ber.readOid();
+				} else {
+					String value = ber.readValue();
+					if ((upTime != null) && oid.equals(BerConstants.TIMESTAMP_OID)) {
+						upTime[0] = (value == null) ? 0L : Long.parseLong(value);
+					} else if (value != null) {
+						results.add(new SnmpResult(oid, value));
+					}
+				}
+			}
+			ber.endReadSequence();
+		}
+		ber.endReadSequence();
+		return trapOid;
+	}
+}
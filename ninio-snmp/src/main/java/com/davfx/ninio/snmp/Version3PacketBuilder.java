@@ -70,7 +70,15 @@ public final class Version3PacketBuilder {
 		}
 	}
 
-	private Version3PacketBuilder(AuthRemoteEngine authEngine, String contextName, int requestId, int type, int bulkLength, Oid oid) {
+	private static SequenceBerPacket single(Oid oid) {
+		SequenceBerPacket pduSeq = new SequenceBerPacket(BerConstants.SEQUENCE);
+		if (oid != null) {
+			pduSeq.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(oid)).add(new NullBerPacket()));
+		}
+		return pduSeq;
+	}
+
+	private Version3PacketBuilder(AuthRemoteEngine authEngine, String contextName, int requestId, int type, int bulkLength, SequenceBerPacket pduSeq) {
 		authEngine.renewTime();
 
 		boolean encrypt = false;
@@ -110,11 +118,6 @@ public final class Version3PacketBuilder {
 				.add((priv == null) ? new BytesBerPacket(ByteBuffer.allocate(0)) : priv)
 		));
 
-		SequenceBerPacket pduSeq = new SequenceBerPacket(BerConstants.SEQUENCE);
-		if (oid != null) {
-			pduSeq.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(oid)).add(new NullBerPacket()));
-		}
-
 		BerPacket pduPacket = new SequenceBerPacket(BerConstants.SEQUENCE)
 				.add(new BytesBerPacket((authEngine.getId() == null) ? ByteBuffer.allocate(0) : ByteBuffer.wrap(authEngine.getId())))
 				.add(new BytesBerPacket((contextName == null) ? ByteBuffer.allocate(0) : BerPacketUtils.bytes(contextName)))
@@ -142,7 +145,9 @@ public final class Version3PacketBuilder {
 		}
 
 		if (auth != null) {
-			writeInside(buffer, auth.position, authEngine.hash(buffer));
+			ByteBuffer authOutput = buffer.duplicate();
+			authOutput.position(auth.position);
+			authEngine.hash(buffer, authOutput);
 		}
 	}
 
@@ -166,41 +171,27 @@ public final class Version3PacketBuilder {
 */
 
 	public static Version3PacketBuilder getBulk(AuthRemoteEngine authEngine, String contextName, int requestId, Oid oid, int bulkLength) {
-		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GETBULK, bulkLength, oid);
+		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GETBULK, bulkLength, single(oid));
 	}
 	public static Version3PacketBuilder get(AuthRemoteEngine authEngine, String contextName, int requestId, Oid oid) {
-		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GET, 0, oid);
+		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GET, 0, single(oid));
 	}
 	public static Version3PacketBuilder getNext(AuthRemoteEngine authEngine, String contextName, int requestId, Oid oid) {
-		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GETNEXT, 0, oid);
+		return new Version3PacketBuilder(authEngine, contextName, requestId, BerConstants.GETNEXT, 0, single(oid));
 	}
 	
-/*
-	public static Version3PacketBuilder trap(AuthRemoteEngine authEngine, int requestId, final Oid trapOid, Iterable<SnmpResult> oidValues) {
-		List<OidValue> l = new LinkedList<>();
-		l.add(new OidValue(BerConstants.TIMESTAMP_OID, new Value() {
-			@Override
-			public BerPacket ber() {
-				return new IntegerBerPacket((int) (System.currentTimeMillis() / 10L));
-			}
-		}));
-		l.add(new OidValue(BerConstants.TRAP_OID, new Value() {
-			@Override
-			public BerPacket ber() {
-				return new OidBerPacket(trapOid);
-			}
-		}));
-		for (final SnmpResult oidValue : oidValues) {
-			l.add(new OidValue(oidValue.oid, new Value() {
-				@Override
-				public BerPacket ber() {
-					return new BytesBerPacket(BerPacketUtils.bytes(oidValue.value));
-				}
-			}));
+	/**
+	 * The engine is the local (authoritative) one: its ID, boot count and time are sent as is
+	 */
+	public static Version3PacketBuilder trap(AuthRemoteEngine authEngine, int requestId, Oid trapOid, Iterable<SnmpResult> oidValues) {
+		SequenceBerPacket pduSeq = new SequenceBerPacket(BerConstants.SEQUENCE);
+		pduSeq.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(BerConstants.TIMESTAMP_OID)).add(new IntegerBerPacket(authEngine.getTime() * 100)));
+		pduSeq.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(BerConstants.TRAP_OID)).add(new OidBerPacket(trapOid)));
+		for (SnmpResult oidValue : oidValues) {
+			pduSeq.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(oidValue.oid)).add(new BytesBerPacket(BerPacketUtils.bytes(oidValue.value))));
 		}
-		return new Version3PacketBuilder(authEngine, requestId, BerConstants.TRAP, 0, l);
+		return new Version3PacketBuilder(authEngine, null, requestId, BerConstants.TRAP, 0, pduSeq);
 	}
-*/
 
 	public ByteBuffer getBuffer() {
 		return buffer;
@@ -0,0 +1,49 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+public class AuthRemoteEngineStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static AuthRemoteEngine engine() {
+		Auth auth = new Auth("login", "authpassword", "SHA", null, null);
+		return new AuthRemoteEngine(auth, new EncryptionEngine(AuthProtocol.SHA1, null, 60d));
+	}
+
+	@Test
+	public void testSaveAndRestore() throws Exception {
+		Path path = folder.getRoot().toPath().resolve("engines");
+		Address address = new Address(Address.LOCALHOST, 161);
+		byte[] id = new byte[] { (byte) 0x80, 0x00, 0x1f, (byte) 0x88, 0x04, 0x01 };
+
+		AuthRemoteEngineStore store = new AuthRemoteEngineStore(path, 3600d);
+		store.load();
+		AuthRemoteEngine discovered = engine();
+		discovered.setId(id);
+		discovered.setBootCount(3);
+		discovered.resetTime(1000);
+		store.save(address, discovered);
+		store.flush();
+		store.close();
+
+		AuthRemoteEngineStore reloaded = new AuthRemoteEngineStore(path, 3600d);
+		reloaded.load();
+		AuthRemoteEngine restored = engine();
+		Assertions.assertThat(restored.isValid()).isFalse();
+		Assertions.assertThat(reloaded.restore(address, restored)).isTrue();
+		Assertions.assertThat(restored.getId()).isEqualTo(id);
+		Assertions.assertThat(restored.getBootCount()).isEqualTo(3);
+		Assertions.assertThat(restored.getTime()).isBetween(1000, 1010);
+		Assertions.assertThat(reloaded.restore(new Address(Address.LOCALHOST, 162), engine())).isFalse();
+		reloaded.close();
+	}
+}
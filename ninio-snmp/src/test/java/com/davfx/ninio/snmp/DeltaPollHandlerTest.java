@@ -0,0 +1,105 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+
+public class DeltaPollHandlerTest {
+
+	private static final class Collecting implements PollHandler {
+		public final List<SnmpResult> results = new ArrayList<>();
+		@Override
+		public void received(Address address, SnmpResult result) {
+			results.add(result);
+		}
+		@Override
+		public void failed(Address address, Oid oid, IOException ioe) {
+		}
+		@Override
+		public void finished(Address address) {
+		}
+		@Override
+		public void skipped(Address address) {
+		}
+	}
+
+	@Test
+	public void testOnlyChangesAreForwarded() throws Exception {
+		Collecting c = new Collecting();
+		DeltaPollHandler h = DeltaPollHandler.builder().build(c);
+		Address a = new Address(Address.LOCALHOST, 161);
+		Address b = new Address(Address.LOCALHOST, 162);
+
+		h.received(a, new SnmpResult(new Oid("1.1"), "10"));
+		h.received(a, new SnmpResult(new Oid("1.2"), "up"));
+		h.received(b, new SnmpResult(new Oid("1.1"), "10"));
+		h.received(a, new SnmpResult(new Oid("1.1"), "10"));
+		h.received(a, new SnmpResult(new Oid("1.2"), "up"));
+		h.received(a, new SnmpResult(new Oid("1.1"), "11"));
+		h.received(a, new SnmpResult(new Oid("1.2"), "down"));
+		h.received(a, new SnmpResult(new Oid("1.2"), "12"));
+
+		Assertions.assertThat(c.results.toString()).isEqualTo("[1.1:10, 1.2:up, 1.1:10, 1.1:11, 1.2:down, 1.2:12]");
+	}
+
+	@Test
+	public void testCounterRates() throws Exception {
+		Collecting c = new Collecting();
+		DeltaPollHandler h = DeltaPollHandler.builder().counter32(new Oid("1.32")).counter64(new Oid("1.64")).build(c);
+		Address a = new Address(Address.LOCALHOST, 161);
+
+		h.received(a, new SnmpResult(new Oid("1.32.1"), String.valueOf((1L << 32) - 10L)));
+		h.received(a, new SnmpResult(new Oid("1.64.1"), "18446744073709551610"));
+		Assertions.assertThat(c.results).isEmpty(); // No rate yet
+
+		Thread.sleep(50L);
+		h.received(a, new SnmpResult(new Oid("1.32.1"), "5")); // Wrapped, +15
+		h.received(a, new SnmpResult(new Oid("1.64.1"), "18446744073709551615")); // +5
+		Assertions.assertThat(c.results).hasSize(2);
+		double rate32 = Double.parseDouble(c.results.get(0).value);
+		double rate64 = Double.parseDouble(c.results.get(1).value);
+		Assertions.assertThat(rate32).isGreaterThan(0d).isLessThanOrEqualTo(15d * 1000d / 50d);
+		Assertions.assertThat(rate64).isGreaterThan(0d).isLessThanOrEqualTo(5d * 1000d / 50d);
+
+		Thread.sleep(10L);
+		h.received(a, new SnmpResult(new Oid("1.64.1"), "3")); // Reset
+		Assertions.assertThat(c.results).hasSize(2);
+	}
+
+	@Test
+	public void testCounterDeltaWithinTheSameMillisecond() throws Exception {
+		Collecting c = new Collecting();
+		AtomicLong now = new AtomicLong(1000L);
+		DeltaPollHandler h = new DeltaPollHandler(c, new Oid[] { new Oid("1.32") }, new Oid[0], now::get);
+		Address a = new Address(Address.LOCALHOST, 161);
+
+		h.received(a, new SnmpResult(new Oid("1.32.1"), "10"));
+		h.received(a, new SnmpResult(new Oid("1.32.1"), "10")); // Same value, same millisecond
+		h.received(a, new SnmpResult(new Oid("1.32.1"), "15"));
+		now.addAndGet(500L);
+		h.received(a, new SnmpResult(new Oid("1.32.1"), "25"));
+
+		Assertions.assertThat(c.results.toString()).isEqualTo("[1.32.1:5, 1.32.1:20.0]");
+	}
+
+	@Test
+	public void testManyOids() throws Exception {
+		Collecting c = new Collecting();
+		DeltaPollHandler h = DeltaPollHandler.builder().build(c);
+		Address a = new Address(Address.LOCALHOST, 161);
+		for (int k = 0; k < 2; k++) {
+			for (int i = 0; i < 1000; i++) {
+				h.received(a, new SnmpResult(new Oid("1.3." + i), String.valueOf(i)));
+			}
+		}
+		Assertions.assertThat(c.results).hasSize(1000);
+		h.received(a, new SnmpResult(new Oid("1.3.999"), "0"));
+		Assertions.assertThat(c.results).hasSize(1001);
+	}
+}
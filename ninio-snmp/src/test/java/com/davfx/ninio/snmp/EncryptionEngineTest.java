@@ -0,0 +1,65 @@
+package com.davfx.ninio.snmp;
+
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import com.davfx.ninio.snmp.encryption.PrivacyProtocol;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class EncryptionEngineTest {
+
+	private static final byte[] ENGINE_ID = new byte[] { (byte) 0x80, 0x00, 0x1f, (byte) 0x88, 0x04, 0x01, 0x02, 0x03 };
+
+	@Test
+	public void testEncryptDecrypt() throws Exception {
+		for (PrivacyProtocol privacyProtocol : PrivacyProtocol.values()) {
+			EncryptionEngine engine = new EncryptionEngine(AuthProtocol.SHA1, privacyProtocol, 60d);
+			byte[] privKey = engine.regenerateKey(ENGINE_ID, "privpassword", true);
+			byte[] encryptionParameters = new byte[8];
+			byte[] clear = "Some SNMP PDU to be encrypted".getBytes();
+
+			ByteBuffer encrypted = engine.encrypt(1, 1234, encryptionParameters, privKey, ByteBuffer.wrap(clear));
+			ByteBuffer decrypted = engine.decrypt(1, 1234, encryptionParameters, privKey, encrypted);
+			byte[] result = new byte[clear.length];
+			decrypted.get(result);
+			Assertions.assertThat(result).isEqualTo(clear);
+		}
+	}
+
+	@Test
+	public void testConcurrentHash() throws Exception {
+		EncryptionEngine engine = new EncryptionEngine(AuthProtocol.SHA256, null, 60d);
+		byte[] authKey = engine.regenerateKey(ENGINE_ID, "authpassword", false);
+		ByteBuffer message = ByteBuffer.wrap("Some SNMP message to be authenticated".getBytes());
+		byte[] expected = engine.hash(authKey, message);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> futures = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(() -> {
+					ByteBuffer output = ByteBuffer.allocate(AuthProtocol.SHA256.authCodeLength());
+					for (int j = 0; j < 1_000; j++) {
+						output.clear();
+						engine.hash(authKey, message, output);
+						if (!ByteBuffer.wrap(expected).equals(output.flip())) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> f : futures) {
+				Assertions.assertThat(f.get()).isTrue();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+
+public class PollSchedulerTest {
+
+	// Answers every request after the given delay, counting the requests in flight
+	private static final class FakeClient implements SnmpConnecter {
+		private final long delay;
+		public final AtomicInteger inFlight = new AtomicInteger(0);
+		public final AtomicInteger maxInFlight = new AtomicInteger(0);
+		public final List<Double> starts = new ArrayList<>();
+
+		public FakeClient(long delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public void connect(SnmpConnection callback) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public SnmpRequestBuilder request() {
+			return new SnmpRequestBuilder() {
+				private Oid oid;
+
+				@Override
+				public SnmpRequestBuilder community(String community) {
+					return this;
+				}
+				@Override
+				public SnmpRequestBuilder auth(AuthRemoteSpecification authRemoteSpecification) {
+					return this;
+				}
+				@Override
+				public SnmpRequestBuilder build(Address address, Oid oid) {
+					this.oid = oid;
+					return this;
+				}
+				@Override
+				public SnmpRequestBuilder add(Oid oid, String value) {
+					return this;
+				}
+				@Override
+				public void cancel() {
+				}
+
+				@Override
+				public Cancelable call(SnmpCallType type, final SnmpReceiver callback) {
+					synchronized (starts) {
+						starts.add(System.currentTimeMillis() / 1000d);
+					}
+					int n = inFlight.incrementAndGet();
+					maxInFlight.accumulateAndGet(n, Math::max);
+					new Thread(() -> {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+						}
+						inFlight.decrementAndGet();
+						callback.received(new SnmpResult(oid, "value"));
+						callback.finished();
+					}).start();
+					return () -> {};
+				}
+			};
+		}
+	}
+
+	private static final class CountingHandler implements PollHandler {
+		public final Map<Address, AtomicInteger> finished = new ConcurrentHashMap<>();
+		public final AtomicInteger received = new AtomicInteger(0);
+		public final AtomicInteger skipped = new AtomicInteger(0);
+
+		@Override
+		public void received(Address address, SnmpResult result) {
+			received.incrementAndGet();
+		}
+		@Override
+		public void failed(Address address, Oid oid, IOException ioe) {
+		}
+		@Override
+		public void finished(Address address) {
+			finished.computeIfAbsent(address, k -> new AtomicInteger(0)).incrementAndGet();
+		}
+		@Override
+		public void skipped(Address address) {
+			skipped.incrementAndGet();
+		}
+	}
+
+	private static Address address(int i) {
+		return new Address(new byte[] { 10, 0, (byte) (i >>> 8), (byte) i }, 161);
+	}
+
+	@Test
+	public void testSpreadAndLimits() throws Exception {
+		FakeClient client = new FakeClient(5L);
+		CountingHandler handler = new CountingHandler();
+		int n = 200;
+		double interval = 1d;
+		try (PollScheduler scheduler = PollScheduler.builder().inFlight(5).inFlightPerDevice(1).jitter(0d).build(client)) {
+			for (int i = 0; i < n; i++) {
+				scheduler.poll(address(i), interval).community("public").add(new Oid("1.1.1")).add(new Oid("1.1.2")).register(handler);
+			}
+			Thread.sleep(2_500L);
+		}
+
+		Assertions.assertThat(client.maxInFlight.get()).isLessThanOrEqualTo(5);
+		Assertions.assertThat(handler.finished.size()).isEqualTo(n);
+		Assertions.assertThat(handler.skipped.get()).isZero();
+
+		// Evenly spread: no tenth of the interval gets much more than a tenth of the requests
+		int[] buckets = new int[10];
+		synchronized (client.starts) {
+			for (double t : client.starts) {
+				buckets[(int) ((t % interval) * 10d / interval)]++;
+			}
+			for (int b : buckets) {
+				Assertions.assertThat(b).isLessThan(client.starts.size() / 4);
+			}
+		}
+	}
+
+	@Test
+	public void testSkipWhenLate() throws Exception {
+		FakeClient client = new FakeClient(800L); // Longer than the interval
+		CountingHandler handler = new CountingHandler();
+		try (PollScheduler scheduler = PollScheduler.builder().build(client)) {
+			Cancelable c = scheduler.poll(address(1), 0.3d).add(new Oid("1.1.1")).register(handler);
+			Thread.sleep(1_500L);
+			c.cancel();
+		}
+		Assertions.assertThat(handler.skipped.get()).isGreaterThan(0);
+		Assertions.assertThat(client.maxInFlight.get()).isEqualTo(1);
+	}
+}
@@ -28,6 +28,38 @@ public class SnmpPacketParserTest {
 		Assertions.assertThat(toList(parser.getResults())).isEmpty();
 	}
 
+	@Test
+	public void testStreaming() throws Exception {
+		SequenceBerPacket variables = new SequenceBerPacket(BerConstants.SEQUENCE);
+		for (int i = 0; i < 3; i++) {
+			variables.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(new Oid("1.1." + i))).add(new BytesBerPacket(BerPacketUtils.bytes("v" + i))));
+		}
+		SequenceBerPacket root = new SequenceBerPacket(BerConstants.SEQUENCE)
+			.add(new IntegerBerPacket(BerConstants.VERSION_2C))
+			.add(new BytesBerPacket(BerPacketUtils.bytes("public")))
+			.add(new SequenceBerPacket(BerConstants.RESPONSE)
+				.add(new IntegerBerPacket(1234))
+				.add(new IntegerBerPacket(0))
+				.add(new IntegerBerPacket(0))
+				.add(variables));
+		ByteBuffer buffer = ByteBuffer.allocate(BerPacketUtils.typeAndLengthBufferLength(root.lengthBuffer()) + root.length());
+		root.write(buffer);
+		buffer.flip();
+
+		SnmpPacketParser full = new SnmpPacketParser(new Address(Address.LOCALHOST, 161), null, buffer.duplicate());
+
+		SnmpPacketParser parser = SnmpPacketParser.stream(new Address(Address.LOCALHOST, 161), null, buffer.duplicate());
+		Assertions.assertThat(parser.getRequestId()).isEqualTo(1234);
+		Assertions.assertThat(parser.getErrorStatus()).isEqualTo(0);
+		Assertions.assertThat(toList(parser.getResults())).isEmpty();
+		List<SnmpResult> visited = new ArrayList<>();
+		parser.visit(visited::add);
+		parser.visit(visited::add); // Only once
+
+		Assertions.assertThat(visited.toString()).isEqualTo("[1.1.0:v0, 1.1.1:v1, 1.1.2:v2]");
+		Assertions.assertThat(toList(full.getResults())).isEqualTo(visited);
+	}
+
 	private static ByteBuffer readFixtureAsByteBuffer() throws Exception {
 		try (InputStream inputStream = SnmpPacketParserTest.class.getResourceAsStream(PACKET_FIXTURE_PATH)) {
 			Assertions.assertThat(inputStream)
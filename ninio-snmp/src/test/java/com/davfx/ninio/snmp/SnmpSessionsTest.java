@@ -0,0 +1,87 @@
+package com.davfx.ninio.snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class SnmpSessionsTest {
+
+	private static Address address(int i) {
+		return new Address(new byte[] { 10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i }, 161);
+	}
+
+	@Test
+	public void testGetOrCreateAndRemove() throws Exception {
+		SnmpSessions sessions = new SnmpSessions();
+		int n = 10_000;
+		for (int i = 0; i < n; i++) {
+			sessions.getOrCreate(address(i));
+		}
+		Assertions.assertThat(sessions.size()).isEqualTo(n);
+		for (int i = 0; i < n; i++) {
+			SnmpSession s = sessions.get(address(i));
+			Assertions.assertThat(s).isNotNull();
+			Assertions.assertThat(s.address).isEqualTo(address(i));
+			Assertions.assertThat(sessions.getOrCreate(address(i))).isSameAs(s);
+		}
+		Assertions.assertThat(sessions.get(new Address(Address.LOCALHOST, 161))).isNull();
+
+		Assertions.assertThat(sessions.removeIf(s -> (s.address.ip[3] % 2) == 0)).isEqualTo(n / 2);
+		Assertions.assertThat(sessions.size()).isEqualTo(n / 2);
+		for (int i = 0; i < n; i++) {
+			if ((i % 2) == 0) {
+				Assertions.assertThat(sessions.get(address(i))).isNull();
+			} else {
+				Assertions.assertThat(sessions.get(address(i))).isNotNull();
+			}
+		}
+	}
+
+	@Test
+	public void testOneManagerPerAuth() throws Exception {
+		SnmpSession session = new SnmpSession(address(1));
+		EncryptionEngine encryptionEngine = new EncryptionEngine(AuthProtocol.SHA1, null, 60d);
+		Auth[] auths = new Auth[SnmpSession.MAX_AUTHS + 1];
+		AuthRemoteEnginePendingRequestManager[] managers = new AuthRemoteEnginePendingRequestManager[auths.length];
+		for (int i = 0; i < auths.length; i++) {
+			auths[i] = new Auth("user" + i, "authpass", "SHA", null, null);
+			managers[i] = new AuthRemoteEnginePendingRequestManager(auths[i], encryptionEngine);
+		}
+
+		// Alternating between two auths keeps both managers
+		Assertions.assertThat(session.access(auths[0])).isNull();
+		session.authRemoteEnginePendingRequestManager(managers[0]);
+		Assertions.assertThat(session.access(auths[1])).isNull();
+		session.authRemoteEnginePendingRequestManager(managers[1]);
+		for (int k = 0; k < 3; k++) {
+			Assertions.assertThat(session.access(auths[0])).isSameAs(managers[0]);
+			Assertions.assertThat(session.access()).isSameAs(managers[0]);
+			Assertions.assertThat(session.access(auths[1])).isSameAs(managers[1]);
+			Assertions.assertThat(session.access()).isSameAs(managers[1]);
+		}
+
+		// The least recently used manager is dropped beyond MAX_AUTHS, its pending requests are failed
+		final List<IOException> failed = new ArrayList<>();
+		managers[0].registerPendingRequest(new AuthRemoteEnginePendingRequestManager.PendingRequest(SnmpCallType.GET, 1, null, null, new SendCallback() {
+			@Override
+			public void sent() {
+			}
+			@Override
+			public void failed(IOException ioe) {
+				failed.add(ioe);
+			}
+		}));
+		for (int i = 2; i < auths.length; i++) {
+			session.authRemoteEnginePendingRequestManager(managers[i]);
+		}
+		Assertions.assertThat(failed).hasSize(1);
+		Assertions.assertThat(session.access(auths[0])).isNull();
+		Assertions.assertThat(session.access(auths[1])).isSameAs(managers[1]);
+	}
+}
@@ -1,12 +1,16 @@
 package com.davfx.ninio.snmp;
 
 import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
 import com.davfx.ninio.core.Disconnectable;
 import com.davfx.ninio.core.InMemoryCache;
 import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
 import com.davfx.ninio.core.UdpSocket;
 import com.davfx.ninio.util.Lock;
 import com.davfx.ninio.util.Wait;
+import com.google.common.base.Charsets;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,9 +18,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.davfx.ninio.snmp.TestUtil.findAvailablePort;
 
@@ -86,6 +96,124 @@ public class SnmpTest {
 		}
 	}
 
+	@Test
+	public void testSharded() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			TreeMap<Oid, String> map = new TreeMap<>();
+			map.put(new Oid("1.1.1"), "val1.1.1");
+			map.put(new Oid("1.1.2"), "val1.1.2");
+
+			try (Disconnectable snmpServer = ninio.create(SnmpServer.builder().with(UdpSocket.builder().bind(new Address(Address.LOCALHOST, port)))
+					.handle(new FromMapSnmpServerHandler(map, new SnmpServerHandler() {
+						@Override
+						public void from(Oid oid, Callback callback) {
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					})))) {
+				final Wait waitClient = new Wait();
+				try (SnmpConnecter snmpClient = ninio.create(ShardedSnmpClient.builder().shards(3))) {
+					snmpClient.connect(new SnmpConnection() {
+							@Override
+							public void failed(IOException ioe) {
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+								waitClient.run();
+							}
+						});
+					Assertions.assertThat(get(snmpClient, new Address(Address.LOCALHOST, port), new Oid("1.1.1")).toString()).isEqualTo("[1.1.1:val1.1.1]");
+					Assertions.assertThat(getbulk(snmpClient, new Address(Address.LOCALHOST, port), new Oid("1.1")).toString()).isEqualTo("[1.1.1:val1.1.1, 1.1.2:val1.1.2]");
+				}
+				waitClient.waitFor();
+			}
+		}
+	}
+
+	// The shards are created on the queues of the Ninio, through the given connecter factory, each bound to its own port
+	@Test
+	public void testShardedWithBoundConnecters() throws Exception {
+		Assertions.assertThatThrownBy(() -> ShardedSnmpClient.builder().with(p -> null).bind(new Address(Address.LOCALHOST, port)).create(null)).isInstanceOf(IllegalStateException.class);
+
+		try (Ninio ninio = Ninio.create()) {
+			final Set<Integer> sources = new HashSet<>();
+			final CountDownLatch received = new CountDownLatch(20);
+			try (Connecter agent = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, port)))) {
+				agent.connect(new Connection() {
+					@Override
+					public void failed(IOException ioe) {
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void received(Address address, ByteBuffer buffer) {
+						synchronized (sources) {
+							sources.add(address.port);
+						}
+						received.countDown();
+					}
+				});
+
+				int bindPort = findAvailablePort();
+				try (SnmpConnecter snmpClient = ninio.create(ShardedSnmpClient.builder().shards(2).with(UdpSocket.builder()).bind(new Address(Address.LOCALHOST, bindPort)))) {
+					snmpClient.connect(null);
+					for (int i = 1; i <= 20; i++) {
+						snmpClient.request().community("community").build(new Address(new byte[] { 127, 0, 0, (byte) i }, port), new Oid("1.1.1")).call(SnmpCallType.GET, new SnmpReceiver() {
+							@Override
+							public void received(SnmpResult result) {
+							}
+							@Override
+							public void finished() {
+							}
+							@Override
+							public void failed(IOException ioe) {
+							}
+						});
+					}
+					Assertions.assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+					synchronized (sources) {
+						Assertions.assertThat(sources).containsExactlyInAnyOrder(bindPort, bindPort + 1);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testShardIsConsistent() throws Exception {
+		int[] counts = new int[4];
+		int moved = 0;
+		for (int i = 0; i < 10_000; i++) {
+			Address a = new Address(new byte[] { 10, 0, (byte) (i >>> 8), (byte) i }, 161);
+			int s = ShardedSnmpClient.shard(a, 4);
+			Assertions.assertThat(ShardedSnmpClient.shard(a, 4)).isEqualTo(s);
+			counts[s]++;
+			int t = ShardedSnmpClient.shard(a, 5);
+			if (t != s) {
+				Assertions.assertThat(t).isEqualTo(4); // Only moved to the new shard
+				moved++;
+			}
+		}
+		for (int c : counts) {
+			Assertions.assertThat(c).isBetween(2_000, 3_000);
+		}
+		Assertions.assertThat(moved).isBetween(1_500, 2_500);
+	}
+
     //    @Test
 //    public void testDESNinio() throws UnknownHostException, InterruptedException {
 //        try (Ninio ninio = Ninio.create()) {
@@ -246,6 +374,236 @@ public class SnmpTest {
 		}
 	}
 	
+	@Test
+	public void testRetry() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			TreeMap<Oid, String> map = new TreeMap<>();
+			map.put(new Oid("1.1.1"), "val1.1.1");
+
+			try (SnmpConnecter snmpClient = ninio.create(SnmpClient.builder().with(UdpSocket.builder()).retry(3, 0.5d, 1d, 0d))) {
+				snmpClient.connect(new SnmpConnection() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+
+				final Lock<List<SnmpResult>, IOException> lock = new Lock<>();
+				snmpClient.request().community("community").build(new Address(Address.LOCALHOST, port), new Oid("1.1.1")).call(SnmpCallType.GET, new SnmpReceiver() {
+							private final List<SnmpResult> r = new LinkedList<>();
+							@Override
+							public void received(SnmpResult result) {
+								r.add(result);
+							}
+							@Override
+							public void finished() {
+								lock.set(r);
+							}
+							@Override
+							public void failed(IOException ioe) {
+								lock.fail(ioe);
+							}
+						});
+
+				// The first packet is lost, the server is started before the first retry
+				Thread.sleep(100L);
+				try (Disconnectable snmpServer = ninio.create(SnmpServer.builder().with(UdpSocket.builder().bind(new Address(Address.LOCALHOST, port)))
+						.handle(new FromMapSnmpServerHandler(map, new SnmpServerHandler() {
+							@Override
+							public void from(Oid oid, Callback callback) {
+							}
+							@Override
+							public void failed(IOException ioe) {
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+							}
+						})))) {
+					Assertions.assertThat(lock.waitFor().toString()).isEqualTo("[1.1.1:val1.1.1]");
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRetryTimeout() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			final Lock<String, IOException> lock = new Lock<>();
+			try (SnmpConnecter snmpClient = ninio.create(SnmpClient.builder().with(UdpSocket.builder()).retry(2, 0.1d, 2d, 0.1d))) {
+				snmpClient.connect(new SnmpConnection() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+
+				long start = System.nanoTime();
+				snmpClient.request().community("community").build(new Address(Address.LOCALHOST, port), new Oid("1.1.1")).call(SnmpCallType.GET, new SnmpReceiver() {
+							@Override
+							public void received(SnmpResult result) {
+							}
+							@Override
+							public void finished() {
+							}
+							@Override
+							public void failed(IOException ioe) {
+								lock.set(ioe.getMessage());
+							}
+						});
+
+				Assertions.assertThat(lock.waitFor()).isEqualTo("Timeout");
+				// 0.1 + 0.2 + 0.4 seconds, minus jitter
+				Assertions.assertThat(System.nanoTime() - start).isGreaterThan(600_000_000L);
+			}
+		}
+	}
+	
+	private static final Oid UNKNOWN_ENGINE_ID_OID = new Oid("1.3.6.1.6.3.15.1.1.4.0");
+	private static final Oid NOT_IN_TIME_WINDOW_OID = new Oid("1.3.6.1.6.3.15.1.1.2.0");
+
+	// Unauthenticated SNMPv3 answer, the client does not check the digest of what it receives
+	private static ByteBuffer v3(byte[] engineId, int bootCount, int time, int type, int requestId, Oid oid, BerPacket value) {
+		SequenceBerPacket root = new SequenceBerPacket(BerConstants.SEQUENCE)
+				.add(new IntegerBerPacket(BerConstants.VERSION_3))
+				.add(new SequenceBerPacket(BerConstants.SEQUENCE)
+						.add(new IntegerBerPacket(1))
+						.add(new IntegerBerPacket(65507))
+						.add(new BytesBerPacket(ByteBuffer.wrap(new byte[] { 0 })))
+						.add(new IntegerBerPacket(BerConstants.VERSION_3_USM_SECURITY_MODEL)))
+				.add(new BytesSequenceBerPacket(new SequenceBerPacket(BerConstants.SEQUENCE)
+						.add(new BytesBerPacket(ByteBuffer.wrap(engineId)))
+						.add(new IntegerBerPacket(bootCount))
+						.add(new IntegerBerPacket(time))
+						.add(new BytesBerPacket(ByteBuffer.allocate(0)))
+						.add(new BytesBerPacket(ByteBuffer.allocate(0)))
+						.add(new BytesBerPacket(ByteBuffer.allocate(0)))))
+				.add(new SequenceBerPacket(BerConstants.SEQUENCE)
+						.add(new BytesBerPacket(ByteBuffer.wrap(engineId)))
+						.add(new BytesBerPacket(ByteBuffer.allocate(0)))
+						.add(new SequenceBerPacket(type)
+								.add(new IntegerBerPacket(requestId))
+								.add(new IntegerBerPacket(0))
+								.add(new IntegerBerPacket(0))
+								.add(new SequenceBerPacket(BerConstants.SEQUENCE)
+										.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(oid)).add(value)))));
+		ByteBuffer b = ByteBuffer.allocate(BerPacketUtils.typeAndLengthBufferLength(root.lengthBuffer()) + root.length());
+		root.write(b);
+		b.flip();
+		return b;
+	}
+
+	// The agent reboots right after the first request it receives, and reports it as not in the time window
+	private void testNotInTimeWindow(final boolean reportRequestId) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			final byte[] engineId = "agent".getBytes(Charsets.UTF_8);
+			final int[] bootCount = new int[] { 1 };
+			final AtomicInteger rejected = new AtomicInteger(0);
+
+			try (final Connecter agent = ninio.create(UdpSocket.builder().bind(new Address(Address.LOCALHOST, port)))) {
+				agent.connect(new Connection() {
+					@Override
+					public void failed(IOException ioe) {
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void received(Address address, ByteBuffer buffer) {
+						int requestBootCount;
+						int requestId;
+						boolean discover;
+						try {
+							BerReader ber = new BerReader(buffer);
+							ber.beginReadSequence();
+							ber.readInteger(); // Version
+							ber.beginReadSequence();
+							ber.readInteger(); // Packet number
+							ber.readInteger(); // Max packet size
+							ber.readBytes(); // Security flags
+							ber.readInteger(); // Security model
+							ber.endReadSequence();
+							BerReader sec = new BerReader(ber.readBytes());
+							sec.beginReadSequence();
+							discover = !sec.readBytes().hasRemaining();
+							requestBootCount = sec.readInteger();
+							ber.beginReadSequence(); // authNoPriv, not encrypted
+							ber.readBytes(); // Engine ID
+							ber.readBytes(); // Context name
+							ber.beginReadSequence();
+							requestId = ber.readInteger();
+						} catch (IOException e) {
+							LOGGER.error("Invalid request", e);
+							return;
+						}
+
+						ByteBuffer answer;
+						if (discover) {
+							answer = v3(engineId, bootCount[0], 5, BerConstants.REPORT, requestId, UNKNOWN_ENGINE_ID_OID, new IntegerBerPacket(1));
+						} else if ((bootCount[0] == 1) || (requestBootCount != bootCount[0])) {
+							bootCount[0] = 2;
+							rejected.incrementAndGet();
+							answer = v3(engineId, bootCount[0], 5, BerConstants.REPORT, reportRequestId ? requestId : 0, NOT_IN_TIME_WINDOW_OID, new IntegerBerPacket(1));
+						} else {
+							answer = v3(engineId, bootCount[0], 5, BerConstants.RESPONSE, requestId, new Oid("1.1.1"), new BytesBerPacket(BerPacketUtils.bytes("val1.1.1")));
+						}
+						agent.send(address, answer, new Nop());
+					}
+				});
+
+				try (SnmpConnecter snmpClient = ninio.create(SnmpClient.builder().with(UdpSocket.builder()).retry(3, 0.3d, 1d, 0d))) {
+					snmpClient.connect(null);
+
+					final Lock<List<SnmpResult>, IOException> lock = new Lock<>();
+					snmpClient.request().auth(new AuthRemoteSpecification("authNoPriv", "authpassword", "SHA", null, null, null)).build(new Address(Address.LOCALHOST, port), new Oid("1.1.1")).call(SnmpCallType.GET, new SnmpReceiver() {
+								private final List<SnmpResult> r = new LinkedList<>();
+								@Override
+								public void received(SnmpResult result) {
+									r.add(result);
+								}
+								@Override
+								public void finished() {
+									lock.set(r);
+								}
+								@Override
+								public void failed(IOException ioe) {
+									lock.fail(ioe);
+								}
+							});
+
+					Assertions.assertThat(lock.waitFor().toString()).isEqualTo("[1.1.1:val1.1.1]");
+					Assertions.assertThat(rejected.get()).isEqualTo(1);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testNotInTimeWindowReportedForTheRequest() throws Exception {
+		testNotInTimeWindow(true);
+	}
+
+	// As when the agent cannot decrypt the request it rejects
+	@Test
+	public void testNotInTimeWindowReportedWithoutRequestId() throws Exception {
+		testNotInTimeWindow(false);
+	}
+
 	@Test
 	public void testWithCache() throws Exception {
 		try (Ninio ninio = Ninio.create()) {
@@ -3,8 +3,12 @@ package com.davfx.ninio.snmp;
 import com.davfx.ninio.core.Address;
 import com.davfx.ninio.core.Connecter;
 import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Disconnectable;
 import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
 import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.snmp.encryption.AuthProtocol;
+import com.davfx.ninio.snmp.encryption.PrivacyProtocol;
 import com.davfx.ninio.util.Lock;
 import com.davfx.ninio.util.Wait;
 import org.assertj.core.api.Assertions;
@@ -14,6 +18,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.davfx.ninio.snmp.TestUtil.findAvailablePort;
 
@@ -110,6 +119,190 @@ public class SnmpTrapTest {
 		}
 	}
 	
+	@Test
+	public void testReceiver() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = findAvailablePort();
+			Address receiverAddress = new Address(Address.LOCALHOST, port);
+
+			final BlockingQueue<SnmpTrap> traps = new LinkedBlockingQueue<>();
+			try (Disconnectable receiver = ninio.create(SnmpTrapReceiver.builder().with(UdpSocket.builder().bind(receiverAddress)).workers(2).handle(new SnmpTrapHandler() {
+					@Override
+					public void received(List<SnmpTrap> t) {
+						traps.addAll(t);
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+					@Override
+					public void failed(IOException ioe) {
+					}
+				}))) {
+
+				// v2c trap
+				try (SnmpConnecter snmpClient = ninio.create(SnmpClient.builder().with(UdpSocket.builder()))) {
+					snmpClient.connect(null);
+					snmpClient.request().community("community").build(receiverAddress, new Oid("1.1.1")).add(new Oid("1.1.1.1.1.9"), "trap-test").call(SnmpCallType.TRAP, null);
+					SnmpTrap trap = traps.poll(5, TimeUnit.SECONDS);
+					Assertions.assertThat(trap).isNotNull();
+					Assertions.assertThat(trap.version).isEqualTo(BerConstants.VERSION_2C);
+					Assertions.assertThat(trap.inform).isFalse();
+					Assertions.assertThat(trap.community).isEqualTo("community");
+					Assertions.assertThat(trap.trapOid).isEqualTo(new Oid("1.1.1"));
+					Assertions.assertThat(trap.results).containsExactly(new SnmpResult(new Oid("1.1.1.1.1.9"), "trap-test"));
+				}
+
+				final Lock<ByteBuffer, IOException> response = new Lock<>();
+				try (Connecter client = ninio.create(UdpSocket.builder())) {
+					client.connect(new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							response.set(buffer);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						@Override
+						public void failed(IOException e) {
+						}
+					});
+
+					// v1 trap, enterprise specific
+					client.send(receiverAddress, build(new SequenceBerPacket(BerConstants.SEQUENCE)
+							.add(new IntegerBerPacket(BerConstants.VERSION_1))
+							.add(new BytesBerPacket(BerPacketUtils.bytes("v1")))
+							.add(new SequenceBerPacket(BerConstants.TRAP_V1)
+								.add(new OidBerPacket(new Oid("1.3.6.1.4.1.42")))
+								.add(new BytesBerPacket(ByteBuffer.wrap(Address.LOCALHOST)))
+								.add(new IntegerBerPacket(6))
+								.add(new IntegerBerPacket(7))
+								.add(new IntegerBerPacket(1234))
+								.add(new SequenceBerPacket(BerConstants.SEQUENCE)
+									.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(new Oid("1.2.3"))).add(new BytesBerPacket(BerPacketUtils.bytes("v1-value"))))))), new Nop());
+					SnmpTrap trap = traps.poll(5, TimeUnit.SECONDS);
+					Assertions.assertThat(trap).isNotNull();
+					Assertions.assertThat(trap.version).isEqualTo(BerConstants.VERSION_1);
+					Assertions.assertThat(trap.trapOid).isEqualTo(new Oid("1.3.6.1.4.1.42.0.7"));
+					Assertions.assertThat(trap.upTime).isEqualTo(1234L);
+					Assertions.assertThat(trap.results).containsExactly(new SnmpResult(new Oid("1.2.3"), "v1-value"));
+
+					// v2c inform, acknowledged
+					client.send(receiverAddress, build(new SequenceBerPacket(BerConstants.SEQUENCE)
+							.add(new IntegerBerPacket(BerConstants.VERSION_2C))
+							.add(new BytesBerPacket(BerPacketUtils.bytes("community")))
+							.add(new SequenceBerPacket(BerConstants.INFORM)
+								.add(new IntegerBerPacket(4242))
+								.add(new IntegerBerPacket(0))
+								.add(new IntegerBerPacket(0))
+								.add(new SequenceBerPacket(BerConstants.SEQUENCE)
+									.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(BerConstants.TIMESTAMP_OID)).add(new IntegerBerPacket(100)))
+									.add(new SequenceBerPacket(BerConstants.SEQUENCE).add(new OidBerPacket(BerConstants.TRAP_OID)).add(new OidBerPacket(new Oid("1.2.4"))))))), new Nop());
+					trap = traps.poll(5, TimeUnit.SECONDS);
+					Assertions.assertThat(trap).isNotNull();
+					Assertions.assertThat(trap.inform).isTrue();
+					Assertions.assertThat(trap.trapOid).isEqualTo(new Oid("1.2.4"));
+					Assertions.assertThat(trap.upTime).isEqualTo(100L);
+					Assertions.assertThat(trap.results).isEmpty();
+
+					BerReader ber = new BerReader(response.waitFor());
+					ber.beginReadSequence();
+					ber.readInteger();
+					ber.readBytes();
+					Assertions.assertThat(ber.beginReadSequence()).isEqualTo(BerConstants.RESPONSE);
+					Assertions.assertThat(ber.readInteger()).isEqualTo(4242);
+				}
+			}
+		}
+	}
+
+	private static AuthRemoteEngine sender(String login, String authPassword, String privPassword, int bootCount, int time) {
+		AuthRemoteEngine engine = new AuthRemoteEngine(new Auth(login, authPassword, "SHA", privPassword, (privPassword == null) ? null : "AES"), new EncryptionEngine(AuthProtocol.SHA1, (privPassword == null) ? null : PrivacyProtocol.AES, 60d));
+		engine.setId(new byte[] { (byte) 0x80, 0, 0, 0x1F, 0x42 });
+		engine.setBootCount(bootCount);
+		engine.resetTime(time);
+		return engine;
+	}
+
+	private static ByteBuffer v3Trap(AuthRemoteEngine engine, String value) {
+		return Version3PacketBuilder.trap(engine, 1, new Oid("1.3.6.1.4.1.42.1"), Arrays.asList(new SnmpResult(new Oid("1.2.3"), value))).getBuffer();
+	}
+
+	@Test
+	public void testReceiverV3() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = findAvailablePort();
+			Address receiverAddress = new Address(Address.LOCALHOST, port);
+
+			final BlockingQueue<SnmpTrap> traps = new LinkedBlockingQueue<>();
+			try (Disconnectable receiver = ninio.create(SnmpTrapReceiver.builder().with(UdpSocket.builder().bind(receiverAddress))
+					.auth(new AuthRemoteSpecification("authNoPriv", "authpassword", "SHA", null, null, null))
+					.auth(new AuthRemoteSpecification("authPriv", "authpassword", "SHA", "privpassword", "AES", null))
+					.handle(new SnmpTrapHandler() {
+						@Override
+						public void received(List<SnmpTrap> t) {
+							traps.addAll(t);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+					}))) {
+				try (Connecter client = ninio.create(UdpSocket.builder())) {
+					client.connect(new Nop());
+
+					// authNoPriv
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 3, 1000), "no-priv"), new Nop());
+					SnmpTrap trap = traps.poll(5, TimeUnit.SECONDS);
+					Assertions.assertThat(trap).isNotNull();
+					Assertions.assertThat(trap.version).isEqualTo(BerConstants.VERSION_3);
+					Assertions.assertThat(trap.login).isEqualTo("authNoPriv");
+					Assertions.assertThat(trap.trapOid).isEqualTo(new Oid("1.3.6.1.4.1.42.1"));
+					Assertions.assertThat(trap.upTime).isEqualTo(100_000L);
+					Assertions.assertThat(trap.results).containsExactly(new SnmpResult(new Oid("1.2.3"), "no-priv"));
+
+					// authPriv
+					client.send(receiverAddress, v3Trap(sender("authPriv", "authpassword", "privpassword", 3, 1001), "priv"), new Nop());
+					trap = traps.poll(5, TimeUnit.SECONDS);
+					Assertions.assertThat(trap).isNotNull();
+					Assertions.assertThat(trap.login).isEqualTo("authPriv");
+					Assertions.assertThat(trap.results).containsExactly(new SnmpResult(new Oid("1.2.3"), "priv"));
+
+					// Dropped: wrong password, older than the time window, previous boot. Notifications from an address are handled in order.
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "wrongpassword", null, 3, 1002), "wrong-password"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 3, 800), "replayed"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 2, 5000), "previous-boot"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 3, 900), "within-window"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 4, 1), "rebooted"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 3, 1003), "before-reboot"), new Nop());
+					client.send(receiverAddress, v3Trap(sender("authNoPriv", "authpassword", null, 4, 2), "last"), new Nop());
+					for (String expected : new String[] { "within-window", "rebooted", "last" }) {
+						trap = traps.poll(5, TimeUnit.SECONDS);
+						Assertions.assertThat(trap).isNotNull();
+						Assertions.assertThat(trap.results).containsExactly(new SnmpResult(new Oid("1.2.3"), expected));
+					}
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer build(BerPacket root) {
+		ByteBuffer buffer = ByteBuffer.allocate(BerPacketUtils.typeAndLengthBufferLength(root.lengthBuffer()) + root.length());
+		root.write(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
 	public static void main(String[] args) {
 		// sudo snmptrapd -f -Le -d
 		try (Ninio ninio = Ninio.create()) {
@@ -0,0 +1,92 @@
+package com.davfx.ninio.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.typesafe.config.Config;
+
+/**
+ * Seconds, as DateUtils.now(), but read with a volatile load: a daemon thread updates the value at the configured resolution.
+ * The thread falls asleep when the clock is not read for a second, and the next read wakes it up (and updates the value itself).
+ * The value is derived from System.nanoTime, offset once by the wall clock when first used: it never goes backward and wall clock changes are ignored.
+ * Intended for expirations and timeouts, not for dates.
+ */
+public final class CachedClock {
+
+	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.util.dependencies.Dependencies()).getConfig(CachedClock.class.getPackage().getName());
+	private static final long RESOLUTION = (long) (ConfigUtils.getDuration(CONFIG, "clock.resolution") * 1_000_000_000d);
+	private static final long IDLE = 1_000_000_000L;
+
+	private CachedClock() {
+	}
+
+	// Started on first use
+	private static final class Ticker {
+		private static final double ORIGIN = DateUtils.now();
+		private static final long START = System.nanoTime();
+
+		private static volatile double now = ORIGIN;
+		private static volatile boolean asleep = false;
+		private static final AtomicBoolean READ = new AtomicBoolean(true); // Opaque accesses only, no fence on the read path
+
+		private static final Thread THREAD;
+
+		static {
+			THREAD = new ClassThreadFactory(CachedClock.class, true).newThread(() -> {
+				long idle = 0L;
+				while (true) {
+					LockSupport.parkNanos(RESOLUTION);
+					update();
+					if (READ.getOpaque()) {
+						READ.setOpaque(false);
+						idle = 0L;
+						continue;
+					}
+					idle += RESOLUTION;
+					if (idle >= IDLE) {
+						asleep = true;
+						while (asleep) {
+							LockSupport.park();
+						}
+						idle = 0L;
+					}
+				}
+			});
+			THREAD.start();
+		}
+
+		private static void update() {
+			now = ORIGIN + ((System.nanoTime() - START) / 1_000_000_000d);
+		}
+
+		// Synchronized so that concurrent readers do not store their values out of order
+		static synchronized void wakeUp() {
+			if (asleep) {
+				update();
+				asleep = false;
+				LockSupport.unpark(THREAD);
+			}
+		}
+	}
+
+	public static double now() {
+		if (Ticker.asleep) {
+			Ticker.wakeUp();
+		}
+		if (!Ticker.READ.getPlain()) {
+			Ticker.READ.setOpaque(true);
+		}
+		return Ticker.now;
+	}
+
+	/**
+	 * Resolution in seconds
+	 */
+	public static double resolution() {
+		return RESOLUTION / 1_000_000_000d;
+	}
+
+	static boolean asleep() {
+		return Ticker.asleep;
+	}
+}
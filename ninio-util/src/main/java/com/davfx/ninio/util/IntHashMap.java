@@ -0,0 +1,167 @@
+package com.davfx.ninio.util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing (linear probing) map with primitive int keys, no boxing and no allocation but when growing.
+ * Null values are not allowed. Not thread-safe.
+ */
+public final class IntHashMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	public IntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public IntHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (expectedSize * 2)) {
+			capacity *= 2;
+		}
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = hash(key) & mask;
+		while (true) {
+			Object v = values[i];
+			if (v == null) {
+				return null;
+			}
+			if (keys[i] == key) {
+				return (V) v;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the previous value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int i = hash(key) & mask;
+		while (true) {
+			Object v = values[i];
+			if (v == null) {
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				if ((size * 2) > values.length) {
+					grow();
+				}
+				return null;
+			}
+			if (keys[i] == key) {
+				values[i] = value;
+				return (V) v;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return the removed value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = hash(key) & mask;
+		while (true) {
+			Object v = values[i];
+			if (v == null) {
+				return null;
+			}
+			if (keys[i] == key) {
+				removeAt(i);
+				return (V) v;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	// Backward shift deletion, no tombstone is left behind
+	private void removeAt(int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null) {
+				break;
+			}
+			int k = hash(keys[j]) & mask;
+			boolean stays = (i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j));
+			if (stays) {
+				continue;
+			}
+			keys[i] = keys[j];
+			values[i] = values[j];
+			i = j;
+		}
+		values[i] = null;
+		size--;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEachValue(Consumer<? super V> consumer) {
+		for (Object v : values) {
+			if (v != null) {
+				consumer.accept((V) v);
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		int capacity = oldValues.length * 2;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldValues.length; j++) {
+			Object v = oldValues[j];
+			if (v == null) {
+				continue;
+			}
+			int i = hash(oldKeys[j]) & mask;
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			values[i] = v;
+		}
+	}
+}
@@ -1,37 +1,61 @@
 package com.davfx.ninio.util;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.typesafe.config.Config;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.DoubleSupplier;
 import java.util.stream.Stream;
 
-import static com.google.common.collect.ImmutableList.toImmutableList;
-
+/**
+ * Thread-safe. Keys are spread over independently locked segments.
+ * Expired entries are removed by a timer wheel advanced on each operation: only the entries due in the elapsed ticks are visited, never the whole map.
+ * When limited, a frequency sketch decides whether a new entry is worth evicting the least recently used one (TinyLFU admission):
+ * a new entry can be rejected by its own put, see put.
+ */
 public final class MemoryCache<K, V> {
-	
+
 	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.util.dependencies.Dependencies()).getConfig(MemoryCache.class.getPackage().getName());
 	private static final double DEFAULT_CHECK_TIME = ConfigUtils.getDuration(CONFIG, "cache.default.check");
+	private static final int DEFAULT_SEGMENTS = CONFIG.getInt("cache.default.segments");
+	private static final int MAX_WHEEL_BUCKETS = CONFIG.getInt("cache.default.wheel.max");
 
 	@VisibleForTesting
-	DoubleSupplier nowSupplier = DateUtils::now;
+	DoubleSupplier nowSupplier = CachedClock::now;
 
 	public static interface Builder<K, V> {
 		Builder<K, V> expireAfterAccess(double expiration);
 		Builder<K, V> expireAfterWrite(double expiration);
+		/**
+		 * Resolution of the removal of the entries that are not accessed anymore (expired entries are never returned anyway)
+		 */
 		Builder<K, V> check(double checkTime);
 		Builder<K, V> limitedTo(int limit);
+		/**
+		 * Keeps the insertion order in keys/values/entries, with a single segment
+		 */
 		Builder<K, V> keepOrder(boolean keepOrder);
+		/**
+		 * Number of independently locked parts (rounded to a power of two)
+		 */
+		Builder<K, V> segments(int segments);
+		/**
+		 * Called for each entry that expired, was pushed out by the limit or cleared (not the removed or replaced ones), under the segment lock:
+		 * it must not use this cache
+		 */
+		Builder<K, V> removed(BiConsumer<? super K, ? super V> listener);
 		MemoryCache<K, V> build();
 	}
-	
+
 	public static <K, V> Builder<K, V> builder() {
 		return new Builder<K, V>() {
 			private double expirationAfterAccess = 0d;
@@ -39,6 +63,8 @@ public final class MemoryCache<K, V> {
 			private double checkTime = DEFAULT_CHECK_TIME;
 			private int limit = 0;
 			private boolean keepOrder = false;
+			private int segments = DEFAULT_SEGMENTS;
+			private BiConsumer<? super K, ? super V> listener = null;
 
 			@Override
 			public Builder<K, V> expireAfterAccess(double expiration) {
@@ -67,164 +93,195 @@ public final class MemoryCache<K, V> {
 				return this;
 			}
 
+			@Override
+			public Builder<K, V> segments(int segments) {
+				this.segments = segments;
+				return this;
+			}
+
+			@Override
+			public Builder<K, V> removed(BiConsumer<? super K, ? super V> listener) {
+				this.listener = listener;
+				return this;
+			}
+
 			@Override
 			public MemoryCache<K, V> build() {
-				return new MemoryCache<>(expirationAfterAccess, expirationAfterWrite, limit, checkTime, keepOrder);
+				return new MemoryCache<>(expirationAfterAccess, expirationAfterWrite, limit, checkTime, keepOrder ? 1 : segments, keepOrder, listener);
 			}
 		};
 	}
-	
-	private static final class Element<V> {
+
+	private static final class Node<K, V> {
+		public final K key;
+		public V v;
 		public double writeTimestamp;
 		public double accessTimestamp;
-		public final V v;
-		public Element(V v) {
-			this.v = v;
+
+		// Timer wheel bucket, -1 if not scheduled
+		public int bucket = -1;
+		public Node<K, V> wheelPrevious;
+		public Node<K, V> wheelNext;
+
+		// Least recently used first, only if limited
+		public Node<K, V> lruPrevious;
+		public Node<K, V> lruNext;
+
+		public Node(K key) {
+			this.key = key;
 		}
 	}
 
 	private final double expirationAfterAccess;
 	private final double expirationAfterWrite;
-	private final int limit;
 	private final double checkTime;
-	private double lastCheck = 0d;
-	private final Map<K, Element<V>> map;
-	
-	private MemoryCache(double expirationAfterAccess, double expirationAfterWrite, int limit, double checkTime, boolean keepOrder) {
+	private final int wheelBuckets;
+	private final List<Segment> segments;
+	private final int segmentMask;
+	private final BiConsumer<? super K, ? super V> listener; // Null if none
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private MemoryCache(double expirationAfterAccess, double expirationAfterWrite, int limit, double checkTime, int segments, boolean keepOrder, BiConsumer<? super K, ? super V> listener) {
+		this.listener = listener;
 		this.expirationAfterAccess = expirationAfterAccess;
 		this.expirationAfterWrite = expirationAfterWrite;
-		this.limit = limit;
 		this.checkTime = checkTime;
-		this.map = keepOrder ? new LinkedHashMap<>() : new HashMap<>();
-    }
-	
+
+		// The wheel covers the longest expiration, longer ones just go round again
+		double longest = Math.max(expirationAfterAccess, expirationAfterWrite);
+		int w = 1;
+		if ((longest > 0d) && (checkTime > 0d)) {
+			while ((w < MAX_WHEEL_BUCKETS) && ((w * checkTime) <= longest)) {
+				w *= 2;
+			}
+		}
+		wheelBuckets = w;
+
+		int n = 1;
+		while (n < Math.max(1, segments)) {
+			n *= 2;
+		}
+		ImmutableList.Builder<Segment> b = ImmutableList.builder();
+		for (int i = 0; i < n; i++) {
+			b.add(new Segment((limit > 0) ? ((limit + n - 1) / n) : 0, keepOrder));
+		}
+		this.segments = b.build();
+		segmentMask = n - 1;
+	}
+
+	private static int spread(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segment(int hash) {
+		return segments.get(hash & segmentMask);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder b = new StringBuilder().append('{');
 		boolean first = true;
-		for (Map.Entry<K, Element<V>> e : map.entrySet()) {
+		for (Map.Entry<K, V> e : entries()) {
 			if (!first) {
 				b.append(',');
 			} else {
 				first = false;
 			}
-			b.append(e.getKey()).append('=').append(e.getValue().v);
+			b.append(e.getKey()).append('=').append(e.getValue());
 		}
 		b.append('}');
 		return b.toString();
 	}
-	
+
+	/**
+	 * When limited and full, a new key is only admitted if it has been used (put or get) at least as often as the least recently used entry.
+	 * Otherwise it is dropped right away, as an eviction (the removal listener is called): a get just after put then misses.
+	 * Replacing the value of a key already in the cache always succeeds.
+	 */
 	public void put(K key, V value) {
-		try {
-			double now = nowSupplier.getAsDouble();
-	
-			Element<V> e = new Element<>(value);
-			e.writeTimestamp = now;
-			e.accessTimestamp = now;
-			
-			Element<V> previousElement = map.put(key, e);
-
-			if (limit > 0 && previousElement==null) { // if previousElement != null, the size has not increased
-				if (map.size() > limit) {
-					Iterator<Map.Entry<K, Element<V>>> i = map.entrySet().iterator();
-					i.next();
-					i.remove();
-				}
-			}
-		} finally {
-			check();
-		}
+		int hash = spread(key);
+		segment(hash).put(key, hash, value, nowSupplier.getAsDouble());
 	}
-	
-	public V get(K key) {
-		try {
-			Element<V> e = map.get(key);
-			if (e == null) {
-				return null;
-			}
-	
-			double now = nowSupplier.getAsDouble();
-			
-			if (expirationAfterAccess > 0d) {
-				if ((now - e.accessTimestamp) >= expirationAfterAccess) {
-					map.remove(key);
-					return null;
-				}
-			}
-			if (expirationAfterWrite > 0d) {
-				if ((now - e.writeTimestamp) >= expirationAfterWrite) {
-					map.remove(key);
-					return null;
-				}
-			}
-			
-			e.accessTimestamp = now;
 
-			return e.v;
-		} finally {
-			check();
+	public V get(K key) {
+		int hash = spread(key);
+		V v = segment(hash).get(key, hash, nowSupplier.getAsDouble());
+		if (v == null) {
+			misses.increment();
+		} else {
+			hits.increment();
 		}
+		return v;
 	}
 
 	public void remove(K key) {
-		try {
-			map.remove(key);
-		} finally {
-			check();
-		}
+		segment(spread(key)).remove(key, nowSupplier.getAsDouble());
 	}
 
 	public void clear() {
-		try {
-			map.clear();
-		} finally {
-			check();
+		for (Segment s : segments) {
+			s.clear();
 		}
 	}
-	
-	private void check() {
-		double now = nowSupplier.getAsDouble();
 
-		if ((now - lastCheck) < checkTime) {
-			return;
-		}
-		
-		lastCheck = now;
-		
-		if (expirationAfterAccess > 0d) {
-			map.values().removeIf(vElement -> (now - vElement.accessTimestamp) > expirationAfterAccess);
-		}
-		if (expirationAfterWrite > 0d) {
-			map.values().removeIf(vElement -> (now - vElement.writeTimestamp) > expirationAfterWrite);
-		}
+	public long hitCount() {
+		return hits.sum();
 	}
-	
-	public Set<K> keys() {
-		check();
 
-		return map.keySet();
+	public long missCount() {
+		return misses.sum();
 	}
 
+	/**
+	 * Entries removed because they expired or to make room, not the explicitly removed ones
+	 */
+	public long evictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Snapshot, the cache can be modified while iterating
+	 */
+	public Set<K> keys() {
+		double now = nowSupplier.getAsDouble();
+		ImmutableSet.Builder<K> b = ImmutableSet.builder();
+		for (Segment s : segments) {
+			s.forEach(now, (k, v) -> b.add(k));
+		}
+		return b.build();
+	}
+
+	/**
+	 * Snapshot, the cache can be modified while iterating
+	 */
 	public Stream<V> values() {
-		check();
-		
-		return map.values().stream()
-				.map(e -> e.v);
+		double now = nowSupplier.getAsDouble();
+		ImmutableList.Builder<V> b = ImmutableList.builder();
+		for (Segment s : segments) {
+			s.forEach(now, (k, v) -> b.add(v));
+		}
+		return b.build().stream();
 	}
-	
+
 	private static final class InnerMapEntry<K, V> implements Map.Entry<K, V> {
-		private final Map.Entry<K, Element<V>> e;
-		public InnerMapEntry(Map.Entry<K, Element<V>> e) {
-			this.e = e;
+		private final K k;
+		private final V v;
+		public InnerMapEntry(K k, V v) {
+			this.k = k;
+			this.v = v;
 		}
 		public K getKey() {
-			return e.getKey();
+			return k;
 		}
 		public V getValue() {
-			return e.getValue().v;
+			return v;
 		}
 		public int hashCode() {
-			return Objects.hash(e.getKey(), e.getValue().v);
+			return Objects.hash(k, v);
 		}
 		public boolean equals(Object o) {
 			if (o == this) {
@@ -233,9 +290,8 @@ public final class MemoryCache<K, V> {
 			if (!(o instanceof InnerMapEntry<?, ?>)) {
 				return false;
 			}
-			@SuppressWarnings("unchecked")
-			InnerMapEntry<K, V> a = (InnerMapEntry<K, V>) o;
-			return Objects.equals(e.getKey(), a.e.getKey()) && Objects.equals(e.getValue(), a.e.getValue());
+			InnerMapEntry<?, ?> a = (InnerMapEntry<?, ?>) o;
+			return Objects.equals(k, a.k) && Objects.equals(v, a.v);
 		}
 		public V setValue(V value) {
 			throw new UnsupportedOperationException();
@@ -243,10 +299,312 @@ public final class MemoryCache<K, V> {
 	}
 
 	public List<Map.Entry<K, V>> entries() {
-		check();
-		
-		return map.entrySet().stream()
-				.map(InnerMapEntry::new)
-				.collect(toImmutableList());
+		double now = nowSupplier.getAsDouble();
+		ImmutableList.Builder<Map.Entry<K, V>> b = ImmutableList.builder();
+		for (Segment s : segments) {
+			s.forEach(now, (k, v) -> b.add(new InnerMapEntry<>(k, v)));
+		}
+		return b.build();
+	}
+
+	private boolean expired(Node<K, V> e, double now) {
+		if (expirationAfterAccess > 0d) {
+			if ((now - e.accessTimestamp) >= expirationAfterAccess) {
+				return true;
+			}
+		}
+		if (expirationAfterWrite > 0d) {
+			if ((now - e.writeTimestamp) >= expirationAfterWrite) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private double deadline(Node<K, V> e) {
+		double d = Double.POSITIVE_INFINITY;
+		if (expirationAfterAccess > 0d) {
+			d = e.accessTimestamp + expirationAfterAccess;
+		}
+		if (expirationAfterWrite > 0d) {
+			d = Math.min(d, e.writeTimestamp + expirationAfterWrite);
+		}
+		return d;
+	}
+
+	// Locked as a whole
+	private final class Segment {
+		private final Map<K, Node<K, V>> map;
+		private final int limit;
+		private final FrequencySketch sketch;
+		private final Node<K, V> lru; // Sentinel, only if limited
+
+		@SuppressWarnings("unchecked")
+		private Node<K, V>[] wheel = null; // Allocated on first use
+		private long lastTick; // Last completed tick visited
+
+		public Segment(int limit, boolean keepOrder) {
+			map = keepOrder ? new LinkedHashMap<>() : new HashMap<>();
+			this.limit = limit;
+			if (limit > 0) {
+				sketch = new FrequencySketch(limit);
+				lru = new Node<>(null);
+				lru.lruPrevious = lru;
+				lru.lruNext = lru;
+			} else {
+				sketch = null;
+				lru = null;
+			}
+		}
+
+		public synchronized void put(K key, int hash, V value, double now) {
+			advance(now);
+
+			if (sketch != null) {
+				sketch.increment(hash);
+			}
+
+			Node<K, V> e = map.get(key);
+			boolean added = (e == null);
+			if (added) {
+				e = new Node<>(key);
+				map.put(key, e);
+			}
+			e.v = value;
+			e.writeTimestamp = now;
+			e.accessTimestamp = now;
+			schedule(e);
+
+			if (lru != null) {
+				touch(e);
+				if (added && (map.size() > limit)) {
+					Node<K, V> victim = lru.lruNext;
+					if (victim == e) {
+						return;
+					}
+					// A newcomer is only kept if it is used at least as often as the entry it would push out
+					if (sketch.frequency(hash) >= sketch.frequency(spread(victim.key))) {
+						evict(victim);
+					} else {
+						evict(e);
+					}
+				}
+			}
+		}
+
+		public synchronized V get(K key, int hash, double now) {
+			advance(now);
+
+			if (sketch != null) {
+				sketch.increment(hash);
+			}
+
+			Node<K, V> e = map.get(key);
+			if (e == null) {
+				return null;
+			}
+			if (expired(e, now)) {
+				evict(e);
+				return null;
+			}
+
+			e.accessTimestamp = now;
+			if (expirationAfterAccess > 0d) {
+				schedule(e);
+			}
+			if (lru != null) {
+				touch(e);
+			}
+			return e.v;
+		}
+
+		public synchronized void remove(K key, double now) {
+			advance(now);
+
+			Node<K, V> e = map.get(key);
+			if (e != null) {
+				unlink(e);
+			}
+		}
+
+		public synchronized void clear() {
+			if (listener != null) {
+				for (Node<K, V> e : map.values()) {
+					listener.accept(e.key, e.v);
+				}
+			}
+			map.clear();
+			if (wheel != null) {
+				for (int i = 0; i < wheel.length; i++) {
+					wheel[i] = null;
+				}
+			}
+			if (lru != null) {
+				lru.lruPrevious = lru;
+				lru.lruNext = lru;
+			}
+		}
+
+		public synchronized void forEach(double now, BiConsumer<K, V> consumer) {
+			advance(now);
+
+			for (Node<K, V> e : map.values()) {
+				if (!expired(e, now)) {
+					consumer.accept(e.key, e.v);
+				}
+			}
+		}
+
+		private void unlink(Node<K, V> e) {
+			map.remove(e.key);
+			unschedule(e);
+			if (e.lruNext != null) {
+				e.lruPrevious.lruNext = e.lruNext;
+				e.lruNext.lruPrevious = e.lruPrevious;
+				e.lruPrevious = null;
+				e.lruNext = null;
+			}
+		}
+
+		private void evict(Node<K, V> e) {
+			unlink(e);
+			evictions.increment();
+			if (listener != null) {
+				listener.accept(e.key, e.v);
+			}
+		}
+
+		private void touch(Node<K, V> e) {
+			if (e.lruNext != null) {
+				e.lruPrevious.lruNext = e.lruNext;
+				e.lruNext.lruPrevious = e.lruPrevious;
+			}
+			e.lruPrevious = lru.lruPrevious;
+			e.lruNext = lru;
+			lru.lruPrevious.lruNext = e;
+			lru.lruPrevious = e;
+		}
+
+		private long tick(double t) {
+			return (long) Math.floor(t / checkTime);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void schedule(Node<K, V> e) {
+			double deadline = deadline(e);
+			if ((deadline == Double.POSITIVE_INFINITY) || (checkTime <= 0d)) {
+				return;
+			}
+			if (wheel == null) {
+				wheel = new Node[wheelBuckets];
+				lastTick = tick(e.accessTimestamp) - 1L;
+			}
+			unschedule(e);
+			int b = (int) (tick(deadline) & (wheelBuckets - 1));
+			e.bucket = b;
+			e.wheelPrevious = null;
+			e.wheelNext = wheel[b];
+			if (wheel[b] != null) {
+				wheel[b].wheelPrevious = e;
+			}
+			wheel[b] = e;
+		}
+
+		private void unschedule(Node<K, V> e) {
+			if (e.bucket < 0) {
+				return;
+			}
+			if (e.wheelPrevious == null) {
+				wheel[e.bucket] = e.wheelNext;
+			} else {
+				e.wheelPrevious.wheelNext = e.wheelNext;
+			}
+			if (e.wheelNext != null) {
+				e.wheelNext.wheelPrevious = e.wheelPrevious;
+			}
+			e.bucket = -1;
+			e.wheelPrevious = null;
+			e.wheelNext = null;
+		}
+
+		// Visits the buckets of the ticks completed since the last call, the entries due in a later round are left as is
+		private void advance(double now) {
+			if (wheel == null) {
+				return;
+			}
+			long current = tick(now);
+			long from = Math.max(lastTick + 1L, current - wheelBuckets);
+			for (long t = from; t < current; t++) {
+				Node<K, V> e = wheel[(int) (t & (wheelBuckets - 1))];
+				while (e != null) {
+					Node<K, V> next = e.wheelNext;
+					if (deadline(e) <= now) {
+						evict(e);
+					}
+					e = next;
+				}
+			}
+			lastTick = Math.max(lastTick, current - 1L);
+		}
+	}
+
+	// Count-min sketch of 4-bit counters, halved periodically so that old popularity fades
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table; // 16 counters per long
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		public FrequencySketch(int capacity) {
+			int n = 8;
+			while (n < capacity) {
+				n *= 2;
+			}
+			table = new long[n];
+			mask = n - 1;
+			sampleSize = 10 * n;
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & mask;
+		}
+
+		private static int offset(int hash, int i) {
+			return ((hash >>> (i << 3)) & 0xF) << 2;
+		}
+
+		public int frequency(int hash) {
+			int f = 0xF;
+			for (int i = 0; i < 4; i++) {
+				f = Math.min(f, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xFL));
+			}
+			return f;
+		}
+
+		public void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int j = index(hash, i);
+				int o = offset(hash, i);
+				if (((table[j] >>> o) & 0xFL) != 0xFL) {
+					table[j] += 1L << o;
+					added = true;
+				}
+			}
+			if (added) {
+				additions++;
+				if (additions == sampleSize) {
+					for (int i = 0; i < table.length; i++) {
+						table[i] = (table[i] >>> 1) & RESET_MASK;
+					}
+					additions /= 2;
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,263 @@
+package com.davfx.ninio.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.typesafe.config.Config;
+
+/**
+ * Byte payloads kept out of the Java heap, in direct memory slabs cut into slots of power-of-two sizes (memcached-like).
+ * Only the slabs and a free slot stack per size are on the heap, a payload is referenced by a primitive long handle.
+ * Freed slots are reused by payloads of the same size class. A slab left empty is dropped (its memory goes back with the garbage collection of the buffer),
+ * right away if its size class has another slab worth of free slots, otherwise when a slab is needed beyond the memory bound.
+ * Not thread-safe.
+ */
+public final class OffHeapByteStore {
+
+	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.util.dependencies.Dependencies()).getConfig(OffHeapByteStore.class.getPackage().getName());
+	private static final int DEFAULT_SLAB_SIZE = CONFIG.getBytes("cache.offheap.slab").intValue();
+
+	private static final int MIN_SLOT_SHIFT = 6; // 64 bytes
+	private static final int LENGTH_BITS = 24;
+	private static final int SLOT_BITS = 32;
+	private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1L;
+	private static final long SLOT_MASK = (1L << SLOT_BITS) - 1L;
+
+	public static final long NONE = -1L;
+
+	private static final class SizeClass {
+		public final int slotSize;
+		public final int slotsPerSlab;
+		public final List<ByteBuffer> slabs = new ArrayList<>(); // Null once dropped, the index is reused
+		public int[] slabUsed = new int[1]; // Slots in use, per slab
+		public int[] free = new int[16];
+		public int freeCount = 0;
+		public long[] used = new long[1]; // One bit per slot, set while in use (double frees are detected)
+
+		public SizeClass(int slotSize, int slabSize) {
+			this.slotSize = slotSize;
+			slotsPerSlab = slabSize / slotSize;
+		}
+	}
+
+	private final int slabSize;
+	private final SizeClass[] classes;
+	private final long maxBytes;
+	private long allocated = 0L;
+	private long used = 0L;
+
+	public OffHeapByteStore() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	public OffHeapByteStore(int slabSize) {
+		this(slabSize, 0L);
+	}
+
+	/**
+	 * Bounds the direct memory taken by the slabs (0 for unbounded), see put
+	 */
+	public OffHeapByteStore(int slabSize, long maxBytes) {
+		if ((slabSize < (1 << MIN_SLOT_SHIFT)) || (Integer.bitCount(slabSize) != 1) || (slabSize >= (1 << LENGTH_BITS))) {
+			throw new IllegalArgumentException("Slab size must be a power of two from " + (1 << MIN_SLOT_SHIFT) + " to " + (1 << (LENGTH_BITS - 1)) + ": " + slabSize);
+		}
+		if ((maxBytes > 0L) && (maxBytes < slabSize)) {
+			throw new IllegalArgumentException("Not enough memory for a single slab of " + slabSize + " bytes: " + maxBytes);
+		}
+		this.slabSize = slabSize;
+		this.maxBytes = maxBytes;
+		int n = Integer.numberOfTrailingZeros(slabSize) - MIN_SLOT_SHIFT + 1;
+		classes = new SizeClass[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = new SizeClass(1 << (MIN_SLOT_SHIFT + i), slabSize);
+		}
+	}
+
+	/**
+	 * Bounded to maxBytes, with the default slab size or the largest power of two that fits
+	 */
+	public static OffHeapByteStore bounded(long maxBytes) {
+		if (maxBytes < (1 << MIN_SLOT_SHIFT)) {
+			throw new IllegalArgumentException("Not enough memory for the smallest slab: " + maxBytes);
+		}
+		return new OffHeapByteStore((int) Math.min(DEFAULT_SLAB_SIZE, Long.highestOneBit(maxBytes)), maxBytes);
+	}
+
+	private static int classIndex(int length) {
+		if (length <= (1 << MIN_SLOT_SHIFT)) {
+			return 0;
+		}
+		return (32 - Integer.numberOfLeadingZeros(length - 1)) - MIN_SLOT_SHIFT;
+	}
+
+	/**
+	 * Copies the remaining bytes of the buffer (its position is not changed).
+	 * Returns NONE if they are larger than a slab, or if a new slab is needed but would not fit in the memory bound (then free some other payloads and try again).
+	 */
+	public long put(ByteBuffer data) {
+		int length = data.remaining();
+		if (length > slabSize) {
+			return NONE;
+		}
+		int c = classIndex(length);
+		SizeClass sizeClass = classes[c];
+
+		if ((sizeClass.freeCount == 0) && !allocateSlab(sizeClass)) {
+			return NONE;
+		}
+
+		sizeClass.freeCount--;
+		int slot = sizeClass.free[sizeClass.freeCount];
+		sizeClass.slabUsed[slot / sizeClass.slotsPerSlab]++;
+		sizeClass.used[slot >>> 6] |= 1L << slot;
+
+		ByteBuffer b = slot(sizeClass, slot);
+		b.put(data.duplicate());
+		used += sizeClass.slotSize;
+
+		return (((long) c) << (SLOT_BITS + LENGTH_BITS)) | (((long) slot) << LENGTH_BITS) | length;
+	}
+
+	/**
+	 * Largest payload
+	 */
+	public int maxLength() {
+		return slabSize;
+	}
+
+	private boolean allocateSlab(SizeClass sizeClass) {
+		if ((maxBytes > 0L) && ((allocated + slabSize) > maxBytes)) {
+			dropEmptySlabs();
+			if ((allocated + slabSize) > maxBytes) {
+				return false;
+			}
+		}
+
+		int s = sizeClass.slabs.indexOf(null);
+		if (s < 0) {
+			s = sizeClass.slabs.size();
+			sizeClass.slabs.add(null);
+			if (sizeClass.slabUsed.length <= s) {
+				sizeClass.slabUsed = Arrays.copyOf(sizeClass.slabUsed, sizeClass.slabUsed.length * 2);
+			}
+			int total = sizeClass.slabs.size() * sizeClass.slotsPerSlab;
+			if (sizeClass.free.length < total) {
+				sizeClass.free = Arrays.copyOf(sizeClass.free, total); // Room for all the slots to be freed
+			}
+			if ((sizeClass.used.length * 64) < total) {
+				sizeClass.used = Arrays.copyOf(sizeClass.used, (total + 63) / 64);
+			}
+		}
+		sizeClass.slabs.set(s, ByteBuffer.allocateDirect(slabSize));
+		allocated += slabSize;
+
+		// Lowest slots on top of the stack
+		int first = s * sizeClass.slotsPerSlab;
+		for (int i = sizeClass.slotsPerSlab - 1; i >= 0; i--) {
+			sizeClass.free[sizeClass.freeCount] = first + i;
+			sizeClass.freeCount++;
+		}
+		return true;
+	}
+
+	private void dropEmptySlabs() {
+		for (SizeClass sizeClass : classes) {
+			for (int s = 0; s < sizeClass.slabs.size(); s++) {
+				if ((sizeClass.slabs.get(s) != null) && (sizeClass.slabUsed[s] == 0)) {
+					dropSlab(sizeClass, s);
+				}
+			}
+		}
+	}
+
+	private void dropSlab(SizeClass sizeClass, int s) {
+		sizeClass.slabs.set(s, null);
+		allocated -= slabSize;
+
+		// Its slots are taken out of the free stack, the order of the others is kept
+		int first = s * sizeClass.slotsPerSlab;
+		int last = first + sizeClass.slotsPerSlab;
+		int n = 0;
+		for (int i = 0; i < sizeClass.freeCount; i++) {
+			int f = sizeClass.free[i];
+			if ((f < first) || (f >= last)) {
+				sizeClass.free[n] = f;
+				n++;
+			}
+		}
+		sizeClass.freeCount = n;
+	}
+
+	private static ByteBuffer slot(SizeClass sizeClass, int slot) {
+		ByteBuffer b = sizeClass.slabs.get(slot / sizeClass.slotsPerSlab).duplicate();
+		int offset = (slot % sizeClass.slotsPerSlab) * sizeClass.slotSize;
+		b.limit(offset + sizeClass.slotSize);
+		b.position(offset);
+		return b;
+	}
+
+	public int length(long handle) {
+		return (int) (handle & LENGTH_MASK);
+	}
+
+	/**
+	 * Memory actually taken by the payload
+	 */
+	public int capacity(long handle) {
+		return classes[(int) (handle >>> (SLOT_BITS + LENGTH_BITS))].slotSize;
+	}
+
+	/**
+	 * Copies the payload into a new heap buffer, which stays valid after the handle is freed
+	 */
+	public ByteBuffer get(long handle) {
+		SizeClass sizeClass = classes[(int) (handle >>> (SLOT_BITS + LENGTH_BITS))];
+		ByteBuffer b = slot(sizeClass, (int) ((handle >>> LENGTH_BITS) & SLOT_MASK));
+		b.limit(b.position() + length(handle));
+		ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+		copy.put(b);
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Ignores NONE. Throws IllegalStateException if the payload is already freed.
+	 */
+	public void free(long handle) {
+		if (handle == NONE) {
+			return;
+		}
+		SizeClass sizeClass = classes[(int) (handle >>> (SLOT_BITS + LENGTH_BITS))];
+		int slot = (int) ((handle >>> LENGTH_BITS) & SLOT_MASK);
+		if ((slot >= (sizeClass.slabs.size() * sizeClass.slotsPerSlab)) || ((sizeClass.used[slot >>> 6] & (1L << slot)) == 0L)) {
+			throw new IllegalStateException("Already freed: " + handle);
+		}
+		sizeClass.used[slot >>> 6] &= ~(1L << slot);
+		sizeClass.free[sizeClass.freeCount] = slot;
+		sizeClass.freeCount++;
+		used -= sizeClass.slotSize;
+
+		// An empty slab is kept while it is the only room left in its size class, not to be allocated again right away
+		int s = slot / sizeClass.slotsPerSlab;
+		sizeClass.slabUsed[s]--;
+		if ((sizeClass.slabUsed[s] == 0) && (sizeClass.freeCount >= (2 * sizeClass.slotsPerSlab))) {
+			dropSlab(sizeClass, s);
+		}
+	}
+
+	/**
+	 * Direct memory taken by the slabs
+	 */
+	public long allocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * Direct memory taken by the stored payloads (slot sizes)
+	 */
+	public long usedBytes() {
+		return used;
+	}
+}
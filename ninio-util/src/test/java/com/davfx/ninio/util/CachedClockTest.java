@@ -0,0 +1,33 @@
+package com.davfx.ninio.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class CachedClockTest {
+	@Test
+	public void testFollowsTime() throws Exception {
+		double start = CachedClock.now();
+		Assertions.assertThat(start).isCloseTo(DateUtils.now(), Assertions.within(1d));
+		double previous = start;
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(10L);
+			double now = CachedClock.now();
+			Assertions.assertThat(now).isGreaterThanOrEqualTo(previous);
+			previous = now;
+		}
+		Assertions.assertThat(previous - start).isBetween(0.15d, 2d);
+	}
+
+	@Test
+	public void testFallsAsleepWhenIdle() throws Exception {
+		CachedClock.now();
+		Thread.sleep(2500L);
+		Assertions.assertThat(CachedClock.asleep()).isTrue();
+		// Woken up with the current time
+		Assertions.assertThat(CachedClock.now()).isCloseTo(DateUtils.now(), Assertions.within(0.1d));
+		Assertions.assertThat(CachedClock.asleep()).isFalse();
+		double start = CachedClock.now();
+		Thread.sleep(100L);
+		Assertions.assertThat(CachedClock.now() - start).isBetween(0.05d, 1d);
+	}
+}
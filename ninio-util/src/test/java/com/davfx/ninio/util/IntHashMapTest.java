@@ -0,0 +1,32 @@
+package com.davfx.ninio.util;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntHashMapTest {
+	@Test
+	public void testAgainstHashMap() throws Exception {
+		IntHashMap<String> map = new IntHashMap<>();
+		Map<Integer, String> expected = new HashMap<>();
+		Random random = new Random(42L);
+		for (int n = 0; n < 100_000; n++) {
+			int k = random.nextInt(2_000) * 16; // Same low bits, many collisions
+			if (random.nextBoolean()) {
+				Assertions.assertThat(map.put(k, "v" + n)).isEqualTo(expected.put(k, "v" + n));
+			} else {
+				Assertions.assertThat(map.remove(k)).isEqualTo(expected.remove(k));
+			}
+			Assertions.assertThat(map.size()).isEqualTo(expected.size());
+		}
+		for (int k = 0; k < 2_000 * 16; k++) {
+			Assertions.assertThat(map.get(k)).isEqualTo(expected.get(k));
+		}
+		map.clear();
+		Assertions.assertThat(map.isEmpty()).isTrue();
+		Assertions.assertThat(map.get(16)).isNull();
+	}
+}
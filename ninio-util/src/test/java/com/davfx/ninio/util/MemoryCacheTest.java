@@ -1,5 +1,8 @@
 package com.davfx.ninio.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
@@ -29,4 +32,108 @@ public class MemoryCacheTest {
 		cache.nowSupplier = () -> 0.27d;
 		Assertions.assertThat(cache.get("k")).isNull();
 	}
+
+	@Test
+	public void testUntouchedEntriesRemovedByTheWheel() throws Exception {
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().expireAfterWrite(0.1d).check(0.01d).build();
+		cache.nowSupplier = () -> 0;
+		cache.put("a", "1");
+		cache.nowSupplier = () -> 0.05d;
+		cache.put("b", "2");
+		cache.nowSupplier = () -> 0.13d;
+		Assertions.assertThat(cache.keys()).containsExactly("b");
+		Assertions.assertThat(cache.evictionCount()).isEqualTo(1L);
+		cache.nowSupplier = () -> 10d; // Several rounds later
+		Assertions.assertThat(cache.keys()).isEmpty();
+		Assertions.assertThat(cache.evictionCount()).isEqualTo(2L);
+	}
+
+	@Test
+	public void testRemovedListener() throws Exception {
+		final List<String> removed = new ArrayList<>();
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().expireAfterWrite(0.1d).check(0.01d).segments(1).removed((k, v) -> removed.add(k + "=" + v)).build();
+		cache.nowSupplier = () -> 0;
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		cache.put("d", "4");
+		cache.remove("b"); // Not notified
+		cache.put("c", "5"); // Not notified
+		cache.nowSupplier = () -> 0.15d;
+		Assertions.assertThat(cache.get("a")).isNull();
+		Assertions.assertThat(removed).containsOnly("a=1", "c=5", "d=4"); // Expired
+		removed.clear();
+		cache.put("e", "6");
+		cache.clear();
+		Assertions.assertThat(removed).containsExactly("e=6");
+	}
+
+	@Test
+	public void testFrequentEntriesKeptWhenLimited() throws Exception {
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().limitedTo(2).build();
+		cache.put("hot", "h");
+		for (int i = 0; i < 10; i++) {
+			cache.get("hot");
+		}
+		cache.put("warm", "w");
+		cache.get("warm");
+		cache.get("hot"); // "warm" is now the least recently used
+
+		cache.put("once", "o"); // Seen once, less than "warm": not admitted
+		Assertions.assertThat(cache.get("once")).isNull();
+		Assertions.assertThat(cache.get("warm")).isEqualTo("w");
+		Assertions.assertThat(cache.get("hot")).isEqualTo("h");
+
+		cache.put("new", "n");
+		cache.put("new", "n");
+		cache.put("new", "n"); // Now used as often as "warm", replaces it
+		Assertions.assertThat(cache.keys()).containsOnly("hot", "new");
+		Assertions.assertThat(cache.evictionCount()).isEqualTo(4L); // Rejected newcomers count too
+		Assertions.assertThat(cache.missCount()).isEqualTo(1L);
+	}
+
+	// A newcomer rejected by the admission is not in the cache right after its put
+	@Test
+	public void testRejectedByItsOwnPut() throws Exception {
+		final List<String> removed = new ArrayList<>();
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().limitedTo(1).segments(1).removed((k, v) -> removed.add(k + "=" + v)).build();
+		cache.put("hot", "h");
+		cache.get("hot");
+
+		cache.put("cold", "c");
+		Assertions.assertThat(cache.get("cold")).isNull();
+		Assertions.assertThat(removed).containsExactly("cold=c");
+		Assertions.assertThat(cache.evictionCount()).isEqualTo(1L);
+
+		cache.put("hot", "h2"); // Replaced, not subject to admission
+		Assertions.assertThat(cache.get("hot")).isEqualTo("h2");
+
+		// Once used as often, it is admitted by its put and the least recently used entry goes
+		cache.get("cold");
+		cache.get("cold");
+		cache.put("cold", "c");
+		Assertions.assertThat(cache.get("cold")).isEqualTo("c");
+		Assertions.assertThat(cache.get("hot")).isNull();
+		Assertions.assertThat(removed).containsExactly("cold=c", "hot=h2");
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final MemoryCache<Integer, Integer> cache = MemoryCache.<Integer, Integer> builder().expireAfterAccess(10d).segments(8).build();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					cache.put(i % 100, i % 100);
+					Assertions.assertThat(cache.get(i % 100)).isEqualTo(i % 100);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Assertions.assertThat(cache.keys()).hasSize(100);
+		Assertions.assertThat(cache.hitCount()).isEqualTo(40_000L);
+	}
 }
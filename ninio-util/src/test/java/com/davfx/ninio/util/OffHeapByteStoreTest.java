@@ -0,0 +1,114 @@
+package com.davfx.ninio.util;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class OffHeapByteStoreTest {
+	@Test
+	public void testAgainstHeap() throws Exception {
+		OffHeapByteStore store = new OffHeapByteStore(4096);
+		Map<Long, byte[]> expected = new HashMap<>();
+		Random random = new Random(42L);
+		for (int n = 0; n < 10_000; n++) {
+			if (expected.isEmpty() || random.nextBoolean()) {
+				byte[] b = new byte[random.nextInt(4096) + 1];
+				random.nextBytes(b);
+				long h = store.put(ByteBuffer.wrap(b));
+				Assertions.assertThat(expected.put(h, b)).isNull();
+			} else {
+				long h = expected.keySet().iterator().next();
+				byte[] b = expected.remove(h);
+				ByteBuffer r = store.get(h);
+				Assertions.assertThat(r.remaining()).isEqualTo(b.length);
+				Assertions.assertThat(r).isEqualTo(ByteBuffer.wrap(b));
+				store.free(h);
+			}
+		}
+		long used = 0L;
+		for (Map.Entry<Long, byte[]> e : expected.entrySet()) {
+			Assertions.assertThat(store.get(e.getKey())).isEqualTo(ByteBuffer.wrap(e.getValue()));
+			Assertions.assertThat(store.capacity(e.getKey())).isGreaterThanOrEqualTo(e.getValue().length).isLessThan(Math.max(64, e.getValue().length * 2));
+			used += store.capacity(e.getKey());
+		}
+		Assertions.assertThat(store.usedBytes()).isEqualTo(used);
+		Assertions.assertThat(store.allocatedBytes()).isGreaterThanOrEqualTo(used);
+	}
+
+	@Test
+	public void testSlotsReused() throws Exception {
+		OffHeapByteStore store = new OffHeapByteStore(1024);
+		Assertions.assertThat(store.put(ByteBuffer.allocate(1025))).isEqualTo(OffHeapByteStore.NONE);
+		for (int i = 0; i < 100; i++) {
+			long h = store.put(ByteBuffer.wrap(new byte[] { (byte) i }));
+			Assertions.assertThat(store.get(h).get()).isEqualTo((byte) i);
+			store.free(h);
+		}
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(1024L);
+		Assertions.assertThat(store.usedBytes()).isZero();
+	}
+
+	@Test
+	public void testBoundedAndEmptySlabsDropped() throws Exception {
+		OffHeapByteStore store = new OffHeapByteStore(1024, 2048L); // 16 slots of 64 bytes per slab
+		long[] small = new long[16];
+		for (int i = 0; i < small.length; i++) {
+			small[i] = store.put(ByteBuffer.allocate(64));
+		}
+		long large = store.put(ByteBuffer.allocate(128));
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(2048L);
+		Assertions.assertThat(store.put(ByteBuffer.allocate(64))).isEqualTo(OffHeapByteStore.NONE); // A third slab would not fit
+
+		store.free(large); // Empty, kept
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(2048L);
+		long more = store.put(ByteBuffer.allocate(64)); // The empty slab is dropped for a new one
+		Assertions.assertThat(more).isNotEqualTo(OffHeapByteStore.NONE);
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(2048L);
+
+		store.free(more);
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(2048L); // Empty, but the only room left in its size class
+		for (long h : small) {
+			store.free(h);
+		}
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(1024L); // Once both empty, one is dropped right away
+		Assertions.assertThat(store.usedBytes()).isZero();
+
+		long h = store.put(ByteBuffer.wrap(new byte[] { 42 }));
+		Assertions.assertThat(store.get(h).get()).isEqualTo((byte) 42);
+		Assertions.assertThat(store.allocatedBytes()).isEqualTo(1024L);
+	}
+
+	@Test
+	public void testFreeNoneIgnored() throws Exception {
+		OffHeapByteStore store = new OffHeapByteStore(4096);
+		store.free(OffHeapByteStore.NONE);
+		Assertions.assertThat(store.usedBytes()).isEqualTo(0L);
+	}
+
+	@Test
+	public void testDoubleFreeRejected() throws Exception {
+		OffHeapByteStore store = new OffHeapByteStore(4096);
+		long h = store.put(ByteBuffer.wrap(new byte[] { 1 }));
+		long kept = store.put(ByteBuffer.wrap(new byte[] { 2 }));
+		store.free(h);
+		try {
+			store.free(h);
+			Assertions.fail("Double free accepted");
+		} catch (IllegalStateException e) {
+		}
+		Assertions.assertThat(store.usedBytes()).isEqualTo(64L);
+
+		// The slot is not handed out twice
+		long a = store.put(ByteBuffer.wrap(new byte[] { 3 }));
+		long b = store.put(ByteBuffer.wrap(new byte[] { 4 }));
+		Assertions.assertThat(a).isNotEqualTo(b);
+		Assertions.assertThat(store.get(a)).isEqualTo(ByteBuffer.wrap(new byte[] { 3 }));
+		Assertions.assertThat(store.get(b)).isEqualTo(ByteBuffer.wrap(new byte[] { 4 }));
+		Assertions.assertThat(store.get(kept)).isEqualTo(ByteBuffer.wrap(new byte[] { 2 }));
+		Assertions.assertThat(store.usedBytes()).isEqualTo(3 * 64L);
+	}
+}